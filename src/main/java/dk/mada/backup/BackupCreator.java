@@ -1,25 +1,42 @@
 package dk.mada.backup;
 
+import dk.mada.backup.api.BackupException;
+import dk.mada.backup.api.ExclusionRules;
 import dk.mada.backup.cli.HumanByteCount;
 import dk.mada.backup.impl.output.BackupPolicy;
 import dk.mada.backup.impl.output.BackupStreamWriter;
+import dk.mada.backup.impl.output.DeadlineScheduler;
+import dk.mada.backup.impl.output.DeadlineScheduler.Candidate;
+import dk.mada.backup.impl.output.IncrementalBase;
 import dk.mada.backup.impl.output.MemorySegmentOutputStream;
+import dk.mada.backup.impl.output.PreviousSetWriter;
 import dk.mada.backup.impl.output.TarContainerBuilder;
 import dk.mada.backup.impl.output.TarContainerBuilder.Entry;
+import dk.mada.backup.restore.RestoreScriptReader.DataRootFile;
 import dk.mada.backup.restore.RestoreScriptWriter;
+import dk.mada.backup.restore.RestoreScriptWriter.SectionWriter;
 import dk.mada.backup.restore.VariableName;
+import dk.mada.backup.storage.StorageBackend;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,14 +45,16 @@ import org.slf4j.LoggerFactory;
  */
 public class BackupCreator {
     private static final Logger logger = LoggerFactory.getLogger(BackupCreator.class);
-    /** Information about the root elements included in the backup. */
-    private List<BackupElement> rootFileElements = new ArrayList<>();
+    /** Information about the files included in the backup. */
+    private final FileCatalog fileCatalog;
     /** Backup policy. */
     private final BackupPolicy policy;
     /** Total size of the files in the backup (does not include directory sizes). */
     private long totalInputSize;
     /** The internal buffer used for archiving root directories. */
     private final MemorySegmentOutputStream dirPackBuffer;
+    /** The base set of an incremental backup, or null for a full backup. */
+    private @Nullable IncrementalBase incrementalBase;
 
     /**
      * Creates a new instance.
@@ -46,6 +65,9 @@ public class BackupCreator {
         this.policy = policy;
 
         dirPackBuffer = new MemorySegmentOutputStream(policy.limits().maxRootElementSize());
+        fileCatalog = policy.limits().boundedMemory()
+                ? new FileCatalog(policy.manifestFile())
+                : new FileCatalog();
     }
 
     /**
@@ -54,6 +76,14 @@ public class BackupCreator {
      * @return the generated restore script
      */
     public Path create() {
+        try (fileCatalog) {
+            return createBackup();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to delete file manifest", e);
+        }
+    }
+
+    private Path createBackup() {
         Path rootDir = policy.rootDirectory();
         if (!Files.isDirectory(rootDir)) {
             throw new IllegalArgumentException("Must be dir, was " + rootDir);
@@ -61,18 +91,30 @@ public class BackupCreator {
         logger.info("Create backup from {}", rootDir);
 
         policy.backupPrep();
+        incrementalBase = policy.incrementalBase();
 
         // Process root elements
         List<BackupElement> archiveElements;
         Future<List<FileInfo>> outputFilesFuture;
-        try (Stream<Path> files = Files.list(rootDir);
-                BackupStreamWriter bsw = policy.writer()) {
-
-            archiveElements = files.sorted(pathSorter(rootDir))
-                    .map(p -> processRootElement(rootDir, bsw, p))
+        // Kept for reading bucket information after it is closed
+        BackupStreamWriter writer;
+        try (BackupStreamWriter bsw = policy.writer()) {
+            List<SourceFile> rootElements = listRootElements(rootDir, rootDir, policy.limits().groupDepth()).stream()
+                    .sorted(Comparator.comparing(SourceFile::path, pathSorter(rootDir)))
                     .toList();
+            DeadlineScheduler deadlineScheduler = policy.deadlineScheduler();
+            if (deadlineScheduler == null) {
+                archiveElements = rootElements.stream()
+                        .<BackupElement>flatMap(p -> processRootElement(rootDir, bsw, p).stream())
+                        .toList();
+            } else if (bsw instanceof PreviousSetWriter previousSetWriter) {
+                archiveElements = processBeforeDeadline(rootDir, previousSetWriter, deadlineScheduler, rootElements);
+            } else {
+                throw new IllegalStateException("A deadline needs a writer that can keep previous root elements");
+            }
 
             outputFilesFuture = bsw.getOutputFiles();
+            writer = bsw;
 
             logger.info("Waiting for backup streaming to complete...");
         } catch (IOException e) {
@@ -92,17 +134,146 @@ public class BackupCreator {
 
         String backupTime = LocalDateTime.now().format(RestoreScriptWriter.RESTORE_SCRIPT_TIME_FORMAT);
 
+        List<String> deletedFiles = incrementalBase == null ? List.of() : incrementalBase.deletedFiles();
+        ExclusionRules exclusions = policy.exclusions();
         Map<VariableName, String> vars = Map.of(
                 VariableName.VERSION, Version.getBackupVersion(),
                 VariableName.BACKUP_DATE_TIME, backupTime,
                 VariableName.BACKUP_NAME, policy.backupName(),
                 VariableName.BACKUP_INPUT_SIZE, HumanByteCount.humanReadableByteCount(totalInputSize),
-                VariableName.BACKUP_KEY_ID, policy.gpgInfo().recipientKeyId().id(),
-                VariableName.BACKUP_OUTPUT_TYPE, policy.outputType().name());
-        RestoreScriptWriter restoreWriter =
-                new RestoreScriptWriter(vars, cryptElements, archiveElements, rootFileElements);
+                VariableName.BACKUP_KEY_ID, policy.encrypter().recipientKeyId().id(),
+                VariableName.BACKUP_COMPRESSION, writer.compression().gpgName(),
+                VariableName.BACKUP_OUTPUT_TYPE, policy.outputType().name(),
+                // set by the policy for each written script of an incremental backup
+                VariableName.BACKUP_BASE, "",
+                VariableName.BACKUP_EXCLUDES, toShellWords(exclusions.excludes()),
+                VariableName.BACKUP_INCLUDES, toShellWords(exclusions.includes()));
+        RestoreScriptWriter restoreWriter = new RestoreScriptWriter(
+                vars,
+                cryptElements,
+                writer.getBuckets(),
+                archiveElements,
+                SectionWriter.of(fileCatalog),
+                deletedFiles);
+
+        // The stored files may be moved when the backup is completed
+        awaitStoredFiles();
+        Path restoreScript = policy.completeBackup(restoreWriter);
+        storeRestoreScript(restoreScript);
+        return restoreScript;
+    }
+
+    private void awaitStoredFiles() {
+        try {
+            policy.storage().awaitStored();
+        } catch (IOException e) {
+            throw new BackupException("Failed to store backup files", e);
+        }
+    }
+
+    /**
+     * Stores the restore script last, and waits for the storage backend to complete.
+     *
+     * @param restoreScript the restore script
+     */
+    private void storeRestoreScript(Path restoreScript) {
+        try (StorageBackend storage = policy.storage()) {
+            storage.store(restoreScript, restoreScript.getFileName().toString());
+            logger.info("Waiting for backup storage to complete...");
+        } catch (IOException e) {
+            throw new BackupException("Failed to store backup files", e);
+        }
+    }
+
+    /**
+     * Formats patterns for the restore script header, each pattern as a quoted shell word.
+     *
+     * @param patterns the patterns
+     * @return the quoted patterns, separated by spaces
+     */
+    private static String toShellWords(List<String> patterns) {
+        return patterns.stream()
+                .map(p -> "\"" + ShellEscaper.toSafeShellString(p) + "\"")
+                .collect(Collectors.joining(" "));
+    }
+
+    /**
+     * Processes root elements in the order of the deadline scheduler, until the deadline stops the processing.
+     *
+     * The remaining root elements keep their archives from the previous backup set.
+     *
+     * @param rootDir      the root directory of the backup source
+     * @param bsw          the backup stream writer, keeping the crypt files of deferred root elements
+     * @param scheduler    the deadline scheduler
+     * @param rootElements the root elements
+     * @return the file information for the archived (or kept) root elements
+     * @throws IOException if IO fails
+     */
+    private List<BackupElement> processBeforeDeadline(
+            Path rootDir, PreviousSetWriter bsw, DeadlineScheduler scheduler, List<SourceFile> rootElements)
+            throws IOException {
+        Map<Path, SourceFile> filesByPath =
+                rootElements.stream().collect(Collectors.toMap(SourceFile::path, f -> f));
+        List<Path> paths = rootElements.stream().map(SourceFile::path).toList();
+        List<BackupElement> elements = new ArrayList<>();
+        for (Candidate c : scheduler.prioritize(rootDir, paths, policy.exclusions())) {
+            if (scheduler.hasTimeFor(c)) {
+                Instant start = Instant.now();
+                SourceFile file = Objects.requireNonNull(filesByPath.get(c.path()));
+                elements.addAll(processRootElement(rootDir, bsw, file));
+                scheduler.recordProcessed(c, Duration.between(start, Instant.now()));
+            } else {
+                DataRootFile previous = scheduler.defer(c);
+                if (previous != null) {
+                    bsw.keepPreviousRootElement(previous);
+                    scheduler.addPreviousFiles(c, fileCatalog);
+                    fileCatalog.completeSegment();
+                    String archiveName = previous.isDirectory() ? Entry.wrapFolderName(c.name()) : c.name();
+                    elements.add(FileInfo.of(
+                            archiveName, previous.archive().size(), previous.archive().xxh3().value()));
+                }
+            }
+        }
+        scheduler.report();
+        return elements;
+    }
 
-        return policy.completeBackup(restoreWriter);
+    /**
+     * Lists the root elements of the backup.
+     *
+     * These are the entries at the group depth below the source root directory. Files and empty directories above the
+     * group depth are root elements of their own. Excluded entries are left out without reading their attributes.
+     *
+     * @param rootDir the source root directory
+     * @param dir     the directory to list
+     * @param depth   the remaining depth to the root elements
+     * @return the root elements, with their attributes
+     * @throws IOException if a directory cannot be listed
+     */
+    private List<SourceFile> listRootElements(Path rootDir, Path dir, int depth) throws IOException {
+        ExclusionRules exclusions = policy.exclusions();
+        List<SourceFile> elements = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(dir)) {
+            for (Path p : entries.toList()) {
+                if (exclusions.isExcluded(rootDir, p)) {
+                    logger.debug("Excluding {}", p);
+                    continue;
+                }
+                SourceFile f = SourceFile.of(p);
+                if (depth > 1 && f.isDirectory() && !isEmptyDir(p)) {
+                    elements.addAll(listRootElements(rootDir, p, depth - 1));
+                } else {
+                    elements.add(f);
+                }
+            }
+        }
+        return elements;
+    }
+
+    private static boolean isEmptyDir(Path dir) throws IOException {
+        try (Stream<Path> entries = Files.list(dir)) {
+            return entries.findAny().isEmpty();
+        }
     }
 
     /**
@@ -121,23 +292,42 @@ public class BackupCreator {
         };
     }
 
-    private BackupElement processRootElement(Path rootDir, BackupStreamWriter bsw, Path p) {
-        logger.info("Process {}", p);
+    /**
+     * Processes a root element.
+     *
+     * @param rootDir the root directory of the backup source
+     * @param bsw     the backup stream writer
+     * @param p       the root element
+     * @return the file information for the archived root element (one per archive part), or empty if it is unchanged
+     *         since the base set
+     */
+    private List<FileInfo> processRootElement(Path rootDir, BackupStreamWriter bsw, SourceFile p) {
+        logger.info("Process {}", p.path());
         try {
-            TarContainerBuilder tos = bsw.processNextRootElement(p.getFileName().toString());
-            if (Files.isDirectory(p)) {
-                return processDir(rootDir, tos, p);
+            List<FileInfo> elements;
+            if (p.isDirectory()) {
+                elements = processDir(rootDir, bsw, p);
             } else {
-                return processFile(rootDir, tos, p);
+                FileInfo unchanged = unchangedFile(rootDir, p);
+                if (unchanged != null) {
+                    fileCatalog.add(unchanged);
+                    elements = List.of();
+                } else {
+                    TarContainerBuilder tos =
+                            bsw.processNextRootElement(rootDir.relativize(p.path()).toString(), p.size());
+                    elements = List.of(processFile(rootDir, tos, p));
+                }
             }
+            fileCatalog.completeSegment();
+            return elements;
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
-    private FileInfo processFile(Path rootDir, TarContainerBuilder backupsetTarBuilder, Path file) {
+    private FileInfo processFile(Path rootDir, TarContainerBuilder backupsetTarBuilder, SourceFile file) {
         FileInfo fileInfo = copyToTar(rootDir, file, backupsetTarBuilder);
-        rootFileElements.add(fileInfo);
+        fileCatalog.add(fileInfo);
         return fileInfo;
     }
 
@@ -147,46 +337,116 @@ public class BackupCreator {
      * This is done by creating a tar archive of the folder contents.
      *
      * The archive needs to be created before it can be copied into the output container; tar needs to know the file size
-     * before the data is streamed into the archive.
+     * before the data is streamed into the archive. This also allows the writer to know the size of the root element.
+     *
+     * If the archive grows past the writer's root element part size, it is completed as a part at the next file
+     * boundary, and the remaining files go into further parts (named NAME.part-N). So the writer can split the output
+     * inside a large directory.
+     *
+     * For an incremental backup, only the changed files are included in the archive. If no files have changed, the
+     * directory is not archived at all.
      *
-     * @param rootDir             the root directory of the backup source
-     * @param backupsetTarBuilder the tar builder for the backup set
-     * @param dir                 the directory archive and copy into the backup
-     * @return the file information for the added archive
+     * The files are archived in name order as they are walked, but read ahead in physical order (see
+     * {@link ReadScheduler}).
+     *
+     * @param rootDir the root directory of the backup source
+     * @param bsw     the backup stream writer
+     * @param dir     the directory archive and copy into the backup
+     * @return the file information for the added archive parts, or empty if the directory is unchanged since the base
+     *         set
+     * @throws IOException if IO fails
      */
-    private FileInfo processDir(Path rootDir, TarContainerBuilder backupsetTarBuilder, Path dir) {
-        DirInfo dirInfo = newCreateArchiveFromDir(rootDir, dir);
-        rootFileElements.add(dirInfo);
+    private List<FileInfo> processDir(Path rootDir, BackupStreamWriter bsw, SourceFile dir) throws IOException {
+        logger.debug("Creating nested archive for {}", dir.path());
+        String rootElementName = rootDir.relativize(dir.path()).toString();
+        long partSize = bsw.rootElementPartSize();
 
-        Entry entry =
-                backupsetTarBuilder.addStream(dirPackBuffer, dir.getFileName().toString());
-        return FileInfo.of(entry.archiveName(), entry.size(), entry.xxh3().value());
-    }
+        // unchanged files are found as the files are pulled from the walk, ahead of being added to the catalog
+        Map<SourceFile, FileInfo> unchangedAhead = new HashMap<>();
+        Predicate<SourceFile> isChanged = f -> {
+            FileInfo unchanged = unchangedFile(rootDir, f);
+            if (unchanged != null) {
+                unchangedAhead.put(f, unchanged);
+            }
+            return unchanged == null;
+        };
 
-    private DirInfo newCreateArchiveFromDir(Path rootDir, Path dir) {
+        List<FileInfo> parts = new ArrayList<>();
+        boolean hasFiles = false;
+        boolean hasChangedFiles = false;
         dirPackBuffer.reset();
-        try (TarContainerBuilder tarBuilder = new TarContainerBuilder(dirPackBuffer)) {
-            logger.debug("Creating nested archive for {}", dir);
+        TarContainerBuilder tarBuilder = new TarContainerBuilder(dirPackBuffer);
+        try (Stream<SourceFile> walk = SourceTreeWalker.walk(dir, policy.rootDirectory(), policy.exclusions());
+                ReadScheduler reads = new ReadScheduler(
+                        walk.filter(SourceFile::isRegularFile).iterator(),
+                        isChanged,
+                        ReadScheduler.DEFAULT_WINDOW_SIZE,
+                        ReadScheduler.DEFAULT_MAX_AHEAD,
+                        Files::readAllBytes)) {
+            while (reads.hasNext()) {
+                SourceFile f = reads.next();
+                hasFiles = true;
+                FileInfo fileInfo = unchangedAhead.remove(f);
+                if (fileInfo == null) {
+                    hasChangedFiles = true;
+                    if (dirPackBuffer.count() >= partSize) {
+                        tarBuilder.close();
+                        parts.add(addArchivePart(bsw, rootElementName, parts.size()));
+                        dirPackBuffer.reset();
+                        tarBuilder = new TarContainerBuilder(dirPackBuffer);
+                    }
+                    try (InputStream content = reads.open(f)) {
+                        fileInfo = copyToTar(rootDir, f, tarBuilder, content);
+                    }
+                }
+                fileCatalog.add(fileInfo);
+            }
+        } finally {
+            tarBuilder.close();
+        }
+        if (hasFiles && !hasChangedFiles) {
+            return List.of();
+        }
+        parts.add(addArchivePart(bsw, rootElementName, parts.size()));
+        return parts;
+    }
 
-            try (Stream<Path> files = Files.walk(dir)) {
-                List<FileInfo> containedFiles = files.sorted(pathSorter(rootDir))
-                        .filter(Files::isRegularFile)
-                        .map(f -> copyToTar(rootDir, f, tarBuilder))
-                        .toList();
+    /**
+     * Adds the nested archive in the pack buffer to the backup.
+     *
+     * @param bsw             the backup stream writer
+     * @param rootElementName the name of the root element
+     * @param partIndex       the index of the archive part, zero for the first part
+     * @return the file information for the added archive part
+     * @throws IOException if IO fails
+     */
+    private FileInfo addArchivePart(BackupStreamWriter bsw, String rootElementName, int partIndex) throws IOException {
+        String name = partIndex == 0 ? rootElementName : rootElementName + ".part-" + (partIndex + 1);
+        TarContainerBuilder backupsetTarBuilder = bsw.processNextRootElement(name, dirPackBuffer.count());
+        Entry entry = backupsetTarBuilder.addStream(dirPackBuffer, name);
+        return FileInfo.of(entry.archiveName(), entry.size(), entry.xxh3().value());
+    }
 
-                return DirInfo.from(rootDir, dir, containedFiles);
-            }
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    private @Nullable FileInfo unchangedFile(Path rootDir, SourceFile file) {
+        if (incrementalBase == null) {
+            return null;
         }
+        return incrementalBase.unchanged(file, rootDir.relativize(file.path()).toString());
     }
 
-    private FileInfo copyToTar(Path rootDir, Path file, TarContainerBuilder tarBuilder) {
-        String inArchiveName = rootDir.relativize(file).toString();
-        Entry entry = tarBuilder.addFile(file, inArchiveName);
+    private FileInfo copyToTar(Path rootDir, SourceFile file, TarContainerBuilder tarBuilder) {
+        String inArchiveName = rootDir.relativize(file.path()).toString();
+        return toFileInfo(tarBuilder.addFile(file, inArchiveName));
+    }
+
+    private FileInfo copyToTar(Path rootDir, SourceFile file, TarContainerBuilder tarBuilder, InputStream content) {
+        String inArchiveName = rootDir.relativize(file.path()).toString();
+        return toFileInfo(tarBuilder.addFile(file, inArchiveName, content));
+    }
 
+    private FileInfo toFileInfo(Entry entry) {
         totalInputSize += entry.size();
 
-        return FileInfo.of(inArchiveName, entry.size(), entry.xxh3().value());
+        return FileInfo.of(entry.archiveName(), entry.size(), entry.xxh3().value());
     }
 }
@@ -0,0 +1,21 @@
+package dk.mada.backup;
+
+import dk.mada.backup.types.Xxh3;
+
+/**
+ * Captures information about an encrypted file of a NAMED backup, when small root elements are packed into buckets.
+ *
+ * @param archiveSize  the size of the (unencrypted) archive in the file
+ * @param archiveXxh3  the XXH3 checksum of the (unencrypted) archive in the file
+ * @param elementCount the number of root elements in the archive
+ * @param cryptName    the name of the encrypted file
+ */
+public record BucketInfo(long archiveSize, Xxh3 archiveXxh3, int elementCount, String cryptName)
+        implements BackupElement {
+
+    @Override
+    public String toBackupSummary() {
+        return "\"" + String.format("% 11d", archiveSize) + "," + archiveXxh3.hex() + ","
+                + String.format("% 6d", elementCount) + "," + ShellEscaper.toSafeShellString(cryptName) + "\"";
+    }
+}
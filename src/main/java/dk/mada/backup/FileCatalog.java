@@ -0,0 +1,208 @@
+package dk.mada.backup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Catalog of the files included in a backup.
+ *
+ * There may be millions of files in a backup, and they all need to be listed in the restore script. So instead of
+ * keeping an object per file, the catalog keeps the file information in columns of primitive arrays.
+ *
+ * The paths are added in archive order, so consecutive paths share long prefixes. Each path is stored as the length of
+ * the prefix it shares with the previous path, and the UTF-8 bytes of the rest of the path.
+ *
+ * The catalog writes the summary lines of the files for the restore script, creating each line only as it is written.
+ *
+ * With a manifest file, the catalog is bounded in memory: each completed segment (the files of a root element) is
+ * appended to the manifest file and dropped from memory. The manifest file is copied into the restore script, and is
+ * deleted when the catalog is closed.
+ */
+public final class FileCatalog implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(FileCatalog.class);
+    /** The initial number of files the catalog has room for. */
+    private static final int INITIAL_CAPACITY = 1024;
+    /** The initial size of the path arena. */
+    private static final int INITIAL_ARENA_SIZE = 16 * 1024;
+    /** The maximal size of the path arena. */
+    private static final int MAX_ARENA_SIZE = Integer.MAX_VALUE - 8;
+
+    /** The sizes of the files. */
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    /** The XXH3 hashes of the files. */
+    private long[] xxh3s = new long[INITIAL_CAPACITY];
+    /** The number of chars each path shares with the previous path. */
+    private int[] sharedPrefixes = new int[INITIAL_CAPACITY];
+    /** The end offsets in the arena of the unshared path parts. */
+    private int[] suffixEnds = new int[INITIAL_CAPACITY];
+    /** The UTF-8 bytes of the unshared path parts. */
+    private byte[] arena = new byte[INITIAL_ARENA_SIZE];
+    /** The used size of the arena. */
+    private int arenaSize;
+    /** The number of files in the catalog. */
+    private int count;
+    /** The path of the last added file. */
+    private String lastPath = "";
+    /** The manifest file for completed segments, or null to keep all files in memory. */
+    private final @Nullable Path manifestFile;
+    /** The writer of the manifest file, once the first segment has been completed. */
+    private @Nullable BufferedWriter manifest;
+    /** The number of files in the manifest file. */
+    private long manifestCount;
+
+    /**
+     * Creates a catalog keeping all files in memory.
+     */
+    public FileCatalog() {
+        this(null);
+    }
+
+    /**
+     * Creates a catalog.
+     *
+     * @param manifestFile the manifest file to move completed segments to, or null to keep all files in memory
+     */
+    public FileCatalog(@Nullable Path manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Adds a file to the catalog.
+     *
+     * @param pathName the path of the file relative to the backup root
+     * @param size     the size of the file
+     * @param xxh3     the XXH3 hash of the file
+     */
+    public void add(String pathName, long size, long xxh3) {
+        if (count == sizes.length) {
+            int capacity = count * 2;
+            sizes = Arrays.copyOf(sizes, capacity);
+            xxh3s = Arrays.copyOf(xxh3s, capacity);
+            sharedPrefixes = Arrays.copyOf(sharedPrefixes, capacity);
+            suffixEnds = Arrays.copyOf(suffixEnds, capacity);
+        }
+
+        int shared = sharedPrefixLength(lastPath, pathName);
+        byte[] suffix = pathName.substring(shared).getBytes(StandardCharsets.UTF_8);
+        if (suffix.length > MAX_ARENA_SIZE - arenaSize) {
+            throw new IllegalStateException("File catalog full at " + count + " files");
+        }
+        if (arenaSize + suffix.length > arena.length) {
+            long grown = Math.max(2L * arena.length, (long) arenaSize + suffix.length);
+            arena = Arrays.copyOf(arena, (int) Math.min(grown, MAX_ARENA_SIZE));
+        }
+        System.arraycopy(suffix, 0, arena, arenaSize, suffix.length);
+        arenaSize += suffix.length;
+
+        sizes[count] = size;
+        xxh3s[count] = xxh3;
+        sharedPrefixes[count] = shared;
+        suffixEnds[count] = arenaSize;
+        count++;
+        lastPath = pathName;
+    }
+
+    /**
+     * Adds a file to the catalog.
+     *
+     * @param fileInfo the information about the file
+     */
+    public void add(FileInfo fileInfo) {
+        add(fileInfo.getPathName(), fileInfo.getSize(), fileInfo.getXXH3Value());
+    }
+
+    /** {@return the number of files in the catalog} */
+    public long size() {
+        return manifestCount + count;
+    }
+
+    /**
+     * Completes a segment of the catalog.
+     *
+     * With a manifest file, the files of the segment are moved from memory to the manifest file.
+     *
+     * @throws IOException if the manifest file cannot be written
+     */
+    public void completeSegment() throws IOException {
+        if (manifestFile == null || count == 0) {
+            return;
+        }
+        BufferedWriter out = manifest;
+        if (out == null) {
+            logger.debug("Moving completed file information to {}", manifestFile);
+            out = Files.newBufferedWriter(manifestFile);
+            manifest = out;
+        }
+        writeSegment(out);
+        manifestCount += count;
+        count = 0;
+        arenaSize = 0;
+        lastPath = "";
+    }
+
+    /**
+     * Writes the summary lines of the files, in the order they were added.
+     *
+     * Each line is terminated by a newline.
+     *
+     * @param out the writer to write to
+     * @throws IOException if writing fails
+     */
+    public void writeTo(Writer out) throws IOException {
+        BufferedWriter spilled = manifest;
+        if (spilled != null && manifestFile != null) {
+            spilled.flush();
+            try (Reader r = Files.newBufferedReader(manifestFile)) {
+                r.transferTo(out);
+            }
+        }
+        writeSegment(out);
+    }
+
+    private void writeSegment(Writer out) throws IOException {
+        StringBuilder path = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            path.setLength(sharedPrefixes[i]);
+            path.append(new String(arena, start, suffixEnds[i] - start, StandardCharsets.UTF_8));
+            start = suffixEnds[i];
+            out.write(FileInfo.toBackupSummary(path.toString(), sizes[i], xxh3s[i], null));
+            out.write('\n');
+        }
+    }
+
+    private static int sharedPrefixLength(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        // Do not split a surrogate pair, as the suffix is stored as UTF-8
+        if (i > 0 && Character.isHighSurrogate(b.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    /** Deletes the manifest file. */
+    @Override
+    public void close() throws IOException {
+        BufferedWriter spilled = manifest;
+        manifest = null;
+        if (spilled != null) {
+            spilled.close();
+        }
+        if (manifestFile != null) {
+            Files.deleteIfExists(manifestFile);
+        }
+    }
+}
@@ -25,19 +25,34 @@ public final class FileInfo implements BackupElement {
     /** Size of the file. */
     private final long size;
     /** XXH3 sum of the file. */
-    private final String xxh3;
+    private final long xxh3;
     /** Optional MD5 sum of the file - only computed/captured for crypt-files. */
     @Nullable private final String md5Checksum;
 
     private FileInfo(String pathName, long size, long xxh3, @Nullable String md5) {
         this.pathName = pathName;
         this.size = size;
-        this.xxh3 = HexFormat.of().toHexDigits(xxh3);
+        this.xxh3 = xxh3;
         this.md5Checksum = md5;
     }
 
+    /** {@return the file's path relative to the backup root} */
+    public String getPathName() {
+        return pathName;
+    }
+
+    /** {@return the file's size} */
+    public long getSize() {
+        return size;
+    }
+
     /** {@return the file's XXH3 checksum} */
     public String getXXH3() {
+        return HexFormat.of().toHexDigits(xxh3);
+    }
+
+    /** {@return the file's XXH3 checksum value} */
+    public long getXXH3Value() {
         return xxh3;
     }
 
@@ -46,6 +61,16 @@ public final class FileInfo implements BackupElement {
         return Objects.requireNonNull(md5Checksum, "No MD5 sum captured for " + pathName);
     }
 
+    /**
+     * Creates a copy with another path name.
+     *
+     * @param newPathName the new path name
+     * @return the file information with the new path name
+     */
+    public FileInfo withPathName(String newPathName) {
+        return new FileInfo(newPathName, size, xxh3, md5Checksum);
+    }
+
     /**
      * Creates new instance.
      *
@@ -66,7 +91,18 @@ public final class FileInfo implements BackupElement {
      * @return an instance capturing the file information for the backup
      */
     public static FileInfo from(Path rootDir, Path file) {
-        return from(rootDir, file, false);
+        return from(fileName(rootDir, file), file, sizeOf(file), false);
+    }
+
+    /**
+     * Creates new instance by examining a source file, using its captured size.
+     *
+     * @param rootDir the backup root directory
+     * @param file    the file to examine
+     * @return an instance capturing the file information for the backup
+     */
+    public static FileInfo from(Path rootDir, SourceFile file) {
+        return from(fileName(rootDir, file.path()), file.path(), file.size(), false);
     }
 
     /**
@@ -77,17 +113,42 @@ public final class FileInfo implements BackupElement {
      * @return an instance capturing the file information for the backup
      */
     public static FileInfo fromCryptFile(Path rootDir, Path file) {
-        return from(rootDir, file, true);
+        return from(fileName(rootDir, file), file, sizeOf(file), true);
     }
 
-    private static FileInfo from(Path rootDir, Path file, boolean includeMd5Sum) {
+    /**
+     * Creates new instance by examining a crypt-file which may be outside the backup set directory.
+     *
+     * The file is named by its path relative to the backup set directory.
+     *
+     * @param setDir the backup set directory
+     * @param file   the file to examine
+     * @return an instance capturing the file information for the backup
+     */
+    public static FileInfo fromStripedCryptFile(Path setDir, Path file) {
+        String relPath = setDir.toAbsolutePath().relativize(file.toAbsolutePath()).toString();
+        return from(relPath, file, sizeOf(file), true);
+    }
+
+    private static String fileName(Path rootDir, Path file) {
+        return rootDir.relativize(file).getFileName().toString();
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static FileInfo from(String relPath, Path file, long size, boolean includeMd5Sum) {
         byte[] buffer = new byte[FILE_SCAN_BUFFER_SIZE];
         HashStream64 hashStream = Hashing.xxh3_64().hashStream();
 
         try (InputStream is = Files.newInputStream(file);
                 BufferedInputStream bis = new BufferedInputStream(is)) {
             MessageDigest digestMd5 = MessageDigest.getInstance("MD5"); // NOSONAR - MD5 used by Jottacloud
-            long size = Files.size(file);
 
             int read;
             while ((read = bis.read(buffer)) > 0) {
@@ -96,8 +157,6 @@ public final class FileInfo implements BackupElement {
                     digestMd5.update(buffer, 0, read);
                 }
             }
-            String relPath = rootDir.relativize(file).getFileName().toString();
-
             return new FileInfo(
                     relPath, size, hashStream.getAsLong(), includeMd5Sum ? digestToString(digestMd5) : null);
         } catch (IOException e) {
@@ -113,16 +172,29 @@ public final class FileInfo implements BackupElement {
 
     @Override
     public String toString() {
-        return "FileInfo [pathName=" + pathName + ", size=" + size + ", xxh3=" + xxh3 + "]";
+        return "FileInfo [pathName=" + pathName + ", size=" + size + ", xxh3=" + getXXH3() + "]";
     }
 
     @Override
     public String toBackupSummary() {
+        return toBackupSummary(pathName, size, xxh3, md5Checksum);
+    }
+
+    /**
+     * Formats the backup summary of a file.
+     *
+     * @param pathName    the path of the file relative to the backup root
+     * @param size        the size of the file
+     * @param xxh3        the XXH3 hash of the file
+     * @param md5Checksum the MD5 checksum of the file, or null
+     * @return the summary line for the restore script
+     */
+    static String toBackupSummary(String pathName, long size, long xxh3, @Nullable String md5Checksum) {
         StringBuilder sb = new StringBuilder();
         sb.append('"');
         sb.append(String.format("% 11d", size));
         sb.append(',');
-        sb.append(xxh3);
+        sb.append(HexFormat.of().toHexDigits(xxh3));
         if (md5Checksum != null) {
             sb.append(",");
             sb.append(md5Checksum);
@@ -0,0 +1,316 @@
+package dk.mada.backup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules the reading of the files of a root element in physical order.
+ *
+ * The files are archived in name order, but on a spinning disk reading them in that order means seeking back and forth
+ * over the disk. Instead, the files are split into windows of consecutive files (in name order), and the files of each
+ * window are read into memory in inode order, which on most file systems is close to the order of the data on the
+ * disk. The files are then provided in name order, so the archive (and its checksum) does not change.
+ *
+ * The files are pulled from the source as they are needed, so the walk of a large directory is not collected before
+ * the first file is read. Only the files selected for reading are read ahead; the other files are just passed on in
+ * order (see {@link #next()}).
+ *
+ * The next window is read while the current window is being archived. Files too large for a window are not read ahead,
+ * but read directly when they are archived.
+ *
+ * The number of files pulled ahead of the archiving is limited, so a long run of files not selected for reading does
+ * not pile up in memory while a window is filling. When the limit is reached, the files of the window so far are read
+ * as a partial window.
+ *
+ * On file systems without inode numbers, the files are read in name order.
+ */
+public final class ReadScheduler implements Iterator<SourceFile>, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ReadScheduler.class);
+    /** The default max size of the files read ahead in one window. */
+    public static final long DEFAULT_WINDOW_SIZE = 32L * 1024 * 1024;
+    /** The default max number of files pulled from the source ahead of the archiving. */
+    public static final int DEFAULT_MAX_AHEAD = 4096;
+    /** The inode number in the file key of a unix file system. */
+    private static final Pattern INODE_IN_FILE_KEY = Pattern.compile("ino=(\\d+)");
+    /** The order the files of a window are read in. */
+    private static final Comparator<SourceFile> PHYSICAL_ORDER =
+            Comparator.comparingLong(f -> inodeOf(f.attributes()).orElse(Long.MAX_VALUE));
+
+    /** The source of the files, in the order they are archived. */
+    private final Iterator<SourceFile> source;
+    /** Selects the files to read. */
+    private final Predicate<SourceFile> isRead;
+    /** The max size of the files read ahead in one window. */
+    private final long windowSize;
+    /** The max number of files pulled from the source ahead of the archiving. */
+    private final int maxAhead;
+    /** The reader of the file contents. */
+    private final ContentReader reader;
+    /** The files pulled from the source, but not yet provided by next. */
+    private final Deque<SourceFile> pulled = new ArrayDeque<>();
+    /** The files to read, pulled from the source but not yet opened. */
+    private final Deque<ScheduledRead> scheduled = new ArrayDeque<>();
+    /** The windows of the files not yet opened. The last window may still be filling up. */
+    private final Deque<Window> windows = new ArrayDeque<>();
+    /** The executor reading the windows. */
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Reads the content of a file.
+     */
+    @FunctionalInterface
+    public interface ContentReader {
+        /**
+         * Reads the content of a file.
+         *
+         * @param file the file to read
+         * @return the content of the file
+         * @throws IOException if the file cannot be read
+         */
+        byte[] read(Path file) throws IOException;
+    }
+
+    /**
+     * A file to read.
+     *
+     * @param file   the file
+     * @param window the window the file is read ahead in, or null if the file is read directly
+     */
+    private record ScheduledRead(SourceFile file, @Nullable Window window) {}
+
+    /**
+     * A window of files read ahead together.
+     */
+    private static final class Window {
+        /** The files of the window, in the order they are archived. */
+        private final List<SourceFile> files = new ArrayList<>();
+        /** The size of the files. */
+        private long size;
+        /** Flag for all files of the window having been pulled from the source. */
+        private boolean complete;
+        /** The read of the window, once started. */
+        private @Nullable CompletableFuture<Map<SourceFile, byte[]>> read;
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param files      the files, in the order they are archived
+     * @param isRead     selects the files to read, called once for each file as it is pulled from the source
+     * @param windowSize the max size of the files read ahead in one window
+     * @param maxAhead   the max number of files pulled from the source ahead of the archiving
+     * @param reader     the reader of the file contents read ahead
+     */
+    public ReadScheduler(
+            Iterator<SourceFile> files,
+            Predicate<SourceFile> isRead,
+            long windowSize,
+            int maxAhead,
+            ContentReader reader) {
+        this.source = files;
+        this.isRead = isRead;
+        this.windowSize = windowSize;
+        this.maxAhead = maxAhead;
+        this.reader = reader;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !pulled.isEmpty() || pull();
+    }
+
+    /**
+     * Provides the next file, in the order they are archived.
+     *
+     * @return the next file
+     */
+    @Override
+    public SourceFile next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return pulled.remove();
+    }
+
+    /**
+     * Opens the content of the next file to read.
+     *
+     * The files selected for reading must be opened in the order they were given.
+     *
+     * @param file the file to open
+     * @return the content of the file
+     * @throws IOException if the file cannot be read
+     */
+    public InputStream open(SourceFile file) throws IOException {
+        while (scheduled.isEmpty() && pull()) {
+            // pull until there is a file to read
+        }
+        ScheduledRead next = scheduled.peek();
+        if (next == null || !next.file().equals(file)) {
+            SourceFile expected = next == null ? null : next.file();
+            throw new IllegalStateException("Files opened out of order, expected " + expected + " but got " + file);
+        }
+        scheduled.remove();
+        Window window = next.window();
+        if (window == null) {
+            return Files.newInputStream(file.path());
+        }
+
+        while (windows.getFirst() != window) {
+            windows.removeFirst();
+        }
+        startRead(window);
+        startRead(followingWindow());
+        byte[] content = awaitRead(window).get(file);
+        if (content == null) {
+            throw new IllegalStateException("Missing read ahead content of " + file);
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * Pulls the next file from the source.
+     *
+     * @return true if a file was pulled, false if the source is exhausted
+     */
+    private boolean pull() {
+        if (!source.hasNext()) {
+            Window last = windows.peekLast();
+            if (last != null) {
+                last.complete = true;
+            }
+            return false;
+        }
+        SourceFile f = source.next();
+        pulled.add(f);
+        if (isRead.test(f)) {
+            scheduled.add(new ScheduledRead(f, addToWindow(f)));
+        }
+        return true;
+    }
+
+    /**
+     * Pulls the next file from the source, unless the max number of files are already pulled ahead.
+     *
+     * @return true if a file was pulled, false if the source is exhausted or the limit is reached
+     */
+    private boolean pullAhead() {
+        return pulled.size() < maxAhead && pull();
+    }
+
+    private @Nullable Window addToWindow(SourceFile f) {
+        if (f.size() > windowSize) {
+            return null;
+        }
+        Window window = windows.peekLast();
+        if (window == null || window.complete || window.size + f.size() > windowSize) {
+            if (window != null) {
+                window.complete = true;
+            }
+            window = new Window();
+            windows.add(window);
+        }
+        window.files.add(f);
+        window.size += f.size();
+        return window;
+    }
+
+    private @Nullable Window followingWindow() {
+        while (windows.size() < 2 && pullAhead()) {
+            // pull until the following window is started
+        }
+        Iterator<Window> it = windows.iterator();
+        it.next();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private void startRead(@Nullable Window window) {
+        if (window == null || window.read != null) {
+            return;
+        }
+        while (!window.complete && pullAhead()) {
+            // pull until all files of the window are known
+        }
+        // if the limit was reached, the files pulled later go into the next window
+        window.complete = true;
+        List<SourceFile> windowFiles = List.copyOf(window.files);
+        window.read = CompletableFuture.supplyAsync(() -> read(windowFiles), executor);
+    }
+
+    private Map<SourceFile, byte[]> awaitRead(Window window) throws IOException {
+        try {
+            return Objects.requireNonNull(window.read).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException uioe) {
+                throw uioe.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private Map<SourceFile, byte[]> read(List<SourceFile> windowFiles) {
+        List<SourceFile> readOrder = new ArrayList<>(windowFiles);
+        readOrder.sort(PHYSICAL_ORDER);
+        logger.trace("Reading {} files ahead", readOrder.size());
+        Map<SourceFile, byte[]> contents = new HashMap<>();
+        for (SourceFile f : readOrder) {
+            try {
+                contents.put(f, reader.read(f.path()));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read " + f.path(), e);
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Finds the inode number of a file.
+     *
+     * The inode number is taken from the file key, so the file is not stat'ed again.
+     *
+     * @param attributes the attributes of the file
+     * @return the inode number of the file, or empty if the file system does not provide it
+     */
+    public static OptionalLong inodeOf(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        if (fileKey == null) {
+            return OptionalLong.empty();
+        }
+        Matcher m = INODE_IN_FILE_KEY.matcher(fileKey.toString());
+        if (!m.find()) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(Long.parseUnsignedLong(m.group(1)));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -17,4 +17,14 @@ public final class ShellEscaper {
     public static String toSafeShellString(String s) {
         return s.replace("\"", "\\\"").replace("`", "\\`");
     }
+
+    /**
+     * Reverts the escaping of a string made safe for use in shell.
+     *
+     * @param s the escaped string
+     * @return s with the original characters
+     */
+    public static String fromSafeShellString(String s) {
+        return s.replace("\\`", "`").replace("\\\"", "\"");
+    }
 }
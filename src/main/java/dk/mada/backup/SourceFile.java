@@ -0,0 +1,43 @@
+package dk.mada.backup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file in the backup source tree, with the attributes read when the file was found.
+ *
+ * The attributes are read once, and then used through the rest of the backup pipeline, so the file is not stat'ed again
+ * before its content is read.
+ *
+ * @param path       the path of the file
+ * @param attributes the attributes of the file (of the link target, for symbolic links)
+ */
+public record SourceFile(Path path, BasicFileAttributes attributes) {
+    /**
+     * Reads the attributes of a file, following symbolic links.
+     *
+     * @param path the path of the file
+     * @return the source file
+     * @throws IOException if the attributes cannot be read
+     */
+    public static SourceFile of(Path path) throws IOException {
+        return new SourceFile(path, Files.readAttributes(path, BasicFileAttributes.class));
+    }
+
+    /** {@return true if the file is a regular file} */
+    public boolean isRegularFile() {
+        return attributes.isRegularFile();
+    }
+
+    /** {@return true if the file is a directory} */
+    public boolean isDirectory() {
+        return attributes.isDirectory();
+    }
+
+    /** {@return the size of the file} */
+    public long size() {
+        return attributes.size();
+    }
+}
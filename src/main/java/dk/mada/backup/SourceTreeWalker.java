@@ -0,0 +1,250 @@
+package dk.mada.backup;
+
+import dk.mada.backup.api.ExclusionRules;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks a source directory tree in parallel, providing the entries in archive order.
+ *
+ * The archive order is that of the relative paths of the entries, compared ignoring case. Instead of sorting all the
+ * paths of the tree, the entries of each directory are sorted by keys computed once per entry: the name, and for
+ * directories also the name with a trailing slash for placing the directory's contents. Because a directory's relative
+ * path is a prefix of the paths of all its entries, this gives the same order.
+ *
+ * Each directory is listed by its own (virtual) thread, as soon as its parent directory has been listed. The entries
+ * are provided as soon as the directories leading to them have been listed, while the rest of the tree is still being
+ * listed.
+ *
+ * The attributes of each entry are read once, when its directory is listed, and are provided with the entry.
+ *
+ * Entries matched by the exclusion rules are dropped when their directory is listed, before their attributes are read.
+ * So excluded files are never stat'ed, and excluded directories are never listed.
+ */
+public final class SourceTreeWalker {
+    private static final Logger logger = LoggerFactory.getLogger(SourceTreeWalker.class);
+    /** The maximal number of directories listed at the same time. */
+    private static final int MAX_CONCURRENT_LISTINGS = 16;
+    /** The order of directory entries. */
+    private static final Comparator<NamedEntry> ENTRY_ORDER =
+            (a, b) -> a.sortKey().compareToIgnoreCase(b.sortKey());
+
+    /** The executor listing the directories. */
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    /** Permits for listing directories. */
+    private final Semaphore listingPermits = new Semaphore(MAX_CONCURRENT_LISTINGS);
+    /** The backup source directory, which the exclusion rules are relative to. */
+    private final Path rootDir;
+    /** The exclusion rules. */
+    private final ExclusionRules exclusions;
+
+    /**
+     * An entry in the tree; a path, or the contents of directories.
+     *
+     * Directories with names only differing by case sort as equal, so their contents are merged (as a full sort of the
+     * paths would interleave them).
+     *
+     * @param files   the files to provide, empty for directory contents
+     * @param entries the future entries of the directory contents, or null for a file
+     */
+    private record Node(List<SourceFile> files, @Nullable CompletableFuture<List<Node>> entries) {}
+
+    /**
+     * A listed directory entry.
+     *
+     * @param file       the entry
+     * @param sortKey    the sort key of the entry
+     * @param isContents flag for the entry being the contents of a directory
+     */
+    private record NamedEntry(SourceFile file, String sortKey, boolean isContents) {}
+
+    private SourceTreeWalker(Path rootDir, ExclusionRules exclusions) {
+        this.rootDir = rootDir;
+        this.exclusions = exclusions;
+    }
+
+    /**
+     * Walks a directory tree.
+     *
+     * Like {@link Files#walk(Path, java.nio.file.FileVisitOption...)} the stream includes the directories, does not
+     * descend into symbolic links to directories, and must be closed after use. The attributes of symbolic links are
+     * those of their targets, unless the links are dangling.
+     *
+     * @param dir the directory to walk
+     * @return the entries of the directory tree (including the directory itself) in archive order
+     */
+    public static Stream<SourceFile> walk(SourceFile dir) {
+        return walk(dir, dir.path(), ExclusionRules.NONE);
+    }
+
+    /**
+     * Walks a directory tree, leaving out excluded entries.
+     *
+     * The walk does not descend into excluded directories.
+     *
+     * @param dir        the directory to walk
+     * @param rootDir    the backup source directory, which the exclusion rules are relative to
+     * @param exclusions the exclusion rules
+     * @return the included entries of the directory tree (including the directory itself) in archive order
+     */
+    public static Stream<SourceFile> walk(SourceFile dir, Path rootDir, ExclusionRules exclusions) {
+        SourceTreeWalker walker = new SourceTreeWalker(rootDir, exclusions);
+        Node root = new Node(List.of(dir), walker.listContents(List.of(dir.path())));
+        Spliterator<SourceFile> spliterator = Spliterators.spliteratorUnknownSize(
+                walker.new OrderedIterator(root), Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(walker.executor::shutdownNow);
+    }
+
+    private CompletableFuture<List<Node>> listContents(List<Path> dirs) {
+        return CompletableFuture.supplyAsync(() -> list(dirs), executor);
+    }
+
+    private List<Node> list(List<Path> dirs) {
+        List<NamedEntry> found = new ArrayList<>();
+        try {
+            listingPermits.acquire();
+            try {
+                for (Path dir : dirs) {
+                    try (Stream<Path> entries = Files.list(dir)) {
+                        for (Path p : entries.toList()) {
+                            if (exclusions.isExcluded(rootDir, p)) {
+                                logger.debug("Excluding {}", p);
+                                continue;
+                            }
+                            BasicFileAttributes attrs =
+                                    Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                            SourceFile file = new SourceFile(p, attrs.isSymbolicLink() ? linkTarget(p, attrs) : attrs);
+                            String name = p.getFileName().toString();
+                            found.add(new NamedEntry(file, name, false));
+                            if (attrs.isDirectory()) {
+                                found.add(new NamedEntry(file, name + "/", true));
+                            }
+                        }
+                    }
+                }
+            } finally {
+                listingPermits.release();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list " + dirs, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while listing " + dirs, e);
+        }
+
+        found.sort(ENTRY_ORDER);
+        List<Node> nodes = new ArrayList<>();
+        int i = 0;
+        while (i < found.size()) {
+            NamedEntry entry = found.get(i);
+            if (!entry.isContents()) {
+                nodes.add(new Node(List.of(entry.file()), null));
+                i++;
+                continue;
+            }
+            List<Path> sameKey = new ArrayList<>();
+            while (i < found.size()
+                    && found.get(i).isContents()
+                    && found.get(i).sortKey().equalsIgnoreCase(entry.sortKey())) {
+                sameKey.add(found.get(i).file().path());
+                i++;
+            }
+            nodes.add(new Node(List.of(), listContents(sameKey)));
+        }
+        logger.trace("Listed {} with {} entries", dirs, nodes.size());
+        return nodes;
+    }
+
+    private static BasicFileAttributes linkTarget(Path link, BasicFileAttributes linkAttributes) {
+        try {
+            return Files.readAttributes(link, BasicFileAttributes.class);
+        } catch (IOException e) {
+            logger.debug("Dangling link {}", link);
+            return linkAttributes;
+        }
+    }
+
+    /**
+     * Iterates the tree depth first, waiting for directory listings as needed.
+     */
+    private final class OrderedIterator implements Iterator<SourceFile> {
+        /** The files ready to be provided. */
+        private final Deque<SourceFile> ready = new ArrayDeque<>();
+        /** The entry iterators of the directories being provided. */
+        private final Deque<Iterator<Node>> pending = new ArrayDeque<>();
+        /** The directory entered last, if its listing has not been awaited yet. */
+        @Nullable private Node entered;
+
+        OrderedIterator(Node root) {
+            enter(root);
+        }
+
+        private void enter(Node node) {
+            ready.addAll(node.files());
+            if (node.entries() != null) {
+                entered = node;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (ready.isEmpty()) {
+                Node dir = entered;
+                if (dir != null) {
+                    entered = null;
+                    pending.push(await(Objects.requireNonNull(dir.entries())).iterator());
+                } else if (pending.isEmpty()) {
+                    return false;
+                } else if (pending.peek().hasNext()) {
+                    enter(pending.peek().next());
+                } else {
+                    pending.pop();
+                }
+            }
+            return true;
+        }
+
+        private static List<Node> await(CompletableFuture<List<Node>> entries) {
+            try {
+                return entries.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException re) {
+                    throw re;
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public SourceFile next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return ready.poll();
+        }
+    }
+}
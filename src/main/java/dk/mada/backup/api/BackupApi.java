@@ -2,7 +2,7 @@ package dk.mada.backup.api;
 
 import dk.mada.backup.BackupCreator;
 import dk.mada.backup.api.BackupArguments.Limits;
-import dk.mada.backup.gpg.GpgEncryptedOutputStream.GpgStreamInfo;
+import dk.mada.backup.gpg.Encrypter;
 import dk.mada.backup.impl.output.BackupPolicy;
 import dk.mada.backup.impl.output.NamedBackupPolicy;
 import dk.mada.backup.impl.output.NumberedBackupPolicy;
@@ -14,22 +14,26 @@ import java.nio.file.Path;
 public class BackupApi {
     /** The backup output type. */
     private BackupOutputType outputType;
-    /** The GPG information. */
-    private GpgStreamInfo gpgInfo;
+    /** The encrypter. */
+    private Encrypter encrypter;
     /** The backup limits. */
     private Limits limits;
+    /** The optional settings of the backup. */
+    private BackupOptions options;
 
     /**
-     * Prepare backup with full configuration.
+     * Prepare backup.
      *
-     * @param gpgStreamInfo the GPG stream information.
-     * @param outputType    the desired backup output type
-     * @param limits        the backup limits
+     * @param encrypter  the encrypter to use for the backup output
+     * @param outputType the desired backup output type
+     * @param limits     the backup limits
+     * @param options    the optional settings of the backup, see {@link BackupOptions#DEFAULTS}
      */
-    public BackupApi(GpgStreamInfo gpgStreamInfo, BackupOutputType outputType, Limits limits) {
-        this.gpgInfo = gpgStreamInfo;
+    public BackupApi(Encrypter encrypter, BackupOutputType outputType, Limits limits, BackupOptions options) {
+        this.encrypter = encrypter;
         this.outputType = outputType;
         this.limits = limits;
+        this.options = options;
     }
 
     /**
@@ -38,16 +42,30 @@ public class BackupApi {
      * @param backupName Name of backup
      * @param sourceDir  Source directory
      * @param targetDir  Destination directory
-     * @return Path of the restore script
+     * @return Path of the restore script in the destination directory
      *
      * @throws BackupException or any of its subclasses, on failure
      */
     public Path makeBackup(String backupName, Path sourceDir, Path targetDir) {
+        if (outputType != BackupOutputType.NAMED && options.timeBudget() != null) {
+            throw new IllegalArgumentException("A time budget is only supported for NAMED backups");
+        }
+        if (outputType == BackupOutputType.NAMED && options.baseScript() != null) {
+            throw new IllegalArgumentException("Incremental backups are not supported for NAMED backups");
+        }
+        if (outputType != BackupOutputType.NUMBERED && !options.stripeDirs().isEmpty()) {
+            throw new IllegalArgumentException("Striping is only supported for NUMBERED backups");
+        }
+        if (outputType == BackupOutputType.NAMED && !options.mirrorDirs().isEmpty()) {
+            throw new IllegalArgumentException("Mirror directories are not supported for NAMED backups");
+        }
         BackupPolicy policy =
                 switch (outputType) {
                     case UNKNOWN -> throw new IllegalStateException("Need a valid type");
-                    case NUMBERED -> new NumberedBackupPolicy(backupName, gpgInfo, limits, sourceDir, targetDir);
-                    case NAMED -> new NamedBackupPolicy(backupName, gpgInfo, limits, sourceDir, targetDir);
+                    case NUMBERED, SEGMENTED ->
+                        new NumberedBackupPolicy(
+                                outputType, backupName, encrypter, limits, sourceDir, targetDir, options);
+                    case NAMED -> new NamedBackupPolicy(backupName, encrypter, limits, sourceDir, targetDir, options);
                 };
 
         return new BackupCreator(policy).create();
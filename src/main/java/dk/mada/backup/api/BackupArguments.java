@@ -1,7 +1,10 @@
 package dk.mada.backup.api;
 
 import dk.mada.backup.types.GpgId;
+import java.net.URI;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
 import org.jspecify.annotations.Nullable;
 
@@ -10,32 +13,114 @@ import org.jspecify.annotations.Nullable;
  *
  * @param gpgRecipientKeyId    the GPG recipient key id used to encrypt the backup
  * @param envOverrides         the environment overrides to use when executing GPG
+ * @param jvmEncryption        flag to encrypt in the JVM instead of using an external GPG process
+ * @param recipientKeyFile     the file with the recipient public key for JVM encryption, or null to export it from GPG
+ * @param compressionMode      the compression to apply before encryption
  * @param name                 the name of the backup (base name for all files)
  * @param sourceDir            the source directory of the backup (root of the backup)
  * @param targetDir            the folder to write backup output files to
+ * @param mirrorDirs           the folders to write copies of the backup output files to
+ * @param stripeDirs           the additional folders to stripe numbered backup output files over
+ * @param storageLocation      the location to also store the backup output files in (file: or s3:), or null
+ * @param incrementalBase      the restore script of the base set for an incremental backup, or null
  * @param repositoryDir        the folder to write an extra copy of the restore script to
  * @param repositoryScriptPath the path of the restore script in the repository
  * @param outputType           the backup output type
  * @param skipVerify           flag to skip verification of backup after its creation
  * @param limits               the backup limits
+ * @param timeBudget           the time budget of a NAMED backup, or null for no limit
+ * @param exclusions           the rules for excluding entries of the source tree
  */
 public record BackupArguments(
         GpgId gpgRecipientKeyId,
         Map<String, String> envOverrides,
+        boolean jvmEncryption,
+        @Nullable Path recipientKeyFile,
+        CompressionMode compressionMode,
         String name,
         Path sourceDir,
         Path targetDir,
+        List<Path> mirrorDirs,
+        List<Path> stripeDirs,
+        @Nullable URI storageLocation,
+        @Nullable Path incrementalBase,
         @Nullable Path repositoryDir,
         Path repositoryScriptPath,
         BackupOutputType outputType,
         boolean skipVerify,
-        Limits limits) {
+        Limits limits,
+        @Nullable Duration timeBudget,
+        ExclusionRules exclusions) {
 
     /**
      * Limits for the backup operation.
      *
      * @param maxRootElementSize the maximal archived size of a root element
      * @param numberedSplitSize  the split size for numbered backups
+     * @param bucketSize         the size of buckets packing small root elements of named backups, or 0 for no buckets
+     * @param groupDepth         the directory depth of the root elements below the source directory (1 or more)
+     * @param boundedMemory      flag to keep the file information of completed root elements in a manifest file instead
+     *                           of in memory
      */
-    public record Limits(long maxRootElementSize, long numberedSplitSize) {}
+    public record Limits(
+            long maxRootElementSize, long numberedSplitSize, long bucketSize, int groupDepth, boolean boundedMemory) {
+        /** The default root element depth, the entries of the source directory. */
+        public static final int DEFAULT_GROUP_DEPTH = 1;
+
+        /**
+         * Creates new instance.
+         *
+         * @param maxRootElementSize the maximal archived size of a root element
+         * @param numberedSplitSize  the split size for numbered backups
+         * @param bucketSize         the size of buckets packing small root elements of named backups, or 0 for no
+         *                           buckets
+         * @param groupDepth         the directory depth of the root elements below the source directory (1 or more)
+         * @param boundedMemory      flag to keep the file information of completed root elements in a manifest file
+         *                           instead of in memory
+         */
+        public Limits {
+            if (groupDepth < 1) {
+                throw new IllegalArgumentException("Group depth must be at least 1, was " + groupDepth);
+            }
+        }
+
+        /**
+         * Creates limits without buckets, with root elements at the default depth, and keeping all file information in
+         * memory.
+         *
+         * @param maxRootElementSize the maximal archived size of a root element
+         * @param numberedSplitSize  the split size for numbered backups
+         * @return the limits
+         */
+        public static Limits of(long maxRootElementSize, long numberedSplitSize) {
+            return new Limits(maxRootElementSize, numberedSplitSize, 0, DEFAULT_GROUP_DEPTH, false);
+        }
+
+        /**
+         * {@return a copy with another bucket size}
+         *
+         * @param newBucketSize the size of buckets packing small root elements of named backups, or 0 for no buckets
+         */
+        public Limits withBucketSize(long newBucketSize) {
+            return new Limits(maxRootElementSize, numberedSplitSize, newBucketSize, groupDepth, boundedMemory);
+        }
+
+        /**
+         * {@return a copy with another root element depth}
+         *
+         * @param newGroupDepth the directory depth of the root elements below the source directory (1 or more)
+         */
+        public Limits withGroupDepth(int newGroupDepth) {
+            return new Limits(maxRootElementSize, numberedSplitSize, bucketSize, newGroupDepth, boundedMemory);
+        }
+
+        /**
+         * {@return a copy keeping the file information of completed root elements in a manifest file, or in memory}
+         *
+         * @param newBoundedMemory flag to keep the file information in a manifest file instead of in memory
+         */
+        public Limits withBoundedMemory(boolean newBoundedMemory) {
+            return new Limits(maxRootElementSize, numberedSplitSize, bucketSize, groupDepth, newBoundedMemory);
+        }
+    }
 }
@@ -0,0 +1,144 @@
+package dk.mada.backup.api;
+
+import dk.mada.backup.storage.StorageBackend;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Optional settings of a backup.
+ *
+ * Start from {@link #DEFAULTS} and change the settings needed.
+ *
+ * @param compressionMode the compression to apply before encryption
+ * @param storage         the storage backend to also store the backup files in (closed when the backup completes)
+ * @param timeBudget      the time budget of the backup (only for NAMED backups), or null for no limit
+ * @param exclusions      the rules for excluding entries of the source tree
+ * @param mirrorDirs      the mirror destination directories (not supported for NAMED backups)
+ * @param stripeDirs      the additional directories to stripe the output files over (only for NUMBERED backups,
+ *                        without mirrors)
+ * @param baseScript      the restore script of the base set for an incremental backup (not supported for NAMED
+ *                        backups), or null for a full backup
+ */
+public record BackupOptions(
+        CompressionMode compressionMode,
+        StorageBackend storage,
+        @Nullable Duration timeBudget,
+        ExclusionRules exclusions,
+        List<Path> mirrorDirs,
+        List<Path> stripeDirs,
+        @Nullable Path baseScript) {
+    /** A full backup without compression, storage, time budget, exclusions, mirrors or stripes. */
+    public static final BackupOptions DEFAULTS = new BackupOptions(
+            CompressionMode.NONE, StorageBackend.none(), null, ExclusionRules.NONE, List.of(), List.of(), null);
+
+    /**
+     * Creates new instance.
+     *
+     * @param compressionMode the compression to apply before encryption
+     * @param storage         the storage backend to also store the backup files in (closed when the backup completes)
+     * @param timeBudget      the time budget of the backup (only for NAMED backups), or null for no limit
+     * @param exclusions      the rules for excluding entries of the source tree
+     * @param mirrorDirs      the mirror destination directories (not supported for NAMED backups)
+     * @param stripeDirs      the additional directories to stripe the output files over (only for NUMBERED backups,
+     *                        without mirrors)
+     * @param baseScript      the restore script of the base set for an incremental backup (not supported for NAMED
+     *                        backups), or null for a full backup
+     */
+    public BackupOptions {
+        mirrorDirs = List.copyOf(mirrorDirs);
+        stripeDirs = List.copyOf(stripeDirs);
+    }
+
+    /**
+     * {@return a copy with another compression mode}
+     *
+     * @param newCompressionMode the compression to apply before encryption
+     */
+    public BackupOptions withCompressionMode(CompressionMode newCompressionMode) {
+        return new BackupOptions(
+                newCompressionMode, storage, timeBudget, exclusions, mirrorDirs, stripeDirs, baseScript);
+    }
+
+    /**
+     * {@return a copy with another storage backend}
+     *
+     * The backup files are handed to the storage backend as they are completed, and the restore script last. The backup
+     * fails if the backend fails to store any of them.
+     *
+     * @param newStorage the storage backend (closed when the backup completes)
+     */
+    public BackupOptions withStorage(StorageBackend newStorage) {
+        return new BackupOptions(
+                compressionMode, newStorage, timeBudget, exclusions, mirrorDirs, stripeDirs, baseScript);
+    }
+
+    /**
+     * {@return a copy with another time budget}
+     *
+     * When the time budget (counted from the start of the backup) is about to run out, a NAMED backup stops processing
+     * root elements. The remaining root elements keep their encrypted files from the previous backup set.
+     *
+     * @param newTimeBudget the time budget of the backup, or null for no limit
+     */
+    public BackupOptions withTimeBudget(@Nullable Duration newTimeBudget) {
+        return new BackupOptions(
+                compressionMode, storage, newTimeBudget, exclusions, mirrorDirs, stripeDirs, baseScript);
+    }
+
+    /**
+     * {@return a copy with other exclusion rules}
+     *
+     * Excluded entries are dropped while the source tree is walked; excluded files are never read, and excluded
+     * directories are never listed. The rules are recorded in the restore script.
+     *
+     * @param newExclusions the rules for excluding entries of the source tree
+     */
+    public BackupOptions withExclusions(ExclusionRules newExclusions) {
+        return new BackupOptions(
+                compressionMode, storage, timeBudget, newExclusions, mirrorDirs, stripeDirs, baseScript);
+    }
+
+    /**
+     * {@return a copy with other mirror directories}
+     *
+     * The source is read and encrypted once. The encrypted output is written to the target directory and to each of the
+     * mirror directories. A failing mirror is dropped without failing the backup; only the mirrors that succeeded
+     * contain a restore script.
+     *
+     * @param newMirrorDirs the mirror destination directories
+     */
+    public BackupOptions withMirrorDirs(List<Path> newMirrorDirs) {
+        return new BackupOptions(
+                compressionMode, storage, timeBudget, exclusions, newMirrorDirs, stripeDirs, baseScript);
+    }
+
+    /**
+     * {@return a copy with other stripe directories}
+     *
+     * Striping places the NUMBERED output files round-robin in the target directory and the stripe directories (which
+     * should be on different disks). The restore script is written to the target directory, and names each file by its
+     * path relative to that.
+     *
+     * @param newStripeDirs the additional directories to stripe the output files over
+     */
+    public BackupOptions withStripeDirs(List<Path> newStripeDirs) {
+        return new BackupOptions(
+                compressionMode, storage, timeBudget, exclusions, mirrorDirs, newStripeDirs, baseScript);
+    }
+
+    /**
+     * {@return a copy with another base set}
+     *
+     * An incremental backup only includes the files that are new or changed since the base set. The deleted files are
+     * recorded in the restore script. The restore script unpacks the base set (chain) before unpacking its own files,
+     * so the base set must be kept at the same location relative to the incremental set.
+     *
+     * @param newBaseScript the restore script of the base set, or null for a full backup
+     */
+    public BackupOptions withBaseScript(@Nullable Path newBaseScript) {
+        return new BackupOptions(
+                compressionMode, storage, timeBudget, exclusions, mirrorDirs, stripeDirs, newBaseScript);
+    }
+}
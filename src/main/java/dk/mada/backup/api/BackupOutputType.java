@@ -14,7 +14,12 @@ public enum BackupOutputType {
     /**
      * The folder archives are individually encrypted and stored in separately named files.
      */
-    NAMED;
+    NAMED,
+    /**
+     * The folder archives are streamed into tar files of approximately a specified size. Each tar file is individually
+     * encrypted and stored in a numbered file.
+     */
+    SEGMENTED;
 
     /**
      * Creates instance from a name.
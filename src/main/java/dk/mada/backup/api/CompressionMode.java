@@ -0,0 +1,32 @@
+package dk.mada.backup.api;
+
+import dk.mada.backup.gpg.Compression;
+
+/**
+ * Defines how the backup data is compressed before encryption.
+ */
+public enum CompressionMode {
+    /** No compression. */
+    NONE(Compression.NONE),
+    /** All data is compressed. */
+    ZLIB(Compression.ZLIB),
+    /**
+     * Data is compressed if it looks compressible.
+     *
+     * Decided per root element for NAMED backups (from the file type and a sampled compression probe), and for the full
+     * source tree for NUMBERED backups (from the file types).
+     */
+    AUTO(Compression.ZLIB);
+
+    /** The compression used when compressing. */
+    private final Compression codec;
+
+    CompressionMode(Compression codec) {
+        this.codec = codec;
+    }
+
+    /** {@return the compression used when data is compressed} */
+    public Compression codec() {
+        return codec;
+    }
+}
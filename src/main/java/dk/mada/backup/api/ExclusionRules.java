@@ -0,0 +1,192 @@
+package dk.mada.backup.api;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Rules for excluding entries of the source tree from a backup.
+ *
+ * The rules are glob patterns, matched against the paths relative to the backup source directory. A pattern without a
+ * slash matches the name of a file or directory at any depth (e.g. *.tmp or @eaDir). A pattern with a slash matches
+ * the relative path (e.g. photos/*.lrdata); a leading slash is ignored. In the patterns, * matches any characters
+ * but slash, ** matches any characters, and ? matches any single character but slash.
+ *
+ * An entry is excluded if it matches an exclude pattern, and no include pattern. The contents of an excluded directory
+ * are never looked at, so include patterns cannot bring back entries in an excluded directory.
+ *
+ * The patterns are compiled once: literal patterns are matched by set lookups, and the other patterns are combined
+ * into a single regular expression for names and one for paths.
+ */
+public final class ExclusionRules {
+    /** Rules excluding nothing. */
+    public static final ExclusionRules NONE = new ExclusionRules(List.of(), List.of());
+
+    /** The exclude patterns. */
+    private final List<String> excludes;
+    /** The include patterns. */
+    private final List<String> includes;
+    /** The compiled exclude patterns. */
+    private final GlobSet excludeGlobs;
+    /** The compiled include patterns. */
+    private final GlobSet includeGlobs;
+
+    /**
+     * Creates new instance.
+     *
+     * @param excludes the glob patterns of entries to exclude
+     * @param includes the glob patterns of entries to include, even if matched by an exclude pattern
+     */
+    public ExclusionRules(List<String> excludes, List<String> includes) {
+        this.excludes = List.copyOf(excludes);
+        this.includes = List.copyOf(includes);
+        excludeGlobs = new GlobSet(this.excludes);
+        includeGlobs = new GlobSet(this.includes);
+    }
+
+    /** {@return the exclude patterns} */
+    public List<String> excludes() {
+        return excludes;
+    }
+
+    /** {@return the include patterns} */
+    public List<String> includes() {
+        return includes;
+    }
+
+    /** {@return true if the rules exclude nothing} */
+    public boolean isEmpty() {
+        return excludes.isEmpty();
+    }
+
+    /**
+     * Checks if an entry is excluded.
+     *
+     * @param relativePath the path of the entry relative to the backup source directory, using / as separator
+     * @return true if the entry (and its contents, if a directory) should be left out of the backup
+     */
+    public boolean isExcluded(String relativePath) {
+        if (isEmpty()) {
+            return false;
+        }
+        String name = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+        return excludeGlobs.matches(relativePath, name) && !includeGlobs.matches(relativePath, name);
+    }
+
+    /**
+     * Checks if an entry of the source tree is excluded.
+     *
+     * @param rootDir the backup source directory
+     * @param path    the path of the entry
+     * @return true if the entry (and its contents, if a directory) should be left out of the backup
+     */
+    public boolean isExcluded(Path rootDir, Path path) {
+        if (isEmpty()) {
+            return false;
+        }
+        String separator = path.getFileSystem().getSeparator();
+        return isExcluded(rootDir.relativize(path).toString().replace(separator, "/"));
+    }
+
+    @Override
+    public String toString() {
+        return "ExclusionRules [excludes=" + excludes + ", includes=" + includes + "]";
+    }
+
+    /**
+     * A set of compiled glob patterns.
+     */
+    private static final class GlobSet {
+        /** Literal patterns matching names. */
+        private final Set<String> literalNames = new HashSet<>();
+        /** Literal patterns matching paths. */
+        private final Set<String> literalPaths = new HashSet<>();
+        /** The combined wildcard patterns matching names, or null if there are none. */
+        private final @Nullable Pattern namePattern;
+        /** The combined wildcard patterns matching paths, or null if there are none. */
+        private final @Nullable Pattern pathPattern;
+
+        GlobSet(List<String> globs) {
+            List<String> nameRegexps = new ArrayList<>();
+            List<String> pathRegexps = new ArrayList<>();
+            for (String glob : globs) {
+                String pattern = normalize(glob);
+                boolean isPathPattern = pattern.contains("/");
+                boolean isLiteral = pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0;
+                if (isLiteral) {
+                    (isPathPattern ? literalPaths : literalNames).add(pattern);
+                } else {
+                    (isPathPattern ? pathRegexps : nameRegexps).add(toRegexp(pattern));
+                }
+            }
+            namePattern = combine(nameRegexps);
+            pathPattern = combine(pathRegexps);
+        }
+
+        boolean matches(String relativePath, String name) {
+            return literalNames.contains(name)
+                    || literalPaths.contains(relativePath)
+                    || (namePattern != null && namePattern.matcher(name).matches())
+                    || (pathPattern != null && pathPattern.matcher(relativePath).matches());
+        }
+
+        private static String normalize(String glob) {
+            if (glob.indexOf('\n') >= 0) {
+                throw new IllegalArgumentException("Exclusion pattern cannot contain newlines: " + glob);
+            }
+            String pattern = glob;
+            while (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            while (pattern.endsWith("/")) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            if (pattern.isEmpty()) {
+                throw new IllegalArgumentException("Exclusion pattern cannot be empty: '" + glob + "'");
+            }
+            return pattern;
+        }
+
+        private static @Nullable Pattern combine(List<String> regexps) {
+            if (regexps.isEmpty()) {
+                return null;
+            }
+            return Pattern.compile(regexps.stream().map(r -> "(?:" + r + ")").collect(Collectors.joining("|")));
+        }
+
+        private static String toRegexp(String glob) {
+            StringBuilder sb = new StringBuilder();
+            int i = 0;
+            while (i < glob.length()) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i += 2;
+                    if (i < glob.length() && glob.charAt(i) == '/') {
+                        // **/ also matches no directories
+                        sb.append("(?:.*/)?");
+                        i++;
+                    } else {
+                        sb.append(".*");
+                    }
+                    continue;
+                }
+                if (c == '*') {
+                    sb.append("[^/]*");
+                } else if (c == '?') {
+                    sb.append("[^/]");
+                } else if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+                    sb.append('\\').append(c);
+                } else {
+                    sb.append(c);
+                }
+                i++;
+            }
+            return sb.toString();
+        }
+    }
+}
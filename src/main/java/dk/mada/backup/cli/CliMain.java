@@ -4,15 +4,21 @@ import dk.mada.backup.Version;
 import dk.mada.backup.api.BackupArguments;
 import dk.mada.backup.api.BackupArguments.Limits;
 import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.api.CompressionMode;
+import dk.mada.backup.api.ExclusionRules;
 import dk.mada.backup.impl.BackupApplication;
 import dk.mada.backup.impl.ExitHandler;
 import dk.mada.backup.types.GpgId;
 import dk.mada.logging.LoggerConfig;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicReference;
@@ -70,6 +76,21 @@ public final class CliMain implements Runnable {
     /** GPG home dir option. */
     @Option(names = "--gpg-homedir", description = "alternative GPG home dir", paramLabel = "DIR")
     @Nullable private Path gpgHomeDir;
+    /** Flag to encrypt in the JVM. */
+    @Option(names = "--jvm-encryption", description = "encrypt in the JVM instead of using an external GPG process")
+    private boolean jvmEncryption;
+    /** Recipient public key file for JVM encryption. */
+    @Option(
+            names = "--recipient-key",
+            description = "recipient public key file for JVM encryption (default exported from GPG)",
+            paramLabel = "FILE")
+    @Nullable private Path recipientKeyFile;
+    /** Compression applied before encryption. */
+    @Option(
+            names = "--compression",
+            description = "compression before encryption: ${COMPLETION-CANDIDATES} (default ${DEFAULT-VALUE})",
+            paramLabel = "MODE")
+    private CompressionMode compressionMode = CompressionMode.NONE;
     /** Flag to skip verification after backup has been created. */
     @Option(names = "--skip-verify", description = "skip verification after creating backup")
     private boolean skipVerify;
@@ -89,6 +110,27 @@ public final class CliMain implements Runnable {
             showDefaultValue = Visibility.ALWAYS,
             paramLabel = "ROOT-DIR-SIZE")
     private long maxRootDirSize;
+    /** Bucket size for packing small root elements. */
+    @Option(
+            names = "--bucket-size",
+            converter = HumanSizeInputConverter.class,
+            description = "pack small root elements into buckets of this size (by-name only, default no buckets)",
+            paramLabel = "BUCKET-SIZE")
+    private long bucketSize;
+    /** Directory depth of the root elements. */
+    @Option(
+            names = "--group-depth",
+            description = "make root elements (and so NAMED crypt files) of the entries this many directories below"
+                    + " the source directory",
+            showDefaultValue = Visibility.ALWAYS,
+            paramLabel = "DEPTH")
+    private int groupDepth = Limits.DEFAULT_GROUP_DEPTH;
+    /** Flag to keep the file information of completed root elements on disk. */
+    @Option(
+            names = "--bounded-memory",
+            description = "keep the file information of completed root elements in a manifest file instead of in"
+                    + " memory (for backups with very many files)")
+    private boolean boundedMemory;
     /** Flag to print version. */
     @Option(
             names = {"-V", "--version"},
@@ -104,6 +146,67 @@ public final class CliMain implements Runnable {
     @Option(names = "--by-name", description = "create root-level entry named output files")
     private boolean byName;
 
+    /** Flag to create independently encrypted numbered output files. */
+    @Option(
+            names = "--segmented",
+            description = "create numbered output files that are encrypted (and can be restored) individually")
+    private boolean segmented;
+
+    /** Mirror target directories. */
+    @Option(
+            names = "--mirror",
+            description = "additional target directory receiving a copy of the backup (repeatable)",
+            paramLabel = "DIR")
+    private List<Path> mirrorDirs = new ArrayList<>();
+
+    /** Stripe directories. */
+    @Option(
+            names = "--stripe",
+            description = "additional directory to stripe numbered output files over (repeatable)",
+            paramLabel = "DIR")
+    private List<Path> stripeDirs = new ArrayList<>();
+
+    /** Storage location. */
+    @Option(
+            names = "--store-to",
+            description = "also store the new backup files in this location, file:/dir or s3://bucket/prefix"
+                    + " (s3 endpoint and credentials from AWS_ENDPOINT_URL, AWS_REGION, AWS_ACCESS_KEY_ID and"
+                    + " AWS_SECRET_ACCESS_KEY); files reused from the previous set are not stored again",
+            paramLabel = "URI")
+    @Nullable private URI storageLocation;
+
+    /** Time budget. */
+    @Option(
+            names = "--deadline",
+            converter = DurationInputConverter.class,
+            description = "stop processing changes when this time (like 4h or 3h30m) runs out, keeping the previous"
+                    + " state of the remaining root elements (by-name only)",
+            paramLabel = "DURATION")
+    @Nullable private Duration timeBudget;
+
+    /** Exclude patterns. */
+    @Option(
+            names = "--exclude",
+            description = "leave out source entries matching this glob pattern, a name (like *.tmp) or a path relative"
+                    + " to the source directory (like photos/*/previews) (repeatable)",
+            paramLabel = "PATTERN")
+    private List<String> excludes = new ArrayList<>();
+
+    /** Include patterns. */
+    @Option(
+            names = "--include",
+            description = "keep source entries matching this glob pattern, even if matched by an exclude pattern"
+                    + " (repeatable)",
+            paramLabel = "PATTERN")
+    private List<String> includes = new ArrayList<>();
+
+    /** Incremental base set. */
+    @Option(
+            names = "--incremental-from",
+            description = "only back up files changed since the backup set with this (numbered) restore script",
+            paramLabel = "SCRIPT")
+    @Nullable private Path incrementalBase;
+
     /** Backup source directory option. */
     @Parameters(index = "0", description = "backup source directory", paramLabel = "source-dir")
     @Nullable private Path sourceDir;
@@ -165,6 +268,36 @@ public final class CliMain implements Runnable {
         if (Files.exists(relativeTargetDir) && !Files.isDirectory(relativeTargetDir)) {
             argumentFail("The target directory must either not exist, or be a folder!");
         }
+        List<Path> relativeMirrorDirs = new ArrayList<>();
+        for (Path mirror : mirrorDirs) {
+            Path relativeMirrorDir = makeRealRelativeToCwd(mirror.resolve(adjustment.targetPath()));
+            if (Files.exists(relativeMirrorDir) && !Files.isDirectory(relativeMirrorDir)) {
+                argumentFail("The mirror directory must either not exist, or be a folder!");
+            }
+            if (relativeMirrorDir.equals(relativeTargetDir) || relativeMirrorDirs.contains(relativeMirrorDir)) {
+                argumentFail("The mirror directories must differ from each other and the target directory!");
+            }
+            relativeMirrorDirs.add(relativeMirrorDir);
+        }
+        List<Path> relativeStripeDirs = new ArrayList<>();
+        for (Path stripe : stripeDirs) {
+            Path relativeStripeDir = makeRealRelativeToCwd(stripe.resolve(adjustment.targetPath()));
+            if (Files.exists(relativeStripeDir) && !Files.isDirectory(relativeStripeDir)) {
+                argumentFail("The stripe directory must either not exist, or be a folder!");
+            }
+            if (relativeStripeDir.equals(relativeTargetDir) || relativeStripeDirs.contains(relativeStripeDir)) {
+                argumentFail("The stripe directories must differ from each other and the target directory!");
+            }
+            relativeStripeDirs.add(relativeStripeDir);
+        }
+
+        Path realIncrementalBase = null;
+        if (incrementalBase != null) {
+            realIncrementalBase = makeRealRelativeToCwd(incrementalBase);
+            if (!Files.isRegularFile(realIncrementalBase)) {
+                argumentFail("The incremental base must be an existing restore script! " + realIncrementalBase);
+            }
+        }
 
         Map<String, String> envOverrides = Map.of();
         if (gpgHomeDir != null) {
@@ -173,19 +306,75 @@ public final class CliMain implements Runnable {
 
         Path repositoryScriptPath = adjustment.targetPath().resolve(backupName + ".sh");
 
-        Limits limits = new BackupArguments.Limits(maxRootDirSize, numberedBackupSplitSize);
+        if (bucketSize > maxRootDirSize / 2) {
+            argumentFail("The bucket size must be at most half of the max root element size!");
+        }
+        if (groupDepth < 1) {
+            argumentFail("The group depth must be at least 1!");
+        }
+        Limits limits = new BackupArguments.Limits(
+                maxRootDirSize, numberedBackupSplitSize, bucketSize, groupDepth, boundedMemory);
+        ExclusionRules exclusions = ExclusionRules.NONE;
+        try {
+            exclusions = new ExclusionRules(excludes, includes);
+        } catch (IllegalArgumentException e) {
+            argumentFail(e.getMessage());
+        }
 
         return new BackupArguments(
                 Objects.requireNonNull(gpgRecipientId, "GPG recipient id null"),
                 envOverrides,
+                jvmEncryption || recipientKeyFile != null,
+                recipientKeyFile == null ? null : makeRealRelativeToCwd(recipientKeyFile),
+                compressionMode,
                 backupName,
                 realSrcDir,
                 relativeTargetDir,
+                relativeMirrorDirs,
+                relativeStripeDirs,
+                storageLocation,
+                realIncrementalBase,
                 repositoryDir,
                 repositoryScriptPath,
-                byName ? BackupOutputType.NAMED : BackupOutputType.NUMBERED,
+                outputType(),
                 skipVerify,
-                limits);
+                limits,
+                timeBudget,
+                exclusions);
+    }
+
+    private BackupOutputType outputType() {
+        if (byName && segmented) {
+            argumentFail("Select either --by-name or --segmented, not both!");
+        }
+        if (byName && !mirrorDirs.isEmpty()) {
+            argumentFail("Mirror directories are not supported with --by-name!");
+        }
+        if (!stripeDirs.isEmpty() && (byName || segmented || !mirrorDirs.isEmpty())) {
+            argumentFail("Stripe directories are only supported for numbered output without mirrors!");
+        }
+        if (storageLocation != null) {
+            String scheme = storageLocation.getScheme();
+            if (!"file".equals(scheme) && !"s3".equals(scheme)) {
+                argumentFail("The storage location must be a file: or s3: URI!");
+            }
+            if (!stripeDirs.isEmpty()) {
+                argumentFail("Stripe directories cannot be combined with a storage location!");
+            }
+        }
+        if (!byName && timeBudget != null) {
+            argumentFail("A deadline is only supported with --by-name!");
+        }
+        if (timeBudget != null && bucketSize > 0) {
+            argumentFail("A deadline cannot be combined with buckets!");
+        }
+        if (byName && incrementalBase != null) {
+            argumentFail("Incremental backups are not supported with --by-name!");
+        }
+        if (byName) {
+            return BackupOutputType.NAMED;
+        }
+        return segmented ? BackupOutputType.SEGMENTED : BackupOutputType.NUMBERED;
     }
 
     private Path makeRealRelativeToCwd(Path dir) {
@@ -292,6 +481,7 @@ public final class CliMain implements Runnable {
         });
         int exitCode = new CommandLine(cliMain)
                 .setDefaultValueProvider(new DefaultArgs())
+                .setCaseInsensitiveEnumValuesAllowed(true)
                 .execute(args);
         exitHandler.systemExit(exitCode, backupException.get());
     }
@@ -0,0 +1,37 @@
+package dk.mada.backup.cli;
+
+import java.time.Duration;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jspecify.annotations.Nullable;
+import picocli.CommandLine.ITypeConverter;
+
+/**
+ * Converts durations like 4h, 90m or 1h30m to actual duration.
+ */
+public final class DurationInputConverter implements ITypeConverter<Duration> {
+    /** Accepted input patterns. */
+    private static final Pattern VALID_INPUT_PATTERN = Pattern.compile("(?:(\\d+)h)?(?:(\\d+)m)?(?:(\\d+)s)?");
+
+    /** Creates new instance. */
+    public DurationInputConverter() {
+        // silence sonarcloud
+    }
+
+    @Override
+    public Duration convert(String inValue) {
+        String value = inValue.replace("_", "");
+
+        Matcher m = VALID_INPUT_PATTERN.matcher(value);
+        if (value.isEmpty() || !m.matches()) {
+            throw new IllegalArgumentException("'" + value + "' is not valid input for pattern " + VALID_INPUT_PATTERN);
+        }
+        return Duration.ofHours(parse(m.group(1)))
+                .plusMinutes(parse(m.group(2)))
+                .plusSeconds(parse(m.group(3)));
+    }
+
+    private static long parse(@Nullable String value) {
+        return value == null ? 0 : Long.parseLong(value);
+    }
+}
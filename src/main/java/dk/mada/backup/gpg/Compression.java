@@ -0,0 +1,54 @@
+package dk.mada.backup.gpg;
+
+/**
+ * Compression applied to the data inside an OpenPGP message.
+ *
+ * The compression is part of the OpenPGP message format, so GPG decompresses transparently when decrypting.
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc4880#section-5.6">RFC 4880, section 5.6</a>
+ */
+public enum Compression {
+    /** No compression. */
+    NONE("none", 0),
+    /** ZLIB (deflate) compression. */
+    ZLIB("zlib", 2);
+
+    /** The compression level used. Favors speed, as the backup data is often already compressed. */
+    public static final int LEVEL = 1;
+
+    /** The GPG name of the algorithm. */
+    private final String gpgName;
+    /** The OpenPGP algorithm id. */
+    private final int algorithmId;
+
+    Compression(String gpgName, int algorithmId) {
+        this.gpgName = gpgName;
+        this.algorithmId = algorithmId;
+    }
+
+    /** {@return the GPG name of the algorithm} */
+    public String gpgName() {
+        return gpgName;
+    }
+
+    /** {@return the OpenPGP algorithm id} */
+    public int algorithmId() {
+        return algorithmId;
+    }
+
+    /**
+     * Finds compression from its GPG name.
+     *
+     * @param name the GPG name of the algorithm
+     * @return the matching compression
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static Compression fromGpgName(String name) {
+        for (Compression c : values()) {
+            if (c.gpgName.equalsIgnoreCase(name)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression " + name);
+    }
+}
@@ -0,0 +1,38 @@
+package dk.mada.backup.gpg;
+
+import dk.mada.backup.types.GpgId;
+import java.io.OutputStream;
+
+/**
+ * Encryption engine used for the backup output.
+ *
+ * The output of any engine used for real backups must be decryptable by GPG, as this is what the restore script uses.
+ */
+public interface Encrypter {
+    /** {@return the id of the key the output is encrypted for} */
+    GpgId recipientKeyId();
+
+    /**
+     * Opens an encrypting stream without compression.
+     *
+     * @param out the stream to write the encrypted data to
+     * @return the encrypting stream
+     * @throws GpgEncrypterException if encryption cannot be set up
+     * @see #encrypt(OutputStream, Compression)
+     */
+    default OutputStream encrypt(OutputStream out) throws GpgEncrypterException {
+        return encrypt(out, Compression.NONE);
+    }
+
+    /**
+     * Opens an encrypting stream.
+     *
+     * Closing the returned stream completes the encryption, but does not close the underlying stream.
+     *
+     * @param out         the stream to write the encrypted data to
+     * @param compression the compression to apply to the data before encryption
+     * @return the encrypting stream
+     * @throws GpgEncrypterException if encryption cannot be set up
+     */
+    OutputStream encrypt(OutputStream out, Compression compression) throws GpgEncrypterException;
+}
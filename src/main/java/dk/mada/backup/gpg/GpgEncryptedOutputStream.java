@@ -3,17 +3,23 @@ package dk.mada.backup.gpg;
 import dk.mada.backup.api.BackupException;
 import dk.mada.backup.api.BackupTargetExistsException;
 import dk.mada.backup.types.GpgId;
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
@@ -27,157 +33,318 @@ import org.slf4j.LoggerFactory;
  *
  * Stderr from the GPG process is captured separately.
  *
- * When this instance is closed it closes the GPG stdin stream and waits for the GPG process to complete.
+ * The stdout/stderr copying runs on virtual threads owned by this instance. The first failure seen by any of them (or a
+ * non-zero exit from GPG) is recorded, the GPG process is killed, and the failure is thrown from the next write.
+ *
+ * A watchdog (also on a virtual thread) checks that GPG makes progress while a write is waiting for it, and while the
+ * stream is closing. Progress is GPG consuming its input or producing output. If GPG stalls for longer than the stall
+ * timeout, the stream fails. So the wait depends on the data GPG has not yet consumed, not on the total size.
+ *
+ * When this instance is closed it closes the GPG stdin stream and waits for the GPG process to complete. A failure is
+ * thrown again from every later close.
  */
 public final class GpgEncryptedOutputStream extends FilterOutputStream {
     private static final Logger logger = LoggerFactory.getLogger(GpgEncryptedOutputStream.class);
     /** The buffer size used when streaming. */
     private static final int BUFFER_SIZE = 8192;
-    /** The max wait time in seconds for GPG output to be consumed after the process ends. */
-    private static final int GPG_BACKGROUND_MAX_WAIT_SECONDS = 60;
-    /** The max wait time in seconds for the GPG stderr output to be consumed after the process ends. */
-    private static final int GPG_STDERR_MAX_WAIT_SECONDS = 5;
+    /** The interval in milliseconds between the watchdog's progress checks. */
+    private static final long WATCHDOG_INTERVAL_MILLIS = 500;
+    /** The max wait time in seconds for GPG to report a failure (exit or error message). */
+    private static final long GPG_FAILURE_REPORT_WAIT_SECONDS = 5;
+    /** Counter used to name the supervision threads. */
+    private static final AtomicInteger STREAM_COUNTER = new AtomicInteger();
 
     /** GPG information. */
     private final GpgStreamInfo gpgInfo;
-    /** Latch signaling completion of the (stdout) GPG process. */
-    private final CountDownLatch gpgStdoutDone = new CountDownLatch(1);
-    /** Latch signaling completed capture of the stderr from the GPG process. */
-    private final CountDownLatch gpgStderrDone = new CountDownLatch(1);
-    /** Error message captured from GPG (or empty). */
-    private final AtomicReference<String> stderrMessageRef = new AtomicReference<>();
-    /** Exception captured when writing to the external GPG process (or empty). */
-    private final AtomicReference<IOException> sinkException = new AtomicReference<>();
+    /** The compression GPG should apply. */
+    private final Compression compression;
+    /** The virtual threads supervising the GPG process. */
+    private final ExecutorService supervisor;
+    /** First failure seen while running the GPG process (or empty). */
+    private final AtomicReference<@Nullable IOException> failure = new AtomicReference<>();
+    /** The external GPG process. */
+    private final Process process;
     /** The output stream (sink) connecting to the GPG process's stdin. */
-    private OutputStream gpgSink;
-    /** Exception captured in thread copying GPG stdout (the crypted data), or null. */
-    @Nullable private Exception stdoutException;
-    /** Exception captured in thread copying GPG stderr, or null. */
-    @Nullable private Exception stderrException;
+    private final OutputStream gpgSink;
+    /** Completes when the GPG stdout (the crypted data) has been copied. */
+    private final CompletableFuture<Void> stdoutDone;
+    /** Completes with the error message captured from GPG stderr. */
+    private final CompletableFuture<String> stderrMessage;
+    /** Completes when the GPG process has exited and its exit value has been checked. */
+    private final CompletableFuture<Void> exitChecked;
+    /** Completes when the GPG process has exited and its output has been consumed. */
+    private final CompletableFuture<Void> completed;
+    /** The time (in nanos) of the last progress by GPG, or of the start of waiting for it. */
+    private final AtomicLong lastProgress = new AtomicLong(System.nanoTime());
+    /** Flag for waiting for GPG, in a write or when closing. */
+    private volatile boolean waitingForGpg;
+    /** Flag for stream closed. */
+    private boolean closed;
 
     /**
      * The information to make a GPG encrypted stream.
      *
+     * This is the default encrypter, using an external GPG process.
+     *
      * @param recipientKeyId  the key id
      * @param gpgEnvOverrides environment overrides
+     * @param stallTimeout    the max time GPG may go without progress, while waiting for it
      */
-    public record GpgStreamInfo(GpgId recipientKeyId, Map<String, String> gpgEnvOverrides) {}
+    public record GpgStreamInfo(GpgId recipientKeyId, Map<String, String> gpgEnvOverrides, Duration stallTimeout)
+            implements Encrypter {
+        /** The default stall timeout. */
+        public static final Duration DEFAULT_STALL_TIMEOUT = Duration.ofSeconds(60);
+
+        @Override
+        public OutputStream encrypt(OutputStream out, Compression compression) throws GpgEncrypterException {
+            return new GpgEncryptedOutputStream(out, this, compression);
+        }
+    }
 
     /**
      * Creates new instance.
      *
-     * @param out     the stream to write the encoded data to
-     * @param gpgInfo the information needed to run GPG
+     * @param out         the stream to write the encoded data to
+     * @param gpgInfo     the information needed to run GPG
+     * @param compression the compression GPG should apply
      *
      * @throws GpgEncrypterException if the GPG process fails
      */
-    public GpgEncryptedOutputStream(OutputStream out, GpgStreamInfo gpgInfo) throws GpgEncrypterException {
+    public GpgEncryptedOutputStream(OutputStream out, GpgStreamInfo gpgInfo, Compression compression)
+            throws GpgEncrypterException {
         super(out);
         this.gpgInfo = gpgInfo;
+        this.compression = compression;
+
+        process = startGpgProcess();
+        supervisor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+                .name("gpg-" + STREAM_COUNTER.incrementAndGet() + "-", 0)
+                .factory());
+        stderrMessage = CompletableFuture.supplyAsync(() -> readErrMessage(process.getErrorStream()), supervisor);
+        stdoutDone = CompletableFuture.runAsync(() -> copyToUnderlyingStream(process.getInputStream()), supervisor);
+        exitChecked = process.onExit().thenAcceptBoth(stderrMessage, this::checkExitValue);
+        completed = CompletableFuture.allOf(exitChecked, stdoutDone, stderrMessage);
+        supervisor.execute(this::watchProgress);
 
-        gpgSink = startGpgBackgroundProcess();
+        gpgSink = new BufferedOutputStream(new ProgressOutputStream(process.getOutputStream()));
     }
 
     @Override
     public void write(int b) throws IOException {
+        throwOnFailure();
+        startWaitingForGpg();
         try {
             gpgSink.write(b);
         } catch (IOException e) {
-            sinkException.set(e);
-            throw e;
+            throw sinkFailure(e);
+        } finally {
+            waitingForGpg = false;
         }
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        try {
-            gpgSink.write(b, 0, b.length);
-        } catch (IOException e) {
-            sinkException.set(e);
-            throw e;
-        }
+        write(b, 0, b.length);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
+        throwOnFailure();
+        startWaitingForGpg();
         try {
             gpgSink.write(b, off, len);
         } catch (IOException e) {
-            sinkException.set(e);
-            throw e;
+            throw sinkFailure(e);
+        } finally {
+            waitingForGpg = false;
         }
     }
 
     @Override
     public void flush() throws IOException {
+        throwOnFailure();
+        startWaitingForGpg();
         try {
             gpgSink.flush();
         } catch (IOException e) {
-            sinkException.set(e);
-            throw e;
+            throw sinkFailure(e);
+        } finally {
+            waitingForGpg = false;
         }
     }
 
     @Override
     public void close() throws IOException {
-        // Do not close sink if it already failed
-        if (sinkException.get() == null) {
-            gpgSink.close();
+        if (closed) {
+            // Repeat a failure, as the first close may have been wrapped (or swallowed) by an enclosing stream
+            throwOnFailure();
+            return;
         }
+        closed = true;
 
-        logger.debug("Waiting for GPG background process to complete");
-        awaitLatch(gpgStdoutDone, GPG_BACKGROUND_MAX_WAIT_SECONDS, "GPG background process");
-        awaitLatch(gpgStderrDone, GPG_STDERR_MAX_WAIT_SECONDS, "GPG stderr output");
+        // Stays set, as GPG is waited for until it completes
+        startWaitingForGpg();
+        try (supervisor) {
+            // Do not close sink if the process already failed
+            if (failure.get() == null) {
+                try {
+                    gpgSink.close();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
 
-        @Nullable String stderrMessage = stderrMessageRef.get();
-        if (stderrMessage != null && !stderrMessage.isEmpty()) {
-            logger.warn("GPG error message: {}", stderrMessage);
+            awaitCompletion();
         }
 
-        throwOnFailure(stdoutException);
-        throwOnFailure(stderrException);
+        throwOnFailure();
 
         logger.debug("GPG background process completed");
     }
 
-    private void awaitLatch(CountDownLatch latch, long timeout, String operationDescription) throws IOException {
+    /**
+     * Waits for the GPG process to complete and its output to be consumed.
+     *
+     * The watchdog fails the stream (killing GPG) if GPG stalls, so this wait ends.
+     */
+    private void awaitCompletion() throws GpgEncrypterException {
+        logger.debug("Waiting for GPG background process to complete");
+
         try {
-            if (!latch.await(timeout, TimeUnit.SECONDS)) {
-                throw new IllegalStateException(
-                        operationDescription + " failed to complete in " + timeout + " seconds!");
-            }
+            completed.get();
+        } catch (ExecutionException e) {
+            // failures are recorded by the individual tasks
+            logger.debug("GPG background task failed", e);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            throw new IOException("Got timeout while waiting for " + operationDescription, e);
+            fail(new GpgEncrypterException("Interrupted while waiting for GPG background process", e));
+        }
+
+        String message = stderrMessage.getNow("");
+        if (!message.isEmpty()) {
+            logger.warn("GPG error message: {}", message);
         }
     }
 
-    private void throwOnFailure(@Nullable Exception e) throws GpgEncrypterException {
-        if (e != null) {
-            // Let specific exception through - but do not rethrow, as this causes problem with JDK
-            // FIXME: Test on Java 20
-            if (e instanceof BackupTargetExistsException) {
-                throw new BackupTargetExistsException(e.getMessage(), e);
+    private void startWaitingForGpg() {
+        lastProgress.set(System.nanoTime());
+        waitingForGpg = true;
+    }
+
+    /**
+     * Checks that GPG makes progress while waited for, until it completes.
+     *
+     * Fails the stream if GPG stalls for longer than the stall timeout.
+     */
+    private void watchProgress() {
+        long stallTimeoutNanos = gpgInfo.stallTimeout().toNanos();
+        while (failure.get() == null) {
+            try {
+                completed.get(WATCHDOG_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                long stalledNanos = System.nanoTime() - lastProgress.get();
+                if (waitingForGpg && stalledNanos > stallTimeoutNanos) {
+                    fail(new GpgEncrypterException(
+                            "GPG background process made no progress in " + Duration.ofNanos(stalledNanos)));
+                }
+            } catch (ExecutionException e) {
+                // failures are recorded by the individual tasks
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
-            throw new GpgEncrypterException("GPG IO failed", e);
         }
     }
 
     /**
-     * Starts an external GPG process and two threads to copy data from its stdout and stderr.
+     * Records a failure and kills the GPG process.
+     *
+     * Killing the process makes any blocked writer fail, so the failure surfaces promptly.
+     *
+     * @param e the failure
+     */
+    private void fail(IOException e) {
+        if (failure.compareAndSet(null, e)) {
+            logger.debug("GPG processing failed, stopping process", e);
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Handles failure writing to GPG's stdin.
      *
-     * @return output stream connected to GPG process's stdin
+     * This is typically caused by the GPG process dying, so give it a moment to exit and report its own failure.
      *
-     * @throws GpgEncrypterException if creation of process or threads failed
+     * @param e the write failure
+     * @return the failure to throw
      */
-    private OutputStream startGpgBackgroundProcess() throws GpgEncrypterException {
+    private IOException sinkFailure(IOException e) {
+        try {
+            exitChecked.get(GPG_FAILURE_REPORT_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException ex) {
+            logger.debug("GPG did not report its failure", ex);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        fail(e);
+        IOException cause = failure.get();
+        if (cause != null && cause != e) {
+            cause.addSuppressed(e);
+            return asThrowable(cause);
+        }
+        return e;
+    }
+
+    private void throwOnFailure() throws IOException {
+        IOException e = failure.get();
+        if (e != null) {
+            throw asThrowable(e);
+        }
+    }
+
+    private IOException asThrowable(IOException e) {
+        // Let specific exception through - but do not rethrow, as this causes problem with JDK
+        if (e.getCause() instanceof BackupTargetExistsException btee) {
+            throw new BackupTargetExistsException(btee.getMessage(), btee);
+        }
+        if (e instanceof GpgEncrypterException) {
+            return new GpgEncrypterException(e.getMessage(), e);
+        }
+        return new GpgEncrypterException("GPG IO failed", e);
+    }
+
+    /**
+     * Checks the exit value of GPG, when it has exited and its error output has been read.
+     *
+     * @param p       the GPG process
+     * @param message the error output of GPG
+     */
+    private void checkExitValue(Process p, String message) {
+        int exitValue = p.exitValue();
+        if (exitValue != 0 && failure.get() == null) {
+            fail(new GpgEncrypterException("GPG exited with code " + exitValue + ": " + message.trim()));
+        }
+    }
+
+    /**
+     * Starts an external GPG process.
+     *
+     * @return the started process
+     *
+     * @throws GpgEncrypterException if creation of process failed
+     */
+    private Process startGpgProcess() throws GpgEncrypterException {
         try {
             List<String> cmd = List.of(
                     "/usr/bin/gpg",
                     "-q",
                     "--no-permission-warning",
                     "--compress-algo",
-                    "none",
+                    compression.gpgName(),
+                    "--compress-level",
+                    Integer.toString(Compression.LEVEL),
                     "--with-colons",
                     "--cipher-algo",
                     "AES256",
@@ -193,51 +360,59 @@ public final class GpgEncryptedOutputStream extends FilterOutputStream {
             logger.debug("Starting gpg background process: {}", cmd);
             logger.debug("Env: {}", gpgInfo.gpgEnvOverrides());
 
-            Process p = pb.start();
-
-            new Thread(() -> copyErrMessage(p.getErrorStream())).start();
-            new Thread(() -> copyToUnderlyingStream(p.getInputStream())).start();
-
-            return new BufferedOutputStream(p.getOutputStream());
+            return pb.start();
         } catch (IOException e) {
             throw new GpgEncrypterException("Failed to create background gpg process", e);
         }
     }
 
-    private void copyErrMessage(InputStream errorStream) {
-        try (BufferedInputStream bis = new BufferedInputStream(errorStream)) {
-            String msg = new String(bis.readAllBytes(), StandardCharsets.UTF_8);
-            stderrMessageRef.set(msg);
+    private String readErrMessage(InputStream errorStream) {
+        try (errorStream) {
+            String msg = new String(errorStream.readAllBytes(), StandardCharsets.UTF_8);
             if (!msg.isEmpty()) {
                 logger.warn("GPG error:\n{}", msg);
             }
-        } catch (BackupException e) {
-            stderrException = e;
+            return msg;
         } catch (IOException e) {
-            stderrException = new IOException("Failed to read GPG error output", e);
-        } finally {
-            gpgStderrDone.countDown();
+            fail(new IOException("Failed to read GPG error output", e));
+            return "";
         }
     }
 
     private void copyToUnderlyingStream(InputStream is) {
         byte[] buffer = new byte[BUFFER_SIZE];
 
-        try (BufferedInputStream bis = new BufferedInputStream(is)) {
+        try (is) {
             int read;
-            while ((read = bis.read(buffer)) >= 0) {
+            while ((read = is.read(buffer)) >= 0) {
                 logger.trace("Copying {} bytes from gpg to underlying stream", read);
-                for (int i = 0; i < read; i++) {
-                    super.write(buffer[i]); // Note, using single-byte method, or loops back to this.write(b)
-                }
+                out.write(buffer, 0, read); // Note, using underlying stream directly, or loops back to this.write(b)
+                lastProgress.set(System.nanoTime());
             }
             logger.debug("Gpg backend copier ending");
-        } catch (BackupException e) {
-            stdoutException = e;
-        } catch (Exception e) {
-            stdoutException = new GpgEncrypterException("Failed to copy data from GPG to output stream", e);
-        } finally {
-            gpgStdoutDone.countDown();
+        } catch (BackupException | IOException e) {
+            fail(new GpgEncrypterException("Failed to copy data from GPG to output stream", e));
+        }
+    }
+
+    /**
+     * Output stream to GPG's stdin, recording progress when GPG has consumed the written data.
+     */
+    private final class ProgressOutputStream extends FilterOutputStream {
+        ProgressOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            lastProgress.set(System.nanoTime());
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            lastProgress.set(System.nanoTime());
         }
     }
 }
@@ -0,0 +1,91 @@
+package dk.mada.backup.gpg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decrypts session keys using an external GPG process (and thus the GPG agent holding the secret key).
+ *
+ * GPG reports the session key as soon as it has been decrypted, so only the head of the message is passed to GPG.
+ *
+ * @param gpgEnvOverrides environment overrides
+ */
+public record GpgSessionKeyDecrypter(Map<String, String> gpgEnvOverrides) implements SessionKeyDecrypter {
+    private static final Logger logger = LoggerFactory.getLogger(GpgSessionKeyDecrypter.class);
+    /** The GPG status line reporting the session key. */
+    private static final String SESSION_KEY_STATUS = "[GNUPG:] SESSION_KEY ";
+    /** Max wait time in seconds for GPG to decrypt the session key (may involve pin entry). */
+    private static final long GPG_WAIT_SECONDS = 300;
+
+    @Override
+    public SessionKey decryptSessionKey(byte[] messageHead) throws GpgEncrypterException {
+        List<String> cmd = List.of(
+                "/usr/bin/gpg",
+                "-q",
+                "--no-permission-warning",
+                "--batch",
+                "--status-fd",
+                "1",
+                "--show-session-key",
+                "-o",
+                "/dev/null",
+                "--decrypt");
+        try {
+            ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
+            pb.environment().putAll(gpgEnvOverrides);
+            logger.debug("Starting gpg session key process: {}", cmd);
+            Process p = pb.start();
+
+            CompletableFuture<String> output = CompletableFuture.supplyAsync(() -> readOutput(p.getInputStream()));
+            try (OutputStream os = p.getOutputStream()) {
+                os.write(messageHead);
+            } catch (IOException e) {
+                // GPG may stop reading when it finds the (truncated) data packet
+                logger.debug("GPG stopped reading input", e);
+            }
+            if (!p.waitFor(GPG_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                p.destroyForcibly();
+                throw new GpgEncrypterException("GPG failed to decrypt session key in " + GPG_WAIT_SECONDS + " seconds");
+            }
+
+            // GPG fails (the data is truncated), so ignore exit value and look for the key
+            String gpgOutput = output.get(GPG_WAIT_SECONDS, TimeUnit.SECONDS);
+            return parseSessionKey(gpgOutput)
+                    .orElseThrow(() -> new GpgEncrypterException("GPG did not provide session key:\n" + gpgOutput));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GpgEncrypterException("Interrupted while decrypting session key", e);
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            throw new GpgEncrypterException("Failed to decrypt session key", e);
+        }
+    }
+
+    private static String readOutput(InputStream is) {
+        try (is) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.warn("Failed to read GPG output", e);
+            return "";
+        }
+    }
+
+    private static Optional<SessionKey> parseSessionKey(String status) {
+        return status.lines()
+                .filter(l -> l.startsWith(SESSION_KEY_STATUS))
+                .map(l -> l.substring(SESSION_KEY_STATUS.length()).trim().split(":", 2))
+                .map(algoKey -> new SessionKey(Integer.parseInt(algoKey[0]), HexFormat.of().parseHex(algoKey[1])))
+                .findFirst();
+    }
+}
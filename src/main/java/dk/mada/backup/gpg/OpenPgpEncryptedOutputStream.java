@@ -0,0 +1,256 @@
+package dk.mada.backup.gpg;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * OutputStream filter that OpenPGP-encrypts the outgoing stream in the JVM.
+ *
+ * Produces the same message structure as the external GPG process: a public-key encrypted session key packet followed
+ * by an AES-256 symmetrically encrypted and integrity protected data packet (with modification detection code) wrapping
+ * a binary literal data packet. When compression is selected, the literal data packet is wrapped in a ZLIB compressed
+ * data packet.
+ *
+ * The encryption uses the JDK AES implementation, which uses the CPU's AES instructions when available.
+ *
+ * Closing this stream completes the OpenPGP message, but does not close the underlying stream.
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc4880#section-5.13">RFC 4880, section 5.13</a>
+ */
+public final class OpenPgpEncryptedOutputStream extends FilterOutputStream {
+    /** Symmetric algorithm id of AES-256. */
+    private static final int SYM_ALGO_AES256 = 9;
+    /** AES-256 key size in bytes. */
+    private static final int AES256_KEY_SIZE = 32;
+    /** AES block size in bytes. */
+    private static final int AES_BLOCK_SIZE = 16;
+    /** SEIPD packet version. */
+    private static final int SEIPD_VERSION_1 = 1;
+    /** Literal data format for binary data. */
+    private static final int LITERAL_FORMAT_BINARY = 'b';
+    /** Header of the modification detection code packet. */
+    private static final byte[] MDC_HEADER = {(byte) 0xd3, 0x14};
+    /** Power of two of the partial body chunk size. */
+    private static final int PARTIAL_CHUNK_POWER = 16;
+    /** Size of partial body chunks. */
+    private static final int PARTIAL_CHUNK_SIZE = 1 << PARTIAL_CHUNK_POWER;
+    /** Source of session keys and prefix data. */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** The output stream of the literal data packet. */
+    private final PartialBodyOutputStream literalData;
+    /** The output stream of the compressed data packet, or null if not compressing. */
+    @Nullable private final PartialBodyOutputStream compressedData;
+    /** The compressor, or null if not compressing. */
+    @Nullable private final Deflater deflater;
+    /** The compressing stream, or null if not compressing. */
+    @Nullable private final DeflaterOutputStream deflaterStream;
+    /** The output stream of the encrypted data packet. */
+    private final PartialBodyOutputStream encryptedData;
+    /** The AES cipher. */
+    private final Cipher cipher;
+    /** The modification detection hash. */
+    private final MessageDigest mdc;
+    /** Flag for stream closed. */
+    private boolean closed;
+
+    /**
+     * Creates new instance.
+     *
+     * @param out          the stream to write the encrypted data to
+     * @param recipientKey the recipient's public key
+     * @param compression  the compression to apply before encryption
+     * @throws GpgEncrypterException if encryption cannot be set up
+     */
+    public OpenPgpEncryptedOutputStream(OutputStream out, OpenPgpPublicKey recipientKey, Compression compression)
+            throws GpgEncrypterException {
+        super(out);
+
+        byte[] sessionKey = new byte[AES256_KEY_SIZE];
+        RANDOM.nextBytes(sessionKey);
+        try {
+            cipher = Cipher.getInstance("AES/CFB/NoPadding");
+            cipher.init(
+                    Cipher.ENCRYPT_MODE,
+                    new SecretKeySpec(sessionKey, "AES"),
+                    new IvParameterSpec(new byte[AES_BLOCK_SIZE]));
+            mdc = MessageDigest.getInstance("SHA-1");
+        } catch (GeneralSecurityException e) {
+            throw new GpgEncrypterException("Failed to initialize encryption", e);
+        }
+
+        try {
+            out.write(recipientKey.createSessionKeyPacket(SYM_ALGO_AES256, sessionKey));
+
+            encryptedData = new PartialBodyOutputStream(out, OpenPgpPackets.TAG_SEIPD);
+            encryptedData.write(SEIPD_VERSION_1);
+
+            byte[] prefix = new byte[AES_BLOCK_SIZE + 2];
+            RANDOM.nextBytes(prefix);
+            prefix[AES_BLOCK_SIZE] = prefix[AES_BLOCK_SIZE - 2];
+            prefix[AES_BLOCK_SIZE + 1] = prefix[AES_BLOCK_SIZE - 1];
+            encrypt(prefix, 0, prefix.length);
+
+            OutputStream plainSink = new EncryptingSink();
+            if (compression == Compression.NONE) {
+                compressedData = null;
+                deflater = null;
+                deflaterStream = null;
+            } else {
+                compressedData = new PartialBodyOutputStream(plainSink, OpenPgpPackets.TAG_COMPRESSED_DATA);
+                compressedData.write(compression.algorithmId());
+                deflater = new Deflater(Compression.LEVEL);
+                deflaterStream = new DeflaterOutputStream(compressedData, deflater, PARTIAL_CHUNK_SIZE);
+                plainSink = deflaterStream;
+            }
+
+            literalData = new PartialBodyOutputStream(plainSink, OpenPgpPackets.TAG_LITERAL_DATA);
+            literalData.write(LITERAL_FORMAT_BINARY);
+            literalData.write(0); // no file name
+            literalData.write(new byte[4]); // no date
+        } catch (IOException e) {
+            throw new GpgEncrypterException("Failed to write OpenPGP header", e);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        literalData.write(b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        literalData.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Data is only released in whole chunks, nothing to flush
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        literalData.close();
+        if (deflaterStream != null && deflater != null && compressedData != null) {
+            try {
+                deflaterStream.finish();
+            } finally {
+                deflater.end();
+            }
+            compressedData.close();
+        }
+
+        encrypt(MDC_HEADER, 0, MDC_HEADER.length);
+        byte[] hash = mdc.digest();
+        writeCipherOutput(cipher.update(hash));
+        try {
+            writeCipherOutput(cipher.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new GpgEncrypterException("Failed to complete encryption", e);
+        }
+
+        encryptedData.close();
+        out.flush();
+    }
+
+    private void encrypt(byte[] b, int off, int len) throws IOException {
+        mdc.update(b, off, len);
+        writeCipherOutput(cipher.update(b, off, len));
+    }
+
+    private void writeCipherOutput(byte @Nullable [] crypted) throws IOException {
+        if (crypted != null) {
+            encryptedData.write(crypted);
+        }
+    }
+
+    /**
+     * Sink hashing and encrypting the plain text packets.
+     */
+    private final class EncryptingSink extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            encrypt(b, off, len);
+        }
+    }
+
+    /**
+     * Writes a packet of unknown length using partial body lengths.
+     *
+     * Data is released in fixed size chunks. The remaining data is written with a definite length when the stream is
+     * closed. Closing does not close the underlying stream.
+     */
+    private static final class PartialBodyOutputStream extends OutputStream {
+        /** The stream to write the packet to. */
+        private final OutputStream out;
+        /** The buffered chunk. */
+        private final byte[] chunk = new byte[PARTIAL_CHUNK_SIZE];
+        /** The number of bytes in the buffered chunk. */
+        private int count;
+
+        PartialBodyOutputStream(OutputStream out, int tag) throws IOException {
+            this.out = out;
+            out.write(0xc0 | tag);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == chunk.length) {
+                writeChunk();
+            }
+            chunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == chunk.length) {
+                    writeChunk();
+                }
+                int copy = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, copy);
+                count += copy;
+                off += copy;
+                len -= copy;
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            out.write(0xe0 + PARTIAL_CHUNK_POWER);
+            out.write(chunk, 0, count);
+            count = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            OpenPgpPackets.writeLength(out, count);
+            out.write(chunk, 0, count);
+            count = 0;
+        }
+    }
+}
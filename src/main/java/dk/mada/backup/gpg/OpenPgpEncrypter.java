@@ -0,0 +1,17 @@
+package dk.mada.backup.gpg;
+
+import dk.mada.backup.types.GpgId;
+import java.io.OutputStream;
+
+/**
+ * Encrypter running in the JVM.
+ *
+ * @param recipientKeyId the key id
+ * @param recipientKey   the recipient public key
+ */
+public record OpenPgpEncrypter(GpgId recipientKeyId, OpenPgpPublicKey recipientKey) implements Encrypter {
+    @Override
+    public OutputStream encrypt(OutputStream out, Compression compression) throws GpgEncrypterException {
+        return new OpenPgpEncryptedOutputStream(out, recipientKey, compression);
+    }
+}
@@ -0,0 +1,321 @@
+package dk.mada.backup.gpg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Low-level OpenPGP packet encoding and decoding.
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc4880#section-4">RFC 4880, section 4</a>
+ */
+final class OpenPgpPackets {
+    /** Tag of public-key encrypted session key packets. */
+    static final int TAG_PKESK = 1;
+    /** Tag of public key packets. */
+    static final int TAG_PUBLIC_KEY = 6;
+    /** Tag of compressed data packets. */
+    static final int TAG_COMPRESSED_DATA = 8;
+    /** Tag of literal data packets. */
+    static final int TAG_LITERAL_DATA = 11;
+    /** Tag of public subkey packets. */
+    static final int TAG_PUBLIC_SUBKEY = 14;
+    /** Tag of symmetrically encrypted and integrity protected data packets. */
+    static final int TAG_SEIPD = 18;
+    /** Marker for new format packet headers. */
+    private static final int NEW_FORMAT_CTB = 0xc0;
+    /** Bit identifying a packet tag byte. */
+    private static final int CTB_MARKER = 0x80;
+    /** Bit identifying new format packet headers. */
+    private static final int CTB_NEW_FORMAT = 0x40;
+    /** Upper limit (exclusive) for one-octet lengths. */
+    private static final int ONE_OCTET_LENGTH_LIMIT = 192;
+    /** Upper limit (exclusive) for two-octet lengths. */
+    private static final int TWO_OCTET_LENGTH_LIMIT = 8384;
+    /** First octet of partial body lengths. */
+    private static final int PARTIAL_LENGTH_START = 224;
+    /** Marker for five-octet lengths. */
+    private static final int FIVE_OCTET_LENGTH = 255;
+    /** ASCII armor header line prefix. */
+    private static final String ARMOR_BEGIN = "-----BEGIN PGP ";
+    /** ASCII armor footer line prefix. */
+    private static final String ARMOR_END = "-----END PGP ";
+
+    private OpenPgpPackets() {
+        // empty
+    }
+
+    /**
+     * A packet header.
+     *
+     * @param tag     the packet tag
+     * @param length  the length of the packet body (or of the first body part, if partial)
+     * @param partial true if the body is split over several partial lengths
+     * @param encoded the header as encoded in the stream
+     */
+    record Header(int tag, long length, boolean partial, byte[] encoded) {}
+
+    /**
+     * A complete packet.
+     *
+     * @param tag  the packet tag
+     * @param body the packet body
+     */
+    record Packet(int tag, byte[] body) {}
+
+    /**
+     * Reads a packet header.
+     *
+     * @param in the stream to read from
+     * @return the header
+     * @throws IOException if the header cannot be read (EOFException if the stream is at its end)
+     */
+    static Header readHeader(InputStream in) throws IOException {
+        int ctb = in.read();
+        if (ctb < 0) {
+            throw new EOFException("No more packets");
+        }
+        if ((ctb & CTB_MARKER) == 0) {
+            throw new IOException("Invalid packet tag byte " + ctb);
+        }
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        encoded.write(ctb);
+        if ((ctb & CTB_NEW_FORMAT) != 0) {
+            int tag = ctb & 0x3f;
+            int first = readByte(in, encoded);
+            if (first < ONE_OCTET_LENGTH_LIMIT) {
+                return new Header(tag, first, false, encoded.toByteArray());
+            } else if (first < PARTIAL_LENGTH_START) {
+                int second = readByte(in, encoded);
+                long length = ((first - ONE_OCTET_LENGTH_LIMIT) << 8) + second + ONE_OCTET_LENGTH_LIMIT;
+                return new Header(tag, length, false, encoded.toByteArray());
+            } else if (first == FIVE_OCTET_LENGTH) {
+                return new Header(tag, readLength(in, encoded, 4), false, encoded.toByteArray());
+            } else {
+                return new Header(tag, 1L << (first & 0x1f), true, encoded.toByteArray());
+            }
+        } else {
+            int tag = (ctb >> 2) & 0x0f;
+            int lengthType = ctb & 0x03;
+            if (lengthType == 3) {
+                throw new IOException("Indeterminate packet length not supported");
+            }
+            return new Header(tag, readLength(in, encoded, 1 << lengthType), false, encoded.toByteArray());
+        }
+    }
+
+    private static long readLength(InputStream in, ByteArrayOutputStream encoded, int octets) throws IOException {
+        long length = 0;
+        for (int i = 0; i < octets; i++) {
+            length = (length << 8) | readByte(in, encoded);
+        }
+        return length;
+    }
+
+    private static int readByte(InputStream in, ByteArrayOutputStream encoded) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Truncated packet header");
+        }
+        encoded.write(b);
+        return b;
+    }
+
+    /**
+     * Reads a complete packet with a definite length.
+     *
+     * @param in the stream to read from
+     * @return the packet
+     * @throws IOException if the packet cannot be read
+     */
+    static Packet readPacket(InputStream in) throws IOException {
+        Header header = readHeader(in);
+        if (header.partial()) {
+            throw new IOException("Unexpected partial length in packet with tag " + header.tag());
+        }
+        return new Packet(header.tag(), readFully(in, header.length()));
+    }
+
+    /**
+     * Reads an exact number of bytes.
+     *
+     * @param in     the stream to read from
+     * @param length the number of bytes to read
+     * @return the bytes read
+     * @throws IOException if the stream ends prematurely
+     */
+    static byte[] readFully(InputStream in, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Packet too large: " + length);
+        }
+        byte[] data = in.readNBytes((int) length);
+        if (data.length != length) {
+            throw new EOFException("Truncated packet, expected " + length + " bytes, got " + data.length);
+        }
+        return data;
+    }
+
+    /**
+     * Writes a new format packet header with a definite length.
+     *
+     * @param out    the stream to write to
+     * @param tag    the packet tag
+     * @param length the length of the packet body
+     * @throws IOException if writing fails
+     */
+    static void writeHeader(OutputStream out, int tag, long length) throws IOException {
+        out.write(NEW_FORMAT_CTB | tag);
+        writeLength(out, length);
+    }
+
+    /**
+     * Writes a new format (final) body length.
+     *
+     * @param out    the stream to write to
+     * @param length the length
+     * @throws IOException if writing fails
+     */
+    static void writeLength(OutputStream out, long length) throws IOException {
+        if (length < ONE_OCTET_LENGTH_LIMIT) {
+            out.write((int) length);
+        } else if (length < TWO_OCTET_LENGTH_LIMIT) {
+            long adjusted = length - ONE_OCTET_LENGTH_LIMIT;
+            out.write((int) ((adjusted >> 8) + ONE_OCTET_LENGTH_LIMIT));
+            out.write((int) (adjusted & 0xff));
+        } else {
+            out.write(FIVE_OCTET_LENGTH);
+            out.write((int) (length >> 24) & 0xff);
+            out.write((int) (length >> 16) & 0xff);
+            out.write((int) (length >> 8) & 0xff);
+            out.write((int) length & 0xff);
+        }
+    }
+
+    /**
+     * Writes a packet with a definite length.
+     *
+     * @param out  the stream to write to
+     * @param tag  the packet tag
+     * @param body the packet body
+     * @throws IOException if writing fails
+     */
+    static void writePacket(OutputStream out, int tag, byte[] body) throws IOException {
+        writeHeader(out, tag, body.length);
+        out.write(body);
+    }
+
+    /**
+     * Encodes a multiprecision integer.
+     *
+     * @param value the unsigned big-endian value
+     * @return the encoded MPI
+     */
+    static byte[] mpi(byte[] value) {
+        int start = 0;
+        while (start < value.length - 1 && value[start] == 0) {
+            start++;
+        }
+        int bits = (value.length - start - 1) * 8 + (32 - Integer.numberOfLeadingZeros(value[start] & 0xff));
+        byte[] res = new byte[2 + value.length - start];
+        res[0] = (byte) (bits >> 8);
+        res[1] = (byte) bits;
+        System.arraycopy(value, start, res, 2, value.length - start);
+        return res;
+    }
+
+    /**
+     * Reads a multiprecision integer.
+     *
+     * @param in the stream to read from
+     * @return the unsigned big-endian value
+     * @throws IOException if reading fails
+     */
+    static byte[] readMpi(InputStream in) throws IOException {
+        byte[] bitsBytes = readFully(in, 2);
+        int bits = ((bitsBytes[0] & 0xff) << 8) | (bitsBytes[1] & 0xff);
+        return readFully(in, (bits + 7) / 8L);
+    }
+
+    /**
+     * Converts a multiprecision integer value to a positive number.
+     *
+     * @param value the unsigned big-endian value
+     * @return the number
+     */
+    static BigInteger toBigInteger(byte[] value) {
+        return new BigInteger(1, value);
+    }
+
+    /**
+     * Converts a number to a fixed-length unsigned big-endian byte array.
+     *
+     * @param value  the number
+     * @param length the array length
+     * @return the byte array
+     */
+    static byte[] toUnsigned(BigInteger value, int length) {
+        byte[] raw = value.toByteArray();
+        if (raw.length == length) {
+            return raw;
+        }
+        byte[] res = new byte[length];
+        int copy = Math.min(raw.length, length);
+        System.arraycopy(raw, raw.length - copy, res, length - copy, copy);
+        return res;
+    }
+
+    /**
+     * Reverses the byte order of an array.
+     *
+     * @param data the data
+     * @return a reversed copy of the data
+     */
+    static byte[] reversed(byte[] data) {
+        byte[] res = Arrays.copyOf(data, data.length);
+        for (int i = 0; i < res.length / 2; i++) {
+            byte t = res[i];
+            res[i] = res[res.length - 1 - i];
+            res[res.length - 1 - i] = t;
+        }
+        return res;
+    }
+
+    /**
+     * Removes ASCII armor if present.
+     *
+     * @param data the possibly armored data
+     * @return the binary data
+     * @throws IOException if the armor is broken
+     */
+    static byte[] dearmor(byte[] data) throws IOException {
+        String text = new String(data, StandardCharsets.US_ASCII);
+        int begin = text.indexOf(ARMOR_BEGIN);
+        if (begin < 0) {
+            return data;
+        }
+
+        StringBuilder base64 = new StringBuilder();
+        boolean inHeaders = true;
+        boolean started = false;
+        for (String line : text.substring(begin).lines().toList()) {
+            String l = line.trim();
+            if (!started) {
+                started = true;
+            } else if (l.startsWith(ARMOR_END)) {
+                return Base64.getDecoder().decode(base64.toString());
+            } else if (inHeaders) {
+                inHeaders = !l.isEmpty();
+            } else if (!l.startsWith("=")) {
+                base64.append(l);
+            }
+        }
+        throw new IOException("Missing ASCII armor end line");
+    }
+}
@@ -0,0 +1,385 @@
+package dk.mada.backup.gpg;
+
+import dk.mada.backup.types.GpgId;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.SecretKeySpec;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OpenPGP public key (certificate) able to wrap session keys for its recipient.
+ *
+ * Only the parts needed to encrypt to the key are parsed; signatures are not verified. The key is trusted because the
+ * user selected it (by fingerprint) for the backup.
+ *
+ * Supported encryption keys are RSA and ECDH on Curve25519.
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc4880#section-5.5.2">RFC 4880, section 5.5.2</a>
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc6637">RFC 6637</a>
+ */
+public final class OpenPgpPublicKey {
+    private static final Logger logger = LoggerFactory.getLogger(OpenPgpPublicKey.class);
+    /** Algorithm id of RSA (encrypt or sign). */
+    private static final int ALGO_RSA = 1;
+    /** Algorithm id of RSA (encrypt only). */
+    private static final int ALGO_RSA_ENCRYPT = 2;
+    /** Algorithm id of ECDH. */
+    private static final int ALGO_ECDH = 18;
+    /** The only supported key version. */
+    private static final int KEY_VERSION_4 = 4;
+    /** The PKESK packet version. */
+    private static final int PKESK_VERSION_3 = 3;
+    /** Fingerprint hash prefix octet. */
+    private static final int FINGERPRINT_PREFIX = 0x99;
+    /** OID of Curve25519 (the legacy OpenPGP ECDH variant). */
+    private static final byte[] OID_CURVE25519 = HexFormat.of().parseHex("2b060104019755010501");
+    /** Prefix octet of native curve points. */
+    private static final int NATIVE_POINT_PREFIX = 0x40;
+    /** Length of X25519 public values. */
+    private static final int X25519_LENGTH = 32;
+    /** Sender identification used in the ECDH KDF. */
+    private static final byte[] ANONYMOUS_SENDER = "Anonymous Sender    ".getBytes(StandardCharsets.US_ASCII);
+    /** Hash algorithm names by OpenPGP id. */
+    private static final Map<Integer, String> HASH_ALGORITHMS = Map.of(8, "SHA-256", 9, "SHA-384", 10, "SHA-512");
+    /** Key wrap key sizes in bytes by OpenPGP symmetric algorithm id. */
+    private static final Map<Integer, Integer> KEK_SIZES = Map.of(7, 16, 8, 24, 9, 32);
+    /** Block size used for session key padding when wrapping with ECDH. */
+    private static final int KEY_WRAP_BLOCK_SIZE = 8;
+
+    /** The fingerprint of the selected encryption key. */
+    private final byte[] fingerprint;
+    /** The public key algorithm. */
+    private final int algorithm;
+    /** The JDK public key. */
+    private final PublicKey publicKey;
+    /** The ECDH curve OID (or empty). */
+    private final byte[] curveOid;
+    /** The ECDH KDF hash algorithm id (or zero). */
+    private final int kdfHash;
+    /** The ECDH KDF key wrap algorithm id (or zero). */
+    private final int kdfCipher;
+
+    private OpenPgpPublicKey(KeyPacket key) {
+        this.fingerprint = key.fingerprint();
+        this.algorithm = key.algorithm();
+        this.publicKey = key.publicKey();
+        this.curveOid = key.curveOid();
+        this.kdfHash = key.kdfHash();
+        this.kdfCipher = key.kdfCipher();
+    }
+
+    /**
+     * Parsed public key packet.
+     *
+     * @param fingerprint the V4 fingerprint
+     * @param algorithm   the public key algorithm
+     * @param publicKey   the JDK public key, or null if the algorithm cannot be used for encryption
+     * @param curveOid    the ECDH curve OID (or empty)
+     * @param kdfHash     the ECDH KDF hash algorithm id (or zero)
+     * @param kdfCipher   the ECDH KDF key wrap algorithm id (or zero)
+     */
+    private record KeyPacket(
+            byte[] fingerprint,
+            int algorithm,
+            @Nullable PublicKey publicKey,
+            byte[] curveOid,
+            int kdfHash,
+            int kdfCipher) {
+        boolean canEncrypt() {
+            return publicKey != null;
+        }
+    }
+
+    /**
+     * Reads the encryption key for a recipient from a key file.
+     *
+     * The file may be binary or ASCII armored, and may contain several certificates. The certificate whose primary key
+     * (or subkey) matches the recipient is used.
+     *
+     * @param keyFile     the key file
+     * @param recipientId the recipient key id
+     * @return the public key
+     * @throws GpgEncrypterException if the key cannot be read or is not usable
+     */
+    public static OpenPgpPublicKey fromFile(Path keyFile, GpgId recipientId) throws GpgEncrypterException {
+        try {
+            return fromBytes(Files.readAllBytes(keyFile), recipientId);
+        } catch (IOException e) {
+            throw new GpgEncrypterException("Failed to read public key from " + keyFile, e);
+        }
+    }
+
+    /**
+     * Reads the encryption key for a recipient from the GPG keyring.
+     *
+     * Runs a single GPG process to export the public key.
+     *
+     * @param recipientId     the recipient key id
+     * @param gpgEnvOverrides the GPG environment overrides
+     * @return the public key
+     * @throws GpgEncrypterException if the key cannot be exported or is not usable
+     */
+    public static OpenPgpPublicKey exportFromGpg(GpgId recipientId, Map<String, String> gpgEnvOverrides)
+            throws GpgEncrypterException {
+        List<String> cmd = List.of("/usr/bin/gpg", "--batch", "--no-tty", "--export", recipientId.id());
+        try {
+            ProcessBuilder pb = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.DISCARD);
+            pb.environment().putAll(gpgEnvOverrides);
+            logger.debug("Exporting public key: {}", cmd);
+            Process p = pb.start();
+            byte[] exported;
+            try (InputStream is = p.getInputStream()) {
+                exported = is.readAllBytes();
+            }
+            int exitValue = p.waitFor();
+            if (exitValue != 0 || exported.length == 0) {
+                throw new GpgEncrypterException("GPG failed to export key " + recipientId.id() + ", exit " + exitValue);
+            }
+            return fromBytes(exported, recipientId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GpgEncrypterException("Interrupted while exporting public key", e);
+        } catch (GpgEncrypterException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new GpgEncrypterException("Failed to export public key " + recipientId.id(), e);
+        }
+    }
+
+    /**
+     * Reads the encryption key for a recipient from key data.
+     *
+     * @param data        the binary or ASCII armored key data
+     * @param recipientId the recipient key id
+     * @return the public key
+     * @throws GpgEncrypterException if the key is not found or is not usable
+     */
+    static OpenPgpPublicKey fromBytes(byte[] data, GpgId recipientId) throws GpgEncrypterException {
+        List<List<KeyPacket>> certificates = new ArrayList<>();
+        try (InputStream in = new ByteArrayInputStream(OpenPgpPackets.dearmor(data))) {
+            while (in.available() > 0) {
+                OpenPgpPackets.Packet packet = OpenPgpPackets.readPacket(in);
+                if (packet.tag() == OpenPgpPackets.TAG_PUBLIC_KEY) {
+                    certificates.add(new ArrayList<>());
+                }
+                if (packet.tag() == OpenPgpPackets.TAG_PUBLIC_KEY || packet.tag() == OpenPgpPackets.TAG_PUBLIC_SUBKEY) {
+                    if (certificates.isEmpty()) {
+                        throw new IOException("Subkey found before primary key");
+                    }
+                    certificates.getLast().add(parseKey(packet.body()));
+                }
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            throw new GpgEncrypterException("Failed to parse public key data", e);
+        }
+
+        for (List<KeyPacket> keys : certificates) {
+            boolean matches = keys.stream().anyMatch(k -> HexFormat.of().formatHex(k.fingerprint()).equals(recipientId.id()));
+            if (matches) {
+                return new OpenPgpPublicKey(selectEncryptionKey(keys, recipientId));
+            }
+        }
+        throw new GpgEncrypterException("No public key found for " + recipientId.id());
+    }
+
+    /**
+     * Selects the encryption key of a certificate.
+     *
+     * Prefers the last (most recent) encryption capable subkey, and falls back to the primary key.
+     */
+    private static KeyPacket selectEncryptionKey(List<KeyPacket> keys, GpgId recipientId) throws GpgEncrypterException {
+        for (KeyPacket key : keys.subList(1, keys.size()).reversed()) {
+            if (key.canEncrypt()) {
+                return key;
+            }
+        }
+        KeyPacket primary = keys.getFirst();
+        if (primary.canEncrypt()) {
+            return primary;
+        }
+        throw new GpgEncrypterException("No supported encryption key found for " + recipientId.id());
+    }
+
+    private static KeyPacket parseKey(byte[] body) throws IOException, GeneralSecurityException {
+        byte[] fingerprint = fingerprint(body);
+        InputStream in = new ByteArrayInputStream(body);
+        int version = in.read();
+        if (version != KEY_VERSION_4) {
+            throw new IOException("Unsupported key version " + version);
+        }
+        OpenPgpPackets.readFully(in, 4); // creation time
+        int algorithm = in.read();
+        switch (algorithm) {
+            case ALGO_RSA, ALGO_RSA_ENCRYPT -> {
+                BigInteger n = OpenPgpPackets.toBigInteger(OpenPgpPackets.readMpi(in));
+                BigInteger e = OpenPgpPackets.toBigInteger(OpenPgpPackets.readMpi(in));
+                PublicKey pk = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(n, e));
+                return new KeyPacket(fingerprint, algorithm, pk, new byte[0], 0, 0);
+            }
+            case ALGO_ECDH -> {
+                byte[] oid = readOid(in);
+                byte[] point = OpenPgpPackets.readMpi(in);
+                int kdfLength = in.read();
+                byte[] kdf = OpenPgpPackets.readFully(in, kdfLength);
+                if (!Arrays.equals(oid, OID_CURVE25519)
+                        || point.length != X25519_LENGTH + 1
+                        || (point[0] & 0xff) != NATIVE_POINT_PREFIX
+                        || kdf.length != 3) {
+                    return new KeyPacket(fingerprint, algorithm, null, oid, 0, 0);
+                }
+                BigInteger u = OpenPgpPackets.toBigInteger(
+                        OpenPgpPackets.reversed(Arrays.copyOfRange(point, 1, point.length)));
+                PublicKey pk = KeyFactory.getInstance("X25519")
+                        .generatePublic(new XECPublicKeySpec(NamedParameterSpec.X25519, u));
+                return new KeyPacket(fingerprint, algorithm, pk, oid, kdf[1] & 0xff, kdf[2] & 0xff);
+            }
+            default -> {
+                return new KeyPacket(fingerprint, algorithm, null, new byte[0], 0, 0);
+            }
+        }
+    }
+
+    private static byte[] readOid(InputStream in) throws IOException {
+        int length = in.read();
+        if (length < 0) {
+            throw new EOFException("Truncated OID");
+        }
+        return OpenPgpPackets.readFully(in, length);
+    }
+
+    private static byte[] fingerprint(byte[] body) throws GeneralSecurityException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update((byte) FINGERPRINT_PREFIX);
+        sha1.update((byte) (body.length >> 8));
+        sha1.update((byte) body.length);
+        return sha1.digest(body);
+    }
+
+    /**
+     * {@return the fingerprint of the encryption key}
+     */
+    public String fingerprint() {
+        return HexFormat.of().formatHex(fingerprint);
+    }
+
+    /**
+     * Creates a public-key encrypted session key packet.
+     *
+     * @param symmetricAlgorithm the OpenPGP id of the symmetric algorithm the session key is for
+     * @param sessionKey         the session key
+     * @return the complete packet, including header
+     * @throws GpgEncrypterException if the session key cannot be wrapped
+     */
+    public byte[] createSessionKeyPacket(int symmetricAlgorithm, byte[] sessionKey) throws GpgEncrypterException {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.write(PKESK_VERSION_3);
+            body.write(fingerprint, fingerprint.length - 8, 8); // key id
+            body.write(algorithm);
+            if (algorithm == ALGO_ECDH) {
+                writeEcdhWrappedKey(body, symmetricAlgorithm, sessionKey);
+            } else {
+                Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+                rsa.init(Cipher.ENCRYPT_MODE, publicKey);
+                body.write(OpenPgpPackets.mpi(rsa.doFinal(checksummedKey(symmetricAlgorithm, sessionKey))));
+            }
+
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            OpenPgpPackets.writePacket(packet, OpenPgpPackets.TAG_PKESK, body.toByteArray());
+            return packet.toByteArray();
+        } catch (IOException | GeneralSecurityException e) {
+            throw new GpgEncrypterException("Failed to wrap session key", e);
+        }
+    }
+
+    /**
+     * Wraps the session key using ECDH as described in RFC 6637, section 8.
+     */
+    private void writeEcdhWrappedKey(ByteArrayOutputStream body, int symmetricAlgorithm, byte[] sessionKey)
+            throws IOException, GeneralSecurityException {
+        String hashName = HASH_ALGORITHMS.get(kdfHash);
+        Integer kekSize = KEK_SIZES.get(kdfCipher);
+        if (hashName == null || kekSize == null) {
+            throw new GeneralSecurityException("Unsupported ECDH KDF parameters " + kdfHash + "/" + kdfCipher);
+        }
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("X25519");
+        KeyPair ephemeral = kpg.generateKeyPair();
+        KeyAgreement ka = KeyAgreement.getInstance("X25519");
+        ka.init(ephemeral.getPrivate());
+        ka.doPhase(publicKey, true);
+        byte[] sharedSecret = ka.generateSecret();
+
+        ByteArrayOutputStream param = new ByteArrayOutputStream();
+        param.write(curveOid.length);
+        param.write(curveOid);
+        param.write(ALGO_ECDH);
+        param.write(new byte[] {3, 1, (byte) kdfHash, (byte) kdfCipher});
+        param.write(ANONYMOUS_SENDER);
+        param.write(fingerprint);
+
+        MessageDigest digest = MessageDigest.getInstance(hashName);
+        digest.update(new byte[] {0, 0, 0, 1});
+        digest.update(sharedSecret);
+        digest.update(param.toByteArray());
+        byte[] kek = Arrays.copyOf(digest.digest(), kekSize);
+
+        byte[] keyData = checksummedKey(symmetricAlgorithm, sessionKey);
+        int padding = KEY_WRAP_BLOCK_SIZE - keyData.length % KEY_WRAP_BLOCK_SIZE;
+        byte[] padded = Arrays.copyOf(keyData, keyData.length + padding);
+        Arrays.fill(padded, keyData.length, padded.length, (byte) padding);
+
+        Cipher wrap = Cipher.getInstance("AES/KW/NoPadding");
+        wrap.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kek, "AES"));
+        byte[] wrapped = wrap.doFinal(padded);
+
+        byte[] u = OpenPgpPackets.reversed(
+                OpenPgpPackets.toUnsigned(((XECPublicKey) ephemeral.getPublic()).getU(), X25519_LENGTH));
+        byte[] point = new byte[X25519_LENGTH + 1];
+        point[0] = NATIVE_POINT_PREFIX;
+        System.arraycopy(u, 0, point, 1, X25519_LENGTH);
+
+        body.write(OpenPgpPackets.mpi(point));
+        body.write(wrapped.length);
+        body.write(wrapped);
+    }
+
+    private static byte[] checksummedKey(int symmetricAlgorithm, byte[] sessionKey) {
+        int checksum = 0;
+        for (byte b : sessionKey) {
+            checksum += b & 0xff;
+        }
+        byte[] res = new byte[sessionKey.length + 3];
+        res[0] = (byte) symmetricAlgorithm;
+        System.arraycopy(sessionKey, 0, res, 1, sessionKey.length);
+        res[res.length - 2] = (byte) (checksum >> 8);
+        res[res.length - 1] = (byte) checksum;
+        return res;
+    }
+}
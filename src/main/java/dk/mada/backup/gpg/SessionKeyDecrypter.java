@@ -0,0 +1,24 @@
+package dk.mada.backup.gpg;
+
+/**
+ * Decrypts the session key of an OpenPGP message.
+ */
+@FunctionalInterface
+public interface SessionKeyDecrypter {
+    /**
+     * A decrypted session key.
+     *
+     * @param algorithm the OpenPGP symmetric algorithm id
+     * @param key       the session key
+     */
+    record SessionKey(int algorithm, byte[] key) {}
+
+    /**
+     * Decrypts the session key of a message.
+     *
+     * @param messageHead the start of the message; the session key packets followed by the start of the data packet
+     * @return the session key
+     * @throws GpgEncrypterException if the session key cannot be decrypted
+     */
+    SessionKey decryptSessionKey(byte[] messageHead) throws GpgEncrypterException;
+}
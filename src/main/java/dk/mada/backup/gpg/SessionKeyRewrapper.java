@@ -0,0 +1,116 @@
+package dk.mada.backup.gpg;
+
+import dk.mada.backup.gpg.SessionKeyDecrypter.SessionKey;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-targets encrypted files to a new recipient without re-encrypting the data.
+ *
+ * The public-key encrypted session key packets at the start of the file are replaced by a packet with the session key
+ * wrapped for the new recipient. The encrypted data packet is copied byte for byte.
+ *
+ * The rewrapped message is written to a new file, so the caller can rename it into place when all files of a backup
+ * set are ready. Hard links to the old file (from older backup sets) then keep the old content.
+ */
+public final class SessionKeyRewrapper {
+    private static final Logger logger = LoggerFactory.getLogger(SessionKeyRewrapper.class);
+    /** Max amount of the data packet passed on to the session key decrypter. */
+    private static final int DATA_PACKET_HEAD_SIZE = 4096;
+
+    /** The session key decrypter. */
+    private final SessionKeyDecrypter decrypter;
+    /** The new recipient's public key. */
+    private final OpenPgpPublicKey newRecipientKey;
+
+    /**
+     * Creates new instance.
+     *
+     * @param decrypter       the decrypter for the current session keys
+     * @param newRecipientKey the new recipient's public key
+     */
+    public SessionKeyRewrapper(SessionKeyDecrypter decrypter, OpenPgpPublicKey newRecipientKey) {
+        this.decrypter = decrypter;
+        this.newRecipientKey = newRecipientKey;
+    }
+
+    /**
+     * The head of an encrypted message.
+     *
+     * @param data       the session key packets and the (truncated) data packet
+     * @param dataOffset the offset of the data packet
+     */
+    private record MessageHead(byte[] data, long dataOffset) {}
+
+    /**
+     * Rewraps the session key of an encrypted file.
+     *
+     * @param file          the encrypted file, starting with the session key packets
+     * @param rewrappedFile the file to write the rewrapped message to (replaced if it exists)
+     * @throws GpgEncrypterException if the file cannot be rewrapped
+     */
+    public void rewrap(Path file, Path rewrappedFile) throws GpgEncrypterException {
+        try {
+            MessageHead head = readHead(file);
+            SessionKey sessionKey = decrypter.decryptSessionKey(head.data());
+            byte[] newKeyPacket = newRecipientKey.createSessionKeyPacket(sessionKey.algorithm(), sessionKey.key());
+            Arrays.fill(sessionKey.key(), (byte) 0);
+
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(
+                            rewrappedFile,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING,
+                            StandardOpenOption.WRITE)) {
+                ByteBuffer keyPacket = ByteBuffer.wrap(newKeyPacket);
+                while (keyPacket.hasRemaining()) {
+                    out.write(keyPacket);
+                }
+                long size = in.size();
+                long position = head.dataOffset();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(true);
+            }
+            logger.debug("Rewrapped session key of {} to {}", file, rewrappedFile);
+        } catch (IOException e) {
+            if (e instanceof GpgEncrypterException gee) {
+                throw gee;
+            }
+            throw new GpgEncrypterException("Failed to rewrap session key of " + file, e);
+        }
+    }
+
+    private static MessageHead readHead(Path file) throws IOException {
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            while (true) {
+                OpenPgpPackets.Header header = OpenPgpPackets.readHeader(is);
+                if (header.tag() != OpenPgpPackets.TAG_PKESK) {
+                    long dataOffset = head.size();
+                    if (dataOffset == 0) {
+                        throw new GpgEncrypterException("No session key packet found in " + file);
+                    }
+                    // Pass on the start of the data packet as a complete packet, as
+                    // GPG chokes on truncated packets with partial lengths
+                    byte[] dataHead = is.readNBytes((int) Math.min(header.length(), DATA_PACKET_HEAD_SIZE));
+                    OpenPgpPackets.writePacket(head, header.tag(), dataHead);
+                    return new MessageHead(head.toByteArray(), dataOffset);
+                }
+                head.write(header.encoded());
+                head.write(OpenPgpPackets.readFully(is, header.length()));
+            }
+        }
+    }
+}
@@ -2,14 +2,23 @@ package dk.mada.backup.impl;
 
 import dk.mada.backup.api.BackupApi;
 import dk.mada.backup.api.BackupArguments;
+import dk.mada.backup.api.BackupOptions;
 import dk.mada.backup.cli.Console;
+import dk.mada.backup.gpg.Encrypter;
 import dk.mada.backup.gpg.GpgEncryptedOutputStream.GpgStreamInfo;
+import dk.mada.backup.gpg.GpgEncrypterException;
+import dk.mada.backup.gpg.OpenPgpEncrypter;
+import dk.mada.backup.gpg.OpenPgpPublicKey;
 import dk.mada.backup.restore.RestoreExecutor;
+import dk.mada.backup.storage.StorageBackend;
+import dk.mada.backup.types.GpgId;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,14 +59,28 @@ public class BackupApplication {
      */
     public void makeBackup() {
         Path restoreScript = createBackup();
+        List<Path> mirrorScripts = args.mirrorDirs().stream()
+                .map(d -> d.resolve(restoreScript.getFileName()))
+                .toList();
+        List<Path> completedMirrorScripts =
+                mirrorScripts.stream().filter(Files::isRegularFile).toList();
 
         if (args.skipVerify()) {
             logger.info("Backup *not* verified!");
         } else {
             verifyBackup(restoreScript);
+            completedMirrorScripts.forEach(this::verifyBackup);
         }
 
         makeRepositoryCopy(restoreScript);
+
+        if (completedMirrorScripts.size() != mirrorScripts.size()) {
+            List<Path> failedMirrors = mirrorScripts.stream()
+                    .filter(s -> !completedMirrorScripts.contains(s))
+                    .map(Path::getParent)
+                    .toList();
+            exitHandler.systemExitMessage(1, "Backup to mirror(s) failed: " + failedMirrors);
+        }
     }
 
     private void makeRepositoryCopy(Path restoreScript) {
@@ -75,8 +98,15 @@ public class BackupApplication {
 
     private Path createBackup() {
         try {
-            GpgStreamInfo gpgStreamInfo = new GpgStreamInfo(args.gpgRecipientKeyId(), args.envOverrides());
-            BackupApi backupApi = new BackupApi(gpgStreamInfo, args.outputType(), args.limits());
+            BackupOptions options = new BackupOptions(
+                    args.compressionMode(),
+                    createStorage(),
+                    args.timeBudget(),
+                    args.exclusions(),
+                    args.mirrorDirs(),
+                    args.stripeDirs(),
+                    args.incrementalBase());
+            BackupApi backupApi = new BackupApi(createEncrypter(), args.outputType(), args.limits(), options);
             return backupApi.makeBackup(args.name(), args.sourceDir(), args.targetDir());
         } catch (Exception e) {
             logger.info("Failed to create backup: {}", e.getMessage());
@@ -86,6 +116,34 @@ public class BackupApplication {
         }
     }
 
+    private StorageBackend createStorage() {
+        URI location = args.storageLocation();
+        if (location == null) {
+            return StorageBackend.none();
+        }
+        return StorageBackend.forLocation(location, System.getenv());
+    }
+
+    /**
+     * Creates the encrypter selected by the arguments.
+     *
+     * @return the encrypter
+     * @throws GpgEncrypterException if the recipient key cannot be loaded
+     */
+    private Encrypter createEncrypter() throws GpgEncrypterException {
+        GpgId recipient = args.gpgRecipientKeyId();
+        if (!args.jvmEncryption()) {
+            return new GpgStreamInfo(recipient, args.envOverrides(), GpgStreamInfo.DEFAULT_STALL_TIMEOUT);
+        }
+        Path keyFile = args.recipientKeyFile();
+        if (keyFile != null) {
+            logger.info("Encrypting in JVM with key from {}", keyFile);
+            return new OpenPgpEncrypter(recipient, OpenPgpPublicKey.fromFile(keyFile, recipient));
+        }
+        logger.info("Encrypting in JVM with key exported from GPG");
+        return new OpenPgpEncrypter(recipient, OpenPgpPublicKey.exportFromGpg(recipient, args.envOverrides()));
+    }
+
     private void verifyBackup(Path script) {
         try {
             logger.info("Verifying backup...");
@@ -2,10 +2,14 @@ package dk.mada.backup.impl.output;
 
 import dk.mada.backup.api.BackupArguments.Limits;
 import dk.mada.backup.api.BackupOutputType;
-import dk.mada.backup.gpg.GpgEncryptedOutputStream.GpgStreamInfo;
+import dk.mada.backup.api.CompressionMode;
+import dk.mada.backup.api.ExclusionRules;
+import dk.mada.backup.gpg.Encrypter;
 import dk.mada.backup.gpg.GpgEncrypterException;
 import dk.mada.backup.restore.RestoreScriptWriter;
+import dk.mada.backup.storage.StorageBackend;
 import java.nio.file.Path;
+import org.jspecify.annotations.Nullable;
 
 /**
  * Defines the backup policy.
@@ -26,11 +30,33 @@ public interface BackupPolicy {
     /** {@return the actual target directory to use} */
     Path targetDirectory();
 
+    /**
+     * {@return the file to move completed file information to, when the memory use of the backup is bounded}
+     *
+     * The file is deleted when the backup completes or fails.
+     */
+    Path manifestFile();
+
     /** {@return the backup limits} */
     Limits limits();
 
-    /** {@return the GPG information} */
-    GpgStreamInfo gpgInfo();
+    /** {@return the rules for excluding entries of the source tree} */
+    ExclusionRules exclusions();
+
+    /** {@return the encrypter} */
+    Encrypter encrypter();
+
+    /** {@return the compression mode} */
+    CompressionMode compressionMode();
+
+    /** {@return the storage backend for the backup files} */
+    StorageBackend storage();
+
+    /** {@return the base set of an incremental backup, or null for a full backup} */
+    @Nullable IncrementalBase incrementalBase();
+
+    /** {@return the scheduler of a deadline bounded backup, or null if the backup has no deadline} */
+    @Nullable DeadlineScheduler deadlineScheduler();
 
     /**
      * Called when the backup is starting. This allows the policy implementation to check desired state before starting the
@@ -41,7 +67,7 @@ public interface BackupPolicy {
     /**
      * {@return the backup writer to use for the root elements}
      *
-     * @throws GpgEncrypterException if GPG operations fail
+     * @throws GpgEncrypterException if encryption setup fails
      */
     BackupStreamWriter writer() throws GpgEncrypterException;
 
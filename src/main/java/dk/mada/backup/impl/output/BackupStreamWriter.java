@@ -1,6 +1,8 @@
 package dk.mada.backup.impl.output;
 
+import dk.mada.backup.BucketInfo;
 import dk.mada.backup.FileInfo;
+import dk.mada.backup.gpg.Compression;
 import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.Future;
@@ -16,15 +18,39 @@ public interface BackupStreamWriter extends AutoCloseable {
     /**
      * Process next root element in the backup set.
      *
-     * @param name the name of the file or directory
+     * @param name the name of the file or directory, relative to the source root directory
+     * @param size the (approximate) size of the element's contents
      * @return the tar container builder to stream contents into
      * @throws IOException if IO fails
      */
-    TarContainerBuilder processNextRootElement(String name) throws IOException;
+    TarContainerBuilder processNextRootElement(String name, long size) throws IOException;
+
+    /**
+     * {@return the size after which a root directory archive is split into parts}
+     *
+     * Each part is processed as a root element of its own, allowing the writer to split its output inside a large root
+     * directory.
+     */
+    default long rootElementPartSize() {
+        return Long.MAX_VALUE;
+    }
 
     @Override
     void close() throws IOException;
 
     /** {@return a future containing information about the encrypted output files} */
     Future<List<FileInfo>> getOutputFiles();
+
+    /**
+     * {@return the compression applied to the output files}
+     *
+     * Only valid once the writer has been closed. If the compression is chosen for each output file, ZLIB is returned if
+     * any of the files made by this writer were compressed.
+     */
+    Compression compression();
+
+    /** {@return the bucket information for each of the output files, or empty if buckets are not used} */
+    default List<BucketInfo> getBuckets() {
+        return List.of();
+    }
 }
@@ -0,0 +1,131 @@
+package dk.mada.backup.impl.output;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Hands data over from a producing thread to a consuming thread.
+ *
+ * Data is passed on in chunks through a bounded queue. An empty chunk marks the end of the data.
+ *
+ * If the consumer fails, it reports this via {@link #fail(Exception)}, and the producer gets an IOException on its next
+ * write.
+ */
+final class ChunkPipe extends OutputStream {
+    /** Size of the chunks handed over to the consumer. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /** Max number of queued chunks. */
+    private static final int MAX_QUEUED_CHUNKS = 16;
+    /** Interval for checking consumer failure while waiting for queue space. */
+    private static final long FAILURE_CHECK_INTERVAL_MILLIS = 100;
+    /** The end of data marker. */
+    private static final byte[] END_OF_DATA = new byte[0];
+
+    /** The queued chunks. */
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(MAX_QUEUED_CHUNKS);
+    /** The failure of the consumer thread, if any. */
+    private final AtomicReference<@Nullable Exception> failure = new AtomicReference<>();
+    /** The chunk being filled. */
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    /** The number of bytes in the chunk being filled. */
+    private int chunkCount;
+    /** The total number of bytes written. */
+    private long count;
+    /** Flag for stream closed. */
+    private boolean closed;
+
+    /** {@return the number of bytes written} */
+    long count() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        count += len;
+        while (len > 0) {
+            int copy = Math.min(len, chunk.length - chunkCount);
+            System.arraycopy(b, off, chunk, chunkCount, copy);
+            chunkCount += copy;
+            off += copy;
+            len -= copy;
+            if (chunkCount == chunk.length) {
+                handOver(chunk);
+                chunk = new byte[CHUNK_SIZE];
+                chunkCount = 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (chunkCount > 0) {
+            byte[] last = new byte[chunkCount];
+            System.arraycopy(chunk, 0, last, 0, chunkCount);
+            handOver(last);
+        }
+        handOver(END_OF_DATA);
+    }
+
+    private void handOver(byte[] data) throws IOException {
+        try {
+            while (!queue.offer(data, FAILURE_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                throwOnFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted handing data to consumer");
+        }
+        throwOnFailure();
+    }
+
+    private void throwOnFailure() throws IOException {
+        Exception e = failure.get();
+        if (e != null) {
+            throw new IOException("Consumer failed", e);
+        }
+    }
+
+    /**
+     * Reports failure of the consumer.
+     *
+     * @param e the failure
+     */
+    void fail(Exception e) {
+        failure.set(e);
+    }
+
+    /**
+     * Writes the data to the output stream until the end of the data.
+     *
+     * Called by the consumer thread.
+     *
+     * @param out the stream to write the data to
+     * @throws IOException if writing fails, or the thread is interrupted
+     */
+    void drainTo(OutputStream out) throws IOException {
+        try {
+            byte[] data;
+            while ((data = queue.take()).length > 0) {
+                out.write(data);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for data");
+        }
+    }
+}
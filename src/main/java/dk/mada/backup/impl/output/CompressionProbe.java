@@ -0,0 +1,147 @@
+package dk.mada.backup.impl.output;
+
+import dk.mada.backup.SourceFile;
+import dk.mada.backup.SourceTreeWalker;
+import dk.mada.backup.api.CompressionMode;
+import dk.mada.backup.api.ExclusionRules;
+import dk.mada.backup.gpg.Compression;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides if data is worth compressing before encryption.
+ *
+ * Files with extensions of already compressed formats (media, archives) are not compressed. Other data is probed by
+ * compressing a few samples spread over the data; it is only compressed if the samples shrink enough to pay for the
+ * compression time.
+ */
+public final class CompressionProbe {
+    private static final Logger logger = LoggerFactory.getLogger(CompressionProbe.class);
+    /** File extensions of formats that are already compressed. */
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "7z", "avi", "bz2", "cr2", "crypt", "docx", "epub", "flac", "gif", "gpg", "gz", "heic", "jar", "jpeg", "jpg",
+            "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "nef", "ogg", "opus", "pdf", "png", "rar", "webm", "webp", "xlsx",
+            "xz", "zip", "zst");
+    /** Number of samples probed. */
+    private static final int SAMPLE_COUNT = 8;
+    /** The size of each sample. */
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    /** The max compressed/uncompressed ratio for data to be considered compressible. */
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+    /** The max share of bytes in compressed formats for a file tree to be considered compressible. */
+    private static final double MAX_COMPRESSED_FORMAT_SHARE = 0.5;
+
+    private CompressionProbe() {
+        // empty
+    }
+
+    /**
+     * Selects compression for a root element archived in memory.
+     *
+     * @param mode   the compression mode
+     * @param name   the name of the root element
+     * @param buffer the archived root element
+     * @return the compression to use
+     */
+    public static Compression forRootElement(CompressionMode mode, String name, MemorySegmentOutputStream buffer) {
+        if (mode != CompressionMode.AUTO) {
+            return mode.codec();
+        }
+        if (isCompressedFormat(name)) {
+            logger.debug("Not compressing {}, file type is compressed", name);
+            return Compression.NONE;
+        }
+
+        double ratio = sampledRatio(buffer);
+        logger.debug("Sampled compression ratio of {}: {}", name, ratio);
+        return ratio <= MAX_COMPRESSED_RATIO ? mode.codec() : Compression.NONE;
+    }
+
+    /**
+     * Selects compression for a full file tree, based on the file types.
+     *
+     * @param mode       the compression mode
+     * @param rootDir    the root of the file tree
+     * @param exclusions the rules for excluding entries of the file tree
+     * @return the compression to use
+     */
+    public static Compression forTree(CompressionMode mode, Path rootDir, ExclusionRules exclusions) {
+        if (mode != CompressionMode.AUTO) {
+            return mode.codec();
+        }
+
+        long compressedBytes = 0;
+        long totalBytes = 0;
+        try (Stream<SourceFile> files = SourceTreeWalker.walk(SourceFile.of(rootDir), rootDir, exclusions)) {
+            for (SourceFile f : files.filter(SourceFile::isRegularFile).toList()) {
+                long size = f.size();
+                totalBytes += size;
+                if (isCompressedFormat(f.path().getFileName().toString())) {
+                    compressedBytes += size;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to scan file types in " + rootDir, e);
+        }
+
+        double share = totalBytes == 0 ? 0 : (double) compressedBytes / totalBytes;
+        logger.info("Share of data in compressed formats: {}", share);
+        return share <= MAX_COMPRESSED_FORMAT_SHARE ? mode.codec() : Compression.NONE;
+    }
+
+    /**
+     * Checks if a file name has the extension of a compressed format.
+     *
+     * @param name the file name
+     * @return true if the file is in a compressed format
+     */
+    static boolean isCompressedFormat(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return false;
+        }
+        return COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Compresses samples evenly spread over the buffer.
+     *
+     * @param buffer the buffer to probe
+     * @return the ratio of compressed to uncompressed sample size
+     */
+    private static double sampledRatio(MemorySegmentOutputStream buffer) {
+        long count = buffer.count();
+        if (count == 0) {
+            return 1.0;
+        }
+
+        byte[] sample = new byte[SAMPLE_SIZE];
+        byte[] compressed = new byte[SAMPLE_SIZE];
+        long stride = Math.max(SAMPLE_SIZE, count / SAMPLE_COUNT);
+        long inputSize = 0;
+        long outputSize = 0;
+        Deflater deflater = new Deflater(Compression.LEVEL);
+        try {
+            for (long offset = 0; offset < count; offset += stride) {
+                int len = buffer.read(offset, sample);
+                deflater.reset();
+                deflater.setInput(sample, 0, len);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    outputSize += deflater.deflate(compressed);
+                }
+                inputSize += len;
+            }
+        } finally {
+            deflater.end();
+        }
+        return (double) outputSize / inputSize;
+    }
+}
@@ -0,0 +1,266 @@
+package dk.mada.backup.impl.output;
+
+import dk.mada.backup.FileCatalog;
+import dk.mada.backup.ShellEscaper;
+import dk.mada.backup.SourceFile;
+import dk.mada.backup.SourceTreeWalker;
+import dk.mada.backup.api.BackupException;
+import dk.mada.backup.api.ExclusionRules;
+import dk.mada.backup.restore.RestoreScriptReader.DataFile;
+import dk.mada.backup.restore.RestoreScriptReader.DataRootFile;
+import dk.mada.backup.restore.RestoreScriptReader.RestoreScriptData;
+import dk.mada.backup.types.GpgId;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules the root elements of a NAMED backup to complete before a deadline.
+ *
+ * The root elements are processed in priority order: first the elements without a reusable crypt file in the previous
+ * backup set, then the elements changed since their crypt file was made, and then the rest. Within each group the
+ * elements with the oldest crypt files go first.
+ *
+ * Before each element, its processing time is predicted from its size and the throughput measured so far. When the
+ * predicted time exceeds the remaining time, the backup stops processing elements. The remaining elements keep their
+ * crypt files from the previous backup set (so the new set contains their previous state). Elements without a reusable
+ * crypt file are left out of the new set.
+ */
+public final class DeadlineScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(DeadlineScheduler.class);
+    /** Priority of root elements without a reusable crypt file. */
+    private static final int PRIORITY_NEW = 0;
+    /** Priority of root elements changed since their crypt file was made. */
+    private static final int PRIORITY_CHANGED = 1;
+    /** Priority of root elements that appear unchanged. */
+    private static final int PRIORITY_UNCHANGED = 2;
+
+    /** The deadline. */
+    private final Instant deadline;
+    /** Data about the previous backup. */
+    private final RestoreScriptData prevBackupData;
+    /** The root elements of the previous backup, by (escaped) name. */
+    private final Map<String, DataRootFile> prevRootFiles;
+    /** The files of the previous backup, by the (escaped) name of their root element. */
+    private final Map<String, List<DataFile>> prevFilesByRootElement;
+    /** The id of the encryption key of the new backup. */
+    private final GpgId keyId;
+    /** The size of the root elements processed so far. */
+    private long processedSize;
+    /** The time spent processing root elements so far. */
+    private Duration processedTime = Duration.ZERO;
+    /** Flag for the deadline having stopped the processing. */
+    private boolean stopped;
+    /** The names of the root elements that kept their previous crypt file. */
+    private final List<String> deferred = new ArrayList<>();
+    /** The names of the root elements left out of the backup set. */
+    private final List<String> omitted = new ArrayList<>();
+
+    /**
+     * A root element to schedule.
+     *
+     * @param path      the root element
+     * @param name      the name of the root element, relative to the source root directory
+     * @param size      the size of the files in the root element
+     * @param previous  the root element in the previous backup set, if it has a reusable crypt file
+     * @param priority  the priority, lowest first
+     * @param cryptTime the modification time of the previous crypt file
+     */
+    public record Candidate(
+            Path path, String name, long size, @Nullable DataRootFile previous, int priority, FileTime cryptTime) {}
+
+    /**
+     * Creates new instance.
+     *
+     * @param deadline       the deadline
+     * @param prevBackupData data about the previous backup
+     * @param keyId          the id of the encryption key of the new backup
+     */
+    public DeadlineScheduler(Instant deadline, RestoreScriptData prevBackupData, GpgId keyId) {
+        this.deadline = deadline;
+        this.prevBackupData = prevBackupData;
+        this.keyId = keyId;
+        prevRootFiles = prevBackupData.rootFilesV2().stream()
+                .collect(Collectors.toMap(DataRootFile::name, rf -> rf, (a, b) -> a));
+        prevFilesByRootElement =
+                prevBackupData.filesV2().stream().collect(Collectors.groupingBy(f -> rootElementOf(f.name())));
+    }
+
+    /**
+     * Finds the root element of a file in the previous backup set.
+     *
+     * The root elements may be deeper in the source tree (see the group depth), so the root element is the shortest
+     * leading part of the file name that names a root element of the previous set.
+     *
+     * @param fileName the (escaped) name of the file
+     * @return the (escaped) name of the root element, or the file name if no root element holds the file
+     */
+    private String rootElementOf(String fileName) {
+        for (int slash = fileName.indexOf('/'); slash >= 0; slash = fileName.indexOf('/', slash + 1)) {
+            String prefix = fileName.substring(0, slash);
+            if (prevRootFiles.containsKey(prefix)) {
+                return prefix;
+            }
+        }
+        return fileName;
+    }
+
+    /**
+     * Orders root elements for processing.
+     *
+     * @param rootDir      the backup source root directory
+     * @param rootElements the root elements
+     * @param exclusions   the rules for excluding entries of the source tree
+     * @return the root elements in processing order
+     */
+    public List<Candidate> prioritize(Path rootDir, List<Path> rootElements, ExclusionRules exclusions) {
+        return rootElements.stream()
+                .map(p -> toCandidate(rootDir, p, exclusions))
+                .sorted(Comparator.comparingInt(Candidate::priority).thenComparing(Candidate::cryptTime))
+                .toList();
+    }
+
+    private Candidate toCandidate(Path rootDir, Path element, ExclusionRules exclusions) {
+        String name = rootDir.relativize(element).toString();
+        DataRootFile previous = reusablePrevious(name);
+        try (Stream<SourceFile> files = walk(rootDir, element, exclusions)) {
+            long size = 0;
+            FileTime newest = FileTime.fromMillis(0);
+            for (SourceFile f : files.toList()) {
+                BasicFileAttributes attrs = f.attributes();
+                if (attrs.isRegularFile()) {
+                    size += attrs.size();
+                }
+                if (attrs.lastModifiedTime().compareTo(newest) > 0) {
+                    newest = attrs.lastModifiedTime();
+                }
+            }
+            if (previous == null) {
+                return new Candidate(element, name, size, null, PRIORITY_NEW, FileTime.fromMillis(0));
+            }
+            FileTime cryptTime = Files.getLastModifiedTime(previous.crypt().file());
+            int priority = newest.compareTo(cryptTime) > 0 ? PRIORITY_CHANGED : PRIORITY_UNCHANGED;
+            return new Candidate(element, name, size, previous, priority, cryptTime);
+        } catch (IOException e) {
+            throw new BackupException("Failed to examine root element " + element, e);
+        }
+    }
+
+    private static Stream<SourceFile> walk(Path rootDir, Path element, ExclusionRules exclusions) throws IOException {
+        SourceFile root = SourceFile.of(element);
+        return root.isDirectory() ? SourceTreeWalker.walk(root, rootDir, exclusions) : Stream.of(root);
+    }
+
+    private @Nullable DataRootFile reusablePrevious(String name) {
+        if (!prevBackupData.gpgKeyId().equals(keyId)) {
+            return null;
+        }
+        String escapedName = ShellEscaper.toSafeShellString(name);
+        DataRootFile previous = prevRootFiles.get(escapedName);
+        if (previous == null || !Files.isRegularFile(previous.crypt().file())) {
+            return null;
+        }
+        boolean sharesBucket = prevBackupData.buckets().stream()
+                .anyMatch(b -> b.rootFiles().size() > 1 && b.crypt().file().equals(previous.crypt().file()));
+        return sharesBucket ? null : previous;
+    }
+
+    /**
+     * Checks if there is time left to process a root element.
+     *
+     * Once there is not, no more root elements are processed.
+     *
+     * @param candidate the root element
+     * @return true if the root element should be processed
+     */
+    public boolean hasTimeFor(Candidate candidate) {
+        if (stopped) {
+            return false;
+        }
+        Duration remaining = Duration.between(Instant.now(), deadline);
+        Duration predicted = Duration.ZERO;
+        if (processedSize > 0) {
+            predicted = Duration.ofNanos((long) ((double) processedTime.toNanos() * candidate.size() / processedSize));
+        }
+        if (!remaining.isPositive() || predicted.compareTo(remaining) > 0) {
+            logger.warn("Deadline reached, predicted {} for {} with {} left", predicted, candidate.name(), remaining);
+            stopped = true;
+        }
+        return !stopped;
+    }
+
+    /**
+     * Records the processing of a root element, for measuring throughput.
+     *
+     * @param candidate the root element
+     * @param time      the time used
+     */
+    public void recordProcessed(Candidate candidate, Duration time) {
+        processedSize += candidate.size();
+        processedTime = processedTime.plus(time);
+    }
+
+    /**
+     * Defers a root element to a later backup.
+     *
+     * @param candidate the root element
+     * @return the root element in the previous backup set to keep, or null if the element is left out
+     */
+    public @Nullable DataRootFile defer(Candidate candidate) {
+        if (candidate.previous() == null) {
+            omitted.add(candidate.name());
+        } else {
+            deferred.add(candidate.name());
+        }
+        return candidate.previous();
+    }
+
+    /**
+     * Adds the files of a deferred root element to the file catalog, as they were in the previous backup set.
+     *
+     * @param candidate the deferred root element
+     * @param catalog   the file catalog of the new backup set
+     */
+    public void addPreviousFiles(Candidate candidate, FileCatalog catalog) {
+        String escapedName = ShellEscaper.toSafeShellString(candidate.name());
+        prevFilesByRootElement
+                .getOrDefault(escapedName, List.of())
+                .forEach(f -> catalog.add(ShellEscaper.fromSafeShellString(f.name()), f.size(), f.xxh3().value()));
+    }
+
+    /** {@return the names of the root elements that kept their previous crypt file} */
+    public List<String> deferred() {
+        return List.copyOf(deferred);
+    }
+
+    /** {@return the names of the root elements left out of the backup set} */
+    public List<String> omitted() {
+        return List.copyOf(omitted);
+    }
+
+    /** Logs a report of the deferred root elements. */
+    public void report() {
+        if (deferred.isEmpty() && omitted.isEmpty()) {
+            logger.info("All root elements processed before the deadline");
+            return;
+        }
+        logger.warn(
+                "Deadline deferred {} root element(s), keeping their previous state: {}", deferred.size(), deferred);
+        if (!omitted.isEmpty()) {
+            logger.warn("Deadline left {} new root element(s) out of the backup set: {}", omitted.size(), omitted);
+        }
+    }
+}
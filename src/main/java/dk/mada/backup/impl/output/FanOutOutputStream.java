@@ -0,0 +1,145 @@
+package dk.mada.backup.impl.output;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Output stream that writes to a primary stream, and tees the data to a stream in each of the mirror targets.
+ *
+ * The primary stream is written on the calling thread. Each mirror stream is written by its own thread, fed via a
+ * bounded {@link ChunkPipe}. So a slow mirror only holds back the backup when its pipe is full.
+ *
+ * A mirror failure (when opening, writing or closing its stream) drops the mirror, but does not affect the primary
+ * stream or the other mirrors. Failures of the primary stream are thrown as usual.
+ */
+final class FanOutOutputStream extends OutputStream {
+    /** The primary stream. */
+    private final OutputStream primary;
+    /** The mirror targets. */
+    private final MirrorTargets mirrors;
+    /** The executor running the mirror writers. */
+    private final ExecutorService mirrorExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("mirror-", 1).factory());
+    /** The pipes to the active mirror writers. */
+    private final Map<Path, ChunkPipe> pipes = new LinkedHashMap<>();
+    /** The mirror writer futures. */
+    private final Map<Path, Future<?>> writers = new LinkedHashMap<>();
+    /** Flag for stream closed. */
+    private boolean closed;
+
+    /**
+     * Opens the stream of a mirror.
+     */
+    @FunctionalInterface
+    interface MirrorOpener {
+        /**
+         * Opens the mirror stream.
+         *
+         * @param mirrorDir the mirror directory
+         * @return the stream to write the mirror data to
+         * @throws IOException if the stream cannot be opened
+         */
+        OutputStream open(Path mirrorDir) throws IOException;
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param primary the primary stream
+     * @param mirrors the mirror targets
+     * @param opener  the opener of the mirror streams
+     */
+    FanOutOutputStream(OutputStream primary, MirrorTargets mirrors, MirrorOpener opener) {
+        this.primary = primary;
+        this.mirrors = mirrors;
+
+        for (Path dir : mirrors.active()) {
+            ChunkPipe pipe = new ChunkPipe();
+            pipes.put(dir, pipe);
+            writers.put(dir, mirrorExecutor.submit(() -> writeMirror(pipe, opener, dir)));
+        }
+    }
+
+    private static Void writeMirror(ChunkPipe pipe, MirrorOpener opener, Path dir) throws IOException {
+        try (OutputStream out = opener.open(dir)) {
+            pipe.drainTo(out);
+        } catch (IOException | RuntimeException e) {
+            pipe.fail(e);
+            throw e;
+        }
+        return null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        primary.write(b, off, len);
+        for (Map.Entry<Path, ChunkPipe> e : new ArrayList<>(pipes.entrySet())) {
+            try {
+                e.getValue().write(b, off, len);
+            } catch (IOException ex) {
+                dropMirror(e.getKey(), ex);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        primary.flush();
+    }
+
+    private void dropMirror(Path dir, Exception cause) {
+        pipes.remove(dir);
+        mirrors.markFailed(dir, cause);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            primary.close();
+        } finally {
+            // the mirror writers complete when their pipes are closed
+            try (mirrorExecutor) {
+                for (Map.Entry<Path, ChunkPipe> e : new ArrayList<>(pipes.entrySet())) {
+                    try {
+                        e.getValue().close();
+                    } catch (IOException ex) {
+                        dropMirror(e.getKey(), ex);
+                    }
+                }
+                awaitMirrors();
+            }
+        }
+    }
+
+    private void awaitMirrors() throws InterruptedIOException {
+        for (Map.Entry<Path, Future<?>> e : writers.entrySet()) {
+            try {
+                e.getValue().get();
+            } catch (ExecutionException ex) {
+                mirrors.markFailed(e.getKey(), ex.getCause() instanceof Exception c ? c : ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for mirror writers");
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package dk.mada.backup.impl.output;
+
+import dk.mada.backup.FileInfo;
+import dk.mada.backup.ShellEscaper;
+import dk.mada.backup.SourceFile;
+import dk.mada.backup.api.BackupException;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.restore.RestoreScriptReader;
+import dk.mada.backup.restore.RestoreScriptReader.DataFile;
+import dk.mada.backup.restore.RestoreScriptReader.RestoreScriptData;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The base set of an incremental backup.
+ *
+ * The files list of the base set's restore script describes the full state of the source tree when the base set was
+ * made (for a chained incremental set, this includes the files of its own base sets). A source file with the same
+ * name, size and checksum is unchanged, and is not archived again.
+ *
+ * Note that the checksum needs all of the file to be read, so unchanged files are still read, but not archived or
+ * encrypted.
+ *
+ * The base set files that are not seen in the source tree have been deleted, and are recorded in the incremental
+ * set's restore script, so they can be removed when the set is restored.
+ */
+public final class IncrementalBase {
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalBase.class);
+    /** The (absolute) restore script of the base set. */
+    private final Path script;
+    /** The base set files not yet seen in the source tree, by (escaped) name. */
+    private final Map<String, DataFile> unseenFiles;
+
+    private IncrementalBase(Path script, Map<String, DataFile> baseFiles) {
+        this.script = script;
+        this.unseenFiles = baseFiles;
+    }
+
+    /**
+     * Reads the base set of an incremental backup.
+     *
+     * @param baseScript the restore script of the base set
+     * @return the base set information
+     */
+    public static IncrementalBase read(Path baseScript) {
+        if (!Files.isRegularFile(baseScript)) {
+            throw new BackupException("Base restore script " + baseScript + " does not exist");
+        }
+        RestoreScriptData data = new RestoreScriptReader().readRestoreScriptData(baseScript);
+        if (!data.isValid()) {
+            throw new BackupException("Failed to read base restore script " + baseScript);
+        }
+        if (data.dataType() != BackupOutputType.NUMBERED && data.dataType() != BackupOutputType.SEGMENTED) {
+            throw new BackupException("Base set must be NUMBERED or SEGMENTED, was " + data.dataType());
+        }
+
+        Map<String, DataFile> baseFiles = new LinkedHashMap<>();
+        data.filesV2().forEach(f -> baseFiles.put(f.name(), f));
+        logger.info("Incremental backup based on {} with {} files", baseScript, baseFiles.size());
+
+        return new IncrementalBase(baseScript.toAbsolutePath().normalize(), baseFiles);
+    }
+
+    /**
+     * Finds the restore script of the base set, relative to a directory holding the new backup set.
+     *
+     * The new backup set may be written to several directories (mirrors), so each copy of its restore script needs its
+     * own relative path.
+     *
+     * @param setDir the directory of the new backup set
+     * @return the restore script of the base set, relative to the directory
+     */
+    public String relativeScript(Path setDir) {
+        return setDir.toAbsolutePath().normalize().relativize(script).toString();
+    }
+
+    /**
+     * Checks if a source file is unchanged since the base set.
+     *
+     * @param file    the source file
+     * @param relName the name of the file relative to the backup source root directory
+     * @return the file information if the file is unchanged, otherwise null
+     */
+    public @Nullable FileInfo unchanged(SourceFile file, String relName) {
+        DataFile baseFile = unseenFiles.remove(ShellEscaper.toSafeShellString(relName));
+        if (baseFile == null) {
+            return null;
+        }
+        if (file.size() != baseFile.size()) {
+            return null;
+        }
+        FileInfo current = FileInfo.from(Objects.requireNonNull(file.path().getParent()), file);
+        if (!current.getXXH3().equals(baseFile.xxh3().hex())) {
+            return null;
+        }
+        return FileInfo.of(relName, baseFile.size(), baseFile.xxh3().value());
+    }
+
+    /**
+     * Gets the base set files that were not seen in the source tree.
+     *
+     * Only valid when all source files have been checked.
+     *
+     * @return the (escaped) names of the deleted files
+     */
+    public List<String> deletedFiles() {
+        return List.copyOf(unseenFiles.keySet());
+    }
+}
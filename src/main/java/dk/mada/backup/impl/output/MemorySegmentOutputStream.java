@@ -71,6 +71,19 @@ public final class MemorySegmentOutputStream extends OutputStream {
         consumeSegments((buffer, len) -> out.write(buffer, 0, len));
     }
 
+    /**
+     * Reads buffered data from an offset.
+     *
+     * @param offset the offset in the buffer to read from
+     * @param dst    the array to copy the data to
+     * @return the number of bytes read, limited by the array size and the remaining buffered data
+     */
+    public synchronized int read(long offset, byte[] dst) {
+        int len = (int) Math.min(dst.length, Math.max(0, count - offset));
+        MemorySegment.copy(memory, JAVA_BYTE, offset, dst, 0, len);
+        return len;
+    }
+
     /**
      * Accept the buffer contents in segmented byte arrays.
      *
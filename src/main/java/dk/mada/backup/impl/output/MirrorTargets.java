@@ -0,0 +1,54 @@
+package dk.mada.backup.impl.output;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Additional target directories receiving a copy of the backup set.
+ *
+ * A mirror that fails is dropped from the backup, without affecting the primary target or the other mirrors. Only
+ * mirrors that are still active when the backup completes get a restore script.
+ */
+public final class MirrorTargets {
+    private static final Logger logger = LoggerFactory.getLogger(MirrorTargets.class);
+    /** The mirror directories. */
+    private final List<Path> dirs;
+    /** The mirror directories that have failed. */
+    private final Set<Path> failed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates new instance.
+     *
+     * @param dirs the mirror directories
+     */
+    public MirrorTargets(List<Path> dirs) {
+        this.dirs = List.copyOf(dirs);
+    }
+
+    /** {@return mirror targets without any mirrors} */
+    public static MirrorTargets none() {
+        return new MirrorTargets(List.of());
+    }
+
+    /** {@return the mirror directories that have not failed} */
+    public List<Path> active() {
+        return dirs.stream().filter(d -> !failed.contains(d)).toList();
+    }
+
+    /**
+     * Drops a mirror from the backup.
+     *
+     * @param dir   the mirror directory
+     * @param cause the cause of the failure
+     */
+    public void markFailed(Path dir, Exception cause) {
+        if (failed.add(dir)) {
+            logger.warn("Mirror {} failed and is dropped from the backup: {}", dir, cause.getMessage());
+            logger.debug("Mirror failure", cause);
+        }
+    }
+}
@@ -2,18 +2,25 @@ package dk.mada.backup.impl.output;
 
 import dk.mada.backup.api.BackupArguments.Limits;
 import dk.mada.backup.api.BackupException;
+import dk.mada.backup.api.BackupOptions;
 import dk.mada.backup.api.BackupOutputType;
-import dk.mada.backup.gpg.GpgEncryptedOutputStream.GpgStreamInfo;
+import dk.mada.backup.api.CompressionMode;
+import dk.mada.backup.api.ExclusionRules;
+import dk.mada.backup.gpg.Encrypter;
 import dk.mada.backup.gpg.GpgEncrypterException;
 import dk.mada.backup.restore.RestoreScriptReader;
 import dk.mada.backup.restore.RestoreScriptReader.RestoreScriptData;
 import dk.mada.backup.restore.RestoreScriptWriter;
+import dk.mada.backup.storage.StorageBackend;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Stream;
 import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
@@ -24,24 +31,32 @@ import org.slf4j.LoggerFactory;
  *
  * Allows making incremental backups easier (and faster).
  *
+ * The backup sets are kept in versioned directories, with the current set available via the link current in the
+ * target directory (see {@link VersionedSets}).
+ *
  * The new backup is created in three steps:
  *
- * 1) A sub-directory is created, named after the current (if any) backup set in the target directory. In this folder,
- * hard links are made to the files of the current backup set. A valid-marker file is created to signal success.
+ * 1) The current backup set (if any) is validated in the background (see {@link PreviousSetValidator}), while the new
+ * backup set is created.
  *
  * 2) A temporary sub-directory is made for the new backup set. To this folder, new backup files are written; if the
  * match the old backup set, in the form of hard links. Otherwise as new files. This folder ensures that the old backup
- * set remains valid should the new backup fail.
+ * set remains valid should the new backup fail. The new files are recorded in a {@link ResumeJournal}, so a failed
+ * backup can be resumed by the next backup without encrypting them again.
  *
- * 3) Finally, files in the target directory are deleted and the files of the new backup set are moved there (and the
- * temporary directory deleted).
+ * 3) Finally, when the old backup set has been validated, the temporary directory is promoted to be the current set,
+ * and the old backup set is moved to a sub-directory named after its time in the folder .old-sets.
  *
  * This leaves a new backup set, with a sub-directory of named previous states.
+ *
+ * A target directory holding a backup set from before the sets were versioned is converted by the next backup. Its
+ * files are copied to .old-sets (as hard links) in the background, and deleted when the new set is promoted.
+ *
+ * The backup can be bounded by a deadline. The root elements that are not processed before the deadline keep their
+ * encrypted files from the old backup set (see {@link DeadlineScheduler}).
  */
 public final class NamedBackupPolicy implements BackupPolicy {
     private static final Logger logger = LoggerFactory.getLogger(NamedBackupPolicy.class);
-    /** Time to wait for backup validation. */
-    private static final int BACKUP_VALIDATION_TIMEOUT_SECONDS = 30;
     /** The backup name. */
     private final String name;
     /** The target directory. The final location of the new backup set. */
@@ -50,30 +65,62 @@ public final class NamedBackupPolicy implements BackupPolicy {
     private final Path newTempTargetDir;
     /** The backup limits. */
     private final Limits limits;
-    /** The GPG information. */
-    private final GpgStreamInfo gpgInfo;
+    /** The encrypter. */
+    private final Encrypter encrypter;
+    /** The compression mode. */
+    private final CompressionMode compressionMode;
     /** The source root directory. */
     private final Path rootDir;
+    /** The storage backend. */
+    private final StorageBackend storage;
+    /** The versioned backup sets in the target directory. */
+    private final VersionedSets sets;
+    /** The resume journal of the new backup set. */
+    @Nullable private ResumeJournal journal;
     /** Data from backup being updated. */
     @Nullable private RestoreScriptData oldBackupData;
+    /** The validator of the backup being updated. */
+    @Nullable private PreviousSetValidator validator;
+    /** The creation of the copy of the backup being updated. */
+    @Nullable private CompletableFuture<Void> backupClone;
+    /** The deadline of the backup, or null. */
+    @Nullable private final Instant deadline;
+    /** The rules for excluding entries of the source tree. */
+    private final ExclusionRules exclusions;
+    /** The deadline scheduler, if the backup has a deadline. */
+    @Nullable private DeadlineScheduler deadlineScheduler;
 
     /**
      * Creates a new instance.
      *
+     * A time budget in the options is counted from now.
+     *
      * @param name      the backup name
-     * @param gpgInfo   the GPG information
+     * @param encrypter the encrypter
      * @param limits    the backup limits
      * @param rootDir   the backup source root directory
      * @param targetDir the backup target directory
+     * @param options   the backup options (compression, storage, time budget and exclusions)
      */
-    public NamedBackupPolicy(String name, GpgStreamInfo gpgInfo, Limits limits, Path rootDir, Path targetDir) {
+    public NamedBackupPolicy(
+            String name, Encrypter encrypter, Limits limits, Path rootDir, Path targetDir, BackupOptions options) {
+        Duration timeBudget = options.timeBudget();
+        Instant deadline = timeBudget == null ? null : Instant.now().plus(timeBudget);
+        if (deadline != null && limits.bucketSize() > 0) {
+            throw new IllegalArgumentException("A deadline cannot be combined with buckets");
+        }
         this.name = name;
-        this.gpgInfo = gpgInfo;
+        this.encrypter = encrypter;
+        this.compressionMode = options.compressionMode();
         this.limits = limits;
         this.rootDir = rootDir;
         this.targetDir = targetDir;
+        this.storage = options.storage();
+        this.deadline = deadline;
+        this.exclusions = options.exclusions();
 
         newTempTargetDir = targetDir.resolve(".new-set");
+        sets = new VersionedSets(targetDir, name + ".sh");
     }
 
     @Override
@@ -82,8 +129,28 @@ public final class NamedBackupPolicy implements BackupPolicy {
     }
 
     @Override
-    public GpgStreamInfo gpgInfo() {
-        return gpgInfo;
+    public Encrypter encrypter() {
+        return encrypter;
+    }
+
+    @Override
+    public CompressionMode compressionMode() {
+        return compressionMode;
+    }
+
+    @Override
+    public StorageBackend storage() {
+        return storage;
+    }
+
+    @Override
+    public @Nullable IncrementalBase incrementalBase() {
+        return null;
+    }
+
+    @Override
+    public @Nullable DeadlineScheduler deadlineScheduler() {
+        return deadlineScheduler;
     }
 
     @Override
@@ -96,6 +163,11 @@ public final class NamedBackupPolicy implements BackupPolicy {
         return limits;
     }
 
+    @Override
+    public ExclusionRules exclusions() {
+        return exclusions;
+    }
+
     @Override
     public Path rootDirectory() {
         return rootDir;
@@ -103,7 +175,7 @@ public final class NamedBackupPolicy implements BackupPolicy {
 
     @Override
     public Path restoreScript() {
-        return restoreScriptInDir(targetDir);
+        return sets.currentScript();
     }
 
     @Override
@@ -112,36 +184,59 @@ public final class NamedBackupPolicy implements BackupPolicy {
     }
 
     @Override
-    public BackupStreamWriter writer() throws GpgEncrypterException {
+    public Path manifestFile() {
+        // In the working directory, so an interrupted first backup leaves nothing else in the target directory
+        return newTempTargetDir.resolve("." + name + ".manifest");
+    }
+
+    @Override
+    public PreviousSetWriter writer() throws GpgEncrypterException {
         // Step 2 - create new backup (possibly making use of existing data files)
         RestoreScriptData oldData = Objects.requireNonNull(oldBackupData);
-        return new OutputByName(limits().maxRootElementSize(), oldData, newTempTargetDir, gpgInfo);
+        return new OutputByName(
+                limits().maxRootElementSize(),
+                limits().bucketSize(),
+                oldData,
+                newTempTargetDir,
+                encrypter,
+                compressionMode,
+                storage,
+                Objects.requireNonNull(journal),
+                Objects.requireNonNull(validator));
     }
 
     @Override
     public void backupPrep() {
-        DirectoryDeleter.delete(newTempTargetDir);
-        oldBackupData = assertExistingBackupIsValid();
-        createBackupClone(oldBackupData);
-
-        try {
-            Files.createDirectories(newTempTargetDir);
-        } catch (IOException e1) {
-            throw new IllegalStateException("Failed to create target dir", e1);
+        sets.recover();
+        RestoreScriptData data = readExistingBackup();
+        oldBackupData = data;
+        PreviousSetValidator setValidator = new PreviousSetValidator(data);
+        validator = setValidator;
+        backupClone = CompletableFuture.runAsync(
+                () -> createBackupClone(data, setValidator),
+                r -> Thread.ofVirtual().name("old-set-clone").start(r));
+
+        journal = ResumeJournal.recover(newTempTargetDir, encrypter.recipientKeyId());
+        if (deadline != null) {
+            deadlineScheduler = new DeadlineScheduler(deadline, oldBackupData, encrypter.recipientKeyId());
         }
     }
 
     /**
-     * Asserts that an existing backup (if present) is valid.
+     * Reads an existing backup (if present).
      *
-     * Otherwise the new backup set cannot be based on it, and the backup is aborted.
+     * The backup set must be a named backup with the same name. Its encrypted files are validated while the new backup
+     * set is created.
      *
-     * @return the data about the valid backup set.
+     * @return the data about the existing backup set.
      */
-    private RestoreScriptData assertExistingBackupIsValid() {
+    private RestoreScriptData readExistingBackup() {
         Path restoreScript = restoreScript();
         if (!Files.isRegularFile(restoreScript)) {
-            if (Files.isDirectory(targetDir)) {
+            restoreScript = unversionedRestoreScript();
+        }
+        if (!Files.isRegularFile(restoreScript)) {
+            if (Files.isDirectory(targetDir) && !holdsOnlyNewSet()) {
                 throw new IllegalStateException("No existing restore script, will not write to " + targetDir);
             }
             return RestoreScriptData.empty();
@@ -157,45 +252,45 @@ public final class NamedBackupPolicy implements BackupPolicy {
             throw new IllegalStateException("Will not clobber existing named backup set '" + data.name() + "'");
         }
 
-        try {
-            Process p = new ProcessBuilder("bash", restoreScript.toString(), "verify")
-                    .directory(targetDir.toFile())
-                    .redirectErrorStream(true)
-                    .start();
-            p.waitFor(BACKUP_VALIDATION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-            String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
-            if (p.exitValue() != 0) {
-                logger.warn("Validation failed:\n{}", output);
-                throw new IllegalStateException("Validation of old backup failed");
-            }
+        return data;
+    }
 
-            logger.info("Old backup validated OK\n{}", output);
+    /** {@return the restore script of a backup set from before the sets were versioned} */
+    private Path unversionedRestoreScript() {
+        return restoreScriptInDir(targetDir);
+    }
+
+    /**
+     * Checks if the target directory only holds the working directory of an interrupted first backup.
+     *
+     * @return true if the target directory only holds the working directory
+     */
+    private boolean holdsOnlyNewSet() {
+        try (Stream<Path> files = Files.list(targetDir)) {
+            return Files.isDirectory(newTempTargetDir) && files.allMatch(newTempTargetDir::equals);
         } catch (IOException e) {
-            throw new IllegalStateException("Failed to run verification of old backup " + restoreScript, e);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new IllegalStateException("Interrupted while running verification of old backup " + restoreScript, e);
+            throw new BackupException("Failed to list target directory " + targetDir, e);
         }
-
-        return new RestoreScriptReader().readRestoreScriptData(restoreScript);
     }
 
     /**
-     * Creates a copy of the old backup set into the folder .old-sets.
+     * Creates a copy of an unversioned old backup set into the folder .old-sets.
      *
      * A file is used to mark completion of the copy, so it can be (a) skipped if already done, or (b) retried if not.
+     * The file is only created when the old backup set has been validated.
      *
-     * @param data the old backup set
+     * Versioned backup sets are moved to .old-sets when the new set is promoted, so need no copy.
+     *
+     * @param data      the old backup set
+     * @param validator the validator of the old backup set
      */
-    private void createBackupClone(RestoreScriptData data) {
-        if (!data.isValid()) {
+    private void createBackupClone(RestoreScriptData data, PreviousSetValidator validator) {
+        if (!isUnversioned(data)) {
             return;
         }
 
-        // Step 1 - creation of a folder containing the previous backup
-
-        Path oldSetDir = targetDir.resolve(".old-sets").resolve(data.time());
-        Path validMarker = oldSetDir.resolve("_valid_old_set");
+        Path oldSetDir = targetDir.resolve(VersionedSets.OLD_SETS_DIR).resolve(data.time());
+        Path validMarker = oldSetDir.resolve(VersionedSets.VALID_OLD_SET_MARKER);
         if (Files.exists(validMarker)) {
             return;
         }
@@ -207,44 +302,69 @@ public final class NamedBackupPolicy implements BackupPolicy {
                 files.filter(Files::isRegularFile)
                         .forEach(origin -> createHardLink(oldSetDir.resolve(origin.getFileName()), origin));
             }
+            validator.awaitAllValid();
             Files.createFile(validMarker);
         } catch (IOException e) {
             throw new BackupException("Failed to create old-set copy in " + oldSetDir, e);
         }
     }
 
+    private boolean isUnversioned(RestoreScriptData data) {
+        try {
+            // the location is a real path
+            return data.isValid() && Files.isSameFile(data.location(), targetDir);
+        } catch (IOException e) {
+            throw new BackupException("Failed to compare backup set location with target directory " + targetDir, e);
+        }
+    }
+
     @Override
     public Path completeBackup(RestoreScriptWriter scriptWriter) {
-        scriptWriter.write(restoreScriptInDir(newTempTargetDir));
+        awaitOldSetValidation();
 
-        // Step 3 - move files from .new-set to the backup destination
-
-        // First delete all regular files in the target dir
-        try (Stream<Path> files = Files.list(targetDir)) {
-            files.filter(Files::isRegularFile).forEach(this::deleteFile);
+        scriptWriter.write(restoreScriptInDir(newTempTargetDir));
+        try {
+            Objects.requireNonNull(journal).delete();
+            // the file information has been written to the restore script
+            Files.deleteIfExists(manifestFile());
         } catch (IOException e) {
-            throw new BackupException("Failed to delete files in target directory " + targetDir, e);
+            throw new BackupException("Failed to delete working files in " + newTempTargetDir, e);
         }
 
-        // Then move files up
-        try (Stream<Path> files = Files.list(newTempTargetDir)) {
-            files.forEach(this::moveNewFileToDist);
-            Files.delete(newTempTargetDir);
-        } catch (IOException e) {
-            throw new BackupException("Failed to move new-set files to backup destination", e);
-        }
+        // Step 3 - promote the new set, retiring the old set
 
-        return restoreScript();
+        RestoreScriptData oldData = Objects.requireNonNull(oldBackupData);
+        if (isUnversioned(oldData)) {
+            // The files are kept in .old-sets, as a copy was made
+            logger.info("Converting unversioned backup set in {}", targetDir);
+            try (Stream<Path> files = Files.list(targetDir)) {
+                files.filter(f -> Files.isRegularFile(f, LinkOption.NOFOLLOW_LINKS)).forEach(this::deleteFile);
+            } catch (IOException e) {
+                throw new BackupException("Failed to delete files in target directory " + targetDir, e);
+            }
+        }
+        return sets.promote(newTempTargetDir);
     }
 
-    private void moveNewFileToDist(Path newFile) {
-        Path targetFile = targetDir.resolve(newFile.getFileName());
-        logger.debug(" mv {} {}", newFile, targetFile);
-        try {
-            Files.move(newFile, targetFile);
+    /**
+     * Waits for validation and copy of the old backup set.
+     *
+     * The new backup set must not replace the old set, unless the old set was valid.
+     */
+    private void awaitOldSetValidation() {
+        CompletableFuture<Void> clone = Objects.requireNonNull(backupClone);
+        try (PreviousSetValidator setValidator = Objects.requireNonNull(validator)) {
+            try {
+                setValidator.awaitAllValid();
+            } finally {
+                // the copy also awaits validation, so it completes either way
+                clone.exceptionally(e -> null).join();
+            }
+            clone.join();
         } catch (IOException e) {
-            throw new BackupException(
-                    "Failed to move new-set file " + newFile + " to backup destination " + targetFile, e);
+            throw new BackupException("Failed to validate old backup", e);
+        } catch (CompletionException e) {
+            throw new BackupException("Failed to create old-set copy", e.getCause());
         }
     }
 
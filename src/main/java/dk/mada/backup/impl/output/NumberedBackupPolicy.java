@@ -1,54 +1,142 @@
 package dk.mada.backup.impl.output;
 
+import dk.mada.backup.ShellEscaper;
 import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOptions;
 import dk.mada.backup.api.BackupOutputType;
-import dk.mada.backup.gpg.GpgEncryptedOutputStream.GpgStreamInfo;
+import dk.mada.backup.api.BackupTargetExistsException;
+import dk.mada.backup.api.CompressionMode;
+import dk.mada.backup.api.ExclusionRules;
+import dk.mada.backup.gpg.Compression;
+import dk.mada.backup.gpg.Encrypter;
 import dk.mada.backup.gpg.GpgEncrypterException;
 import dk.mada.backup.restore.RestoreScriptWriter;
+import dk.mada.backup.restore.VariableName;
+import dk.mada.backup.storage.StorageBackend;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import org.jspecify.annotations.Nullable;
 
 /**
  * Policy for a split (and numbered) output.
+ *
+ * The output is either a single encrypted stream split into files (NUMBERED), or individually encrypted segments
+ * (SEGMENTED).
+ *
+ * The output files can also be written to mirror target directories. Each mirror that completes gets its own copy of
+ * the restore script, so it can be verified (and restored) independently.
+ *
+ * The NUMBERED output files can be striped over several directories. The restore script (in the target directory)
+ * names each file by its path relative to the target directory. Striping cannot be combined with a storage backend, as
+ * the stored files would not match these names.
+ *
+ * The backup can be incremental, only including the files that changed since a base set (see {@link IncrementalBase}).
  */
 public final class NumberedBackupPolicy implements BackupPolicy {
+    /** The max number of segments encrypted at the same time. */
+    private static final int SEGMENT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    /** The output type, NUMBERED or SEGMENTED. */
+    private final BackupOutputType outputType;
     /** The backup name. */
     private final String name;
     /** The target directory. */
     private final Path targetDir;
     /** The backup limits. */
     private final Limits limits;
-    /** The GPG information. */
-    private final GpgStreamInfo gpgInfo;
+    /** The encrypter. */
+    private final Encrypter encrypter;
+    /** The compression mode. */
+    private final CompressionMode compressionMode;
     /** The source root directory. */
     private final Path rootDir;
+    /** The mirror targets. */
+    private final MirrorTargets mirrors;
+    /** Additional directories to stripe the output files over. */
+    private final List<Path> stripeDirs;
+    /** The storage backend. */
+    private final StorageBackend storage;
+    /** The restore script of the base set, or null for a full backup. */
+    private final @Nullable Path baseScript;
+    /** The rules for excluding entries of the source tree. */
+    private final ExclusionRules exclusions;
+    /** The base set of an incremental backup, read when the backup starts. */
+    private @Nullable IncrementalBase incrementalBase;
 
     /**
      * Creates a new instance.
      *
-     * @param name      the backup name
-     * @param gpgInfo   the GPG information
-     * @param limits    the backup limits
-     * @param rootDir   the backup source root directory
-     * @param targetDir the backup target directory
+     * @param outputType the output type, NUMBERED or SEGMENTED
+     * @param name       the backup name
+     * @param encrypter  the encrypter
+     * @param limits     the backup limits
+     * @param rootDir    the backup source root directory
+     * @param targetDir  the backup target directory
+     * @param options    the backup options (compression, storage, exclusions, mirrors, stripes and base set)
      */
-    public NumberedBackupPolicy(String name, GpgStreamInfo gpgInfo, Limits limits, Path rootDir, Path targetDir) {
+    public NumberedBackupPolicy(
+            BackupOutputType outputType,
+            String name,
+            Encrypter encrypter,
+            Limits limits,
+            Path rootDir,
+            Path targetDir,
+            BackupOptions options) {
+        List<Path> mirrorDirs = options.mirrorDirs();
+        List<Path> stripeDirs = options.stripeDirs();
+        StorageBackend storage = options.storage();
+        if (outputType != BackupOutputType.NUMBERED && outputType != BackupOutputType.SEGMENTED) {
+            throw new IllegalArgumentException("Not a numbered output type: " + outputType);
+        }
+        if (!stripeDirs.isEmpty() && (outputType != BackupOutputType.NUMBERED || !mirrorDirs.isEmpty())) {
+            throw new IllegalArgumentException("Striping is only supported for NUMBERED output without mirrors");
+        }
+        if (!stripeDirs.isEmpty() && !(storage == StorageBackend.none())) {
+            throw new IllegalArgumentException("Striping cannot be combined with a storage backend");
+        }
+        this.outputType = outputType;
         this.name = name;
-        this.gpgInfo = gpgInfo;
+        this.encrypter = encrypter;
+        this.compressionMode = options.compressionMode();
         this.limits = limits;
         this.rootDir = rootDir;
         this.targetDir = targetDir;
+        this.mirrors = new MirrorTargets(mirrorDirs);
+        this.stripeDirs = stripeDirs;
+        this.storage = storage;
+        this.baseScript = options.baseScript();
+        this.exclusions = options.exclusions();
     }
 
     @Override
     public BackupOutputType outputType() {
-        return BackupOutputType.NUMBERED;
+        return outputType;
+    }
+
+    @Override
+    public Encrypter encrypter() {
+        return encrypter;
+    }
+
+    @Override
+    public CompressionMode compressionMode() {
+        return compressionMode;
+    }
+
+    @Override
+    public StorageBackend storage() {
+        return storage;
     }
 
     @Override
-    public GpgStreamInfo gpgInfo() {
-        return gpgInfo;
+    public @Nullable IncrementalBase incrementalBase() {
+        return incrementalBase;
+    }
+
+    @Override
+    public @Nullable DeadlineScheduler deadlineScheduler() {
+        return null;
     }
 
     @Override
@@ -61,6 +149,11 @@ public final class NumberedBackupPolicy implements BackupPolicy {
         return limits;
     }
 
+    @Override
+    public ExclusionRules exclusions() {
+        return exclusions;
+    }
+
     @Override
     public Path rootDirectory() {
         return rootDir;
@@ -76,23 +169,83 @@ public final class NumberedBackupPolicy implements BackupPolicy {
         return targetDir;
     }
 
+    @Override
+    public Path manifestFile() {
+        return targetDir.resolve("." + name + ".manifest");
+    }
+
     @Override
     public BackupStreamWriter writer() throws GpgEncrypterException {
-        return new OutputBySize(targetDir, name, limits.numberedSplitSize(), gpgInfo);
+        Compression compression = CompressionProbe.forTree(compressionMode, rootDir, exclusions);
+        if (outputType == BackupOutputType.SEGMENTED) {
+            return new OutputBySegment(
+                    targetDir,
+                    name,
+                    limits.numberedSplitSize(),
+                    SEGMENT_PARALLELISM,
+                    encrypter,
+                    compression,
+                    mirrors,
+                    storage);
+        }
+        return new OutputBySize(
+                targetDir, stripeDirs, name, limits.numberedSplitSize(), encrypter, compression, mirrors, storage);
     }
 
     @Override
     public void backupPrep() {
+        if (baseScript != null) {
+            incrementalBase = IncrementalBase.read(baseScript);
+        }
         try {
             Files.createDirectories(targetDir);
+            for (Path dir : stripeDirs) {
+                Files.createDirectories(dir);
+            }
         } catch (IOException e1) {
             throw new IllegalStateException("Failed to create target dir", e1);
         }
+        for (Path dir : mirrors.active()) {
+            // an existing backup set in a mirror is a usage error, not a mirror failure
+            Path mirrorScript = dir.resolve(restoreScript().getFileName());
+            if (Files.exists(mirrorScript)) {
+                throw new BackupTargetExistsException("Mirror restore script " + mirrorScript + " already exists");
+            }
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException e) {
+                mirrors.markFailed(dir, e);
+            }
+        }
     }
 
     @Override
     public Path completeBackup(RestoreScriptWriter scriptWriter) {
-        scriptWriter.write(restoreScript());
+        writeScript(scriptWriter, targetDir);
+        for (Path dir : mirrors.active()) {
+            try {
+                writeScript(scriptWriter, dir);
+            } catch (RuntimeException e) {
+                mirrors.markFailed(dir, e);
+            }
+        }
         return restoreScript();
     }
+
+    /**
+     * Writes the restore script to a directory holding the backup set.
+     *
+     * The base set of an incremental backup is referenced relative to the directory.
+     *
+     * @param scriptWriter the restore script writer
+     * @param dir          the directory of the backup set
+     */
+    private void writeScript(RestoreScriptWriter scriptWriter, Path dir) {
+        IncrementalBase base = incrementalBase;
+        RestoreScriptWriter writer = base == null
+                ? scriptWriter
+                : scriptWriter.withVariable(
+                        VariableName.BACKUP_BASE, ShellEscaper.toSafeShellString(base.relativeScript(dir)));
+        writer.write(dir.resolve(restoreScript().getFileName()));
+    }
 }
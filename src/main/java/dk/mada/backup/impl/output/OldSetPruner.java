@@ -0,0 +1,347 @@
+package dk.mada.backup.impl.output;
+
+import dk.mada.backup.api.BackupException;
+import dk.mada.backup.restore.RestoreScriptWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Prunes the old backup sets of a NAMED backup target directory.
+ *
+ * The old sets to keep are selected by retention rules. Sets whose time cannot be parsed from their name are always
+ * kept.
+ *
+ * The old sets share files (by hard links) with each other and with the current set. So the space used by an old set
+ * is accounted by inode: the target directory is walked once (a thread per set), and each inode is attributed to the
+ * sets that reference it. An inode only frees space when all its links are removed, so only inodes referenced solely by
+ * the pruned sets (and with no links outside the target directory) count as reclaimable.
+ *
+ * Pruned sets are first moved to a trash directory (so a failed prune never leaves a partial set in place), and then
+ * deleted in parallel.
+ */
+public final class OldSetPruner {
+    private static final Logger logger = LoggerFactory.getLogger(OldSetPruner.class);
+    /** The name of the trash directory in the old-sets directory. */
+    private static final String TRASH_DIR = ".pruning";
+    /** The owner name used for files outside the old sets. */
+    private static final String LIVE_OWNER = "";
+
+    /** The target directory. */
+    private final Path targetDir;
+    /** The old-sets directory. */
+    private final Path oldSetsDir;
+
+    /**
+     * Retention rules for old sets.
+     *
+     * Each rule keeps the newest set of each of the N newest periods (with sets) of its kind.
+     *
+     * @param keepLast    the number of newest sets to keep
+     * @param keepDaily   the number of days to keep a set for
+     * @param keepWeekly  the number of weeks to keep a set for
+     * @param keepMonthly the number of months to keep a set for
+     */
+    public record Retention(int keepLast, int keepDaily, int keepWeekly, int keepMonthly) {
+        /**
+         * Validates the rules.
+         *
+         * @param keepLast    the number of newest sets to keep
+         * @param keepDaily   the number of days to keep a set for
+         * @param keepWeekly  the number of weeks to keep a set for
+         * @param keepMonthly the number of months to keep a set for
+         */
+        public Retention {
+            if (keepLast < 0 || keepDaily < 0 || keepWeekly < 0 || keepMonthly < 0) {
+                throw new IllegalArgumentException("Retention counts cannot be negative");
+            }
+            if (keepLast + keepDaily + keepWeekly + keepMonthly == 0) {
+                throw new IllegalArgumentException("At least one retention rule must keep sets");
+            }
+        }
+    }
+
+    /**
+     * An old backup set.
+     *
+     * @param name           the name of the set (its directory name)
+     * @param time           the time of the set, or null if it cannot be parsed from the name
+     * @param totalBytes     the size of the files in the set
+     * @param exclusiveBytes the size of the files only referenced by this set
+     */
+    public record OldSet(String name, @Nullable LocalDateTime time, long totalBytes, long exclusiveBytes) {}
+
+    /**
+     * The plan for pruning old sets.
+     *
+     * @param kept             the old sets to keep, newest first
+     * @param pruned           the old sets to delete, newest first
+     * @param reclaimableBytes the space freed by deleting the pruned sets
+     */
+    public record PrunePlan(List<OldSet> kept, List<OldSet> pruned, long reclaimableBytes) {}
+
+    /** The identity of a file. */
+    private record InodeKey(Object dev, Object ino) {}
+
+    /** A file found in the walk. */
+    private record FileRef(InodeKey key, long size, int nlink) {}
+
+    /** Accounting of an inode. */
+    private static final class Inode {
+        /** The size of the inode. */
+        private final long size;
+        /** The link count of the inode. */
+        private final int nlink;
+        /** The number of links found in the target directory. */
+        private int refs;
+        /** The owners of the links found in the target directory. */
+        private final Set<String> owners = new HashSet<>();
+
+        Inode(long size, int nlink) {
+            this.size = size;
+            this.nlink = nlink;
+        }
+
+        boolean isOwnedOnlyBy(Collection<String> names) {
+            return refs == nlink && names.containsAll(owners);
+        }
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param targetDir the backup target directory
+     */
+    public OldSetPruner(Path targetDir) {
+        this.targetDir = targetDir;
+        this.oldSetsDir = targetDir.resolve(VersionedSets.OLD_SETS_DIR);
+    }
+
+    /**
+     * Finds the target directory of a NAMED backup set.
+     *
+     * @param restoreScript the restore script of the current set
+     * @return the target directory holding the old sets
+     */
+    public static Path targetDirOf(Path restoreScript) {
+        Path setDir = Objects.requireNonNull(restoreScript.toAbsolutePath().getParent());
+        if (setDir.getFileName().toString().equals(VersionedSets.CURRENT_LINK)) {
+            return Objects.requireNonNull(setDir.getParent());
+        }
+        return setDir;
+    }
+
+    /**
+     * Plans which old sets to prune.
+     *
+     * @param retention the retention rules
+     * @return the prune plan
+     */
+    public PrunePlan plan(Retention retention) {
+        List<String> names = listOldSets();
+        Map<InodeKey, Inode> inodes = walk(names);
+
+        List<OldSet> sets = names.stream()
+                .map(n -> toOldSet(n, inodes))
+                .sorted(Comparator.comparing(OldSet::time, Comparator.nullsFirst(Comparator.reverseOrder())))
+                .toList();
+        Set<String> keep = selectKept(sets, retention);
+        List<OldSet> kept = sets.stream().filter(s -> keep.contains(s.name())).toList();
+        List<OldSet> pruned = sets.stream().filter(s -> !keep.contains(s.name())).toList();
+
+        List<String> prunedNames = pruned.stream().map(OldSet::name).toList();
+        long reclaimable = inodes.values().stream()
+                .filter(i -> i.isOwnedOnlyBy(prunedNames))
+                .mapToLong(i -> i.size)
+                .sum();
+        return new PrunePlan(kept, pruned, reclaimable);
+    }
+
+    /**
+     * Deletes the pruned old sets.
+     *
+     * @param plan the prune plan
+     */
+    public void prune(PrunePlan plan) {
+        Path trashDir = oldSetsDir.resolve(TRASH_DIR);
+        try {
+            Files.createDirectories(trashDir);
+            for (OldSet set : plan.pruned()) {
+                Path setDir = oldSetsDir.resolve(set.name());
+                Files.move(setDir, trashDir.resolve(set.name()), StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            throw new BackupException("Failed to move pruned sets to " + trashDir, e);
+        }
+
+        List<Path> trashed;
+        try (Stream<Path> dirs = Files.list(trashDir)) {
+            trashed = dirs.toList();
+        } catch (IOException e) {
+            throw new BackupException("Failed to list " + trashDir, e);
+        }
+        inParallel(trashed, dir -> {
+            DirectoryDeleter.delete(dir);
+            return dir;
+        });
+        DirectoryDeleter.delete(trashDir);
+        logger.info("Pruned {} old set(s)", plan.pruned().size());
+    }
+
+    private List<String> listOldSets() {
+        if (!Files.isDirectory(oldSetsDir)) {
+            return List.of();
+        }
+        try (Stream<Path> dirs = Files.list(oldSetsDir)) {
+            return dirs.filter(Files::isDirectory)
+                    .map(d -> d.getFileName().toString())
+                    .filter(n -> !n.startsWith("."))
+                    .toList();
+        } catch (IOException e) {
+            throw new BackupException("Failed to list old sets in " + oldSetsDir, e);
+        }
+    }
+
+    /**
+     * Walks the target directory, a thread per root, accounting the inodes found.
+     *
+     * @param names the names of the old sets
+     * @return the inodes found
+     */
+    private Map<InodeKey, Inode> walk(List<String> names) {
+        Map<Path, String> roots = new HashMap<>();
+        names.forEach(n -> roots.put(oldSetsDir.resolve(n), n));
+        try (Stream<Path> entries = Files.list(targetDir)) {
+            entries.filter(e -> !e.equals(oldSetsDir)).forEach(e -> roots.put(e, LIVE_OWNER));
+        } catch (IOException e) {
+            throw new BackupException("Failed to list target directory " + targetDir, e);
+        }
+
+        List<Path> rootList = List.copyOf(roots.keySet());
+        List<List<FileRef>> found = inParallel(rootList, OldSetPruner::walkRoot);
+
+        Map<InodeKey, Inode> inodes = new HashMap<>();
+        for (int i = 0; i < rootList.size(); i++) {
+            String owner = roots.get(rootList.get(i));
+            for (FileRef ref : found.get(i)) {
+                Inode inode = inodes.computeIfAbsent(ref.key(), k -> new Inode(ref.size(), ref.nlink()));
+                inode.refs++;
+                inode.owners.add(owner);
+            }
+        }
+        return inodes;
+    }
+
+    private static List<FileRef> walkRoot(Path root) {
+        List<FileRef> refs = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path f : files.toList()) {
+                Map<String, Object> attrs =
+                        Files.readAttributes(f, "unix:isRegularFile,size,nlink,dev,ino", LinkOption.NOFOLLOW_LINKS);
+                if (Boolean.TRUE.equals(attrs.get("isRegularFile"))) {
+                    InodeKey key = new InodeKey(attrs.get("dev"), attrs.get("ino"));
+                    refs.add(new FileRef(key, (Long) attrs.get("size"), (Integer) attrs.get("nlink")));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to walk " + root, e);
+        }
+        return refs;
+    }
+
+    private OldSet toOldSet(String name, Map<InodeKey, Inode> inodes) {
+        long total = 0;
+        long exclusive = 0;
+        List<String> owner = List.of(name);
+        for (Inode inode : inodes.values()) {
+            if (inode.owners.contains(name)) {
+                total += inode.size;
+                if (inode.isOwnedOnlyBy(owner)) {
+                    exclusive += inode.size;
+                }
+            }
+        }
+        return new OldSet(name, parseTime(name), total, exclusive);
+    }
+
+    private static @Nullable LocalDateTime parseTime(String name) {
+        try {
+            return LocalDateTime.parse(name, RestoreScriptWriter.RESTORE_SCRIPT_TIME_FORMAT);
+        } catch (DateTimeParseException e) {
+            logger.warn("Keeping old set {} with unknown time", name);
+            return null;
+        }
+    }
+
+    private static Set<String> selectKept(List<OldSet> newestFirst, Retention retention) {
+        Set<String> keep = new HashSet<>();
+        newestFirst.stream().filter(s -> s.time() == null).forEach(s -> keep.add(s.name()));
+        List<OldSet> timed = newestFirst.stream().filter(s -> s.time() != null).toList();
+
+        timed.stream().limit(retention.keepLast()).forEach(s -> keep.add(s.name()));
+        keepPerPeriod(timed, retention.keepDaily(), LocalDateTime::toLocalDate, keep);
+        keepPerPeriod(
+                timed,
+                retention.keepWeekly(),
+                t -> t.get(IsoFields.WEEK_BASED_YEAR) * 100 + t.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR),
+                keep);
+        keepPerPeriod(timed, retention.keepMonthly(), YearMonth::from, keep);
+        return keep;
+    }
+
+    private static void keepPerPeriod(
+            List<OldSet> newestFirst, int periods, Function<LocalDateTime, Object> periodOf, Set<String> keep) {
+        Set<Object> seen = new HashSet<>();
+        for (OldSet set : newestFirst) {
+            if (seen.size() >= periods) {
+                return;
+            }
+            if (seen.add(periodOf.apply(Objects.requireNonNull(set.time())))) {
+                keep.add(set.name());
+            }
+        }
+    }
+
+    private static <T, R> List<R> inParallel(List<T> inputs, Function<T, R> task) {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<R>> futures = inputs.stream()
+                    .map(i -> executor.submit(() -> task.apply(i)))
+                    .toList();
+            List<R> results = new ArrayList<>();
+            for (Future<R> f : futures) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            throw new BackupException("Failed to process old sets", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackupException("Interrupted while processing old sets", e);
+        }
+    }
+}
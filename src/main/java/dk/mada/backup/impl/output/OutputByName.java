@@ -1,14 +1,20 @@
 package dk.mada.backup.impl.output;
 
+import com.dynatrace.hash4j.hashing.Hashing;
+import dk.mada.backup.BucketInfo;
 import dk.mada.backup.FileInfo;
 import dk.mada.backup.api.BackupException;
 import dk.mada.backup.api.BackupTargetExistsException;
-import dk.mada.backup.gpg.GpgEncryptedOutputStream;
-import dk.mada.backup.gpg.GpgEncryptedOutputStream.GpgStreamInfo;
+import dk.mada.backup.api.CompressionMode;
+import dk.mada.backup.gpg.Compression;
+import dk.mada.backup.gpg.Encrypter;
 import dk.mada.backup.impl.output.TarContainerBuilder.Entry;
 import dk.mada.backup.restore.RestoreScriptReader.DataArchive;
+import dk.mada.backup.restore.RestoreScriptReader.DataBucket;
 import dk.mada.backup.restore.RestoreScriptReader.DataRootFile;
 import dk.mada.backup.restore.RestoreScriptReader.RestoreScriptData;
+import dk.mada.backup.storage.StorageBackend;
+import dk.mada.backup.types.Xxh3;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -33,12 +39,29 @@ import org.slf4j.LoggerFactory;
  * backup set (if available). If the archive files match, the encryption is skipped (and the encrypted file from the
  * previous set is used).
  *
- * The archive is built in memory, so size is limited.
+ * The archive is built in memory, so size is limited. This also allows probing the archive to decide if it should be
+ * compressed before encryption.
+ *
+ * Optionally, consecutive small root elements are packed into buckets; a shared archive and encrypted file. A bucket
+ * is closed when it reaches the bucket size, or after a root element whose name hash makes it an anchor. The anchors
+ * keep bucket boundaries stable across backups, so a changed root element only affects its own bucket. A bucket is
+ * reused from the previous backup set if it contains the same root elements and its archive checksum matches.
+ *
+ * The crypt files written in this backup (also those resumed from an interrupted backup) are handed to the storage
+ * backend. The crypt files reused from the previous backup set are expected to be stored already; the restore script's
+ * sync-plan command finds any that are missing.
+ *
+ * Each new crypt file is recorded in the resume journal, so an interrupted backup can be resumed without encrypting
+ * it again.
  */
-public final class OutputByName implements BackupStreamWriter {
+public final class OutputByName implements PreviousSetWriter {
     private static final Logger logger = LoggerFactory.getLogger(OutputByName.class);
     /** Characters allowed in crypt file names. */
     private static final Pattern ALLOWED_FS_CHARS = Pattern.compile("[a-zA-Z0-9æøåÆØÅ.-]");
+    /** A bucket is closed after a root element with a name hash divisible by this. */
+    private static final int BUCKET_ANCHOR_MODULUS = 16;
+    /** Separator between the first root element name and the element count in bucket file names. */
+    private static final String BUCKET_NAME_SEPARATOR = "+";
 
     /** Accruing list of files created from the stream. */
     private final List<Path> outputFiles = new ArrayList<>();
@@ -46,8 +69,18 @@ public final class OutputByName implements BackupStreamWriter {
     private CompletableFuture<List<FileInfo>> outputFilesFuture = new CompletableFuture<>();
     /** Target directory for the files split from the stream. */
     private final Path targetDir;
-    /** The information needed to build a GPG stream. */
-    private final GpgStreamInfo gpgInfo;
+    /** The encrypter. */
+    private final Encrypter encrypter;
+    /** The compression mode. */
+    private final CompressionMode compressionMode;
+    /** The compression applied to the crypt files made by this writer; ZLIB if any were compressed. */
+    private Compression usedCompression = Compression.NONE;
+    /** The storage backend. */
+    private final StorageBackend storage;
+    /** The resume journal. */
+    private final ResumeJournal journal;
+    /** The validator of the previous backup set. */
+    private final PreviousSetValidator validator;
 
     /** Data about the previous backup. */
     private final RestoreScriptData prevBackupData;
@@ -58,6 +91,12 @@ public final class OutputByName implements BackupStreamWriter {
 
     /** The tar container builder. */
     @Nullable private TarContainerBuilder tarBuilder;
+    /** The size of buckets for small root elements, or 0 for no buckets. */
+    private final long bucketSize;
+    /** Flag for the current archive being a bucket accepting more small root elements. */
+    private boolean bucketOpen;
+    /** Accruing list of bucket information (only when using buckets). */
+    private final List<BucketInfo> buckets = new ArrayList<>();
 
     /** Total amount of time spent encrypting data. */
     private Duration totalEncryptionTime = Duration.ZERO;
@@ -70,88 +109,211 @@ public final class OutputByName implements BackupStreamWriter {
      * Construct new instance.
      *
      * @param maxRootElementSize the maximal size of an archived root element
+     * @param bucketSize         the size of buckets for small root elements, or 0 for no buckets
      * @param prevBackupData     data about the previous backup
      * @param targetDir          the target directory of the new backup
-     * @param gpgInfo            the GPG information
+     * @param encrypter          the encrypter
+     * @param compressionMode    the compression mode
+     * @param storage            the storage backend
+     * @param journal            the resume journal
+     * @param validator          the validator of the previous backup set
      */
     public OutputByName(
-            long maxRootElementSize, RestoreScriptData prevBackupData, Path targetDir, GpgStreamInfo gpgInfo) {
+            long maxRootElementSize,
+            long bucketSize,
+            RestoreScriptData prevBackupData,
+            Path targetDir,
+            Encrypter encrypter,
+            CompressionMode compressionMode,
+            StorageBackend storage,
+            ResumeJournal journal,
+            PreviousSetValidator validator) {
         this.targetDir = targetDir;
-        this.gpgInfo = gpgInfo;
+        this.encrypter = encrypter;
+        this.compressionMode = compressionMode;
+        this.storage = storage;
+        this.journal = journal;
+        this.validator = validator;
         this.prevBackupData = prevBackupData;
+        this.bucketSize = bucketSize;
+
+        if (bucketSize > maxRootElementSize / 2) {
+            throw new IllegalArgumentException("Bucket size " + bucketSize
+                    + " must be at most half of the max root element size " + maxRootElementSize);
+        }
 
         inMemoryBufferStream = new MemorySegmentOutputStream(maxRootElementSize);
     }
 
     @Override
-    public TarContainerBuilder processNextRootElement(String name) throws IOException {
-        closeCurrentFileAndEncrypt();
+    public TarContainerBuilder processNextRootElement(String name, long size) throws IOException {
+        boolean isSmall = size < bucketSize;
+        if (tarBuilder != null && bucketOpen && isSmall && inMemoryBufferStream.count() + size <= bucketSize) {
+            logger.info("Adding {} to bucket of {}", name, workingOnFileName);
+        } else {
+            closeCurrentFileAndEncrypt();
 
-        inMemoryBufferStream.reset();
-        workingOnFileName = name;
+            inMemoryBufferStream.reset();
+            workingOnFileName = name;
 
-        tarBuilder = new TarContainerBuilder(inMemoryBufferStream);
-        tarCollectionStart = Instant.now();
+            tarBuilder = new TarContainerBuilder(inMemoryBufferStream);
+            tarCollectionStart = Instant.now();
+        }
+        bucketOpen = isSmall && !isBucketAnchor(name);
         return tarBuilder;
     }
 
+    @Override
+    public void keepPreviousRootElement(DataRootFile previous) throws IOException {
+        closeCurrentFileAndEncrypt();
+        if (bucketSize > 0) {
+            throw new IllegalStateException("Cannot keep root elements from a previous backup set when using buckets");
+        }
+
+        Path oldSetCryptFile = previous.crypt().file();
+        validator.awaitValid(oldSetCryptFile);
+        Path cryptFile = targetDir.resolve(oldSetCryptFile.getFileName());
+        logger.info(
+                "Keeping previous crypt file {} for deferred root element {}",
+                cryptFile.getFileName(),
+                previous.name());
+        // may be left from an interrupted backup
+        Files.deleteIfExists(cryptFile);
+        createHardLink(cryptFile, oldSetCryptFile);
+        outputFiles.add(cryptFile);
+    }
+
+    private static boolean isBucketAnchor(String name) {
+        return Long.remainderUnsigned(Hashing.xxh3_64().hashCharsToLong(name), BUCKET_ANCHOR_MODULUS) == 0;
+    }
+
     private void closeCurrentFileAndEncrypt() throws IOException {
         if (tarBuilder == null || workingOnFileName == null) {
             return;
         }
 
         tarBuilder.close();
-        Entry rootElementEntry = tarBuilder.firstEntry();
+        List<Entry> entries = tarBuilder.entries();
         tarBuilder = null;
 
         Duration tarTime = Duration.between(tarCollectionStart, Instant.now());
         totalTarTime = totalTarTime.plus(tarTime);
 
+        long archiveSize = inMemoryBufferStream.count();
+        Xxh3 archiveXxh3 = inMemoryBufferStream.xxh3();
         logger.info("Relative for {}", workingOnFileName);
-        logger.info("Current input count: {}", inMemoryBufferStream.count());
-        logger.info("Current input xxh3: {}", inMemoryBufferStream.xxh3());
+        logger.info("Current input count: {}", archiveSize);
+        logger.info("Current input xxh3: {}", archiveXxh3);
 
-        String rootElementName = rootElementEntry.unwrappedFolderName();
+        Path cryptFile;
+        Path oldSetCryptFile = findReusableCryptFile(entries, archiveSize, archiveXxh3);
+        if (oldSetCryptFile != null) {
+            logger.info(" - keeping");
+            validator.awaitValid(oldSetCryptFile);
+            cryptFile = targetDir.resolve(oldSetCryptFile.getFileName());
+            createHardLink(cryptFile, oldSetCryptFile);
+            outputFiles.add(cryptFile);
+        } else {
+            logger.info("No prior data for root element(s) {}", entries.stream().map(Entry::unwrappedFolderName).toList());
+
+            String fileBaseName = nameSafeFsName(workingOnFileName);
+            if (entries.size() > 1) {
+                fileBaseName = fileBaseName + BUCKET_NAME_SEPARATOR + entries.size();
+            }
+
+            cryptFile = targetDir.resolve(fileBaseName + ".crypt");
+            if (journal.canReuse(cryptFile, archiveSize, archiveXxh3)) {
+                logger.info(" - keeping crypt file from interrupted backup");
+                outputFiles.add(cryptFile);
+                storage.store(cryptFile, cryptFile.getFileName().toString());
+            } else {
+                Instant start = Instant.now();
+                Compression compression =
+                        CompressionProbe.forRootElement(compressionMode, workingOnFileName, inMemoryBufferStream);
+                Xxh3OutputStream output = new Xxh3OutputStream(openNextFile(cryptFile));
+                try (output;
+                        var eos = encrypter.encrypt(output, compression)) {
+                    inMemoryBufferStream.writeTo(eos);
+                }
+                journal.record(cryptFile, archiveSize, archiveXxh3, output.count(), output.xxh3());
+                if (compression != Compression.NONE) {
+                    usedCompression = compression;
+                }
+                Duration time = Duration.between(start, Instant.now());
+                logger.info(
+                        "------- Crypted archive to {} in {} (compression {})",
+                        cryptFile.getFileName(),
+                        time,
+                        compression);
+                totalEncryptionTime = totalEncryptionTime.plus(time);
+                storage.store(cryptFile, cryptFile.getFileName().toString());
+            }
+        }
+
+        if (bucketSize > 0) {
+            buckets.add(new BucketInfo(
+                    archiveSize, archiveXxh3, entries.size(), cryptFile.getFileName().toString()));
+        }
+    }
+
+    /**
+     * Finds the encrypted file in the old backup set holding the same data as the new archive.
+     *
+     * A single root element is matched against the root element of the same name in the old backup set, and a bucket is
+     * matched against a bucket with the same root elements in the old backup set. Note that the encrypted data cannot be
+     * used for comparison, because there is time variance in these (even for the same input data).
+     *
+     * @param entries     the root element entries in the new archive
+     * @param archiveSize the size of the new archive
+     * @param archiveXxh3 the checksum of the new archive
+     * @return the encrypted file of the old backup set, or null if there is no match
+     */
+    @Nullable private Path findReusableCryptFile(List<Entry> entries, long archiveSize, Xxh3 archiveXxh3) {
+        if (!prevBackupData.gpgKeyId().equals(encrypter.recipientKeyId())) {
+            return null;
+        }
+
+        if (entries.size() > 1) {
+            List<String> names = entries.stream().map(Entry::unwrappedFolderName).toList();
+            return prevBackupData.buckets().stream()
+                    .filter(b -> b.rootNames().equals(names)
+                            && b.archive().size() == archiveSize
+                            && b.archive().xxh3().equals(archiveXxh3))
+                    .map(b -> b.crypt().file())
+                    .findFirst()
+                    .orElse(null);
+        }
 
-        // Find the matching entry in the old backup set (if available)
-        // If the old archive data matches the newly created archive data,
-        // the encrypted file can be reused. Note that the encrypted data
-        // cannot be used for comparison, because there is time variance
-        // in these (even for the same input data).
+        Entry rootElementEntry = entries.getFirst();
+        String rootElementName = rootElementEntry.unwrappedFolderName();
         DataRootFile oldRootFile = prevBackupData.rootFilesV2().stream()
                 .filter(da -> rootElementName.equals(da.name()))
                 .findFirst()
                 .orElse(null);
-        if (oldRootFile != null && prevBackupData.gpgKeyId().equals(gpgInfo.recipientKeyId())) {
-
-            logger.info("Existing backup has entry for root element {}", rootElementName);
-            DataArchive oldArchive = oldRootFile.archive();
-            if (oldArchive.size() == rootElementEntry.size()
-                    && oldArchive.xxh3().equals(rootElementEntry.xxh3())) {
-                logger.info(" - keeping");
-                Path oldSetCryptFile = oldRootFile.crypt().file();
-                Path newSetCryptFile = targetDir.resolve(oldSetCryptFile.getFileName());
-                createHardLink(newSetCryptFile, oldSetCryptFile);
-                outputFiles.add(newSetCryptFile);
-                return;
-            }
+        if (oldRootFile == null || isSharingBucket(oldRootFile)) {
+            return null;
         }
 
-        logger.info("No prior data for root element {}", rootElementName);
-
-        Instant start = Instant.now();
-        try (OutputStream output = openNextFile(workingOnFileName);
-                var eos = new GpgEncryptedOutputStream(output, gpgInfo)) {
-            inMemoryBufferStream.writeTo(eos);
+        logger.info("Existing backup has entry for root element {}", rootElementName);
+        DataArchive oldArchive = oldRootFile.archive();
+        if (oldArchive.size() == rootElementEntry.size() && oldArchive.xxh3().equals(rootElementEntry.xxh3())) {
+            return oldRootFile.crypt().file();
         }
-        Duration time = Duration.between(start, Instant.now());
-        logger.info("------- Crypted archive to {} in {}", workingOnFileName, time);
-        totalEncryptionTime = totalEncryptionTime.plus(time);
+        return null;
+    }
+
+    private boolean isSharingBucket(DataRootFile rootFile) {
+        return prevBackupData.buckets().stream()
+                .filter(b -> b.rootFiles().size() > 1)
+                .map(DataBucket::crypt)
+                .anyMatch(c -> c.file().equals(rootFile.crypt().file()));
     }
 
     @Override
     public void close() throws IOException {
-        closeCurrentFileAndEncrypt();
+        try (journal) {
+            closeCurrentFileAndEncrypt();
+        }
 
         List<FileInfo> fileInfos = outputFiles.stream()
                 .map(f -> FileInfo.fromCryptFile(targetDir, f))
@@ -163,22 +325,31 @@ public final class OutputByName implements BackupStreamWriter {
         logger.info("Encryption time total: {}", totalEncryptionTime);
     }
 
+    @Override
+    public Compression compression() {
+        return usedCompression;
+    }
+
     @Override
     public Future<List<FileInfo>> getOutputFiles() {
         return outputFilesFuture;
     }
 
+    @Override
+    public List<BucketInfo> getBuckets() {
+        return List.copyOf(buckets);
+    }
+
     /**
      * Prepare for streaming into the next encrypted file.
      *
      * Get expected target checksum from target restore file. o file hash o hash of content filenames + file contents
      *
-     * @param name the name of the file
+     * @param outputFile the encrypted file
      * @return the stream to write data to
      * @throws IOException if IO fails
      */
-    private OutputStream openNextFile(String name) throws IOException {
-        Path outputFile = targetDir.resolve(nameSafeFsName(name) + ".crypt");
+    private OutputStream openNextFile(Path outputFile) throws IOException {
 
         if (Files.exists(outputFile)) {
             // close before failing - or wrapping streams will fail when they try to flush
@@ -0,0 +1,200 @@
+package dk.mada.backup.impl.output;
+
+import dk.mada.backup.FileInfo;
+import dk.mada.backup.api.BackupTargetExistsException;
+import dk.mada.backup.gpg.Compression;
+import dk.mada.backup.gpg.Encrypter;
+import dk.mada.backup.storage.StorageBackend;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write backup into numbered, independently encrypted segments.
+ *
+ * The root elements are streamed into a tar archive, like for {@link OutputBySize}. But when the archive has grown past
+ * the segment size, the next root element starts a new tar archive in a new file. Root directories larger than the
+ * segment size are archived in several parts (see {@link #rootElementPartSize()}), so a large root directory is spread
+ * over several segments. A segment may still be larger than the segment size.
+ *
+ * Each segment is encrypted as a separate message on its own thread, so several segments may be encrypted at the same
+ * time. And each segment can be decrypted, verified and restored on its own.
+ *
+ * Each encrypted segment is also written to the mirror targets. And it is handed to the storage backend when complete.
+ */
+public final class OutputBySegment implements BackupStreamWriter {
+    private static final Logger logger = LoggerFactory.getLogger(OutputBySegment.class);
+    /** Target directory for the segment files. */
+    private final Path targetDir;
+    /** Base name of the segment files. */
+    private final String basename;
+    /** The size after which a new segment is started. */
+    private final long segmentSize;
+    /** The encrypter. */
+    private final Encrypter encrypter;
+    /** The compression to apply before encryption. */
+    private final Compression compression;
+    /** The mirror targets. */
+    private final MirrorTargets mirrors;
+    /** The storage backend. */
+    private final StorageBackend storage;
+    /** The executor running the segment encryptions. */
+    private final ExecutorService encryptionExecutor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("segment-", 1).factory());
+    /** Limits the number of segments being encrypted at the same time. */
+    private final Semaphore segmentsInFlight;
+    /** The encryption futures of the segments, in order. */
+    private final List<Future<Path>> segments = new ArrayList<>();
+    /** Future for handing over the list of created files to the caller. */
+    private final CompletableFuture<List<FileInfo>> outputFilesFuture = new CompletableFuture<>();
+    /** The pipe to the encryption of the current segment. */
+    @Nullable private ChunkPipe currentPipe;
+    /** The tar container builder of the current segment. */
+    @Nullable private TarContainerBuilder tarBuilder;
+
+    /**
+     * Creates new instance.
+     *
+     * @param targetDir   the target directory
+     * @param name        the name of the backup set
+     * @param segmentSize the size after which a new segment is started
+     * @param parallelism the max number of segments to encrypt at the same time
+     * @param encrypter   the encrypter
+     * @param compression the compression to apply before encryption
+     * @param mirrors     the mirror targets
+     * @param storage     the storage backend
+     */
+    public OutputBySegment(
+            Path targetDir,
+            String name,
+            long segmentSize,
+            int parallelism,
+            Encrypter encrypter,
+            Compression compression,
+            MirrorTargets mirrors,
+            StorageBackend storage) {
+        this.targetDir = targetDir;
+        this.basename = name;
+        this.segmentSize = segmentSize;
+        this.encrypter = encrypter;
+        this.compression = compression;
+        this.mirrors = mirrors;
+        this.storage = storage;
+
+        segmentsInFlight = new Semaphore(parallelism);
+    }
+
+    @Override
+    public long rootElementPartSize() {
+        return segmentSize;
+    }
+
+    @Override
+    public TarContainerBuilder processNextRootElement(String name, long size) throws IOException {
+        if (tarBuilder != null && currentPipe != null && currentPipe.count() >= segmentSize) {
+            closeSegment();
+        }
+        if (tarBuilder == null) {
+            openSegment();
+        }
+        return tarBuilder;
+    }
+
+    private void openSegment() throws IOException {
+        String name = basename + "-" + String.format("%02d", segments.size() + 1) + ".crypt";
+        Path outputFile = targetDir.resolve(name);
+        if (Files.exists(outputFile)) {
+            throw new BackupTargetExistsException("Target file " + outputFile + " already exists");
+        }
+
+        try {
+            segmentsInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for segment encryption");
+        }
+
+        logger.debug("Starting segment {}", outputFile);
+        ChunkPipe pipe = new ChunkPipe();
+        segments.add(encryptionExecutor.submit(() -> encryptSegment(pipe, outputFile)));
+        currentPipe = pipe;
+        tarBuilder = new TarContainerBuilder(pipe);
+    }
+
+    private Path encryptSegment(ChunkPipe pipe, Path outputFile) throws IOException {
+        try (OutputStream fileOutput = new FanOutOutputStream(
+                        newFile(outputFile), mirrors, dir -> newFile(dir.resolve(outputFile.getFileName())));
+                OutputStream eos = encrypter.encrypt(fileOutput, compression)) {
+            pipe.drainTo(eos);
+        } catch (IOException | RuntimeException e) {
+            pipe.fail(e);
+            throw e;
+        } finally {
+            segmentsInFlight.release();
+        }
+        logger.debug("Completed segment {}", outputFile);
+        storage.store(outputFile, outputFile.getFileName().toString());
+        return outputFile;
+    }
+
+    private static OutputStream newFile(Path file) throws IOException {
+        return new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+    }
+
+    private void closeSegment() throws IOException {
+        TarContainerBuilder builder = tarBuilder;
+        tarBuilder = null;
+        currentPipe = null;
+        if (builder != null) {
+            builder.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (encryptionExecutor) {
+            // An empty backup still gets an (empty) archive
+            if (segments.isEmpty()) {
+                openSegment();
+            }
+            closeSegment();
+
+            List<FileInfo> fileInfos = new ArrayList<>();
+            for (Future<Path> f : segments) {
+                fileInfos.add(FileInfo.fromCryptFile(targetDir, f.get()));
+            }
+            outputFilesFuture.complete(fileInfos);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to encrypt segment", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for segment encryption");
+        }
+    }
+
+    @Override
+    public Compression compression() {
+        return compression;
+    }
+
+    @Override
+    public Future<List<FileInfo>> getOutputFiles() {
+        return outputFilesFuture;
+    }
+}
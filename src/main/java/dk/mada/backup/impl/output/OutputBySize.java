@@ -1,11 +1,14 @@
 package dk.mada.backup.impl.output;
 
 import dk.mada.backup.FileInfo;
-import dk.mada.backup.gpg.GpgEncryptedOutputStream;
-import dk.mada.backup.gpg.GpgEncryptedOutputStream.GpgStreamInfo;
+import dk.mada.backup.gpg.Compression;
+import dk.mada.backup.gpg.Encrypter;
 import dk.mada.backup.gpg.GpgEncrypterException;
 import dk.mada.backup.splitter.SplitterOutputStream;
+import dk.mada.backup.splitter.SplitterOutputStream.Placement;
+import dk.mada.backup.storage.StorageBackend;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.Future;
@@ -13,35 +16,63 @@ import java.util.concurrent.Future;
 /**
  * Write backup stream into numbered files, split by size.
  *
- * All input is streamed into one big tar archive. The tar stream is encrypted. The encrypted stream is then split into
- * files.
+ * All input is streamed into one big tar archive. The tar stream is (optionally compressed and) encrypted. The encrypted
+ * stream is then split into files.
+ *
+ * The encrypted stream is also split into files in each of the mirror targets.
+ *
+ * The files may be striped over several directories, see {@link SplitterOutputStream}.
+ *
+ * The files in the target directory are handed to the storage backend as they are completed.
  */
 public final class OutputBySize implements BackupStreamWriter {
     /** The tar container builder. */
     private TarContainerBuilder tarBuilder;
-    /** The active GPG output stream. */
-    private GpgEncryptedOutputStream eos;
+    /** The active encrypting output stream. */
+    private OutputStream eos;
     /** The active splitter output stream. */
     private SplitterOutputStream sos;
+    /** The stream teeing the encrypted stream to the splitter output streams of the mirrors. */
+    private OutputStream fanOut;
+    /** The compression applied before encryption. */
+    private final Compression compression;
 
     /**
      * Creates new instance.
      *
      * @param targetDir      the target directory
+     * @param stripeDirs     additional directories to stripe the files over
      * @param name           the name of the backup set
      * @param cryptSplitSize the size to split the output files at
-     * @param gpgInfo        the GPG information
-     * @throws GpgEncrypterException if GPG failed
+     * @param encrypter      the encrypter
+     * @param compression    the compression to apply before encryption
+     * @param mirrors        the mirror targets
+     * @param storage        the storage backend
+     * @throws GpgEncrypterException if encryption failed
      */
-    public OutputBySize(Path targetDir, String name, long cryptSplitSize, GpgStreamInfo gpgInfo)
+    public OutputBySize(
+            Path targetDir,
+            List<Path> stripeDirs,
+            String name,
+            long cryptSplitSize,
+            Encrypter encrypter,
+            Compression compression,
+            MirrorTargets mirrors,
+            StorageBackend storage)
             throws GpgEncrypterException {
-        sos = new SplitterOutputStream(targetDir, name, ".crypt", cryptSplitSize);
-        eos = new GpgEncryptedOutputStream(sos, gpgInfo);
+        sos = new SplitterOutputStream(
+                targetDir, name, ".crypt", cryptSplitSize, Placement.striped(stripeDirs, storage));
+        fanOut = new FanOutOutputStream(
+                sos,
+                mirrors,
+                dir -> new SplitterOutputStream(dir, name, ".crypt", cryptSplitSize, Placement.TARGET_DIR));
+        this.compression = compression;
+        eos = encrypter.encrypt(fanOut, compression);
         tarBuilder = new TarContainerBuilder(eos);
     }
 
     @Override
-    public TarContainerBuilder processNextRootElement(String name) {
+    public TarContainerBuilder processNextRootElement(String name, long size) {
         // keeps sending output to the same, single tar
         return tarBuilder;
     }
@@ -58,13 +89,18 @@ public final class OutputBySize implements BackupStreamWriter {
                     eos.close();
                 }
             } finally {
-                if (sos != null) {
-                    sos.close();
+                if (fanOut != null) {
+                    fanOut.close();
                 }
             }
         }
     }
 
+    @Override
+    public Compression compression() {
+        return compression;
+    }
+
     @Override
     public Future<List<FileInfo>> getOutputFiles() {
         return sos.getOutputFiles();
@@ -0,0 +1,134 @@
+package dk.mada.backup.impl.output;
+
+import dk.mada.backup.api.BackupException;
+import dk.mada.backup.restore.RestoreScriptReader.DataBucket;
+import dk.mada.backup.restore.RestoreScriptReader.DataCrypt;
+import dk.mada.backup.restore.RestoreScriptReader.DataRootFile;
+import dk.mada.backup.restore.RestoreScriptReader.RestoreScriptData;
+import dk.mada.backup.types.Xxh3;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validates the crypt files of the previous backup set, while the new backup is made.
+ *
+ * Each crypt file is checked for the size and checksum recorded in the previous restore script (as the script's verify
+ * command does). The crypt files are validated in the order of the restore script, which is also the order the new
+ * backup processes the root elements in.
+ *
+ * A crypt file must be validated before it is reused in the new backup set, and all the crypt files must be validated
+ * before the new backup set replaces the previous set.
+ */
+public final class PreviousSetValidator implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(PreviousSetValidator.class);
+    /** The number of crypt files validated at the same time. */
+    private static final int VALIDATION_PARALLELISM = 2;
+
+    /** The executor running the validations. */
+    private final ExecutorService executor = Executors.newFixedThreadPool(
+            VALIDATION_PARALLELISM, Thread.ofVirtual().name("validate-", 1).factory());
+    /** The validation results by crypt file; a failure message, or null if the file is valid. */
+    private final Map<Path, CompletableFuture<@Nullable String>> results = new LinkedHashMap<>();
+
+    /**
+     * Starts validation of the crypt files of a backup set.
+     *
+     * @param data the data of the backup set
+     */
+    public PreviousSetValidator(RestoreScriptData data) {
+        for (DataRootFile rootFile : data.rootFilesV2()) {
+            startValidation(rootFile.crypt());
+        }
+        for (DataBucket bucket : data.buckets()) {
+            startValidation(bucket.crypt());
+        }
+        logger.info("Validating {} crypt file(s) of the old backup", results.size());
+    }
+
+    private void startValidation(DataCrypt crypt) {
+        results.computeIfAbsent(crypt.file(), f -> CompletableFuture.supplyAsync(() -> validate(crypt), executor));
+    }
+
+    private static @Nullable String validate(DataCrypt crypt) {
+        Path file = crypt.file();
+        try {
+            if (!Files.isRegularFile(file)) {
+                return "Did not find expected file " + file;
+            }
+            long size = Files.size(file);
+            if (size != crypt.size()) {
+                return "File " + file + " has size " + size + ", but expected " + crypt.size();
+            }
+            Xxh3 xxh3 = Xxh3OutputStream.checksum(file);
+            if (!xxh3.equals(crypt.xxh3())) {
+                return "File " + file + " has checksum " + xxh3.hex() + ", but expected " + crypt.xxh3().hex();
+            }
+            return null;
+        } catch (IOException e) {
+            return "Failed to read " + file + ": " + e.getMessage();
+        }
+    }
+
+    /**
+     * Waits for the validation of a crypt file, before it is reused.
+     *
+     * @param cryptFile the crypt file of the previous backup set
+     * @throws BackupException if the crypt file failed validation
+     * @throws IOException     if waiting for the validation failed or was interrupted
+     */
+    public void awaitValid(Path cryptFile) throws IOException {
+        CompletableFuture<@Nullable String> result = results.get(cryptFile);
+        if (result == null) {
+            throw new IllegalStateException("Crypt file " + cryptFile + " is not part of the old backup");
+        }
+        String failure = await(result);
+        if (failure != null) {
+            throw new BackupException("Validation of old backup failed: " + failure);
+        }
+    }
+
+    /**
+     * Waits for the validation of all the crypt files.
+     *
+     * @throws BackupException if a crypt file failed validation
+     * @throws IOException     if waiting for the validation failed or was interrupted
+     */
+    public void awaitAllValid() throws IOException {
+        for (Path cryptFile : results.keySet()) {
+            awaitValid(cryptFile);
+        }
+        logger.info("Old backup validated OK");
+    }
+
+    private static @Nullable String await(CompletableFuture<@Nullable String> result) throws IOException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to validate old backup", e.getCause());
+        } catch (CancellationException e) {
+            throw new IOException("Validation of old backup was stopped", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for validation of old backup");
+        }
+    }
+
+    /** Stops validations that are still running. */
+    @Override
+    public void close() {
+        results.values().forEach(r -> r.cancel(true));
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,19 @@
+package dk.mada.backup.impl.output;
+
+import dk.mada.backup.restore.RestoreScriptReader.DataRootFile;
+import java.io.IOException;
+
+/**
+ * Backup stream writer that can keep root elements from the previous backup set.
+ *
+ * Used by deadline bounded NAMED backups, for the root elements deferred to a later backup.
+ */
+public interface PreviousSetWriter extends BackupStreamWriter {
+    /**
+     * Keeps the encrypted file of a root element from the previous backup set, instead of processing the root element.
+     *
+     * @param previous the root element in the previous backup set
+     * @throws IOException if IO fails
+     */
+    void keepPreviousRootElement(DataRootFile previous) throws IOException;
+}
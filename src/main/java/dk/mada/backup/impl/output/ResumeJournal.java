@@ -0,0 +1,251 @@
+package dk.mada.backup.impl.output;
+
+import dk.mada.backup.api.BackupException;
+import dk.mada.backup.types.GpgId;
+import dk.mada.backup.types.Xxh3;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Journal of the crypt files completed in a NAMED backup's working directory.
+ *
+ * Each crypt file is synced to disk before it is recorded, and each record is synced to disk before the backup moves
+ * on. If the backup is interrupted, the next backup recovers the journal and keeps the crypt files that are still
+ * intact. All other files in the working directory are deleted.
+ *
+ * The root elements are still archived again by the next backup (the restore script needs their file checksums), but a
+ * recorded crypt file is reused if it has the same name and its archive has the same size and checksum. So only the
+ * encryption is skipped.
+ *
+ * The journal starts with the id of the encryption key; if the key has changed, nothing is kept.
+ */
+public final class ResumeJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ResumeJournal.class);
+    /** The journal file name. */
+    private static final String JOURNAL_NAME = ".resume-journal";
+    /** Prefix of the journal's key line. */
+    private static final String KEY_PREFIX = "key ";
+
+    /** The journal file. */
+    private final Path journalFile;
+    /** The recovered checkpoints, by crypt file name. */
+    private final Map<String, Checkpoint> recovered;
+    /** The journal channel. */
+    private final FileChannel channel;
+
+    /**
+     * A completed crypt file.
+     *
+     * @param archiveSize the size of the encrypted archive
+     * @param archiveXxh3 the checksum of the encrypted archive
+     * @param cryptSize   the size of the crypt file
+     * @param cryptXxh3   the checksum of the crypt file
+     * @param cryptName   the name of the crypt file
+     */
+    record Checkpoint(long archiveSize, Xxh3 archiveXxh3, long cryptSize, Xxh3 cryptXxh3, String cryptName) {
+        String toLine() {
+            return archiveSize + "," + archiveXxh3.hex() + "," + cryptSize + "," + cryptXxh3.hex() + "," + cryptName;
+        }
+
+        static Checkpoint fromLine(String line) {
+            String[] parts = line.split(",", 5);
+            if (parts.length != 5) {
+                throw new IllegalArgumentException("Bad journal line: " + line);
+            }
+            return new Checkpoint(
+                    Long.parseLong(parts[0]),
+                    Xxh3.ofHex(parts[1]),
+                    Long.parseLong(parts[2]),
+                    Xxh3.ofHex(parts[3]),
+                    parts[4]);
+        }
+    }
+
+    private ResumeJournal(Path journalFile, Map<String, Checkpoint> recovered, FileChannel channel) {
+        this.journalFile = journalFile;
+        this.recovered = recovered;
+        this.channel = channel;
+    }
+
+    /**
+     * Prepares the working directory for a new backup, recovering the journal of an interrupted backup (if any).
+     *
+     * The crypt files that are recorded in the journal and still intact are kept; all other files are deleted. If there
+     * is no usable journal, the directory is deleted. The journal is then rewritten with the kept crypt files.
+     *
+     * @param dir   the working directory
+     * @param keyId the id of the encryption key
+     * @return the journal, ready for recording new crypt files
+     */
+    public static ResumeJournal recover(Path dir, GpgId keyId) {
+        Path journalFile = dir.resolve(JOURNAL_NAME);
+        Map<String, Checkpoint> kept = readIntactCheckpoints(dir, journalFile, keyId);
+        try {
+            if (kept.isEmpty()) {
+                DirectoryDeleter.delete(dir);
+                Files.createDirectories(dir);
+            } else {
+                logger.info("Resuming interrupted backup, keeping {} crypt file(s)", kept.size());
+                try (Stream<Path> files = Files.list(dir)) {
+                    for (Path f : files.toList()) {
+                        String name = f.getFileName().toString();
+                        if (!name.equals(JOURNAL_NAME) && !kept.containsKey(name)) {
+                            deleteEntry(f);
+                        }
+                    }
+                }
+            }
+
+            StringBuilder sb = new StringBuilder(KEY_PREFIX).append(keyId.id()).append('\n');
+            kept.values().forEach(c -> sb.append(c.toLine()).append('\n'));
+            Path tempFile = dir.resolve(JOURNAL_NAME + ".tmp");
+            try (FileChannel tmp = FileChannel.open(
+                    tempFile,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                write(tmp, sb.toString());
+            }
+            Files.move(tempFile, journalFile, StandardCopyOption.ATOMIC_MOVE);
+
+            FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return new ResumeJournal(journalFile, kept, channel);
+        } catch (IOException e) {
+            throw new BackupException("Failed to prepare resume journal in " + dir, e);
+        }
+    }
+
+    private static Map<String, Checkpoint> readIntactCheckpoints(Path dir, Path journalFile, GpgId keyId) {
+        Map<String, Checkpoint> kept = new HashMap<>();
+        if (!Files.isRegularFile(journalFile)) {
+            return kept;
+        }
+        try {
+            List<String> lines = Files.readAllLines(journalFile);
+            if (lines.isEmpty() || !lines.getFirst().equals(KEY_PREFIX + keyId.id())) {
+                logger.info("Not resuming interrupted backup made with another key");
+                return kept;
+            }
+            for (String line : lines.subList(1, lines.size())) {
+                Checkpoint c = Checkpoint.fromLine(line);
+                if (isIntact(dir.resolve(c.cryptName()), c)) {
+                    kept.put(c.cryptName(), c);
+                } else {
+                    logger.info("Not keeping damaged crypt file {}", c.cryptName());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // a torn last line is expected after a crash, the earlier records are still good
+            logger.info("Stopped reading resume journal: {}", e.getMessage());
+        }
+        return kept;
+    }
+
+    private static boolean isIntact(Path cryptFile, Checkpoint c) throws IOException {
+        return Files.isRegularFile(cryptFile)
+                && Files.size(cryptFile) == c.cryptSize()
+                && Xxh3OutputStream.checksum(cryptFile).equals(c.cryptXxh3());
+    }
+
+    /**
+     * Checks if a crypt file recorded by the interrupted backup can be reused.
+     *
+     * If the crypt file was recorded, but for another archive, the file is deleted so it can be created again.
+     *
+     * @param cryptFile   the crypt file
+     * @param archiveSize the size of the archive to encrypt
+     * @param archiveXxh3 the checksum of the archive to encrypt
+     * @return true if the crypt file can be reused
+     * @throws IOException if a stale crypt file cannot be deleted
+     */
+    public boolean canReuse(Path cryptFile, long archiveSize, Xxh3 archiveXxh3) throws IOException {
+        Checkpoint c = recovered.remove(cryptFile.getFileName().toString());
+        if (c == null) {
+            return false;
+        }
+        if (c.archiveSize() == archiveSize && c.archiveXxh3().equals(archiveXxh3)) {
+            return true;
+        }
+        Files.delete(cryptFile);
+        return false;
+    }
+
+    /**
+     * Records a completed crypt file, after syncing it to disk.
+     *
+     * The size and checksum of the crypt file are computed while it is written, so it is not read back.
+     *
+     * @param cryptFile   the crypt file
+     * @param archiveSize the size of the encrypted archive
+     * @param archiveXxh3 the checksum of the encrypted archive
+     * @param cryptSize   the size of the crypt file
+     * @param cryptXxh3   the checksum of the crypt file
+     * @throws IOException if the crypt file or the journal cannot be synced
+     */
+    public void record(Path cryptFile, long archiveSize, Xxh3 archiveXxh3, long cryptSize, Xxh3 cryptXxh3)
+            throws IOException {
+        try (FileChannel crypt = FileChannel.open(cryptFile, StandardOpenOption.WRITE)) {
+            crypt.force(true);
+        }
+        String cryptName = cryptFile.getFileName().toString();
+        Checkpoint c = new Checkpoint(archiveSize, archiveXxh3, cryptSize, cryptXxh3, cryptName);
+        write(channel, c.toLine() + "\n");
+    }
+
+    /**
+     * Closes and deletes the journal. Called when the backup set is complete.
+     *
+     * Recovered crypt files that were not claimed by the new backup (because their root element was removed, renamed or
+     * excluded since the interruption) are deleted first, so they do not end up in the new backup set.
+     *
+     * @throws IOException if the journal or an unclaimed crypt file cannot be deleted
+     */
+    public void delete() throws IOException {
+        close();
+        Path dir = journalFile.getParent();
+        for (String cryptName : recovered.keySet()) {
+            logger.info("Deleting unclaimed crypt file {}", cryptName);
+            Files.deleteIfExists(dir.resolve(cryptName));
+        }
+        recovered.clear();
+        Files.deleteIfExists(journalFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static void write(FileChannel channel, String text) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        channel.force(true);
+    }
+
+    private static void deleteEntry(Path path) {
+        if (Files.isDirectory(path)) {
+            DirectoryDeleter.delete(path);
+        } else {
+            try {
+                Files.delete(path);
+            } catch (IOException e) {
+                throw new BackupException("Failed to delete " + path, e);
+            }
+        }
+    }
+}
@@ -2,15 +2,16 @@ package dk.mada.backup.impl.output;
 
 import com.dynatrace.hash4j.hashing.HashStream64;
 import com.dynatrace.hash4j.hashing.Hashing;
+import dk.mada.backup.SourceFile;
 import dk.mada.backup.cli.HumanByteCount;
 import dk.mada.backup.types.Xxh3;
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.List;
@@ -132,20 +133,40 @@ public final class TarContainerBuilder implements AutoCloseable {
     /**
      * Adds a file from the file system to the container.
      *
+     * The archive entry is made from the attributes captured with the file, so the file is only opened for reading its
+     * content.
+     *
      * @param file          the file to add
      * @param inArchiveName the in-archive name to give the file
      * @return the information for the created container entry
      */
-    public Entry addFile(Path file, String inArchiveName) {
+    public Entry addFile(SourceFile file, String inArchiveName) {
+        try (InputStream is = Files.newInputStream(file.path())) {
+            return addFile(file, inArchiveName, is);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Adds a file to the container, with content already opened.
+     *
+     * This allows the content to be read ahead (see {@link dk.mada.backup.ReadScheduler}).
+     *
+     * @param file          the file to add
+     * @param inArchiveName the in-archive name to give the file
+     * @param content       the content of the file, closed by the caller
+     * @return the information for the created container entry
+     */
+    public Entry addFile(SourceFile file, String inArchiveName, InputStream content) {
         byte[] buffer = new byte[FILE_READ_BUFFER_SIZE];
 
-        try (InputStream is = Files.newInputStream(file);
-                BufferedInputStream bis = new BufferedInputStream(is)) {
-            long size = Files.size(file);
+        try {
+            long size = file.size();
 
             String humanSize = HumanByteCount.humanReadableByteCount(size);
             logger.info(" {} {}", inArchiveName, humanSize);
-            TarArchiveEntry tae = taos.createArchiveEntry(file, inArchiveName);
+            TarArchiveEntry tae = createArchiveEntry(file, inArchiveName);
 
             logger.info("E {}", tae);
 
@@ -153,7 +174,7 @@ public final class TarContainerBuilder implements AutoCloseable {
 
             HashStream64 hashStream = Hashing.xxh3_64().hashStream();
             int read;
-            while ((read = bis.read(buffer)) > 0) {
+            while ((read = content.read(buffer)) > 0) {
                 hashStream.putBytes(buffer, 0, read);
                 taos.write(buffer, 0, read);
             }
@@ -166,6 +187,32 @@ public final class TarContainerBuilder implements AutoCloseable {
         }
     }
 
+    /**
+     * Creates an archive entry for a file.
+     *
+     * Provides the same entry as {@link TarArchiveOutputStream#createArchiveEntry(Path, String,
+     * java.nio.file.LinkOption...)}, except for owner information and status change time. These would need more file
+     * system lookups, and the owner information is cleared anyway.
+     *
+     * @param file          the file
+     * @param inArchiveName the in-archive name to give the file
+     * @return the archive entry
+     */
+    private static TarArchiveEntry createArchiveEntry(SourceFile file, String inArchiveName) {
+        BasicFileAttributes attrs = file.attributes();
+        TarArchiveEntry tae = new TarArchiveEntry(inArchiveName);
+        tae.setSize(attrs.size());
+        tae.setLastModifiedTime(attrs.lastModifiedTime());
+        tae.setCreationTime(attrs.creationTime());
+        tae.setLastAccessTime(attrs.lastAccessTime());
+        return tae;
+    }
+
+    /** {@return the entries added to the container} */
+    public List<Entry> entries() {
+        return List.copyOf(entries);
+    }
+
     /** {@return the first entry} */
     public Entry firstEntry() {
         if (entries.isEmpty()) {
@@ -0,0 +1,206 @@
+package dk.mada.backup.impl.output;
+
+import dk.mada.backup.api.BackupException;
+import dk.mada.backup.restore.RestoreScriptReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The versioned backup sets of a NAMED backup target directory.
+ *
+ * Each backup set lives in its own generation directory, .sets/N. The symbolic link current points to the generation
+ * of the current backup set, so the restore script of the current set is always found at current/NAME.sh. The relative
+ * symbolic link NAME.sh (to current/NAME.sh) keeps the script at its location from before the sets were versioned.
+ *
+ * A new backup set is promoted by renaming its working directory to the next generation directory, and then replacing
+ * the current link by an atomic rename. So the target directory always holds a complete backup set, and promotion
+ * costs the same regardless of the number of files in the set.
+ *
+ * The previous backup set is then retired to .old-sets/TIME.
+ *
+ * Target directories on file systems without symbolic links (such as FAT and exFAT) are not supported.
+ */
+public final class VersionedSets {
+    private static final Logger logger = LoggerFactory.getLogger(VersionedSets.class);
+    /** The name of the link to the current backup set. */
+    public static final String CURRENT_LINK = "current";
+    /** The name of the directory holding the generation directories. */
+    private static final String SETS_DIR = ".sets";
+    /** The name of the directory holding retired backup sets. */
+    public static final String OLD_SETS_DIR = ".old-sets";
+    /** The name of the marker file in retired backup sets. */
+    public static final String VALID_OLD_SET_MARKER = "_valid_old_set";
+    /** The name of the link used while replacing the current link. */
+    private static final String NEXT_LINK = ".current-next";
+
+    /** The target directory. */
+    private final Path targetDir;
+    /** The name of the restore script in each set. */
+    private final String scriptName;
+
+    /**
+     * Creates new instance.
+     *
+     * @param targetDir  the backup target directory
+     * @param scriptName the name of the restore script in each set
+     */
+    public VersionedSets(Path targetDir, String scriptName) {
+        this.targetDir = targetDir;
+        this.scriptName = scriptName;
+    }
+
+    /** {@return the link to the current backup set} */
+    public Path currentLink() {
+        return targetDir.resolve(CURRENT_LINK);
+    }
+
+    /** {@return the restore script of the current backup set, as seen via the current link} */
+    public Path currentScript() {
+        return currentLink().resolve(scriptName);
+    }
+
+    /**
+     * Completes a promotion or retirement interrupted by a failed backup.
+     *
+     * A generation newer than the current set is a complete set that was not made current. The older generations are
+     * sets that were not retired.
+     */
+    public void recover() {
+        List<Path> generations = listGenerations();
+        if (generations.isEmpty()) {
+            return;
+        }
+        Path newest = generations.getLast();
+        Path current = currentGeneration();
+        if (!newest.equals(current)) {
+            logger.info("Completing interrupted promotion of {}", newest);
+            flipCurrentLink(newest);
+        }
+        for (Path old : generations) {
+            if (!old.equals(newest)) {
+                retire(old);
+            }
+        }
+    }
+
+    /**
+     * Promotes a new backup set to be the current set.
+     *
+     * @param newSetDir the directory holding the new backup set
+     * @return the restore script of the new set, as seen via the current link
+     */
+    public Path promote(Path newSetDir) {
+        Path previous = currentGeneration();
+        List<Path> generations = listGenerations();
+        long next = generations.isEmpty() ? 1 : generationNumber(generations.getLast()) + 1;
+        Path nextGeneration = targetDir.resolve(SETS_DIR).resolve(Long.toString(next));
+        try {
+            Files.createDirectories(Objects.requireNonNull(nextGeneration.getParent()));
+            Files.move(newSetDir, nextGeneration, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new BackupException("Failed to move new set " + newSetDir + " to " + nextGeneration, e);
+        }
+        flipCurrentLink(nextGeneration);
+        createScriptLink();
+        logger.info("Promoted new backup set {}", nextGeneration);
+
+        if (previous != null) {
+            retire(previous);
+        }
+        return currentScript();
+    }
+
+    private void flipCurrentLink(Path generation) {
+        Path nextLink = targetDir.resolve(NEXT_LINK);
+        try {
+            Files.deleteIfExists(nextLink);
+            Files.createSymbolicLink(nextLink, Path.of(SETS_DIR, generation.getFileName().toString()));
+            Files.move(nextLink, currentLink(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new BackupException("Failed to point " + currentLink() + " to " + generation, e);
+        }
+    }
+
+    /**
+     * Creates the link to the current restore script, unless it already exists.
+     *
+     * A restore script left from an unversioned backup set is replaced.
+     */
+    private void createScriptLink() {
+        Path scriptLink = targetDir.resolve(scriptName);
+        if (Files.isSymbolicLink(scriptLink)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(scriptLink);
+            Files.createSymbolicLink(scriptLink, Path.of(CURRENT_LINK, scriptName));
+        } catch (IOException e) {
+            throw new BackupException("Failed to link " + scriptLink + " to the current restore script", e);
+        }
+    }
+
+    /**
+     * Retires a backup set to the old-sets directory.
+     *
+     * If the old-sets directory already holds a set with the same time, the set is deleted instead.
+     *
+     * @param generation the generation directory of the backup set
+     */
+    private void retire(Path generation) {
+        String time = new RestoreScriptReader().readRestoreScriptData(generation.resolve(scriptName)).time();
+        Path oldSetDir = targetDir.resolve(OLD_SETS_DIR).resolve(time);
+        if (Files.exists(oldSetDir.resolve(VALID_OLD_SET_MARKER))) {
+            logger.info("Old set {} already retired, deleting {}", oldSetDir, generation);
+            DirectoryDeleter.delete(generation);
+            return;
+        }
+        try {
+            DirectoryDeleter.delete(oldSetDir);
+            Files.createDirectories(Objects.requireNonNull(oldSetDir.getParent()));
+            Files.move(generation, oldSetDir, StandardCopyOption.ATOMIC_MOVE);
+            Files.createFile(oldSetDir.resolve(VALID_OLD_SET_MARKER));
+        } catch (IOException e) {
+            throw new BackupException("Failed to retire backup set " + generation + " to " + oldSetDir, e);
+        }
+    }
+
+    private @Nullable Path currentGeneration() {
+        Path link = currentLink();
+        if (!Files.isSymbolicLink(link)) {
+            return null;
+        }
+        try {
+            return targetDir.resolve(Files.readSymbolicLink(link)).normalize();
+        } catch (IOException e) {
+            throw new BackupException("Failed to read link " + link, e);
+        }
+    }
+
+    private List<Path> listGenerations() {
+        Path setsDir = targetDir.resolve(SETS_DIR);
+        if (!Files.isDirectory(setsDir)) {
+            return List.of();
+        }
+        try (Stream<Path> dirs = Files.list(setsDir)) {
+            return dirs.filter(d -> d.getFileName().toString().matches("\\d+"))
+                    .map(Path::normalize)
+                    .sorted(Comparator.comparingLong(VersionedSets::generationNumber))
+                    .toList();
+        } catch (IOException e) {
+            throw new BackupException("Failed to list backup sets in " + setsDir, e);
+        }
+    }
+
+    private static long generationNumber(Path generation) {
+        return Long.parseLong(generation.getFileName().toString());
+    }
+}
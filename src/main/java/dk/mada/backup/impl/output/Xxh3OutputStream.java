@@ -0,0 +1,77 @@
+package dk.mada.backup.impl.output;
+
+import com.dynatrace.hash4j.hashing.HashStream64;
+import com.dynatrace.hash4j.hashing.Hashing;
+import dk.mada.backup.types.Xxh3;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Output stream computing the size and XXH3 checksum of the data written through it.
+ *
+ * Used for checksumming crypt files while they are written, so they do not have to be read back.
+ */
+final class Xxh3OutputStream extends FilterOutputStream {
+    /** Buffer size used when computing file checksums. */
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+    /** The checksum of the data written so far. */
+    private final HashStream64 hashStream = Hashing.xxh3_64().hashStream();
+    /** The number of bytes written so far. */
+    private long count;
+
+    /**
+     * Creates new instance.
+     *
+     * @param out the stream to write the data to
+     */
+    Xxh3OutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Computes the checksum of a file.
+     *
+     * @param file the file
+     * @return the checksum of the file's content
+     * @throws IOException if the file cannot be read
+     */
+    static Xxh3 checksum(Path file) throws IOException {
+        byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+        try (InputStream is = Files.newInputStream(file);
+                Xxh3OutputStream hashing = new Xxh3OutputStream(OutputStream.nullOutputStream())) {
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                hashing.write(buffer, 0, read);
+            }
+            return hashing.xxh3();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        hashStream.putByte((byte) b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        hashStream.putBytes(b, off, len);
+        count += len;
+    }
+
+    /** {@return the number of bytes written} */
+    long count() {
+        return count;
+    }
+
+    /** {@return the checksum of the bytes written} */
+    Xxh3 xxh3() {
+        return Xxh3.of(hashStream.getAsLong());
+    }
+}
@@ -6,10 +6,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Executes a restore script.
@@ -52,18 +52,16 @@ public final class RestoreExecutor {
     }
 
     private static Result runCmd(Path script, Map<String, String> envOverrides, String... args) {
-        Path runInDir = script.getParent();
-        if (runInDir == null) {
-            runInDir = Paths.get(".");
-        }
-        List<String> cmd =
-                new ArrayList<>(List.of("/bin/bash", script.toAbsolutePath().toString()));
-        cmd.addAll(List.of(args));
-        ProcessBuilder pb = new ProcessBuilder(cmd).directory(runInDir.toFile()).redirectErrorStream(true);
+        try {
+            // A link to the restore script is resolved, so the script runs in the directory of the backup set
+            Path realScript = script.toRealPath();
+            Path runInDir = Objects.requireNonNull(realScript.getParent());
+            List<String> cmd = new ArrayList<>(List.of("/bin/bash", realScript.toString()));
+            cmd.addAll(List.of(args));
+            ProcessBuilder pb = new ProcessBuilder(cmd).directory(runInDir.toFile()).redirectErrorStream(true);
 
-        pb.environment().putAll(envOverrides);
+            pb.environment().putAll(envOverrides);
 
-        try {
             Process p = pb.start();
             String output = readOutput(p);
 
@@ -36,6 +36,8 @@ public class RestoreScriptReader {
     private static final int IX_MD5_END = 62;
     /** Data line MD5 index start. */
     private static final int IX_MD5_START = 30;
+    /** Bucket line element count index end. */
+    private static final int IX_COUNT_END = 36;
     /** Marker prefix for backup set name. */
     private static final String BACKUP_NAME_PREFIX = "# @name: ";
     /** Marker prefix for backup script version. */
@@ -69,6 +71,7 @@ public class RestoreScriptReader {
      * @param dataType          the script's data type (i.e. the backup creation output type)
      * @param gpgKeyId          the GPG key id used for encryption
      * @param rootFilesV2       a list of V2 root file entries
+     * @param buckets           a list of the buckets of root files (empty if not using buckets)
      * @param filesV2           a list of V2 file entries
      */
     public record RestoreScriptData(
@@ -80,6 +83,7 @@ public class RestoreScriptReader {
             BackupOutputType dataType,
             GpgId gpgKeyId,
             List<DataRootFile> rootFilesV2,
+            List<DataBucket> buckets,
             List<DataFile> filesV2) {
 
         /** {@return an empty data instance} */
@@ -97,6 +101,7 @@ public class RestoreScriptReader {
                     BackupOutputType.UNKNOWN,
                     UNKNOWN_GPG_ID,
                     List.of(),
+                    List.of(),
                     List.of());
         }
 
@@ -116,6 +121,20 @@ public class RestoreScriptReader {
      */
     public record DataRootFile(String name, boolean isDirectory, DataCrypt crypt, DataArchive archive) {}
 
+    /**
+     * Information about a bucket of root files, packed in a single encrypted file.
+     *
+     * @param crypt     information about the encrypted file
+     * @param archive   information about the archive in the encrypted file
+     * @param rootFiles the root files in the bucket
+     */
+    public record DataBucket(DataCrypt crypt, DataArchive archive, List<DataRootFile> rootFiles) {
+        /** {@return the names of the root files in the bucket} */
+        public List<String> rootNames() {
+            return rootFiles.stream().map(DataRootFile::name).toList();
+        }
+    }
+
     /**
      * V2 information about an encrypted file.
      *
@@ -148,6 +167,9 @@ public class RestoreScriptReader {
      *
      * NOTE: the script should self-validate before parsing it to ensure valid data.
      *
+     * If the script is a symbolic link (such as the link to the current script of a NAMED backup), the backup set is
+     * located in the directory of the link target.
+     *
      * @param scriptFile the script to read
      * @return the resulting data
      */
@@ -157,7 +179,9 @@ public class RestoreScriptReader {
         }
 
         try {
-            Path backupSetDir = Objects.requireNonNull(scriptFile.getParent());
+            // A link to the restore script is resolved, so the backup set is in the directory of the actual script
+            Path scriptPath = scriptFile.toRealPath();
+            Path backupSetDir = Objects.requireNonNull(scriptPath.getParent());
             String script = Files.readString(scriptFile);
             return parseScript(backupSetDir, script);
         } catch (Exception e) {
@@ -175,9 +199,11 @@ public class RestoreScriptReader {
      */
     public RestoreScriptData parseScript(Path backupSetDir, String script) {
         boolean collectingCrypts = false;
+        boolean collectingBuckets = false;
         boolean collectingArchives = false;
         boolean collectingFiles = false;
         List<String> cryptLines = new ArrayList<>();
+        List<String> bucketLines = new ArrayList<>();
         List<String> archiveLines = new ArrayList<>();
         List<String> fileLines = new ArrayList<>();
         String name = "unknown";
@@ -212,6 +238,9 @@ public class RestoreScriptReader {
             if (l.startsWith("crypts=(")) {
                 collectingCrypts = true;
             }
+            if (l.startsWith("buckets=(")) {
+                collectingBuckets = true;
+            }
             if (l.startsWith("archives=(")) {
                 collectingArchives = true;
             }
@@ -222,6 +251,9 @@ public class RestoreScriptReader {
                 if (collectingCrypts) {
                     cryptLines.add(l);
                 }
+                if (collectingBuckets) {
+                    bucketLines.add(l);
+                }
                 if (collectingArchives) {
                     archiveLines.add(l);
                 }
@@ -231,6 +263,7 @@ public class RestoreScriptReader {
             }
             if (l.startsWith(")")) {
                 collectingCrypts = false;
+                collectingBuckets = false;
                 collectingArchives = false;
                 collectingFiles = false;
 
@@ -240,10 +273,20 @@ public class RestoreScriptReader {
                 }
             }
         }
-        List<DataRootFile> rootFiles = decodeRootFiles(backupSetDir, dataFormatVersion, cryptLines, archiveLines);
+        List<DataBucket> buckets =
+                decodeBuckets(backupSetDir, dataFormatVersion, cryptLines, bucketLines, archiveLines);
+        List<DataRootFile> rootFiles;
+        if (outputType == BackupOutputType.NUMBERED || outputType == BackupOutputType.SEGMENTED) {
+            // the root files are not encrypted individually, so cannot be paired with crypt files
+            rootFiles = List.of();
+        } else if (buckets.isEmpty()) {
+            rootFiles = decodeRootFiles(backupSetDir, dataFormatVersion, cryptLines, archiveLines);
+        } else {
+            rootFiles = buckets.stream().flatMap(b -> b.rootFiles().stream()).toList();
+        }
         List<DataFile> files = decodeFiles(dataFormatVersion, fileLines);
         return new RestoreScriptData(
-                name, backupSetDir, version, time, dataFormatVersion, outputType, gpgId, rootFiles, files);
+                name, backupSetDir, version, time, dataFormatVersion, outputType, gpgId, rootFiles, buckets, files);
     }
 
     private List<DataRootFile> decodeRootFiles(
@@ -267,6 +310,44 @@ public class RestoreScriptReader {
                 .toList();
     }
 
+    private List<DataBucket> decodeBuckets(
+            Path backupSetDir,
+            DataFormatVersion dataFormatVersion,
+            List<String> cryptLines,
+            List<String> bucketLines,
+            List<String> archiveLines) {
+        if (dataFormatVersion != DataFormatVersion.VERSION_2 || bucketLines.isEmpty()) {
+            return List.of();
+        }
+        if (cryptLines.size() != bucketLines.size()) {
+            throw new IllegalStateException("Expect same number of encrypted files and buckets!");
+        }
+
+        List<DataBucket> buckets = new ArrayList<>();
+        int archiveIx = 0;
+        for (int i = 0; i < cryptLines.size(); i++) {
+            DataCrypt dc = deserializeCryptV2(backupSetDir, cryptLines.get(i));
+            String l = bucketLines.get(i);
+            DataArchive bucketArchive = new DataArchive(
+                    Long.parseLong(l.substring(1, IX_LENGTH_END).trim()),
+                    Xxh3.ofHex(l.substring(IX_XXH3_START, IX_XXH3_END)));
+            int count = Integer.parseInt(l.substring(IX_NAME_START, IX_COUNT_END).trim());
+            if (archiveIx + count > archiveLines.size()) {
+                throw new IllegalStateException("Buckets contain more root files than there are archives!");
+            }
+
+            List<DataRootFile> rootFiles = archiveLines.subList(archiveIx, archiveIx + count).stream()
+                    .map(al -> deserializeArchiveV2(dc, al))
+                    .toList();
+            archiveIx += count;
+            buckets.add(new DataBucket(dc, bucketArchive, rootFiles));
+        }
+        if (archiveIx != archiveLines.size()) {
+            throw new IllegalStateException("Expect buckets to contain all archives!");
+        }
+        return buckets;
+    }
+
     private List<DataFile> decodeFiles(DataFormatVersion dataFormatVersion, List<String> fileLines) {
         if (dataFormatVersion != DataFormatVersion.VERSION_2) {
             return List.of();
@@ -1,6 +1,7 @@
 package dk.mada.backup.restore;
 
 import dk.mada.backup.BackupElement;
+import dk.mada.backup.FileCatalog;
 import dk.mada.backup.api.BackupTargetExistsException;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -14,6 +15,7 @@ import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -40,38 +42,96 @@ public final class RestoreScriptWriter {
                     local size=${l:0:11}
                     local xxh3=${l:12:16}
                     local file=${l:29}""");
+    /** Writes the lines of a script section. */
+    @FunctionalInterface
+    public interface SectionWriter {
+        /**
+         * Writes the section lines.
+         *
+         * @param bw the script writer
+         * @throws IOException if writing fails
+         */
+        void write(BufferedWriter bw) throws IOException;
+
+        /**
+         * Creates a section of backup elements.
+         *
+         * @param elements the elements, in the order to write them
+         * @return the section writer
+         */
+        static SectionWriter of(List<? extends BackupElement> elements) {
+            return bw -> writeElements(bw, elements);
+        }
+
+        /**
+         * Creates a section of the files in a catalog.
+         *
+         * @param catalog the file catalog
+         * @return the section writer
+         */
+        static SectionWriter of(FileCatalog catalog) {
+            return bw -> writeCatalog(bw, catalog);
+        }
+    }
+
     /** The variables values to expand in the script. */
     private final Map<VariableName, String> vars;
     /** The encrypted file data to add to the script. */
     private final List<? extends BackupElement> crypts;
+    /** The bucket data of the encrypted files to add to the script. */
+    private final List<? extends BackupElement> buckets;
     /** The tar file data to add to the script. */
     private final List<? extends BackupElement> tars;
-    /** The file data to add to the script. */
-    private final List<? extends BackupElement> files;
+    /** The writer of the file data to add to the script. */
+    private final SectionWriter files;
+    /** The (escaped) names of the base set files that have been deleted. */
+    private final List<String> deleted;
 
     /**
      * Creates new instance.
      *
-     * @param vars   the variables to expand in the script template
-     * @param crypts the information about crypted files
-     * @param tars   the information about tar files
-     * @param files  the information about the origin files
+     * @param vars    the variables to expand in the script template
+     * @param crypts  the information about crypted files
+     * @param buckets the bucket information of the crypted files (empty if not using buckets)
+     * @param tars    the information about tar files
+     * @param files   the writer of the origin files, see {@link SectionWriter#of(FileCatalog)}
+     * @param deleted the (shell escaped) names of the base set files that have been deleted (empty if not incremental)
      */
     public RestoreScriptWriter(
             Map<VariableName, String> vars,
             List<? extends BackupElement> crypts,
+            List<? extends BackupElement> buckets,
             List<? extends BackupElement> tars,
-            List<? extends BackupElement> files) {
+            SectionWriter files,
+            List<String> deleted) {
         this.vars = vars;
         this.crypts = crypts;
+        this.buckets = buckets;
         this.tars = tars;
         this.files = files;
+        this.deleted = deleted;
+    }
+
+    /**
+     * Creates a writer with a different value for a variable.
+     *
+     * Used for values that depend on the location of the written restore script.
+     *
+     * @param name  the variable name
+     * @param value the new value
+     * @return the new writer
+     */
+    public RestoreScriptWriter withVariable(VariableName name, String value) {
+        Map<VariableName, String> newVars = new EnumMap<>(vars);
+        newVars.put(name, value);
+        return new RestoreScriptWriter(newVars, crypts, buckets, tars, files, deleted);
     }
 
     /**
      * Constructs and writes restore script.
      *
-     * Note that the lists are added to the script in the order provided.
+     * Note that the lists are added to the script in the order provided. The elements are written one at a time, so
+     * the script text of a large backup is never held in memory.
      *
      * @param script the destination path for the script
      */
@@ -89,20 +149,29 @@ public final class RestoreScriptWriter {
             boolean ignoringSection = false;
             while ((line = br.readLine()) != null) {
                 String addLine = line;
+                SectionWriter section = null;
                 if (line.startsWith("#BEGIN_")) {
                     ignoringSection = true;
                 } else if (line.startsWith("#END_CRYPTS")) {
-                    addLine = elementsToText(crypts);
+                    section = SectionWriter.of(crypts);
+                    ignoringSection = false;
+                } else if (line.startsWith("#END_BUCKETS")) {
+                    section = SectionWriter.of(buckets);
                     ignoringSection = false;
                 } else if (line.startsWith("#END_ARCHIVES")) {
-                    addLine = elementsToText(tars);
+                    section = SectionWriter.of(tars);
                     ignoringSection = false;
                 } else if (line.startsWith("#END_FILES")) {
-                    addLine = elementsToText(files);
+                    section = files;
+                    ignoringSection = false;
+                } else if (line.startsWith("#END_DELETED")) {
+                    addLine = deleted.stream().map(n -> "\"" + n + "\"").collect(Collectors.joining("\n"));
                     ignoringSection = false;
                 }
 
-                if (!ignoringSection) {
+                if (section != null) {
+                    section.write(bw);
+                } else if (!ignoringSection) {
                     String expanded = expandVars(addLine);
 
                     bw.write(expanded);
@@ -161,7 +230,41 @@ public final class RestoreScriptWriter {
         }
     }
 
-    private String elementsToText(List<? extends BackupElement> elements) {
-        return elements.stream().map(BackupElement::toBackupSummary).collect(Collectors.joining("\n"));
+    /**
+     * Writes the summaries of backup elements, one per line.
+     *
+     * An empty line is written if there are no elements.
+     *
+     * @param bw       the script writer
+     * @param elements the elements to write
+     * @throws IOException if writing fails
+     */
+    private static void writeElements(BufferedWriter bw, List<? extends BackupElement> elements) throws IOException {
+        boolean first = true;
+        for (BackupElement e : elements) {
+            if (!first) {
+                bw.append('\n');
+            }
+            bw.write(e.toBackupSummary());
+            first = false;
+        }
+        bw.append('\n');
+    }
+
+    /**
+     * Writes the summaries of the files in a catalog, one per line.
+     *
+     * An empty line is written if there are no files.
+     *
+     * @param bw      the script writer
+     * @param catalog the file catalog
+     * @throws IOException if writing fails
+     */
+    private static void writeCatalog(BufferedWriter bw, FileCatalog catalog) throws IOException {
+        if (catalog.size() == 0) {
+            bw.append('\n');
+        } else {
+            catalog.writeTo(bw);
+        }
     }
 }
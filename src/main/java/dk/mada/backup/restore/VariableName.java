@@ -4,6 +4,14 @@ package dk.mada.backup.restore;
  * The variables used in the restore script.
  */
 public enum VariableName {
+    /** The restore script of the base set, relative to the backup set. Empty if the backup is not incremental. */
+    BACKUP_BASE,
+    /** The compression (possibly) applied to the data before encryption. */
+    BACKUP_COMPRESSION,
+    /** The patterns of source entries excluded from the backup, as quoted shell words. */
+    BACKUP_EXCLUDES,
+    /** The patterns of source entries included in the backup despite the exclude patterns, as quoted shell words. */
+    BACKUP_INCLUDES,
     /** The creation time of the backup. */
     BACKUP_DATE_TIME,
     /** The (original) size of the backed up data. */
@@ -12,7 +20,7 @@ public enum VariableName {
     BACKUP_KEY_ID,
     /** The name of the backup. */
     BACKUP_NAME,
-    /** Backup output type. Takes on values NAMED or NUMBERED. */
+    /** Backup output type. Takes on values NAMED, NUMBERED or SEGMENTED. */
     BACKUP_OUTPUT_TYPE,
     /** The version of the format used for file data. */
     DATA_FORMAT_VERSION,
@@ -1,6 +1,7 @@
 package dk.mada.backup.restore.java;
 
 import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.gpg.Compression;
 import dk.mada.backup.restore.DataFormatVersion;
 import dk.mada.backup.restore.RestoreScriptWriter;
 import dk.mada.backup.types.Md5;
@@ -61,12 +62,7 @@ public record BackupSet(
             if (")".equals(line)) {
                 break;
             }
-            String l = line.substring(1, line.length() - 1);
-            crypts.add(new Crypt(
-                    Long.valueOf(l.substring(0, 11).trim()),
-                    Xxh3.ofHex(l.substring(12, 28)),
-                    Md5.ofHex(l.substring(29, 61)),
-                    l.substring(62)));
+            crypts.add(Crypt.fromScriptLine(line));
         }
         for (int i = iArchives + 1; i < iFiles; i++) {
             String line = lines.get(i);
@@ -107,6 +103,7 @@ public record BackupSet(
      *                          set
      * @param time              the time the backup was made
      * @param type              the output type of the backup set
+     * @param compression       the compression (possibly) applied before encryption
      */
     public record BackupMetadata(
             String name,
@@ -114,7 +111,8 @@ public record BackupSet(
             DataFormatVersion dataFormatVersion,
             String gpgKeyId,
             LocalDateTime time,
-            BackupOutputType type) {
+            BackupOutputType type,
+            Compression compression) {
 
         /** The name header. */
         private static final String BACKUP_NAME = "# @name:";
@@ -128,6 +126,8 @@ public record BackupSet(
         private static final String TIME = "# @time:";
         /** The output type header. */
         private static final String OUTPUT_TYPE = "# @output_type:";
+        /** The compression header. Not present in older backup sets. */
+        private static final String COMPRESSION = "# @compression:";
 
         /**
          * Parses the header lines of a restore script to extract backup set metadata.
@@ -142,6 +142,7 @@ public record BackupSet(
             String gpgKeyId = null;
             LocalDateTime time = null;
             BackupOutputType outputType = null;
+            Compression compression = Compression.NONE;
 
             for (String l : lines) {
                 if (l.startsWith(BACKUP_NAME)) {
@@ -168,6 +169,10 @@ public record BackupSet(
                     outputType = BackupOutputType.from(
                             l.substring(OUTPUT_TYPE.length()).trim());
                 }
+                if (l.startsWith(COMPRESSION)) {
+                    compression = Compression.fromGpgName(
+                            l.substring(COMPRESSION.length()).trim());
+                }
             }
             return new BackupMetadata(
                     Objects.requireNonNull(name, "Did not find backup name"),
@@ -175,7 +180,8 @@ public record BackupSet(
                     Objects.requireNonNull(dataFormat, "Did not fiond data format"),
                     Objects.requireNonNull(gpgKeyId, "Did not find gpg key"),
                     Objects.requireNonNull(time, "Did not find time"),
-                    Objects.requireNonNull(outputType, "Did not find output type"));
+                    Objects.requireNonNull(outputType, "Did not find output type"),
+                    compression);
         }
     }
 
@@ -188,6 +194,21 @@ public record BackupSet(
      * @param name the name of the file
      */
     public record Crypt(long size, Xxh3 xxh, Md5 md5, String name) {
+        /**
+         * Parses a line of the crypts section in a restore script.
+         *
+         * @param line the (quoted) line
+         * @return the crypt information
+         */
+        public static Crypt fromScriptLine(String line) {
+            String l = line.substring(1, line.length() - 1);
+            return new Crypt(
+                    Long.valueOf(l.substring(0, 11).trim()),
+                    Xxh3.ofHex(l.substring(12, 28)),
+                    Md5.ofHex(l.substring(29, 61)),
+                    l.substring(62));
+        }
+
         String pretty() {
             return xxh.hex() + " " + md5.hex() + String.format(" %10d %s", size, name);
         }
@@ -230,15 +251,18 @@ public record BackupSet(
         /**
          * Parses data from shell restore script.
          *
+         * A link to the restore script is resolved, so the backup set is in the directory of the actual script.
+         *
          * @param restoreScript the restore script
          * @return the parsed data
          */
         public static LocalBackupSet newFromRestoreScript(Path restoreScript) {
             List<String> lines;
             try {
-                lines = Files.readAllLines(restoreScript);
-                Path backupSetDir = Objects.requireNonNull(restoreScript.getParent());
-                return new LocalBackupSet(backupSetDir, restoreScript, parseRestoreScript(lines));
+                Path script = restoreScript.toRealPath();
+                lines = Files.readAllLines(script);
+                Path backupSetDir = Objects.requireNonNull(script.getParent());
+                return new LocalBackupSet(backupSetDir, script, parseRestoreScript(lines));
             } catch (IOException e) {
                 throw new UncheckedIOException("Failed reading data " + restoreScript, e);
             }
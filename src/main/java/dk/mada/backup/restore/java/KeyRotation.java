@@ -0,0 +1,176 @@
+package dk.mada.backup.restore.java;
+
+import dk.mada.backup.FileInfo;
+import dk.mada.backup.ShellEscaper;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.gpg.GpgEncrypterException;
+import dk.mada.backup.gpg.SessionKeyRewrapper;
+import dk.mada.backup.restore.java.BackupSet.Crypt;
+import dk.mada.backup.restore.java.BackupSet.LocalBackupSet;
+import dk.mada.backup.types.GpgId;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rotates the encryption key of a backup set.
+ *
+ * The session key of each encrypted message is rewrapped for the new key; the encrypted data is left untouched.
+ *
+ * For NAMED and SEGMENTED backups each crypt file is a message. For NUMBERED backups the crypt files are parts of a
+ * single message, so only the first file changes.
+ *
+ * The rewrapped messages are written to new files next to the crypt files, and the rotated restore script (with the
+ * new key id in the header and the info output, and checksums of the changed crypt files) is written next to the
+ * restore script. Only then are the files renamed into place. The rotated restore script marks that all files are
+ * ready, so an interrupted rotation is completed by running it again.
+ */
+public final class KeyRotation {
+    private static final Logger logger = LoggerFactory.getLogger(KeyRotation.class);
+    /** Start of the crypts section in the restore script. */
+    private static final String CRYPTS_START = "crypts=(";
+    /** End of sections in the restore script. */
+    private static final String SECTION_END = ")";
+    /** Start of the key id header line in the restore script. */
+    private static final String KEY_ID_HEADER = "# @gpg_key_id: ";
+    /** The key id part of the info output in the restore script. */
+    private static final String KEY_ID_INFO = " encrypted with key id ";
+    /** Suffix of the rewrapped crypt files. */
+    private static final String REWRAP_SUFFIX = ".rewrap";
+    /** Suffix of the rotated restore script, ready to be renamed into place. */
+    private static final String ROTATED_SUFFIX = ".rotate";
+    /** Suffix of the rotated restore script while it is written. */
+    private static final String TEMP_SUFFIX = ".rotate-tmp";
+
+    /** The backup set to rotate. */
+    private final LocalBackupSet backupSet;
+    /** The session key rewrapper. */
+    private final SessionKeyRewrapper rewrapper;
+    /** The new key id. */
+    private final GpgId newKeyId;
+
+    /**
+     * Creates new instance.
+     *
+     * @param backupSet the backup set to rotate
+     * @param rewrapper the session key rewrapper targeting the new key
+     * @param newKeyId  the id of the new key
+     */
+    public KeyRotation(LocalBackupSet backupSet, SessionKeyRewrapper rewrapper, GpgId newKeyId) {
+        this.backupSet = backupSet;
+        this.rewrapper = rewrapper;
+        this.newKeyId = newKeyId;
+    }
+
+    /**
+     * Rotates the backup set's key.
+     *
+     * If an earlier rotation was interrupted after all its files were ready, that rotation is completed instead.
+     *
+     * @throws GpgEncrypterException if a session key cannot be rewrapped
+     */
+    public void rotate() throws GpgEncrypterException {
+        BackupSet data = backupSet.backupSetData();
+        List<Crypt> crypts = data.crypts();
+        List<Crypt> messages = data.backupMetadata().type() == BackupOutputType.NUMBERED && !crypts.isEmpty()
+                ? List.of(crypts.getFirst())
+                : crypts;
+        List<Path> files = messages.stream()
+                .map(c -> backupSet.backupSetDir().resolve(ShellEscaper.fromSafeShellString(c.name())))
+                .toList();
+
+        Path script = backupSet.restoreScript();
+        Path rotatedScript = withSuffix(script, ROTATED_SUFFIX);
+        if (Files.exists(rotatedScript)) {
+            logger.info("Completing interrupted key rotation of {}", script);
+        } else {
+            prepareFiles(data.backupMetadata().gpgKeyId(), messages, files, rotatedScript);
+        }
+
+        try {
+            for (Path file : files) {
+                Path rewrapped = withSuffix(file, REWRAP_SUFFIX);
+                // already renamed if the rotation was interrupted
+                if (Files.exists(rewrapped)) {
+                    Files.move(rewrapped, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            Files.move(rotatedScript, script, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Restore script {} updated", script);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to rename rotated files of " + script, e);
+        }
+    }
+
+    /**
+     * Writes the rewrapped crypt files and the rotated restore script.
+     *
+     * @param oldKeyId      the id of the old key
+     * @param messages      the crypt files holding a session key
+     * @param files         the paths of the crypt files
+     * @param rotatedScript the rotated restore script to write
+     * @throws GpgEncrypterException if a session key cannot be rewrapped
+     */
+    private void prepareFiles(String oldKeyId, List<Crypt> messages, List<Path> files, Path rotatedScript)
+            throws GpgEncrypterException {
+        Map<String, String> newCryptLines = new HashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            Path file = files.get(i);
+            Path rewrapped = withSuffix(file, REWRAP_SUFFIX);
+            logger.info(" - ({}/{}) {}", i + 1, messages.size(), file.getFileName());
+            rewrapper.rewrap(file, rewrapped);
+            String name = file.getFileName().toString();
+            newCryptLines.put(
+                    messages.get(i).name(),
+                    FileInfo.fromCryptFile(backupSet.backupSetDir(), rewrapped)
+                            .withPathName(name)
+                            .toBackupSummary());
+        }
+
+        writeRotatedScript(oldKeyId, newCryptLines, rotatedScript);
+    }
+
+    private void writeRotatedScript(String oldKeyId, Map<String, String> newCryptLines, Path rotatedScript) {
+        Path script = backupSet.restoreScript();
+        try {
+            List<String> lines = Files.readAllLines(script);
+            List<String> updated = new ArrayList<>(lines.size());
+            boolean inCrypts = false;
+            for (String l : lines) {
+                if (CRYPTS_START.equals(l)) {
+                    inCrypts = true;
+                } else if (SECTION_END.equals(l)) {
+                    inCrypts = false;
+                }
+
+                if (inCrypts && l.length() > 1 && l.startsWith("\"")) {
+                    String name = Crypt.fromScriptLine(l).name();
+                    updated.add(newCryptLines.getOrDefault(name, l));
+                } else if (l.startsWith(KEY_ID_HEADER) || l.contains(KEY_ID_INFO)) {
+                    updated.add(l.replace(oldKeyId, newKeyId.id()));
+                } else {
+                    updated.add(l);
+                }
+            }
+
+            Path tempScript = withSuffix(script, TEMP_SUFFIX);
+            Files.write(tempScript, updated);
+            Files.setPosixFilePermissions(tempScript, Files.getPosixFilePermissions(script));
+            Files.move(tempScript, rotatedScript, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write rotated restore script " + rotatedScript, e);
+        }
+    }
+
+    private static Path withSuffix(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+}
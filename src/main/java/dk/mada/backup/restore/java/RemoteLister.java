@@ -0,0 +1,80 @@
+package dk.mada.backup.restore.java;
+
+import dk.mada.backup.FileInfo;
+import dk.mada.backup.restore.java.RemoteListing.RemoteFile;
+import dk.mada.backup.types.Md5;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Provides the listing of a remote backup location.
+ */
+@FunctionalInterface
+public interface RemoteLister {
+    /**
+     * Lists the remote files.
+     *
+     * @return the remote listing
+     * @throws IOException if the listing fails
+     */
+    RemoteListing list() throws IOException;
+
+    /**
+     * Creates a lister reading a saved listing file.
+     *
+     * @param listingFile the listing file, see {@link RemoteListing#parse(List)}
+     * @return the lister
+     */
+    static RemoteLister fromListingFile(Path listingFile) {
+        return () -> RemoteListing.parse(Files.readAllLines(listingFile));
+    }
+
+    /**
+     * Creates a lister running a listing command once, e.g. {@code jotta-cli ls -l -a path}.
+     *
+     * @param command the command and its arguments
+     * @return the lister
+     */
+    static RemoteLister fromCommand(List<String> command) {
+        return () -> {
+            Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            try {
+                int exitValue = p.waitFor();
+                if (exitValue != 0) {
+                    throw new IOException("Listing command " + command + " failed with " + exitValue + ":\n" + output);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for listing command " + command);
+            }
+            return RemoteListing.parse(output.lines().toList());
+        };
+    }
+
+    /**
+     * Creates a lister examining the files of a local directory, standing in for the remote location.
+     *
+     * @param dir the directory
+     * @return the lister
+     */
+    static RemoteLister fromDirectory(Path dir) {
+        return () -> {
+            Map<String, RemoteFile> files = new HashMap<>();
+            try (Stream<Path> entries = Files.list(dir)) {
+                for (Path f : entries.filter(Files::isRegularFile).toList()) {
+                    Md5 md5 = Md5.ofHex(FileInfo.fromCryptFile(dir, f).getMd5());
+                    files.put(f.getFileName().toString(), new RemoteFile(Files.size(f), md5));
+                }
+            }
+            return new RemoteListing(files);
+        };
+    }
+}
@@ -0,0 +1,79 @@
+package dk.mada.backup.restore.java;
+
+import dk.mada.backup.types.Md5;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Listing of the files at a remote backup location.
+ *
+ * @param files the remote files, by name
+ */
+public record RemoteListing(Map<String, RemoteFile> files) {
+    /** Pattern matching an md5sum line: the checksum, a space and a text/binary marker, and the file name. */
+    private static final Pattern MD5SUM_LINE = Pattern.compile("(?<md5>[0-9a-fA-F]{32}) [ *](?<name>.+)");
+    /**
+     * Pattern matching a line with the file name first: the name (which may contain spaces), an optional size, and the
+     * checksum, optionally followed by more columns.
+     */
+    private static final Pattern NAME_FIRST_LINE =
+            Pattern.compile("(?<name>\\S.*?)\\s+(?:(?<size>[0-9]+)\\s+)?(?<md5>[0-9a-fA-F]{32})(?:\\s.*)?");
+
+    /**
+     * Creates new instance.
+     *
+     * @param files the remote files, by name
+     */
+    public RemoteListing {
+        files = Map.copyOf(files);
+    }
+
+    /**
+     * Information about a remote file.
+     *
+     * @param size the size of the file, or {@link #UNKNOWN_SIZE} if not listed
+     * @param md5  the MD5 checksum of the file
+     */
+    public record RemoteFile(long size, Md5 md5) {
+        /** Size of a file listed without size. */
+        public static final long UNKNOWN_SIZE = -1;
+    }
+
+    /**
+     * Parses the lines of a remote listing.
+     *
+     * Lines without an MD5 checksum (headers, folders) are ignored. Lines starting with the checksum are in md5sum
+     * format, with the rest of the line being the file name. Otherwise the file name is first (as expected by the
+     * restore script's {@code verify -j}), directly followed by the size (if listed) and the checksum. The name is
+     * everything before these columns, so it may contain spaces.
+     *
+     * @param lines the listing lines
+     * @return the remote listing
+     */
+    public static RemoteListing parse(List<String> lines) {
+        Map<String, RemoteFile> files = new HashMap<>();
+        for (String line : lines) {
+            String l = line.strip();
+            Matcher md5sum = MD5SUM_LINE.matcher(l);
+            if (md5sum.matches()) {
+                files.put(md5sum.group("name"), new RemoteFile(RemoteFile.UNKNOWN_SIZE, md5Of(md5sum)));
+                continue;
+            }
+            Matcher nameFirst = NAME_FIRST_LINE.matcher(l);
+            if (nameFirst.matches()) {
+                String size = nameFirst.group("size");
+                long fileSize = size == null ? RemoteFile.UNKNOWN_SIZE : Long.parseLong(size);
+                files.put(nameFirst.group("name"), new RemoteFile(fileSize, md5Of(nameFirst)));
+            }
+        }
+        return new RemoteListing(files);
+    }
+
+    private static Md5 md5Of(Matcher m) {
+        return Md5.ofHex(m.group("md5").toLowerCase(Locale.ROOT));
+    }
+}
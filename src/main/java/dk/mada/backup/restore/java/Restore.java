@@ -1,12 +1,27 @@
 package dk.mada.backup.restore.java;
 
+import dk.mada.backup.cli.GpgRecipientConverter;
+import dk.mada.backup.cli.HumanByteCount;
+import dk.mada.backup.gpg.GpgEncrypterException;
+import dk.mada.backup.gpg.GpgSessionKeyDecrypter;
+import dk.mada.backup.gpg.OpenPgpPublicKey;
+import dk.mada.backup.gpg.SessionKeyRewrapper;
+import dk.mada.backup.impl.output.OldSetPruner;
+import dk.mada.backup.impl.output.OldSetPruner.OldSet;
+import dk.mada.backup.impl.output.OldSetPruner.PrunePlan;
+import dk.mada.backup.impl.output.OldSetPruner.Retention;
 import dk.mada.backup.restore.java.BackupSet.Archive;
 import dk.mada.backup.restore.java.BackupSet.BackupMetadata;
 import dk.mada.backup.restore.java.BackupSet.Crypt;
 import dk.mada.backup.restore.java.BackupSet.DataFile;
 import dk.mada.backup.restore.java.BackupSet.LocalBackupSet;
+import dk.mada.backup.restore.java.SyncPlanner.SyncPlan;
+import dk.mada.backup.types.GpgId;
 import dk.mada.logging.LoggerConfig;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
@@ -53,6 +68,7 @@ public final class Restore implements Callable<Integer> {
         logger.info(" created on " + metadata.time());
         logger.info(" original size " + "TODO");
         logger.info(" encrypted with key id " + metadata.gpgKeyId());
+        logger.info(" compression " + metadata.compression().gpgName());
 
         if (!full) {
             logger.info(backupSetData.crypts().size() + " crypted archive(s) contains "
@@ -70,6 +86,145 @@ public final class Restore implements Callable<Integer> {
         }
     }
 
+    /**
+     * Command for rotating the encryption key of the backup set.
+     *
+     * @param baseArgs        the base arguments
+     * @param newRecipientId  the new recipient key id
+     * @param newRecipientKey the new recipient public key file, or null to export it from GPG
+     * @param gpgHomeDir      the GPG home dir holding the current secret key, or null for the default
+     * @throws GpgEncrypterException if a session key cannot be rewrapped
+     */
+    @Command(name = "rotate-key", description = "Rewrap backup set session keys for a new GPG key")
+    void rotateKey(
+            @Mixin BaseArgs baseArgs,
+            @Option(
+                            names = "-r",
+                            required = true,
+                            converter = GpgRecipientConverter.class,
+                            description = "new GPG recipient key id",
+                            paramLabel = "ID")
+                    GpgId newRecipientId,
+            @Option(
+                            names = "--recipient-key",
+                            description = "new recipient public key file (default exported from GPG)",
+                            paramLabel = "FILE")
+                    @Nullable Path newRecipientKey,
+            @Option(names = "--gpg-homedir", description = "alternative GPG home dir", paramLabel = "DIR")
+                    @Nullable Path gpgHomeDir)
+            throws GpgEncrypterException {
+        Map<String, String> envOverrides = gpgHomeDir == null
+                ? Map.of()
+                : Map.of("GNUPGHOME", gpgHomeDir.toAbsolutePath().toString());
+        OpenPgpPublicKey key = newRecipientKey == null
+                ? OpenPgpPublicKey.exportFromGpg(newRecipientId, envOverrides)
+                : OpenPgpPublicKey.fromFile(newRecipientKey, newRecipientId);
+
+        LocalBackupSet backup = baseArgs.readAndParseData();
+        String name = backup.backupSetData().backupMetadata().name();
+        logger.info("Rotating key of backup '{}' to {}", name, newRecipientId.id());
+        var rewrapper = new SessionKeyRewrapper(new GpgSessionKeyDecrypter(envOverrides), key);
+        new KeyRotation(backup, rewrapper, newRecipientId).rotate();
+        logger.info("Key rotated, remember to update the repository copy of the restore script");
+    }
+
+    /**
+     * Command for planning the synchronization of the backup set to a remote location.
+     *
+     * The remote location is listed once; from a saved listing file, by a listing command, or from a local directory
+     * standing in for the remote location.
+     *
+     * @param baseArgs    the base arguments
+     * @param listingFile the remote listing file, or null
+     * @param listCommand the remote listing command and its arguments, or null
+     * @param remoteDir   the directory standing in for the remote location, or null
+     * @return 0 if the remote location is in sync, otherwise 1
+     * @throws IOException if the remote location cannot be listed
+     */
+    @Command(name = "sync-plan", description = "Plan uploads of backup set files that differ from a remote listing")
+    int syncPlan(
+            @Mixin BaseArgs baseArgs,
+            @Option(names = "--listing", description = "remote listing file", paramLabel = "FILE")
+                    @Nullable Path listingFile,
+            @Option(
+                            names = "--list-command",
+                            arity = "1..*",
+                            description = "command (and arguments) listing the remote location, e.g. jotta-cli ls PATH",
+                            paramLabel = "ARG")
+                    @Nullable List<String> listCommand,
+            @Option(
+                            names = "--remote-dir",
+                            description = "directory standing in for the remote location",
+                            paramLabel = "DIR")
+                    @Nullable Path remoteDir)
+            throws IOException {
+        RemoteLister lister;
+        if (listingFile != null && listCommand == null && remoteDir == null) {
+            lister = RemoteLister.fromListingFile(listingFile);
+        } else if (listCommand != null && listingFile == null && remoteDir == null) {
+            lister = RemoteLister.fromCommand(listCommand);
+        } else if (remoteDir != null && listingFile == null && listCommand == null) {
+            lister = RemoteLister.fromDirectory(remoteDir);
+        } else {
+            throw new IllegalArgumentException("Select one of --listing, --list-command or --remote-dir");
+        }
+
+        SyncPlan plan = SyncPlanner.plan(baseArgs.readAndParseData(), lister.list());
+        plan.uploads().forEach(name -> logger.info("upload {}", name));
+        plan.deletes().forEach(name -> logger.info("delete {}", name));
+        logger.info(
+                "{} to upload, {} to delete, {} already present",
+                plan.uploads().size(),
+                plan.deletes().size(),
+                plan.present().size());
+        return plan.isInSync() ? 0 : 1;
+    }
+
+    /**
+     * Command for pruning the old sets of a named backup set.
+     *
+     * @param baseArgs    the base arguments
+     * @param keepLast    the number of newest old sets to keep
+     * @param keepDaily   the number of days to keep an old set for
+     * @param keepWeekly  the number of weeks to keep an old set for
+     * @param keepMonthly the number of months to keep an old set for
+     * @param dryRun      a flag for only printing the plan
+     */
+    @Command(name = "prune", description = "Delete old sets of a named backup set not kept by the retention rules")
+    void prune(
+            @Mixin BaseArgs baseArgs,
+            @Option(names = "--keep-last", description = "number of newest old sets to keep", paramLabel = "N")
+                    int keepLast,
+            @Option(names = "--keep-daily", description = "number of days to keep an old set for", paramLabel = "N")
+                    int keepDaily,
+            @Option(names = "--keep-weekly", description = "number of weeks to keep an old set for", paramLabel = "N")
+                    int keepWeekly,
+            @Option(
+                            names = "--keep-monthly",
+                            description = "number of months to keep an old set for",
+                            paramLabel = "N")
+                    int keepMonthly,
+            @Option(names = "--dry-run", description = "only print the old sets that would be deleted")
+                    boolean dryRun) {
+        Retention retention = new Retention(keepLast, keepDaily, keepWeekly, keepMonthly);
+        OldSetPruner pruner = new OldSetPruner(OldSetPruner.targetDirOf(baseArgs.restoreScript()));
+        PrunePlan plan = pruner.plan(retention);
+        plan.kept().forEach(set -> logger.info("keep  {}", pretty(set)));
+        plan.pruned().forEach(set -> logger.info("prune {}", pretty(set)));
+        logger.info(
+                "{} old set(s) to prune, reclaiming {}",
+                plan.pruned().size(),
+                HumanByteCount.humanReadableByteCount(plan.reclaimableBytes()));
+        if (!dryRun) {
+            pruner.prune(plan);
+        }
+    }
+
+    private static String pretty(OldSet set) {
+        return set.name() + " (" + HumanByteCount.humanReadableByteCount(set.exclusiveBytes()) + " exclusive of "
+                + HumanByteCount.humanReadableByteCount(set.totalBytes()) + ")";
+    }
+
     public static final class BaseArgs {
         /** The backup set location (restore script location). */
         @Option(
@@ -92,6 +247,11 @@ public final class Restore implements Callable<Integer> {
             return Objects.requireNonNull(argBackupSet.getParent());
         }
 
+        /** {@return the restore script of the backup set} */
+        Path restoreScript() {
+            return argBackupSet;
+        }
+
         /** {@return local backup set data read from the specified directory} */
         public LocalBackupSet readAndParseData() {
             return LocalBackupSet.newFromRestoreScript(argBackupSet);
@@ -0,0 +1,99 @@
+package dk.mada.backup.restore.java;
+
+import dk.mada.backup.FileInfo;
+import dk.mada.backup.restore.java.BackupSet.Crypt;
+import dk.mada.backup.restore.java.BackupSet.LocalBackupSet;
+import dk.mada.backup.restore.java.RemoteListing.RemoteFile;
+import dk.mada.backup.types.Md5;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plans the synchronization of a local backup set to a remote location.
+ *
+ * The remote listing is compared with the size and MD5 checksum of the crypt files recorded in the restore script, so
+ * only the files that are missing or differ remotely are uploaded. Crypt files reused from the previous backup set
+ * (hard links in NAMED sets) keep their name and checksum, and are found to be present already.
+ *
+ * The restore script is uploaded last, after the crypt files it references. Remote files that are not part of the
+ * backup set are deleted (after the uploads).
+ */
+public final class SyncPlanner {
+    private SyncPlanner() {
+        // static utility
+    }
+
+    /**
+     * A synchronization plan.
+     *
+     * @param uploads the names of the files to upload, in order
+     * @param deletes the names of the remote files to delete
+     * @param present the names of the files already present remotely
+     */
+    public record SyncPlan(List<String> uploads, List<String> deletes, List<String> present) {
+        /** {@return true if the remote location is already in sync} */
+        public boolean isInSync() {
+            return uploads.isEmpty() && deletes.isEmpty();
+        }
+    }
+
+    /**
+     * Plans the synchronization of a backup set.
+     *
+     * @param backupSet the local backup set
+     * @param remote    the listing of the remote location
+     * @return the synchronization plan
+     */
+    public static SyncPlan plan(LocalBackupSet backupSet, RemoteListing remote) {
+        List<String> uploads = new ArrayList<>();
+        List<String> present = new ArrayList<>();
+        Set<String> setFiles = new HashSet<>();
+
+        for (Crypt c : backupSet.backupSetData().crypts()) {
+            setFiles.add(c.name());
+            if (isPresent(remote, c.name(), c.size(), c.md5())) {
+                present.add(c.name());
+            } else {
+                uploads.add(c.name());
+            }
+        }
+
+        Path script = backupSet.restoreScript();
+        String scriptName = script.getFileName().toString();
+        setFiles.add(scriptName);
+        Md5 scriptMd5 = Md5.ofHex(FileInfo.fromCryptFile(backupSet.backupSetDir(), script).getMd5());
+        if (isPresent(remote, scriptName, size(script), scriptMd5)) {
+            present.add(scriptName);
+        } else {
+            uploads.add(scriptName);
+        }
+
+        List<String> deletes = remote.files().keySet().stream()
+                .filter(name -> !setFiles.contains(name))
+                .sorted()
+                .toList();
+
+        return new SyncPlan(List.copyOf(uploads), deletes, List.copyOf(present));
+    }
+
+    private static boolean isPresent(RemoteListing remote, String name, long size, Md5 md5) {
+        RemoteFile remoteFile = remote.files().get(name);
+        return remoteFile != null
+                && remoteFile.md5().equals(md5)
+                && (remoteFile.size() == RemoteFile.UNKNOWN_SIZE || remoteFile.size() == size);
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to get size of " + file, e);
+        }
+    }
+}
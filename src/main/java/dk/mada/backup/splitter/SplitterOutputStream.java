@@ -2,26 +2,49 @@ package dk.mada.backup.splitter;
 
 import dk.mada.backup.FileInfo;
 import dk.mada.backup.api.BackupTargetExistsException;
-import java.io.BufferedOutputStream;
+import dk.mada.backup.storage.StorageBackend;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToLongFunction;
 import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * An output stream that splits the stream over several files of a given size.
+ *
+ * Writes are sliced at the exact split boundary and copied into direct buffers which are written to the file channel
+ * in large blocks.
+ *
+ * The files can be striped over several directories (on different disks). Each directory has its own writer thread, so
+ * the files are written concurrently. The next file is placed in the next directory (round-robin) with room for a full
+ * file. Striped files are named by their path relative to the target directory.
+ *
+ * When a file is full, it is flushed to disk and closed on a background thread while the next file is written. Then
+ * it is handed to the storage backend (if any).
  */
 public final class SplitterOutputStream extends OutputStream {
     private static final Logger logger = LoggerFactory.getLogger(SplitterOutputStream.class);
+    /** Size of the direct write buffers. */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    /** Number of write buffers per directory. */
+    private static final int BUFFERS_PER_DIRECTORY = 4;
 
     /** Target directory for the files split from the stream. */
     private final Path targetDir;
@@ -31,17 +54,72 @@ public final class SplitterOutputStream extends OutputStream {
     private final String suffix;
     /** Active file size limit. */
     private final long openNextFileAtOffset;
+    /** Flag for files striped over several directories. */
+    private final boolean striped;
+    /** The storage backend to hand completed files to. */
+    private final StorageBackend storage;
+    /** The writers of the directories to place files in. */
+    private final List<DirectoryWriter> directories = new ArrayList<>();
     /** Accruing list of files created from the stream. */
     private final List<Path> outputFiles = new ArrayList<>();
+    /** The write buffers not currently in use. */
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    /** The executor closing completed files. */
+    private final ExecutorService closeExecutor =
+            Executors.newSingleThreadExecutor(Thread.ofVirtual().name("splitter-close").factory());
+    /** The first failure of a background write or close, if any. */
+    private final AtomicReference<@Nullable IOException> failure = new AtomicReference<>();
+    /** The buffer holding data not yet handed to the current file's writer. */
+    private ByteBuffer buffer;
     /** The current file being written to. */
-    @Nullable private OutputStream currentOutputStream = null;
+    @Nullable private FileChannel currentChannel = null;
+    /** The writer of the current file. */
+    @Nullable private DirectoryWriter currentDirectory = null;
     /** Bytes written to the current file. */
     private long writtenToCurrentFile = 0;
     /** Number of files written. */
     private int fileCounter = 0;
+    /** Flag for stream closed. */
+    private boolean closed;
     /** Future for handing over the list of created files to the caller. */
     private CompletableFuture<List<FileInfo>> outputFilesFuture = new CompletableFuture<>();
 
+    /**
+     * The placement of the files split from the stream.
+     *
+     * @param stripeDirs  additional directories to stripe the files over
+     * @param storage     the storage backend to hand completed files to
+     * @param usableSpace provides the usable space in a directory
+     */
+    public record Placement(List<Path> stripeDirs, StorageBackend storage, ToLongFunction<Path> usableSpace) {
+        /** All files in the target directory, not handed to a storage backend. */
+        public static final Placement TARGET_DIR =
+                new Placement(List.of(), StorageBackend.none(), SplitterOutputStream::usableSpace);
+
+        /**
+         * Creates new instance.
+         *
+         * @param stripeDirs  additional directories to stripe the files over
+         * @param storage     the storage backend to hand completed files to
+         * @param usableSpace provides the usable space in a directory
+         */
+        public Placement {
+            stripeDirs = List.copyOf(stripeDirs);
+            Objects.requireNonNull(storage);
+        }
+
+        /**
+         * Creates a placement of files striped over several directories, handing completed files to a storage backend.
+         *
+         * @param stripeDirs additional directories to stripe the files over
+         * @param storage    the storage backend to hand completed files to
+         * @return the placement
+         */
+        public static Placement striped(List<Path> stripeDirs, StorageBackend storage) {
+            return new Placement(stripeDirs, storage, SplitterOutputStream::usableSpace);
+        }
+    }
+
     /**
      * Split output stream over a number of files of a given size.
      *
@@ -49,16 +127,30 @@ public final class SplitterOutputStream extends OutputStream {
      * @param basename  the base name of the files
      * @param suffix    the suffix for the files
      * @param sizeLimit the size limit for the files
+     * @param placement the placement of the files, see {@link Placement#TARGET_DIR}
      */
-    public SplitterOutputStream(Path targetDir, String basename, String suffix, long sizeLimit) {
+    public SplitterOutputStream(Path targetDir, String basename, String suffix, long sizeLimit, Placement placement) {
         this.targetDir = Objects.requireNonNull(targetDir);
         this.basename = Objects.requireNonNull(basename);
         this.suffix = Objects.requireNonNull(suffix);
         this.openNextFileAtOffset = sizeLimit;
+        this.storage = placement.storage();
 
         if (sizeLimit < 1) {
             throw new IllegalArgumentException("Size limit must be >1");
         }
+
+        striped = !placement.stripeDirs().isEmpty();
+        ToLongFunction<Path> usableSpace = placement.usableSpace();
+        directories.add(new DirectoryWriter(targetDir, usableSpace));
+        placement.stripeDirs().forEach(d -> directories.add(new DirectoryWriter(d, usableSpace)));
+
+        int bufferCount = BUFFERS_PER_DIRECTORY * directories.size();
+        freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        buffer = freeBuffers.remove();
     }
 
     /** {@return the future containing the output files} */
@@ -68,33 +160,76 @@ public final class SplitterOutputStream extends OutputStream {
 
     @Override
     public void write(int b) throws IOException {
-        if (currentOutputStream == null || writtenToCurrentFile >= openNextFileAtOffset) {
-            currentOutputStream = openNextFile();
+        ensureRoomInCurrentFile();
+        if (!buffer.hasRemaining()) {
+            handOverBuffer(Objects.requireNonNull(currentChannel), Objects.requireNonNull(currentDirectory));
         }
+        buffer.put((byte) b);
         writtenToCurrentFile++;
-        currentOutputStream.write(b);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        if (currentOutputStream == null) {
-            currentOutputStream = openNextFile();
+        Objects.checkFromIndexSize(off, len, b.length);
+        while (len > 0) {
+            ensureRoomInCurrentFile();
+            if (!buffer.hasRemaining()) {
+                handOverBuffer(Objects.requireNonNull(currentChannel), Objects.requireNonNull(currentDirectory));
+            }
+            // slice at both the split boundary and the end of the buffer
+            int n = (int) Math.min(Math.min(len, buffer.remaining()), openNextFileAtOffset - writtenToCurrentFile);
+            buffer.put(b, off, n);
+            writtenToCurrentFile += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void ensureRoomInCurrentFile() throws IOException {
+        if (currentChannel == null || writtenToCurrentFile >= openNextFileAtOffset) {
+            openNextFile();
+        }
+    }
+
+    /**
+     * Hands the buffer over to the writer of a file, and takes a free buffer.
+     *
+     * @param channel   the file to write the buffer to
+     * @param directory the writer of the file
+     * @throws IOException if a background write has failed, or the thread is interrupted
+     */
+    private void handOverBuffer(FileChannel channel, DirectoryWriter directory) throws IOException {
+        ByteBuffer data = buffer.flip();
+        directory.executor.execute(() -> writeBuffer(channel, data));
+        try {
+            buffer = freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for write buffer");
         }
+        throwOnFailure();
+    }
 
-        // do it piecemeal if limit is reached
-        if (writtenToCurrentFile + len >= openNextFileAtOffset) {
-            super.write(b, off, len);
-        } else {
-            // otherwise bulk write for performance
-            writtenToCurrentFile += len;
-            currentOutputStream.write(b, off, len);
+    private void writeBuffer(FileChannel channel, ByteBuffer data) {
+        try {
+            if (failure.get() == null) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            data.clear();
+            freeBuffers.add(data);
         }
     }
 
-    private OutputStream openNextFile() throws IOException {
+    private void openNextFile() throws IOException {
         closeCurrentFile();
+        DirectoryWriter directory = nextDirectory();
         String name = basename + "-" + String.format("%02d", ++fileCounter) + suffix;
-        Path outputFile = targetDir.resolve(name);
+        Path outputFile = directory.dir.resolve(name);
 
         if (Files.exists(outputFile)) {
             // close before failing - or wrapping streams will fail when they try to flush
@@ -107,26 +242,129 @@ public final class SplitterOutputStream extends OutputStream {
 
         logger.debug("OPENING {}", outputFile);
 
-        OutputStream fileOutput =
-                Files.newOutputStream(outputFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        currentChannel = FileChannel.open(outputFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        currentDirectory = directory;
         writtenToCurrentFile = 0;
-        return new BufferedOutputStream(fileOutput);
     }
 
+    /**
+     * Selects the directory for the next file.
+     *
+     * Round-robin, skipping directories without room for a full file. If none have room, the next directory is used
+     * anyway (and the write will fail if it runs out of space).
+     *
+     * @return the directory writer for the next file
+     */
+    private DirectoryWriter nextDirectory() {
+        int first = fileCounter % directories.size();
+        for (int i = 0; i < directories.size(); i++) {
+            DirectoryWriter directory = directories.get((first + i) % directories.size());
+            if (!striped || directory.hasRoomFor(openNextFileAtOffset)) {
+                return directory;
+            }
+        }
+        return directories.get(first);
+    }
+
+    /**
+     * Hands the current file over to its writer for syncing and closing in the background.
+     *
+     * @throws IOException if a background write has failed, or the thread is interrupted
+     */
     private void closeCurrentFile() throws IOException {
-        if (currentOutputStream != null) {
-            currentOutputStream.close();
-            currentOutputStream = null;
+        FileChannel channel = currentChannel;
+        DirectoryWriter directory = currentDirectory;
+        if (channel == null || directory == null) {
+            return;
+        }
+        currentChannel = null;
+        currentDirectory = null;
+
+        try {
+            if (buffer.position() > 0) {
+                handOverBuffer(channel, directory);
+            }
+        } finally {
+            // queued after the file's writes, then handed to the close thread
+            Path file = outputFiles.getLast();
+            directory.executor.execute(() -> closeExecutor.execute(() -> syncAndClose(channel, file)));
+        }
+        throwOnFailure();
+    }
+
+    private void syncAndClose(FileChannel channel, Path file) {
+        try {
+            try (channel) {
+                channel.force(true);
+            }
+            if (failure.get() == null) {
+                storage.store(file, file.getFileName().toString());
+            }
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void throwOnFailure() throws IOException {
+        IOException e = failure.get();
+        if (e != null) {
+            throw new IOException("Failed writing split file", e);
         }
     }
 
     @Override
     public void close() throws IOException {
-        closeCurrentFile();
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try (closeExecutor) {
+            try {
+                closeCurrentFile();
+            } finally {
+                // writers hand their last closes to the close executor, so must complete first
+                directories.forEach(d -> d.executor.close());
+            }
+        }
+        throwOnFailure();
+
         List<FileInfo> fileInfos = outputFiles.stream()
-                .map(f -> FileInfo.fromCryptFile(targetDir, f))
+                .map(f -> striped ? FileInfo.fromStripedCryptFile(targetDir, f) : FileInfo.fromCryptFile(targetDir, f))
                 .toList();
 
         outputFilesFuture.complete(fileInfos);
     }
+
+    private static long usableSpace(Path dir) {
+        try {
+            return Files.getFileStore(dir).getUsableSpace();
+        } catch (IOException e) {
+            // let the write report the problem
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Writes the files of a directory on its own thread.
+     */
+    private static final class DirectoryWriter {
+        /** The directory. */
+        private final Path dir;
+        /** The executor writing files in the directory, in order. */
+        private final ExecutorService executor;
+        /** Provides the usable space in the directory. */
+        private final ToLongFunction<Path> usableSpace;
+
+        DirectoryWriter(Path dir, ToLongFunction<Path> usableSpace) {
+            this.dir = dir;
+            this.usableSpace = usableSpace;
+            executor = Executors.newSingleThreadExecutor(
+                    Thread.ofVirtual().name("splitter-" + dir.getFileName()).factory());
+        }
+
+        boolean hasRoomFor(long size) {
+            return usableSpace.applyAsLong(dir) >= size;
+        }
+    }
 }
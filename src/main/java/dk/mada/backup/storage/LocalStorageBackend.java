@@ -0,0 +1,81 @@
+package dk.mada.backup.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Storage backend copying the backup files to a local (or mounted) directory.
+ *
+ * The files are copied one at a time on a background thread. Each file is copied to a temporary name and then moved in
+ * place, so the directory never holds partial files.
+ */
+public final class LocalStorageBackend implements StorageBackend {
+    private static final Logger logger = LoggerFactory.getLogger(LocalStorageBackend.class);
+    /** Suffix of files being copied. */
+    private static final String TEMP_SUFFIX = ".part";
+
+    /** The storage directory. */
+    private final Path dir;
+    /** The executor copying the files. */
+    private final ExecutorService copyExecutor =
+            Executors.newSingleThreadExecutor(Thread.ofVirtual().name("local-storage").factory());
+    /** The copy futures. */
+    private final List<Future<Path>> copies = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Creates new instance.
+     *
+     * @param dir the storage directory
+     */
+    public LocalStorageBackend(Path dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public void store(Path file, String name) throws IOException {
+        Files.createDirectories(dir);
+        copies.add(copyExecutor.submit(() -> copy(file, name)));
+    }
+
+    private Path copy(Path file, String name) throws IOException {
+        Path target = dir.resolve(name);
+        Path temp = dir.resolve(name + TEMP_SUFFIX);
+        Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Stored {}", target);
+        return target;
+    }
+
+    @Override
+    public void awaitStored() throws IOException {
+        try {
+            for (Future<Path> f : List.copyOf(copies)) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to store file in " + dir, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for storage in " + dir);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (copyExecutor) {
+            awaitStored();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package dk.mada.backup.storage;
+
+import java.nio.file.Path;
+
+/**
+ * Storage backend that stores nothing; the backup only lives in the local backup set.
+ */
+final class NoStorageBackend implements StorageBackend {
+    /** The shared instance. */
+    static final NoStorageBackend INSTANCE = new NoStorageBackend();
+
+    private NoStorageBackend() {
+        // use INSTANCE
+    }
+
+    @Override
+    public void store(Path file, String name) {
+        // nothing to store
+    }
+
+    @Override
+    public void awaitStored() {
+        // nothing to wait for
+    }
+
+    @Override
+    public void close() {
+        // nothing to wait for
+    }
+}
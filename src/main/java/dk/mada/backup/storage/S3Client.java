@@ -0,0 +1,201 @@
+package dk.mada.backup.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Minimal client for the S3 object operations used by the backup.
+ *
+ * Failed requests are retried with increasing delay, if the failure is an IO problem or a server side error.
+ */
+final class S3Client {
+    private static final Logger logger = LoggerFactory.getLogger(S3Client.class);
+    /** Max attempts for each request. */
+    private static final int MAX_ATTEMPTS = 4;
+    /** Delay before the first retry, doubled for each following retry. */
+    private static final Duration RETRY_DELAY = Duration.ofMillis(250);
+    /** Request timeout. */
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(5);
+    /** HTTP status for too many requests. */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    /** Lowest HTTP status for server side errors. */
+    private static final int HTTP_SERVER_ERROR = 500;
+    /** Matches the upload id in the create multipart upload response. */
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    /** The settings. */
+    private final S3Settings settings;
+    /** The request signer. */
+    private final SigV4Signer signer;
+    /** The HTTP client. */
+    private final HttpClient http =
+            HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(30)).build();
+
+    /**
+     * Creates new instance.
+     *
+     * @param settings the S3 settings
+     */
+    S3Client(S3Settings settings) {
+        this.settings = settings;
+        signer = new SigV4Signer(settings.region(), settings.accessKey(), settings.secretKey());
+    }
+
+    /**
+     * Stores an object in a single request.
+     *
+     * @param key  the object key
+     * @param data the object data
+     * @throws IOException if the request fails
+     */
+    void putObject(String key, byte[] data) throws IOException {
+        send("PUT", uri(key, ""), data);
+    }
+
+    /**
+     * Starts a multipart upload.
+     *
+     * @param key the object key
+     * @return the upload id
+     * @throws IOException if the request fails
+     */
+    String createMultipartUpload(String key) throws IOException {
+        String body = send("POST", uri(key, "uploads="), new byte[0]).body();
+        Matcher m = UPLOAD_ID.matcher(body);
+        if (!m.find()) {
+            throw new IOException("No upload id in response for " + key + ": " + body);
+        }
+        return m.group(1);
+    }
+
+    /**
+     * Uploads a part of a multipart upload.
+     *
+     * @param key        the object key
+     * @param uploadId   the upload id
+     * @param partNumber the part number, starting from 1
+     * @param data       the part data
+     * @return the ETag of the part
+     * @throws IOException if the request fails
+     */
+    String uploadPart(String key, String uploadId, int partNumber, byte[] data) throws IOException {
+        HttpResponse<String> response = send("PUT", uri(key, partQuery(uploadId, partNumber)), data);
+        return response.headers()
+                .firstValue("ETag")
+                .orElseThrow(() -> new IOException("No ETag for part " + partNumber + " of " + key));
+    }
+
+    /**
+     * Completes a multipart upload.
+     *
+     * @param key      the object key
+     * @param uploadId the upload id
+     * @param etags    the ETags of the parts, in order
+     * @throws IOException if the request fails
+     */
+    void completeMultipartUpload(String key, String uploadId, List<String> etags) throws IOException {
+        StringBuilder sb = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            sb.append("<Part><PartNumber>")
+                    .append(i + 1)
+                    .append("</PartNumber><ETag>")
+                    .append(etags.get(i).replace("\"", "&quot;"))
+                    .append("</ETag></Part>");
+        }
+        sb.append("</CompleteMultipartUpload>");
+        send("POST", uri(key, "uploadId=" + SigV4Signer.uriEncode(uploadId, true)), bytes(sb.toString()));
+    }
+
+    /**
+     * Aborts a multipart upload, freeing the uploaded parts.
+     *
+     * Failure is only logged, as it is called while handling another failure.
+     *
+     * @param key      the object key
+     * @param uploadId the upload id
+     */
+    void abortMultipartUpload(String key, String uploadId) {
+        try {
+            send("DELETE", uri(key, "uploadId=" + SigV4Signer.uriEncode(uploadId, true)), new byte[0]);
+        } catch (IOException e) {
+            logger.warn("Failed to abort upload of {}: {}", key, e.getMessage());
+        }
+    }
+
+    private static String partQuery(String uploadId, int partNumber) {
+        return "partNumber=" + partNumber + "&uploadId=" + SigV4Signer.uriEncode(uploadId, true);
+    }
+
+    private URI uri(String key, String query) {
+        String base = settings.endpoint().toString().replaceFirst("/$", "");
+        String path = "/" + SigV4Signer.uriEncode(settings.bucket(), true) + "/"
+                + SigV4Signer.uriEncode(settings.keyPrefix() + key, false);
+        return URI.create(base + path + (query.isEmpty() ? "" : "?" + query));
+    }
+
+    private HttpResponse<String> send(String method, URI uri, byte[] body) throws IOException {
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            if (attempt > 1) {
+                sleepBeforeRetry(attempt, uri, failure);
+            }
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                    .timeout(REQUEST_TIMEOUT)
+                    .method(method, BodyPublishers.ofByteArray(body));
+            for (Map.Entry<String, String> h : signer.sign(method, uri, body).entrySet()) {
+                builder.header(h.getKey(), h.getValue());
+            }
+
+            try {
+                HttpResponse<String> response = http.send(builder.build(), BodyHandlers.ofString());
+                int status = response.statusCode();
+                // complete multipart upload can fail after responding 200
+                if (status / 100 == 2 && !response.body().contains("<Error>")) {
+                    return response;
+                }
+                failure = new IOException(method + " " + uri + " failed with " + status + ": " + response.body());
+                if (status < HTTP_SERVER_ERROR && status != HTTP_TOO_MANY_REQUESTS && status / 100 != 2) {
+                    throw failure;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during " + method + " " + uri);
+            } catch (IOException e) {
+                if (e == failure) {
+                    throw e;
+                }
+                failure = e;
+            }
+        }
+        throw new IOException("Giving up on " + method + " " + uri + " after " + MAX_ATTEMPTS + " attempts", failure);
+    }
+
+    private static void sleepBeforeRetry(int attempt, URI uri, IOException failure) throws InterruptedIOException {
+        Duration delay = RETRY_DELAY.multipliedBy(1L << (attempt - 2));
+        logger.info("Retrying {} in {} after: {}", uri, delay, failure.getMessage());
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry " + uri);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
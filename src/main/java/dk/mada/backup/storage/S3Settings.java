@@ -0,0 +1,64 @@
+package dk.mada.backup.storage;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Settings for an S3-compatible object store.
+ *
+ * Objects are addressed path-style (endpoint/bucket/key), which works with AWS and most S3-compatible stores.
+ *
+ * @param endpoint  the service endpoint
+ * @param region    the signing region
+ * @param bucket    the bucket name
+ * @param keyPrefix the prefix of the object keys (empty, or ending with a slash)
+ * @param accessKey the access key id
+ * @param secretKey the secret access key
+ */
+public record S3Settings(
+        URI endpoint, String region, String bucket, String keyPrefix, String accessKey, String secretKey) {
+    /** Default signing region. */
+    private static final String DEFAULT_REGION = "us-east-1";
+
+    /**
+     * Creates settings for an s3://bucket/prefix location, with endpoint and credentials from the environment.
+     *
+     * Uses the AWS environment variables AWS_ENDPOINT_URL (optional), AWS_REGION (optional), AWS_ACCESS_KEY_ID and
+     * AWS_SECRET_ACCESS_KEY.
+     *
+     * @param location    the s3://bucket/prefix location
+     * @param environment the environment variables
+     * @return the settings
+     */
+    public static S3Settings fromLocation(URI location, Map<String, String> environment) {
+        if (!"s3".equals(location.getScheme()) || location.getHost() == null) {
+            throw new IllegalArgumentException("Expected s3://bucket/prefix location, got " + location);
+        }
+        String region = environment.getOrDefault("AWS_REGION", DEFAULT_REGION);
+        String endpoint = environment.getOrDefault("AWS_ENDPOINT_URL", "https://s3." + region + ".amazonaws.com");
+        String path = Objects.requireNonNullElse(location.getPath(), "").replaceFirst("^/", "");
+        String keyPrefix = path.isEmpty() || path.endsWith("/") ? path : path + "/";
+        return new S3Settings(
+                URI.create(endpoint),
+                region,
+                location.getHost(),
+                keyPrefix,
+                requireEnv(environment, "AWS_ACCESS_KEY_ID"),
+                requireEnv(environment, "AWS_SECRET_ACCESS_KEY"));
+    }
+
+    private static String requireEnv(Map<String, String> environment, String name) {
+        String value = environment.get(name);
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("Missing environment variable " + name + " for S3 storage");
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "S3Settings [endpoint=" + endpoint + ", region=" + region + ", bucket=" + bucket + ", keyPrefix="
+                + keyPrefix + "]";
+    }
+}
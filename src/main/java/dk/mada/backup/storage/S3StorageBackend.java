@@ -0,0 +1,184 @@
+package dk.mada.backup.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Storage backend uploading the backup files to an S3-compatible object store.
+ *
+ * Files larger than the part size are uploaded as multipart uploads, with the parts of all files sharing a bounded
+ * number of concurrent requests. A file is opened when its upload starts, and each part (or small file) is read from it
+ * when its request starts, so only the parts in flight are held in memory, and a retried request simply sends the same
+ * bytes again.
+ *
+ * A failed multipart upload is aborted, and the failure is reported when the backend is closed.
+ */
+public final class S3StorageBackend implements StorageBackend {
+    private static final Logger logger = LoggerFactory.getLogger(S3StorageBackend.class);
+    /** Default part size of multipart uploads. */
+    public static final int DEFAULT_PART_SIZE = 16 * 1024 * 1024;
+    /** Default number of concurrent requests. */
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    /** The S3 client. */
+    private final S3Client client;
+    /** The part size. */
+    private final int partSize;
+    /** Limits the number of concurrent requests. */
+    private final Semaphore requests;
+    /** The executor running the uploads. */
+    private final ExecutorService uploadExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("s3-upload-", 1).factory());
+    /** The file upload futures. */
+    private final List<Future<String>> uploads = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Creates new instance with default part size and concurrency.
+     *
+     * @param settings the S3 settings
+     */
+    public S3StorageBackend(S3Settings settings) {
+        this(settings, DEFAULT_PART_SIZE, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Creates new instance.
+     *
+     * @param settings    the S3 settings
+     * @param partSize    the part size of multipart uploads (S3 requires at least 5MiB)
+     * @param concurrency the max number of concurrent requests
+     */
+    public S3StorageBackend(S3Settings settings, int partSize, int concurrency) {
+        this.client = new S3Client(settings);
+        this.partSize = partSize;
+        this.requests = new Semaphore(concurrency);
+        logger.info("Storing backup files in {}", settings);
+    }
+
+    @Override
+    public void store(Path file, String name) {
+        uploads.add(uploadExecutor.submit(() -> upload(file, name)));
+    }
+
+    private String upload(Path file, String key) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= partSize) {
+                withRequestSlot(() -> {
+                    client.putObject(key, read(channel, 0, (int) size));
+                    return null;
+                });
+            } else {
+                uploadMultipart(channel, key, size);
+            }
+        }
+        logger.debug("Uploaded {}", key);
+        return key;
+    }
+
+    private void uploadMultipart(FileChannel channel, String key, long size) throws IOException {
+        String uploadId = withRequestSlot(() -> client.createMultipartUpload(key));
+        try (ExecutorService partExecutor =
+                Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("s3-part-", 1).factory())) {
+            List<Future<String>> parts = new ArrayList<>();
+            int partNumber = 1;
+            for (long offset = 0; offset < size; offset += partSize) {
+                long partOffset = offset;
+                int partLength = (int) Math.min(partSize, size - offset);
+                int number = partNumber++;
+                parts.add(partExecutor.submit(() -> withRequestSlot(() -> {
+                    byte[] data = read(channel, partOffset, partLength);
+                    return client.uploadPart(key, uploadId, number, data);
+                })));
+            }
+
+            List<String> etags = new ArrayList<>();
+            for (Future<String> f : parts) {
+                etags.add(f.get());
+            }
+            withRequestSlot(() -> {
+                client.completeMultipartUpload(key, uploadId, etags);
+                return null;
+            });
+        } catch (ExecutionException e) {
+            client.abortMultipartUpload(key, uploadId);
+            throw new IOException("Failed to upload part of " + key, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            client.abortMultipartUpload(key, uploadId);
+            throw new InterruptedIOException("Interrupted uploading " + key);
+        } catch (IOException | RuntimeException e) {
+            client.abortMultipartUpload(key, uploadId);
+            throw e;
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (offset + buffer.position()));
+            }
+        }
+        return buffer.array();
+    }
+
+    private <T> T withRequestSlot(Request<T> request) throws IOException {
+        try {
+            requests.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for upload slot");
+        }
+        try {
+            return request.run();
+        } finally {
+            requests.release();
+        }
+    }
+
+    /**
+     * An S3 request.
+     *
+     * @param <T> the type of the request result
+     */
+    @FunctionalInterface
+    private interface Request<T> {
+        T run() throws IOException;
+    }
+
+    @Override
+    public void awaitStored() throws IOException {
+        try {
+            for (Future<String> f : List.copyOf(uploads)) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to upload backup file", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for uploads");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (uploadExecutor) {
+            awaitStored();
+        }
+    }
+}
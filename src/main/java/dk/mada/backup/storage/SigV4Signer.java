@@ -0,0 +1,176 @@
+package dk.mada.backup.storage;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs S3 requests with AWS signature version 4.
+ *
+ * The signed headers are host, x-amz-content-sha256 and x-amz-date.
+ *
+ * @see <a href="https://docs.aws.amazon.com/AmazonS3/latest/API/sig-v4-header-based-auth.html">Signature V4</a>
+ */
+public final class SigV4Signer {
+    /** The signing algorithm. */
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    /** The signed service. */
+    private static final String SERVICE = "s3";
+    /** Format of the request time. */
+    private static final DateTimeFormatter AMZ_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    /** Characters that are not percent-encoded. */
+    private static final String UNRESERVED = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_.~";
+
+    /** The signing region. */
+    private final String region;
+    /** The access key id. */
+    private final String accessKey;
+    /** The secret access key. */
+    private final String secretKey;
+
+    /**
+     * Creates new instance.
+     *
+     * @param region    the signing region
+     * @param accessKey the access key id
+     * @param secretKey the secret access key
+     */
+    public SigV4Signer(String region, String accessKey, String secretKey) {
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    /**
+     * Computes the headers to add to a request.
+     *
+     * @param method the HTTP method
+     * @param uri    the request URI, with encoded path and query
+     * @param body   the request body
+     * @return the headers to add to the request
+     */
+    public Map<String, String> sign(String method, URI uri, byte[] body) {
+        return sign(method, uri, body, ZonedDateTime.now(ZoneOffset.UTC));
+    }
+
+    /**
+     * Computes the headers to add to a request made at a given time.
+     *
+     * @param method the HTTP method
+     * @param uri    the request URI, with encoded path and query
+     * @param body   the request body
+     * @param time   the request time
+     * @return the headers to add to the request
+     */
+    public Map<String, String> sign(String method, URI uri, byte[] body, ZonedDateTime time) {
+        String amzDate = time.withZoneSameInstant(ZoneOffset.UTC).format(AMZ_DATE_FORMAT);
+        String date = amzDate.substring(0, 8);
+        String payloadHash = hex(sha256(body));
+
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("host", hostHeader(uri));
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", amzDate);
+        String signedHeaders = String.join(";", headers.keySet());
+        String canonicalHeaders = headers.entrySet().stream()
+                .map(e -> e.getKey() + ":" + e.getValue() + "\n")
+                .collect(Collectors.joining());
+
+        String canonicalRequest = String.join(
+                "\n",
+                method,
+                uri.getRawPath(),
+                canonicalQuery(uri.getRawQuery()),
+                canonicalHeaders,
+                signedHeaders,
+                payloadHash);
+        String scope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+        String stringToSign = String.join(
+                "\n", ALGORITHM, amzDate, scope, hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8))));
+
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, SERVICE);
+        key = hmac(key, "aws4_request");
+        String signature = hex(hmac(key, stringToSign));
+
+        return Map.of(
+                "x-amz-content-sha256", payloadHash,
+                "x-amz-date", amzDate,
+                "Authorization",
+                ALGORITHM + " Credential=" + accessKey + "/" + scope + ", SignedHeaders=" + signedHeaders
+                        + ", Signature=" + signature);
+    }
+
+    /**
+     * Percent-encodes a value as required by S3.
+     *
+     * @param value       the value to encode
+     * @param encodeSlash flag for encoding slashes (false for object key paths)
+     * @return the encoded value
+     */
+    public static String uriEncode(String value, boolean encodeSlash) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if (UNRESERVED.indexOf(c) >= 0 || (c == '/' && !encodeSlash)) {
+                sb.append(c);
+            } else {
+                sb.append('%').append(HexFormat.of().withUpperCase().toHexDigits(b));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String hostHeader(URI uri) {
+        int port = uri.getPort();
+        boolean defaultPort = port == -1
+                || ("http".equals(uri.getScheme()) && port == 80)
+                || ("https".equals(uri.getScheme()) && port == 443);
+        return defaultPort ? uri.getHost() : uri.getHost() + ":" + port;
+    }
+
+    private static String canonicalQuery(String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return "";
+        }
+        Map<String, String> params = new TreeMap<>();
+        for (String p : rawQuery.split("&")) {
+            int eq = p.indexOf('=');
+            params.put(eq < 0 ? p : p.substring(0, eq), eq < 0 ? "" : p.substring(eq + 1));
+        }
+        return params.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining("&"));
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("No SHA-256", e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("No HmacSHA256", e);
+        }
+    }
+
+    private static String hex(byte[] data) {
+        return HexFormat.of().formatHex(data);
+    }
+}
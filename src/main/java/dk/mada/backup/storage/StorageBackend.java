@@ -0,0 +1,66 @@
+package dk.mada.backup.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Storage of backup files, in addition to the local backup set.
+ *
+ * The backup writers hand each file to the backend as soon as it is complete, so storing happens while the rest of the
+ * backup is still being encrypted. The restore script is stored last.
+ *
+ * Implementations open the file when its transfer starts, so queued files do not hold open files. The backup writers
+ * therefore leave the stored files in place until {@link #awaitStored()} returns. Implementations must allow files to be
+ * stored from several threads.
+ */
+public interface StorageBackend extends Closeable {
+    /**
+     * Starts storing a completed backup file.
+     *
+     * @param file the local file
+     * @param name the name to store the file as
+     * @throws IOException if an earlier store has failed
+     */
+    void store(Path file, String name) throws IOException;
+
+    /**
+     * Waits for all started stores to complete, keeping the backend open for more files.
+     *
+     * @throws IOException if any store failed
+     */
+    void awaitStored() throws IOException;
+
+    /**
+     * Waits for all started stores to complete.
+     *
+     * @throws IOException if any store failed
+     */
+    @Override
+    void close() throws IOException;
+
+    /** {@return the (shared) backend that stores nothing} */
+    static StorageBackend none() {
+        return NoStorageBackend.INSTANCE;
+    }
+
+    /**
+     * Creates a backend for a storage location.
+     *
+     * Supports file:/path locations (a local or mounted directory), and s3://bucket/prefix locations (with endpoint
+     * and credentials from the environment, see {@link S3Settings#fromLocation(URI, Map)}).
+     *
+     * @param location    the storage location
+     * @param environment the environment variables
+     * @return the storage backend
+     */
+    static StorageBackend forLocation(URI location, Map<String, String> environment) {
+        return switch (location.getScheme()) {
+            case "file" -> new LocalStorageBackend(Path.of(location));
+            case "s3" -> new S3StorageBackend(S3Settings.fromLocation(location, environment));
+            case null, default -> throw new IllegalArgumentException("Unsupported storage location " + location);
+        };
+    }
+}
@@ -6,6 +6,10 @@
 # @gpg_key_id: @@BACKUP_KEY_ID@@
 # @time: @@BACKUP_DATE_TIME@@
 # @output_type: @@BACKUP_OUTPUT_TYPE@@
+# @compression: @@BACKUP_COMPRESSION@@
+# @base: @@BACKUP_BASE@@
+# @excludes: @@BACKUP_EXCLUDES@@
+# @includes: @@BACKUP_INCLUDES@@
 
 set -e
 
@@ -14,6 +18,12 @@ crypts=(
 #END_CRYPTS#
 )
 
+# Archive size, checksum and root element count of each crypt, when small root elements are packed in buckets
+buckets=(
+#BEGIN_BUCKETS#
+#END_BUCKETS#
+)
+
 archives=(
 #BEGIN_ARCHIVES#
 #END_ARCHIVES#
@@ -24,8 +34,19 @@ files=(
 #END_FILES#
 )
 
+# Files of the base set that have been deleted, when the backup is incremental
+deleted=(
+#BEGIN_DELETED#
+#END_DELETED#
+)
+
 output_type=@@BACKUP_OUTPUT_TYPE@@
+# Restore script of the base set (relative to the backup set), when the backup is incremental
+base_script="@@BACKUP_BASE@@"
 gpg_cmd="/bin/gpg -q --no-permission-warning -d"
+max_jobs=$(/bin/nproc 2>/dev/null || echo 2)
+segment_pids=()
+segment_failed=
 
 fail() {
     local msg="$1"
@@ -34,6 +55,11 @@ fail() {
     exit 1
 }
 
+# Makes a path argument absolute, relative to the directory the script was run from
+caller_path() {
+    (cd "$caller_dir" && /bin/realpath -m -- "$1")
+}
+
 expect_file() {
     local size="$1"
     local xxh3="$2"
@@ -68,6 +94,27 @@ expect_file() {
 }
 
 
+# Runs command in the background, with at most max_jobs running
+run_segment_job() {
+    if [[ ${#segment_pids[@]} -ge $max_jobs ]]; then
+        wait "${segment_pids[0]}" || segment_failed=1
+        segment_pids=("${segment_pids[@]:1}")
+    fi
+    "$@" &
+    segment_pids+=($!)
+}
+
+# Waits for all background jobs, failing if any of them failed
+await_segment_jobs() {
+    for p in "${segment_pids[@]}"; do
+        wait "$p" || segment_failed=1
+    done
+    segment_pids=()
+    if [[ -n "$segment_failed" ]]; then
+        fail "Processing of segment failed"
+    fi
+}
+
 info_and_exit() {
     local sel=""
     if [ "$1" == "-c" ]; then
@@ -132,7 +179,7 @@ verify_files() {
     if [ $# -ne 2 ]; then
         fail "Verify archives expects one argument, the archives directory"
     fi
-    local files_dir="$2"
+    local files_dir=$(caller_path "$2")
 
     if [ ! -d "$files_dir" ]; then
         fail "Specified archives directory $files_dir is not a directory"
@@ -150,7 +197,7 @@ verify_files() {
             @@VARS@@
         fi
 
-        if ! (cd $files_dir; expect_file "$size" "$xxh3" "$file" "- ($i/$len) ") ; then
+        if ! (cd "$files_dir"; expect_file "$size" "$xxh3" "$file" "- ($i/$len) ") ; then
             exit 1
         fi
         i=$((i + 1))
@@ -169,7 +216,7 @@ unpack_encrypted_files() {
     if $onlyArchives; then
         /bin/cat $crypt_files | $gpg_cmd | (cd "$target" && /bin/tar -x -f -)
     else
-        /bin/cat $crypt_files | $gpg_cmd | (cd "$target" && /bin/tar -x -f - --to-command='/bin/bash -c "[[ \"$TAR_FILENAME\" == ./* ]] && /bin/tar -x -f - || /bin/cat > \"$TAR_FILENAME\""')
+        /bin/cat $crypt_files | $gpg_cmd | (cd "$target" && /bin/tar -x -f - --to-command='/bin/bash -c "[[ \"$TAR_FILENAME\" == ./* ]] && /bin/tar -x -f - || { /bin/mkdir -p \"\$(/bin/dirname \"\$TAR_FILENAME\")\" && /bin/cat > \"\$TAR_FILENAME\"; }"')
     fi
 }
 
@@ -183,13 +230,21 @@ unpack() {
     if [ $# -ne 1 ]; then
         fail "Unpack expects one argument, the destination directory"
     fi
-    local target="$1"
+    local target=$(caller_path "$1")
 
     if [ -e "$target" ]; then
         fail "Will not unpack to existing target $target"
     fi
 
-    /bin/mkdir "$target"
+    if [[ -n "$base_script" ]] && ! $onlyArchives; then
+        # Restore the base set chain first, then unpack the changes on top of it
+        echo "Unpacking base set $base_script..."
+        if ! (cd "$(/bin/dirname "$base_script")" && /bin/bash "$(/bin/basename "$base_script")" unpack "$target"); then
+            fail "Failed to unpack base set $base_script"
+        fi
+    else
+        /bin/mkdir "$target"
+    fi
 
     if $onlyArchives; then
         echo "Unpacking directory archives..."
@@ -204,6 +259,13 @@ unpack() {
             echo "See $l"
             unpack_encrypted_files $onlyArchives "$target" "$file"
         done
+    elif [[ $output_type == "SEGMENTED" ]]; then
+        # Unpack segments in parallel
+        for l in "${crypts[@]}"; do
+            @@VARS_MD5@@
+            run_segment_job unpack_encrypted_files $onlyArchives "$target" "$file"
+        done
+        await_segment_jobs
     elif [[ $output_type == "NUMBERED" ]]; then
         # Unpack as one big file
         local crypt_files=
@@ -217,6 +279,12 @@ unpack() {
         exit 1
     fi
 
+    if ! $onlyArchives; then
+        for file in "${deleted[@]}"; do
+            /bin/rm -f "$target/$file"
+        done
+    fi
+
     if $onlyArchives; then
         verify_files "archives" "$target"
     else
@@ -246,8 +314,8 @@ verify_jotta() {
     local jotta_state=$(mktemp)
     /bin/jotta-cli ls -l -a "$jotta_path" > $jotta_state
 
-    local file=$(basename $0)
-    if match_jotta $file $(/bin/md5sum $0 | /bin/cut -f 1 -d' ') $jotta_state; then
+    local file=$(/bin/basename "$script_file")
+    if match_jotta $file $(/bin/md5sum "$script_file" | /bin/cut -f 1 -d' ') $jotta_state; then
         echo -e " $ok $file"
     else
         echo -e " $bad $file"
@@ -324,6 +392,13 @@ EOF
             @@VARS_MD5@@
             verify_crypted_files $file
         done
+    elif [[ $output_type == "SEGMENTED" ]]; then
+        # Verify segments in parallel
+        for l in "${crypts[@]}"; do
+            @@VARS_MD5@@
+            run_segment_job verify_crypted_files $file
+        done
+        await_segment_jobs
     elif [[ $output_type == "NUMBERED" ]]; then
         # Verify encrypted files as one big file
         local crypt_files=
@@ -348,6 +423,11 @@ for t in $expected_tools; do
     fi
 done
 
+# The crypt files are next to the script, also when it is run via a link or from another directory
+caller_dir="$PWD"
+script_file=$(/bin/readlink -f "${BASH_SOURCE[0]}")
+cd "$(/bin/dirname "$script_file")"
+
 if [ "$1" == "verify" ]; then
     shift
 
@@ -390,7 +470,11 @@ if [ "$1" == "verify" ]; then
     fi
 
     if [ $# -eq 0 ]; then
-        verify_files "crypts" "."
+        verify_files "crypts" "$PWD"
+        if [[ -n "$base_script" ]]; then
+            echo "Verifying base set $base_script..."
+            (cd "$(/bin/dirname "$base_script")" && /bin/bash "$(/bin/basename "$base_script")" verify)
+        fi
         exit 0
     fi
 
@@ -7,6 +7,7 @@ import dk.mada.backup.impl.output.DirectoryDeleter;
 import dk.mada.backup.restore.RestoreExecutor.Result;
 import dk.mada.fixture.MakeBackup;
 import dk.mada.fixture.MakeRestore;
+import dk.mada.fixture.TestDataPrepper;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -214,7 +215,9 @@ class BackupVerificationNamedTest {
 
     @Test
     void restoreScriptIsWrittenToRepository() {
-        assertThat(restoreScript).hasSameTextualContentAs(backupDestination.resolve("_repository/test.sh"));
+        assertThat(restoreScript)
+                .hasSameTextualContentAs(
+                        TestDataPrepper.BACKUP_DEST_DIR.toAbsolutePath().resolve("_repository/test.sh"));
     }
 
     private Result runRestoreCmd(String... args) {
@@ -0,0 +1,84 @@
+package dk.mada.accept;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.impl.output.DirectoryDeleter;
+import dk.mada.backup.restore.RestoreExecutor.Result;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Makes a segmented backup, runs multiple checks on the restore of this backup.
+ */
+@Tag("accept")
+class BackupVerificationSegmentedTest {
+    /** Restore script for created backup. */
+    private static Path restoreScript;
+
+    @BeforeAll
+    static void makeBackup() throws IOException, ArchiveException {
+        restoreScript = MakeBackup.makeBackup(BackupOutputType.SEGMENTED, true);
+    }
+
+    /**
+     * Tests that the backup is split into several segments, that can be verified.
+     */
+    @Test
+    void backupCryptFilesCanBeVerified() {
+        Result res = runRestoreCmd("verify");
+
+        assertThat(res.exitValue()).isZero();
+        assertThat(res.output()).contains("test-01.crypt... ok", "test-02.crypt... ok", "Success!");
+    }
+
+    /**
+     * Tests that the full backup can be decrypted and verified.
+     */
+    @Test
+    void backupFilesCanBeRestored() {
+        Path restoreDir = Paths.get("build/backup-restored");
+        DirectoryDeleter.delete(restoreDir);
+
+        Result res = runRestoreCmd("unpack", restoreDir.toAbsolutePath().toString());
+
+        assertThat(res.output())
+                .contains(
+                        " - (1/15) dir-a/file-a1.bin... ok",
+                        " - (6/15) dir-deep/dir-sub-a/file-deep-a.bin... ok",
+                        " - (13/15) file-root1.bin... ok",
+                        " - (15/15) file-tricky.tar... ok",
+                        "Success!");
+        assertThat(res.exitValue()).isZero();
+    }
+
+    /**
+     * Tests that the files in the segments can be verified by streaming.
+     */
+    @Test
+    void backupFilesCanBeVerifiedByStream() {
+        Result res = runRestoreCmd("verify", "-s");
+
+        assertThat(res.output()).contains("All files verified ok.");
+        assertThat(res.exitValue()).isZero();
+    }
+
+    /**
+     * Tests that a faulty file in one of the segments is found by the streaming verifier.
+     */
+    @Test
+    void deepFileCanBeFoundByStreamVerifier() throws IOException {
+        BackupVerificationNamedTest.assertValidationFailsForFile(restoreScript, "dir-b/file-b1.bin");
+    }
+
+    private Result runRestoreCmd(String... args) {
+        return MakeRestore.runRestoreCmd(restoreScript, args);
+    }
+}
@@ -104,7 +104,10 @@ class NamedBackupKeepingValidArchivesTest {
 
         RestoreScriptData updatedSet = makeNewChangedBackup(reader);
 
-        Path oldSetDir = updatedSet.location().resolve(".old-sets").resolve(updatedSet.time());
+        Path oldSetDir = TestDataPrepper.BACKUP_DEST_DIR
+                .toAbsolutePath()
+                .resolve(".old-sets")
+                .resolve(originalSet.time());
         Path oldSetRestoreScriptFile = oldSetDir.resolve(originalSet.name() + ".sh");
 
         RestoreScriptData oldSetData = reader.readRestoreScriptData(oldSetRestoreScriptFile);
@@ -142,10 +145,15 @@ class NamedBackupKeepingValidArchivesTest {
 
         RestoreScriptData updatedSet = makeNewChangedBackup(reader);
 
-        List<DataCrypt> originalCrypts =
-                originalSet.rootFilesV2().stream().map(DataRootFile::crypt).toList();
-        List<DataCrypt> updatedCrypts =
-                updatedSet.rootFilesV2().stream().map(DataRootFile::crypt).toList();
+        // The sets are in different directories, so compare the crypts by file name
+        List<DataCrypt> originalCrypts = originalSet.rootFilesV2().stream()
+                .map(DataRootFile::crypt)
+                .map(this::byFileName)
+                .toList();
+        List<DataCrypt> updatedCrypts = updatedSet.rootFilesV2().stream()
+                .map(DataRootFile::crypt)
+                .map(this::byFileName)
+                .toList();
 
         logger.info("Original: {}", originalCrypts);
         logger.info("Updated: {}", updatedCrypts);
@@ -173,6 +181,10 @@ class NamedBackupKeepingValidArchivesTest {
         assertThat(updatedSet.location().resolve("file-tricky.tar.crypt")).doesNotExist();
     }
 
+    private DataCrypt byFileName(DataCrypt c) {
+        return new DataCrypt(c.size(), c.xxh3(), c.md5(), c.file().getFileName());
+    }
+
     private RestoreScriptData makeNewChangedBackup(RestoreScriptReader reader) throws IOException, ArchiveException {
         // Now make an updated backup, but change some of the src files
         Path updatedRestoreScriptFile = MakeBackup.makeBackup(BackupOutputType.NAMED, false, srcDir -> {
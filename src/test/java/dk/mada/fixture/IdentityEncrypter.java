@@ -0,0 +1,43 @@
+package dk.mada.fixture;
+
+import dk.mada.backup.gpg.Compression;
+import dk.mada.backup.gpg.Encrypter;
+import dk.mada.backup.types.GpgId;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encrypter that passes data through unchanged.
+ *
+ * Allows measuring/testing the backup pipeline without the cost of encryption. The output cannot be verified by the
+ * restore script. Compression is ignored.
+ */
+public final class IdentityEncrypter implements Encrypter {
+    /** Identity encrypter claiming to use the test key. */
+    public static final IdentityEncrypter INSTANCE = new IdentityEncrypter();
+
+    private IdentityEncrypter() {
+        // empty
+    }
+
+    @Override
+    public GpgId recipientKeyId() {
+        return TestCertificateInfo.TEST_RECIPIEND_KEY_ID;
+    }
+
+    @Override
+    public OutputStream encrypt(OutputStream out, Compression compression) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+}
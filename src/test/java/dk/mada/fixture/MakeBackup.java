@@ -1,8 +1,14 @@
 package dk.mada.fixture;
 
+import dk.mada.backup.api.BackupApi;
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOptions;
 import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.api.CompressionMode;
 import dk.mada.backup.cli.CliMain;
+import dk.mada.backup.gpg.Encrypter;
 import dk.mada.backup.impl.output.DirectoryDeleter;
+import dk.mada.backup.impl.output.VersionedSets;
 import dk.mada.logging.LoggerConfig;
 import java.io.IOException;
 import java.nio.file.Path;
@@ -15,6 +21,9 @@ import org.jspecify.annotations.Nullable;
  * Makes a backup from canned input. Mostly used for testing the resulting restore script.
  */
 public final class MakeBackup {
+    /** The limits used for API backups by tests that do not exercise the limits. */
+    public static final Limits API_LIMITS = Limits.of(1_000_000, 1_000_000);
+
     private MakeBackup() {
         // empty
     }
@@ -57,7 +66,8 @@ public final class MakeBackup {
             DirectoryDeleter.delete(targetDir);
         }
 
-        Path restoreScript = targetDir.resolve("test.sh");
+        Path setDir = outputType == BackupOutputType.NAMED ? targetDir.resolve(VersionedSets.CURRENT_LINK) : targetDir;
+        Path restoreScript = setDir.resolve("test.sh");
 
         List<String> args = new ArrayList<>();
         args.addAll(List.of(
@@ -75,6 +85,9 @@ public final class MakeBackup {
         if (outputType == BackupOutputType.NAMED) {
             args.add("--by-name");
         }
+        if (outputType == BackupOutputType.SEGMENTED) {
+            args.addAll(List.of("--segmented", CliMain.OPT_NUMBERED_SPLIT_SIZE, "16k"));
+        }
 
         args.add(srcDir.toString());
         args.add(targetDir.toString());
@@ -84,6 +97,89 @@ public final class MakeBackup {
         return restoreScript;
     }
 
+    /**
+     * Create backup named "test" via the API, using the test key and no compression.
+     *
+     * @param outputType the output type
+     * @param srcDir     the source directory
+     * @param targetDir  the target directory
+     * @return restore script
+     */
+    public static Path makeApiBackup(BackupOutputType outputType, Path srcDir, Path targetDir) {
+        return makeApiBackup(outputType, API_LIMITS, srcDir, targetDir);
+    }
+
+    /**
+     * Create backup named "test" via the API, using the test key and no compression.
+     *
+     * @param outputType the output type
+     * @param limits     the backup limits
+     * @param srcDir     the source directory
+     * @param targetDir  the target directory
+     * @return restore script
+     */
+    public static Path makeApiBackup(BackupOutputType outputType, Limits limits, Path srcDir, Path targetDir) {
+        return backupApi(outputType, limits).makeBackup("test", srcDir, targetDir);
+    }
+
+    /**
+     * Create backup named "test" via the API, using no compression.
+     *
+     * @param encrypter  the encrypter
+     * @param outputType the output type
+     * @param srcDir     the source directory
+     * @param targetDir  the target directory
+     * @return restore script
+     */
+    public static Path makeApiBackup(Encrypter encrypter, BackupOutputType outputType, Path srcDir, Path targetDir) {
+        return makeApiBackup(encrypter, outputType, API_LIMITS, CompressionMode.NONE, srcDir, targetDir);
+    }
+
+    /**
+     * Create backup named "test" via the API.
+     *
+     * @param encrypter   the encrypter
+     * @param outputType  the output type
+     * @param limits      the backup limits
+     * @param compression the compression mode
+     * @param srcDir      the source directory
+     * @param targetDir   the target directory
+     * @return restore script
+     */
+    public static Path makeApiBackup(
+            Encrypter encrypter,
+            BackupOutputType outputType,
+            Limits limits,
+            CompressionMode compression,
+            Path srcDir,
+            Path targetDir) {
+        return new BackupApi(encrypter, outputType, limits, BackupOptions.DEFAULTS.withCompressionMode(compression))
+                .makeBackup("test", srcDir, targetDir);
+    }
+
+    /**
+     * Creates a backup API using the test key and no compression.
+     *
+     * @param outputType the output type
+     * @param limits     the backup limits
+     * @return the backup API
+     */
+    public static BackupApi backupApi(BackupOutputType outputType, Limits limits) {
+        return backupApi(outputType, limits, BackupOptions.DEFAULTS);
+    }
+
+    /**
+     * Creates a backup API using the test key.
+     *
+     * @param outputType the output type
+     * @param limits     the backup limits
+     * @param options    the backup options
+     * @return the backup API
+     */
+    public static BackupApi backupApi(BackupOutputType outputType, Limits limits, BackupOptions options) {
+        return new BackupApi(TestCertificateInfo.TEST_GPG_INFO, outputType, limits, options);
+    }
+
     public interface SrcTreeModifier {
         void accept(Path srcDir) throws IOException;
     }
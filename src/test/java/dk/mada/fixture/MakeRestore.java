@@ -1,5 +1,7 @@
 package dk.mada.fixture;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 import dk.mada.backup.restore.RestoreExecutor;
 import dk.mada.backup.restore.RestoreExecutor.Result;
 import java.nio.file.Path;
@@ -22,4 +24,17 @@ public final class MakeRestore {
     public static Result runRestoreCmd(Path script, String... args) {
         return RestoreExecutor.runRestoreScript(script, TestCertificateInfo.TEST_KEY_ENVIRONMENT_OVERRIDES, args);
     }
+
+    /**
+     * Run the restore script, and assert that it succeeds.
+     *
+     * @param script the script to run
+     * @param args   the restore arguments
+     * @return the restore result
+     */
+    public static Result assertRestoreSucceeds(Path script, String... args) {
+        Result res = runRestoreCmd(script, args);
+        assertThat(res.exitValue()).as(res.output()).isZero();
+        return res;
+    }
 }
@@ -34,7 +34,9 @@ public final class TestCertificateInfo {
     public static final Map<String, String> TEST_KEY_ENVIRONMENT_OVERRIDES = Map.of("GNUPGHOME", ABS_TEST_GNUPG_HOME);
     /** Gpg information for tests. */
     public static final GpgStreamInfo TEST_GPG_INFO = new GpgEncryptedOutputStream.GpgStreamInfo(
-            TestCertificateInfo.TEST_RECIPIEND_KEY_ID, TestCertificateInfo.TEST_KEY_ENVIRONMENT_OVERRIDES);
+            TestCertificateInfo.TEST_RECIPIEND_KEY_ID,
+            TestCertificateInfo.TEST_KEY_ENVIRONMENT_OVERRIDES,
+            GpgStreamInfo.DEFAULT_STALL_TIMEOUT);
 
     private TestCertificateInfo() {
         // empty
@@ -7,6 +7,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Random;
 import java.util.stream.Stream;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.examples.Expander;
@@ -22,6 +24,8 @@ public final class TestDataPrepper {
     private static final FileTime ARBITRARY_KNOWN_TIME = FileTime.fromMillis(1561574109070L);
     /** The destination directory for test backups. */
     public static final Path BACKUP_DEST_DIR = Paths.get("build/backup-dest");
+    /** Size of each of the files in the random input tree. */
+    public static final int RANDOM_FILE_SIZE = 256 * 1024;
 
     private TestDataPrepper() {
         // empty
@@ -47,6 +51,70 @@ public final class TestDataPrepper {
         return testSetDir;
     }
 
+    /**
+     * Prepares a small tree of random files: a.bin, b/b.bin and c/c.bin.
+     *
+     * The random data does not compress, and is the same for each run.
+     *
+     * @param srcDir the directory to create the files in
+     * @return the prepared directory
+     */
+    public static Path prepareRandomInputTree(Path srcDir) throws IOException {
+        Random random = new Random(42);
+        for (String name : List.of("a.bin", "b/b.bin", "c/c.bin")) {
+            Path file = srcDir.resolve(name);
+            Files.createDirectories(file.getParent());
+            byte[] data = new byte[RANDOM_FILE_SIZE];
+            random.nextBytes(data);
+            Files.write(file, data);
+        }
+        return srcDir;
+    }
+
+    /**
+     * Prepares a tree of small text files, each containing "content of " and its name.
+     *
+     * @param srcDir the directory to create the files in
+     * @param names  the names of the files, relative to the directory (may include sub-directories)
+     * @return the prepared directory
+     */
+    public static Path prepareTextInputTree(Path srcDir, List<String> names) throws IOException {
+        Files.createDirectories(srcDir);
+        for (String name : names) {
+            Path file = srcDir.resolve(name);
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, "content of " + name);
+        }
+        return srcDir;
+    }
+
+    /**
+     * Lists the entries of a directory.
+     *
+     * @param dir the directory
+     * @return the names of the entries, sorted
+     */
+    public static List<String> listNames(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(f -> f.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    /**
+     * Lists the regular files of a directory tree.
+     *
+     * @param dir the directory
+     * @return the paths of the files relative to the directory, sorted
+     */
+    public static List<String> listTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile)
+                    .map(f -> dir.relativize(f).toString())
+                    .sorted()
+                    .toList();
+        }
+    }
+
     private static void setTimeOfTestFiles(Path srcDir) throws IOException {
         try (Stream<Path> files = Files.walk(srcDir)) {
             files.forEach(p -> {
@@ -6,6 +6,7 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import dk.mada.backup.api.BackupApi;
 import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOptions;
 import dk.mada.backup.api.BackupOutputType;
 import dk.mada.backup.api.BackupTargetExistsException;
 import dk.mada.fixture.TestCertificateInfo;
@@ -44,8 +45,9 @@ class NondestructionTest {
 
     @BeforeEach
     void createBackupApi() {
-        Limits limits = new Limits(MAX_BACKUP_SIZE, MAX_BACKUP_SIZE);
-        api = new BackupApi(TestCertificateInfo.TEST_GPG_INFO, BackupOutputType.NUMBERED, limits);
+        Limits limits = Limits.of(MAX_BACKUP_SIZE, MAX_BACKUP_SIZE);
+        api = new BackupApi(
+                TestCertificateInfo.TEST_GPG_INFO, BackupOutputType.NUMBERED, limits, BackupOptions.DEFAULTS);
     }
 
     @Test
@@ -0,0 +1,106 @@
+package dk.mada.unit.bucket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.impl.output.VersionedSets;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Small root elements of named backups are packed into buckets.
+ */
+class BucketTest {
+    /** The max allowed root element size. */
+    private static final long MAX_ROOT_ELEMENT_SIZE = 200_000;
+    /** Split size (unused by named backups). */
+    private static final long SPLIT_SIZE = 100_000L;
+    /** The bucket size. */
+    private static final long BUCKET_SIZE = 16_000L;
+    /** The backup limits. */
+    private static final Limits LIMITS = Limits.of(MAX_ROOT_ELEMENT_SIZE, SPLIT_SIZE).withBucketSize(BUCKET_SIZE);
+    /** Number of root elements in the source tree. */
+    private static final int ROOT_ELEMENTS = 40;
+    /** Size of the file in each root element. */
+    private static final int INPUT_SIZE = 2048;
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup input tree. */
+    private Path srcDir;
+    /** The backup set directory (must not exist before the first backup). */
+    private Path setDir;
+
+    @BeforeEach
+    void prepSource() throws IOException {
+        srcDir = tempDir.resolve("src");
+        setDir = tempDir.resolve("set");
+
+        Random random = new Random(42);
+        for (int i = 0; i < ROOT_ELEMENTS; i++) {
+            Path albumDir = Files.createDirectories(srcDir.resolve("album-%02d".formatted(i)));
+            writeRandomFile(albumDir.resolve("photo.jpg"), random);
+        }
+    }
+
+    /**
+     * Buckets result in fewer encrypted files, and the backup set can be verified and restored.
+     */
+    @Test
+    void smallRootElementsArePacked() throws IOException {
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NAMED, LIMITS, srcDir, setDir);
+
+        assertThat(cryptInodes()).hasSizeLessThan(ROOT_ELEMENTS / 2);
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+        MakeRestore.assertRestoreSucceeds(script, "verify", "-s");
+        MakeRestore.assertRestoreSucceeds(script, "unpack", tempDir.resolve("restored").toString());
+        assertThat(tempDir.resolve("restored/album-17/photo.jpg"))
+                .hasSameBinaryContentAs(srcDir.resolve("album-17/photo.jpg"));
+    }
+
+    /**
+     * A changed root element only causes its own bucket to be encrypted again.
+     */
+    @Test
+    void unchangedBucketsAreReused() throws IOException {
+        MakeBackup.makeApiBackup(BackupOutputType.NAMED, LIMITS, srcDir, setDir);
+        Map<String, Object> firstInodes = cryptInodes();
+
+        writeRandomFile(srcDir.resolve("album-17/photo.jpg"), new Random(7));
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NAMED, LIMITS, srcDir, setDir);
+        Map<String, Object> secondInodes = cryptInodes();
+
+        assertThat(secondInodes).containsOnlyKeys(firstInodes.keySet());
+        long changed = firstInodes.keySet().stream()
+                .filter(name -> !firstInodes.get(name).equals(secondInodes.get(name)))
+                .count();
+        assertThat(changed).isOne();
+        MakeRestore.assertRestoreSucceeds(script, "verify", "-s");
+    }
+
+    private Map<String, Object> cryptInodes() throws IOException {
+        Map<String, Object> inodes = new TreeMap<>();
+        try (Stream<Path> files = Files.list(setDir.resolve(VersionedSets.CURRENT_LINK))) {
+            for (Path f : files.filter(f -> f.toString().endsWith(".crypt")).toList()) {
+                inodes.put(f.getFileName().toString(), Files.getAttribute(f, "unix:ino"));
+            }
+        }
+        return inodes;
+    }
+
+    private static void writeRandomFile(Path file, Random random) throws IOException {
+        byte[] data = new byte[INPUT_SIZE];
+        random.nextBytes(data);
+        Files.write(file, data);
+    }
+}
@@ -0,0 +1,128 @@
+package dk.mada.unit.catalog;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.FileCatalog;
+import dk.mada.backup.FileInfo;
+import dk.mada.backup.api.BackupApi;
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOptions;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.restore.RestoreScriptReader;
+import dk.mada.backup.restore.RestoreScriptReader.DataFile;
+import dk.mada.fixture.TestCertificateInfo;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The file catalog provides the same restore script lines as the file information it replaces.
+ */
+class FileCatalogTest {
+    /** The number of files added to the catalogs. */
+    private static final int FILES = 3000;
+    /** Paths sharing prefixes, also ending inside multi-byte characters and surrogate pairs. */
+    private static final List<String> PATHS = List.of(
+            "dir/a.txt",
+            "dir/ab.txt",
+            "dir/sub/\"quoted\" `name`.txt",
+            "dir/sub/Århus.txt",
+            "dir/sub/Ærø.txt",
+            "dir/sub/😀.txt",
+            "dir/sub/😁.txt",
+            "dir/sub/😁.txt2",
+            "other.bin",
+            "");
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+
+    /**
+     * Paths are provided unchanged, in the order they were added.
+     */
+    @Test
+    void summariesMatchFileInfo() throws IOException {
+        try (FileCatalog catalog = new FileCatalog()) {
+            List<String> expected = fill(catalog, false);
+
+            assertThat(catalog.size()).isEqualTo(FILES);
+            assertThat(linesOf(catalog)).containsExactlyElementsOf(expected);
+        }
+    }
+
+    /**
+     * With a manifest file, completed segments are moved to the manifest file, and provided before the files still in
+     * memory. The manifest file is deleted when the catalog is closed.
+     */
+    @Test
+    void completedSegmentsAreMovedToManifest() throws IOException {
+        Path manifest = tempDir.resolve("manifest");
+        try (FileCatalog catalog = new FileCatalog(manifest)) {
+            List<String> expected = fill(catalog, true);
+
+            assertThat(manifest).isNotEmptyFile();
+            assertThat(catalog.size()).isEqualTo(FILES);
+            assertThat(linesOf(catalog)).containsExactlyElementsOf(expected);
+        }
+        assertThat(manifest).doesNotExist();
+    }
+
+    /**
+     * A backup in bounded memory mode lists the same files, and leaves no manifest file behind. The files of a deep
+     * directory root element and of the root element files are all listed.
+     */
+    @Test
+    void boundedMemoryBackupListsSameFiles() throws IOException {
+        Path srcDir = tempDir.resolve("src");
+        TestDataPrepper.prepareTextInputTree(
+                srcDir, List.of("a.txt", "dir/b.txt", "dir/sub/c.txt", "dir/sub/d.txt", "e.txt"));
+
+        Path inMemorySet = tempDir.resolve("in-memory");
+        Path boundedSet = tempDir.resolve("bounded");
+        List<DataFile> inMemoryFiles = backupFiles(srcDir, inMemorySet, false);
+        List<DataFile> boundedFiles = backupFiles(srcDir, boundedSet, true);
+
+        assertThat(inMemoryFiles).map(DataFile::name).containsExactly(
+                "a.txt", "dir/b.txt", "dir/sub/c.txt", "dir/sub/d.txt", "e.txt");
+        assertThat(boundedFiles).containsExactlyElementsOf(inMemoryFiles);
+        try (Stream<Path> files = Files.list(boundedSet)) {
+            assertThat(files).noneMatch(f -> f.getFileName().toString().endsWith(".manifest"));
+        }
+    }
+
+    private static List<DataFile> backupFiles(Path srcDir, Path setDir, boolean boundedMemory) {
+        Path script = new BackupApi(
+                        TestCertificateInfo.TEST_GPG_INFO,
+                        BackupOutputType.NUMBERED,
+                        Limits.of(1_000_000, 1_000_000).withBoundedMemory(boundedMemory),
+                        BackupOptions.DEFAULTS)
+                .makeBackup("test", srcDir, setDir);
+        return new RestoreScriptReader().readRestoreScriptData(script).filesV2();
+    }
+
+    private static List<String> fill(FileCatalog catalog, boolean completeSegments) throws IOException {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            String path = PATHS.get(i % PATHS.size()) + (i / PATHS.size());
+            catalog.add(path, i * 1000L, -i);
+            expected.add(FileInfo.of(path, i * 1000L, -i).toBackupSummary());
+            if (completeSegments && i % 7 == 0) {
+                catalog.completeSegment();
+            }
+        }
+        return expected;
+    }
+
+    private static List<String> linesOf(FileCatalog catalog) throws IOException {
+        StringWriter sw = new StringWriter();
+        catalog.writeTo(sw);
+        assertThat(sw.toString()).endsWith("\n");
+        return sw.toString().lines().toList();
+    }
+}
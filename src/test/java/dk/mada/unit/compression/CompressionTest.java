@@ -0,0 +1,130 @@
+package dk.mada.unit.compression;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.api.CompressionMode;
+import dk.mada.backup.gpg.Compression;
+import dk.mada.backup.gpg.Encrypter;
+import dk.mada.backup.gpg.OpenPgpEncrypter;
+import dk.mada.backup.gpg.OpenPgpPublicKey;
+import dk.mada.backup.restore.java.BackupSet.LocalBackupSet;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import dk.mada.fixture.TestCertificateInfo;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Compression before encryption is transparent to the restore script.
+ */
+class CompressionTest {
+    /** The max allowed backup and container size. */
+    private static final long MAX_BACKUP_SIZE = 4_000_000;
+    /** Encryption file size limit. */
+    private static final long MAX_ENCRYPT_FILE_SIZE = 100_000L;
+    /** The backup limits. */
+    private static final Limits LIMITS = Limits.of(MAX_BACKUP_SIZE, MAX_ENCRYPT_FILE_SIZE);
+    /** Size of each of the input files. */
+    private static final int INPUT_SIZE = 256 * 1024;
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup input tree. */
+    private Path srcDir;
+    /** The backup set directory (must not exist before the backup). */
+    private Path setDir;
+
+    @BeforeEach
+    void prepSource() throws IOException {
+        srcDir = tempDir.resolve("src");
+        setDir = tempDir.resolve("set");
+
+        Path textDir = Files.createDirectories(srcDir.resolve("text"));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < INPUT_SIZE; i++) {
+            sb.append("Line number ").append(i).append(" of some compressible text\n");
+        }
+        Files.writeString(textDir.resolve("text.txt"), sb);
+
+        byte[] noise = new byte[INPUT_SIZE];
+        new Random(42).nextBytes(noise);
+        Files.write(srcDir.resolve("photo.jpg"), noise);
+    }
+
+    /**
+     * Automatic compression only compresses the compressible root elements.
+     */
+    @Test
+    void namedBackupCompressesCompressibleElements() throws IOException {
+        Path script = MakeBackup.makeApiBackup(
+                TestCertificateInfo.TEST_GPG_INFO,
+                BackupOutputType.NAMED,
+                LIMITS,
+                CompressionMode.AUTO,
+                srcDir,
+                setDir);
+
+        assertThat(Files.size(script.resolveSibling("text.crypt"))).isLessThan(INPUT_SIZE / 4);
+        assertThat(Files.size(script.resolveSibling("photo.jpg.crypt"))).isGreaterThan(INPUT_SIZE);
+        assertThat(LocalBackupSet.newFromRestoreScript(script)
+                        .backupSetData()
+                        .backupMetadata()
+                        .compression())
+                .isEqualTo(Compression.ZLIB);
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+        MakeRestore.assertRestoreSucceeds(script, "verify", "-s");
+    }
+
+    /**
+     * Automatic compression of a tree of mostly compressed formats is recorded as no compression.
+     */
+    @Test
+    void skippedCompressionIsRecorded() throws IOException {
+        Files.delete(srcDir.resolve("text/text.txt"));
+
+        Path script = MakeBackup.makeApiBackup(
+                TestCertificateInfo.TEST_GPG_INFO,
+                BackupOutputType.NUMBERED,
+                LIMITS,
+                CompressionMode.AUTO,
+                srcDir,
+                setDir);
+
+        assertThat(LocalBackupSet.newFromRestoreScript(script)
+                        .backupSetData()
+                        .backupMetadata()
+                        .compression())
+                .isEqualTo(Compression.NONE);
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+    }
+
+    /**
+     * Data compressed by the in-JVM encryption can be restored.
+     */
+    @Test
+    void jvmCompressedNumberedBackupCanBeRestored() throws IOException {
+        OpenPgpPublicKey key = OpenPgpPublicKey.fromFile(
+                Paths.get("src/test/data/gpghome/exported-public-key.asc"), TestCertificateInfo.TEST_RECIPIEND_KEY_ID);
+        Encrypter encrypter = new OpenPgpEncrypter(TestCertificateInfo.TEST_RECIPIEND_KEY_ID, key);
+
+        Path script = MakeBackup.makeApiBackup(
+                encrypter, BackupOutputType.NUMBERED, LIMITS, CompressionMode.ZLIB, srcDir, setDir);
+
+        long cryptSize;
+        try (var files = Files.list(setDir)) {
+            cryptSize = files.filter(f -> f.toString().endsWith(".crypt"))
+                    .mapToLong(f -> f.toFile().length())
+                    .sum();
+        }
+        assertThat(cryptSize).isLessThan(INPUT_SIZE + INPUT_SIZE / 4);
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+        MakeRestore.assertRestoreSucceeds(script, "verify", "-s");
+    }
+}
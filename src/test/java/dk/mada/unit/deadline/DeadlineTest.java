@@ -0,0 +1,140 @@
+package dk.mada.unit.deadline;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupApi;
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOptions;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.api.ExclusionRules;
+import dk.mada.backup.impl.output.DeadlineScheduler;
+import dk.mada.backup.impl.output.DeadlineScheduler.Candidate;
+import dk.mada.backup.impl.output.VersionedSets;
+import dk.mada.backup.restore.RestoreScriptReader;
+import dk.mada.backup.restore.RestoreScriptReader.DataFile;
+import dk.mada.backup.restore.RestoreScriptReader.RestoreScriptData;
+import dk.mada.fixture.MakeRestore;
+import dk.mada.fixture.TestCertificateInfo;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import org.jspecify.annotations.Nullable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A NAMED backup bounded by a deadline keeps the previous state of the root elements it does not get to.
+ */
+class DeadlineTest {
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup source directory. */
+    private Path srcDir;
+    /** The backup target directory. */
+    private Path setDir;
+    /** The directory of the current backup set. */
+    private Path currentDir;
+
+    @BeforeEach
+    void prep() throws IOException {
+        srcDir = tempDir.resolve("src");
+        setDir = tempDir.resolve("set");
+        currentDir = setDir.resolve(VersionedSets.CURRENT_LINK);
+        TestDataPrepper.prepareTextInputTree(srcDir, List.of("a.txt", "b.txt", "c/c.txt", "d.txt"));
+    }
+
+    /**
+     * With no time left, the changed root elements keep their previous crypt files, and new root elements are left
+     * out. The set can still be verified and restored.
+     */
+    @Test
+    void deferredRootElementsKeepPreviousState() throws IOException {
+        makeBackup(null);
+
+        Files.writeString(srcDir.resolve("a.txt"), "changed");
+        Files.writeString(srcDir.resolve("c/c.txt"), "changed");
+        Files.writeString(srcDir.resolve("new.txt"), "new file");
+        Path script = makeBackup(Duration.ZERO);
+
+        assertThat(currentDir.resolve("new.txt.crypt")).doesNotExist();
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+        Path restoreDir = tempDir.resolve("restored");
+        MakeRestore.assertRestoreSucceeds(script, "unpack", restoreDir.toString());
+        assertThat(restoreDir.resolve("a.txt")).hasContent("content of a.txt");
+        assertThat(restoreDir.resolve("c/c.txt")).hasContent("content of c/c.txt");
+        assertThat(restoreDir.resolve("new.txt")).doesNotExist();
+    }
+
+    /**
+     * Deferred root elements deeper in the source tree (with a group depth) keep their files from the previous backup
+     * set in the restore script.
+     */
+    @Test
+    void deferredRootElementsAtGroupDepthKeepTheirFiles() throws IOException {
+        Limits limits = Limits.of(1_000_000, 1_000_000).withGroupDepth(2);
+        makeBackup(limits, null);
+
+        Files.writeString(srcDir.resolve("c/c.txt"), "changed");
+        Path script = makeBackup(limits, Duration.ZERO);
+
+        assertThat(new RestoreScriptReader().readRestoreScriptData(script).filesV2())
+                .map(DataFile::name)
+                .containsExactlyInAnyOrder("a.txt", "b.txt", "c/c.txt", "d.txt");
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+        Path restoreDir = tempDir.resolve("restored");
+        MakeRestore.assertRestoreSucceeds(script, "unpack", restoreDir.toString());
+        assertThat(restoreDir.resolve("c/c.txt")).hasContent("content of c/c.txt");
+    }
+
+    /**
+     * New root elements go first, then changed root elements, then the root elements with the oldest crypt files.
+     */
+    @Test
+    void rootElementsArePrioritized() throws IOException {
+        makeBackup(null);
+        Instant now = Instant.now();
+        for (String name : List.of("a.txt", "b.txt", "c", "c/c.txt", "d.txt")) {
+            setTime(srcDir.resolve(name), now.minusSeconds(7200));
+        }
+        for (String name : List.of("a.txt", "b.txt", "c", "d.txt")) {
+            setTime(currentDir.resolve(name + ".crypt"), now.minusSeconds(3600));
+        }
+        setTime(currentDir.resolve("d.txt.crypt"), now.minusSeconds(5400));
+        setTime(srcDir.resolve("b.txt"), now);
+        Files.writeString(srcDir.resolve("new.txt"), "new file");
+
+        RestoreScriptData data = new RestoreScriptReader().readRestoreScriptData(currentDir.resolve("test.sh"));
+        DeadlineScheduler scheduler =
+                new DeadlineScheduler(Instant.MAX, data, TestCertificateInfo.TEST_GPG_INFO.recipientKeyId());
+        List<Path> rootElements = List.of("a.txt", "b.txt", "c", "d.txt", "new.txt").stream()
+                .map(srcDir::resolve)
+                .toList();
+
+        assertThat(scheduler.prioritize(srcDir, rootElements, ExclusionRules.NONE))
+                .map(Candidate::name)
+                .containsExactly("new.txt", "b.txt", "d.txt", "a.txt", "c");
+    }
+
+    private static void setTime(Path file, Instant time) throws IOException {
+        Files.setLastModifiedTime(file, FileTime.from(time));
+    }
+
+    private Path makeBackup(@Nullable Duration timeBudget) {
+        return makeBackup(Limits.of(1_000_000, 1_000_000), timeBudget);
+    }
+
+    private Path makeBackup(Limits limits, @Nullable Duration timeBudget) {
+        return new BackupApi(
+                        TestCertificateInfo.TEST_GPG_INFO,
+                        BackupOutputType.NAMED,
+                        limits,
+                        BackupOptions.DEFAULTS.withTimeBudget(timeBudget))
+                .makeBackup("test", srcDir, setDir);
+    }
+}
@@ -0,0 +1,101 @@
+package dk.mada.unit.encryption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupApi;
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOptions;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.gpg.OpenPgpEncrypter;
+import dk.mada.backup.gpg.OpenPgpPublicKey;
+import dk.mada.backup.restore.RestoreExecutor;
+import dk.mada.backup.restore.RestoreExecutor.Result;
+import dk.mada.fixture.IdentityEncrypter;
+import dk.mada.fixture.TestCertificateInfo;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The backup output encryption is selected via the API.
+ */
+class EncrypterSelectionTest {
+    /** The max allowed backup and container size. */
+    private static final long MAX_BACKUP_SIZE = 4_000_000;
+    /** Encryption file size limit. */
+    private static final long MAX_ENCRYPT_FILE_SIZE = 8000L;
+    /** Temporary output directory. */
+    private @TempDir Path targetDir;
+    /** The prepared backup input tree. */
+    private static Path srcDir;
+
+    @BeforeAll
+    static void prepSource() throws IOException, ArchiveException {
+        srcDir = TestDataPrepper.prepareTestInputTree("simple-input-tree");
+    }
+
+    /**
+     * The identity encrypter leaves the (split) tar stream as is.
+     */
+    @Test
+    void identityEncrypterPassesDataThrough() throws IOException {
+        Limits limits = Limits.of(MAX_BACKUP_SIZE, MAX_ENCRYPT_FILE_SIZE);
+        new BackupApi(IdentityEncrypter.INSTANCE, BackupOutputType.NUMBERED, limits, BackupOptions.DEFAULTS)
+                .makeBackup("test", srcDir, targetDir);
+
+        assertThat(readTarEntryNames(concatenateCrypts()))
+                .contains("./dir-a.tar", "./dir-c.tar", "file-root1.bin");
+    }
+
+    /**
+     * The in-JVM encrypter makes a backup that can be verified by the restore script.
+     */
+    @Test
+    void jvmEncrypterMakesVerifiableBackup() throws IOException {
+        OpenPgpPublicKey key = OpenPgpPublicKey.fromFile(
+                Paths.get("src/test/data/gpghome/exported-public-key.asc"), TestCertificateInfo.TEST_RECIPIEND_KEY_ID);
+        OpenPgpEncrypter encrypter = new OpenPgpEncrypter(TestCertificateInfo.TEST_RECIPIEND_KEY_ID, key);
+        Limits limits = Limits.of(MAX_BACKUP_SIZE, MAX_ENCRYPT_FILE_SIZE);
+
+        Path script = new BackupApi(encrypter, BackupOutputType.NUMBERED, limits, BackupOptions.DEFAULTS)
+                .makeBackup("test", srcDir, targetDir);
+
+        Result res = RestoreExecutor.runRestoreScript(
+                script, TestCertificateInfo.TEST_KEY_ENVIRONMENT_OVERRIDES, "verify", "-s");
+        assertThat(res.exitValue()).as(res.output()).isZero();
+    }
+
+    private byte[] concatenateCrypts() throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        try (Stream<Path> files = Files.list(targetDir)) {
+            for (Path crypt : files.filter(p -> p.toString().endsWith(".crypt")).sorted().toList()) {
+                all.write(Files.readAllBytes(crypt));
+            }
+        }
+        return all.toByteArray();
+    }
+
+    private List<String> readTarEntryNames(byte[] tar) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (TarArchiveInputStream tis = new TarArchiveInputStream(new ByteArrayInputStream(tar))) {
+            TarArchiveEntry entry;
+            while ((entry = tis.getNextEntry()) != null) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+}
@@ -1,8 +1,14 @@
 package dk.mada.unit.encryption;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import dk.mada.backup.api.BackupTargetExistsException;
+import dk.mada.backup.gpg.Compression;
 import dk.mada.backup.gpg.GpgEncryptedOutputStream;
+import dk.mada.backup.gpg.GpgEncryptedOutputStream.GpgStreamInfo;
+import dk.mada.backup.gpg.GpgEncrypterException;
+import dk.mada.backup.types.GpgId;
 import dk.mada.fixture.TestCertificateInfo;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
@@ -11,8 +17,12 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.Logger;
@@ -41,7 +51,7 @@ class EncryptionOutputStreamTest {
         try (OutputStream os = Files.newOutputStream(cryptedFile);
                 BufferedOutputStream bos = new BufferedOutputStream(os);
                 GpgEncryptedOutputStream sutOutputStream =
-                        new GpgEncryptedOutputStream(bos, TestCertificateInfo.TEST_GPG_INFO)) {
+                        new GpgEncryptedOutputStream(bos, TestCertificateInfo.TEST_GPG_INFO, Compression.NONE)) {
             Files.copy(originFile, sutOutputStream);
         } catch (Exception e) {
             logger.warn("Failed", e);
@@ -56,6 +66,105 @@ class EncryptionOutputStreamTest {
         assertThat(p.exitValue()).isZero();
     }
 
+    /**
+     * Tests that GPG failing (here because of an unknown recipient) is reported with GPG's exit code.
+     */
+    @Test
+    void gpgFailureIsReported() {
+        GpgStreamInfo unknownRecipient = new GpgStreamInfo(
+                new GpgId("0000000000000000000000000000000000000001"),
+                TestCertificateInfo.TEST_KEY_ENVIRONMENT_OVERRIDES,
+                GpgStreamInfo.DEFAULT_STALL_TIMEOUT);
+        Path originFile = Paths.get("src/test/data/simple-input-tree.tar");
+
+        assertThatThrownBy(() -> {
+                    try (OutputStream os = OutputStream.nullOutputStream();
+                            GpgEncryptedOutputStream sutOutputStream =
+                                    new GpgEncryptedOutputStream(os, unknownRecipient, Compression.NONE)) {
+                        Files.copy(originFile, sutOutputStream);
+                    }
+                })
+                .isInstanceOf(GpgEncrypterException.class)
+                .hasMessageContaining("GPG exited with code");
+    }
+
+    /**
+     * Tests that a failure of the underlying stream that is only seen when the stream is closed is thrown with its
+     * specific type, also from later closes (as made by enclosing streams).
+     */
+    @Test
+    void failureAtCloseIsThrownFromEveryClose() throws IOException {
+        AtomicBoolean failing = new AtomicBoolean();
+        OutputStream failingSink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (failing.get()) {
+                    throw new BackupTargetExistsException("Target exists");
+                }
+            }
+        };
+
+        GpgEncryptedOutputStream sutOutputStream =
+                new GpgEncryptedOutputStream(failingSink, TestCertificateInfo.TEST_GPG_INFO, Compression.NONE);
+        sutOutputStream.write("some data".getBytes(StandardCharsets.UTF_8));
+        failing.set(true);
+
+        assertThatThrownBy(sutOutputStream::close).isInstanceOf(BackupTargetExistsException.class);
+        assertThatThrownBy(sutOutputStream::close).isInstanceOf(BackupTargetExistsException.class);
+    }
+
+    /**
+     * Tests that GPG making no progress (here because its output is not consumed) fails the stream after the stall
+     * timeout, instead of blocking the writer.
+     */
+    @Test
+    void stalledGpgIsReported() throws IOException {
+        GpgStreamInfo shortStallTimeout = new GpgStreamInfo(
+                TestCertificateInfo.TEST_RECIPIEND_KEY_ID,
+                TestCertificateInfo.TEST_KEY_ENVIRONMENT_OVERRIDES,
+                Duration.ofSeconds(1));
+        CountDownLatch sinkReleased = new CountDownLatch(1);
+        OutputStream stalledSink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    sinkReleased.await(MAX_GPG_WAIT_TIME_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+        };
+        byte[] data = new byte[64 * 1024];
+        new Random(42).nextBytes(data);
+
+        GpgEncryptedOutputStream sutOutputStream =
+                new GpgEncryptedOutputStream(stalledSink, shortStallTimeout, Compression.NONE);
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> {
+                    while (true) {
+                        sutOutputStream.write(data);
+                    }
+                })
+                .isInstanceOf(GpgEncrypterException.class)
+                .hasMessageContaining("made no progress");
+        assertThat(Duration.ofNanos(System.nanoTime() - start))
+                .isLessThan(Duration.ofSeconds(MAX_GPG_WAIT_TIME_SECONDS));
+
+        sinkReleased.countDown();
+        assertThatThrownBy(sutOutputStream::close).isInstanceOf(GpgEncrypterException.class);
+    }
+
     private void printProcessOutput(Process p) throws IOException {
         System.out.println(new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
     }
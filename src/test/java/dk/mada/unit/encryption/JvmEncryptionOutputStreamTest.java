@@ -0,0 +1,100 @@
+package dk.mada.unit.encryption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.gpg.Compression;
+import dk.mada.backup.gpg.OpenPgpEncryptedOutputStream;
+import dk.mada.backup.gpg.OpenPgpPublicKey;
+import dk.mada.fixture.TestCertificateInfo;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The in-JVM encryption must produce output that stock GPG can decrypt.
+ */
+class JvmEncryptionOutputStreamTest {
+    /** Max seconds to wait for GPG. */
+    private static final int MAX_GPG_WAIT_TIME_SECONDS = 10;
+    /** The exported test public key. */
+    private static final Path TEST_PUBLIC_KEY = Paths.get("src/test/data/gpghome/exported-public-key.asc");
+    /** Temporary output directory. */
+    private @TempDir Path dir;
+
+    /**
+     * Tests that data encrypted with the key read from file can be decrypted by GPG.
+     */
+    @Test
+    void encryptionWithKeyFileWorks() throws IOException, InterruptedException {
+        Path originFile = Paths.get("src/test/data/simple-input-tree.tar");
+        OpenPgpPublicKey key = OpenPgpPublicKey.fromFile(TEST_PUBLIC_KEY, TestCertificateInfo.TEST_RECIPIEND_KEY_ID);
+
+        Path cryptedFile = encrypt(originFile, key);
+
+        assertThat(decryptFile(cryptedFile)).hasSameBinaryContentAs(originFile);
+    }
+
+    /**
+     * Tests that data spanning several partial body chunks (and the key exported from GPG) works.
+     */
+    @Test
+    void encryptionOfLargerDataWorks() throws IOException, InterruptedException {
+        Path originFile = dir.resolve("origin.bin");
+        byte[] data = new byte[300_001];
+        new Random(42).nextBytes(data);
+        Files.write(originFile, data);
+        OpenPgpPublicKey key = OpenPgpPublicKey.exportFromGpg(
+                TestCertificateInfo.TEST_RECIPIEND_KEY_ID, TestCertificateInfo.TEST_KEY_ENVIRONMENT_OVERRIDES);
+
+        Path cryptedFile = encrypt(originFile, key);
+
+        assertThat(decryptFile(cryptedFile)).hasSameBinaryContentAs(originFile);
+    }
+
+    /**
+     * Tests that empty input results in a valid message.
+     */
+    @Test
+    void encryptionOfEmptyDataWorks() throws IOException, InterruptedException {
+        Path originFile = Files.createFile(dir.resolve("empty.bin"));
+        OpenPgpPublicKey key = OpenPgpPublicKey.fromFile(TEST_PUBLIC_KEY, TestCertificateInfo.TEST_RECIPIEND_KEY_ID);
+
+        Path cryptedFile = encrypt(originFile, key);
+
+        assertThat(decryptFile(cryptedFile)).isEmptyFile();
+    }
+
+    private Path encrypt(Path originFile, OpenPgpPublicKey key) throws IOException {
+        Path cryptedFile = dir.resolve(originFile.getFileName() + ".crypt");
+        try (OutputStream os = Files.newOutputStream(cryptedFile);
+                OutputStream sutOutputStream = new OpenPgpEncryptedOutputStream(os, key, Compression.NONE)) {
+            Files.copy(originFile, sutOutputStream);
+        }
+        return cryptedFile;
+    }
+
+    private Path decryptFile(Path cryptedFile) throws IOException, InterruptedException {
+        Path decryptedFile = dir.resolve(cryptedFile.getFileName() + ".decrypted");
+        List<String> unpackCmd = List.of(
+                "/usr/bin/gpg",
+                "--homedir",
+                TestCertificateInfo.ABS_TEST_GNUPG_HOME,
+                "-o",
+                decryptedFile.toString(),
+                "-d",
+                cryptedFile.toString());
+        Process p = new ProcessBuilder(unpackCmd).redirectErrorStream(true).start();
+        String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        p.waitFor(MAX_GPG_WAIT_TIME_SECONDS, TimeUnit.SECONDS);
+        assertThat(p.exitValue()).as(output).isZero();
+        return decryptedFile;
+    }
+}
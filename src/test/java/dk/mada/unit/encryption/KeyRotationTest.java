@@ -0,0 +1,167 @@
+package dk.mada.unit.encryption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.gpg.GpgEncrypterException;
+import dk.mada.backup.gpg.GpgSessionKeyDecrypter;
+import dk.mada.backup.gpg.OpenPgpPublicKey;
+import dk.mada.backup.gpg.SessionKeyRewrapper;
+import dk.mada.backup.restore.java.BackupSet.LocalBackupSet;
+import dk.mada.backup.restore.java.KeyRotation;
+import dk.mada.backup.types.GpgId;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import dk.mada.fixture.TestCertificateInfo;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Key rotation rewraps the session keys, keeping the encrypted data.
+ *
+ * There is only one test key, so the rotation is to the same key. But the session key packets still change.
+ */
+class KeyRotationTest {
+    /** The max allowed backup and container size. */
+    private static final long MAX_BACKUP_SIZE = 4_000_000;
+    /** Encryption file size limit. */
+    private static final long MAX_ENCRYPT_FILE_SIZE = 8000L;
+    /** The backup limits. */
+    private static final Limits LIMITS = Limits.of(MAX_BACKUP_SIZE, MAX_ENCRYPT_FILE_SIZE);
+    /** Size of the session key packet made for the test key. */
+    private static final int TEST_KEY_PKESK_SIZE = 96;
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup set directory (must not exist before the first backup). */
+    private Path setDir;
+    /** The prepared backup input tree. */
+    private static Path srcDir;
+
+    @BeforeAll
+    static void prepSource() throws IOException, ArchiveException {
+        srcDir = TestDataPrepper.prepareTestInputTree("simple-input-tree");
+    }
+
+    @BeforeEach
+    void defineSetDir() {
+        setDir = tempDir.resolve("set");
+    }
+
+    /**
+     * Rotated named backup sets can be verified, and hard links to old crypts are left untouched.
+     */
+    @Test
+    void namedBackupCanBeRotated() throws IOException {
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NAMED, LIMITS, srcDir, setDir);
+        Path crypt = script.resolveSibling("dir-a.crypt");
+        Path oldSetLink = Files.createLink(tempDir.resolve("old-dir-a.crypt"), crypt);
+        byte[] before = Files.readAllBytes(crypt);
+        String scriptBefore = Files.readString(script);
+
+        rotate(script);
+
+        byte[] after = Files.readAllBytes(crypt);
+        assertThat(after).isNotEqualTo(before);
+        assertThat(tail(after)).isEqualTo(tail(before));
+        assertThat(oldSetLink).hasBinaryContent(before);
+        assertThat(Files.readString(script)).isNotEqualTo(scriptBefore);
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+        MakeRestore.assertRestoreSucceeds(script, "verify", "-s");
+    }
+
+    /**
+     * Only the first file of numbered backups changes.
+     */
+    @Test
+    void numberedBackupCanBeRotated() throws IOException {
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NUMBERED, LIMITS, srcDir, setDir);
+        byte[] secondBefore = Files.readAllBytes(setDir.resolve("test-02.crypt"));
+
+        rotate(script);
+
+        assertThat(setDir.resolve("test-02.crypt")).hasBinaryContent(secondBefore);
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+        MakeRestore.assertRestoreSucceeds(script, "verify", "-s");
+    }
+
+    /**
+     * Only the key id header and info output are changed to the new key id; file names containing the old key id are
+     * left alone.
+     */
+    @Test
+    void onlyKeyIdLinesAreRewritten() throws IOException {
+        String oldKeyId = TestCertificateInfo.TEST_RECIPIEND_KEY_ID.id();
+        GpgId newKeyId = new GpgId("0000000000000000000000000000000000000001");
+        Path keyNamedSrcDir = tempDir.resolve("src");
+        Files.createDirectories(keyNamedSrcDir);
+        Files.writeString(keyNamedSrcDir.resolve(oldKeyId + ".txt"), "named after the key");
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NAMED, LIMITS, keyNamedSrcDir, setDir);
+
+        rotate(script, newKeyId);
+
+        List<String> lines = Files.readAllLines(script);
+        assertThat(lines).contains("# @gpg_key_id: " + newKeyId.id());
+        assertThat(lines).anyMatch(l -> l.contains(" encrypted with key id " + newKeyId.id()));
+        assertThat(lines).filteredOn(l -> l.contains(oldKeyId)).isNotEmpty().allMatch(l -> l.contains(".txt"));
+    }
+
+    /**
+     * A rotation failing before all files are ready leaves the backup set unchanged, and can be run again.
+     */
+    @Test
+    void failedRotationLeavesSetUnchanged() throws IOException {
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NAMED, LIMITS, srcDir, setDir);
+        Path firstCrypt = script.resolveSibling("dir-a.crypt");
+        byte[] firstBefore = Files.readAllBytes(firstCrypt);
+        String scriptBefore = Files.readString(script);
+        Path blockedRewrap = Files.createDirectory(script.resolveSibling("file-root1.bin.crypt.rewrap"));
+
+        assertThatExceptionOfType(GpgEncrypterException.class).isThrownBy(() -> rotate(script));
+
+        assertThat(firstCrypt).hasBinaryContent(firstBefore);
+        assertThat(script).hasContent(scriptBefore);
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+
+        Files.delete(blockedRewrap);
+        rotate(script);
+
+        assertThat(Files.readAllBytes(firstCrypt)).isNotEqualTo(firstBefore);
+        try (Stream<Path> files = Files.list(setDir)) {
+            assertThat(files).noneMatch(f -> f.getFileName().toString().matches(".*[.](rewrap|rotate)"));
+        }
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+    }
+
+    private void rotate(Path script) throws IOException {
+        rotate(script, TestCertificateInfo.TEST_RECIPIEND_KEY_ID);
+    }
+
+    private void rotate(Path script, GpgId newKeyId) throws IOException {
+        OpenPgpPublicKey key = OpenPgpPublicKey.fromFile(
+                Paths.get("src/test/data/gpghome/exported-public-key.asc"), TestCertificateInfo.TEST_RECIPIEND_KEY_ID);
+        var rewrapper = new SessionKeyRewrapper(
+                new GpgSessionKeyDecrypter(TestCertificateInfo.TEST_KEY_ENVIRONMENT_OVERRIDES), key);
+        new KeyRotation(
+                        LocalBackupSet.newFromRestoreScript(script),
+                        rewrapper,
+                        newKeyId)
+                .rotate();
+    }
+
+    private byte[] tail(byte[] crypt) {
+        return Arrays.copyOfRange(crypt, TEST_KEY_PKESK_SIZE, crypt.length);
+    }
+}
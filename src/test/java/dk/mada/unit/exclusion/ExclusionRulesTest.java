@@ -0,0 +1,104 @@
+package dk.mada.unit.exclusion;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import dk.mada.backup.api.BackupApi;
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOptions;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.api.CompressionMode;
+import dk.mada.backup.api.ExclusionRules;
+import dk.mada.backup.restore.RestoreExecutor;
+import dk.mada.backup.restore.RestoreExecutor.Result;
+import dk.mada.backup.restore.RestoreScriptReader;
+import dk.mada.backup.restore.RestoreScriptReader.DataFile;
+import dk.mada.fixture.TestCertificateInfo;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Entries of the source tree can be excluded from the backup by glob patterns.
+ */
+class ExclusionRulesTest {
+    /** The exclude patterns used in the tests. */
+    private static final List<String> EXCLUDES = List.of("*.tmp", "@eaDir", "/photos/*/previews", "cache/**/*.bin");
+    /** The include patterns used in the tests. */
+    private static final List<String> INCLUDES = List.of("keep.tmp");
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+
+    /**
+     * Name patterns match at any depth, path patterns match relative paths, and includes override excludes.
+     */
+    @Test
+    void patternsMatchNamesAndPaths() {
+        ExclusionRules rules = new ExclusionRules(EXCLUDES, INCLUDES);
+
+        assertThat(rules.isExcluded("a.tmp")).isTrue();
+        assertThat(rules.isExcluded("dir/sub/b.tmp")).isTrue();
+        assertThat(rules.isExcluded("dir/b.tmp.txt")).isFalse();
+        assertThat(rules.isExcluded("dir/@eaDir")).isTrue();
+        assertThat(rules.isExcluded("dir/@eaDirs")).isFalse();
+        assertThat(rules.isExcluded("photos/2024/previews")).isTrue();
+        assertThat(rules.isExcluded("photos/2024/05/previews")).isFalse();
+        assertThat(rules.isExcluded("other/photos/2024/previews")).isFalse();
+        assertThat(rules.isExcluded("cache/a.bin")).isTrue();
+        assertThat(rules.isExcluded("cache/x/y/a.bin")).isTrue();
+        assertThat(rules.isExcluded("cache/x/a.binx")).isFalse();
+        assertThat(rules.isExcluded("dir/keep.tmp")).isFalse();
+
+        assertThat(ExclusionRules.NONE.isExcluded("a.tmp")).isFalse();
+        assertThatThrownBy(() -> new ExclusionRules(List.of("/"), List.of()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Excluded files and the contents of excluded directories are left out of the backup, and the rules are recorded
+     * in the restore script. The included files restore.
+     */
+    @Test
+    void excludedEntriesAreLeftOut() throws IOException {
+        Path srcDir = tempDir.resolve("src");
+        TestDataPrepper.prepareTextInputTree(srcDir, List.of(
+                "a.txt",
+                "a.tmp",
+                "keep.tmp",
+                "dir/b.txt",
+                "dir/@eaDir/thumb.jpg",
+                "photos/2024/img.jpg",
+                "photos/2024/previews/img.jpg",
+                "cache/x/data.bin",
+                "cache/x/data.txt"));
+
+        Path script = new BackupApi(
+                        TestCertificateInfo.TEST_GPG_INFO,
+                        BackupOutputType.NUMBERED,
+                        Limits.of(1_000_000, 1_000_000),
+                        BackupOptions.DEFAULTS
+                                .withCompressionMode(CompressionMode.AUTO)
+                                .withExclusions(new ExclusionRules(EXCLUDES, INCLUDES)))
+                .makeBackup("test", srcDir, tempDir.resolve("set"));
+
+        List<DataFile> files = new RestoreScriptReader().readRestoreScriptData(script).filesV2();
+        assertThat(files).map(DataFile::name).containsExactly(
+                "a.txt", "cache/x/data.txt", "dir/b.txt", "keep.tmp", "photos/2024/img.jpg");
+        assertThat(Files.readAllLines(script)).contains(
+                "# @excludes: \"*.tmp\" \"@eaDir\" \"/photos/*/previews\" \"cache/**/*.bin\"",
+                "# @includes: \"keep.tmp\"");
+
+        Path restoreDir = tempDir.resolve("restored");
+        Result res = RestoreExecutor.runRestoreScript(
+                script, TestCertificateInfo.TEST_KEY_ENVIRONMENT_OVERRIDES, "unpack", restoreDir.toString());
+        assertThat(res.exitValue()).as(res.output()).isZero();
+        assertThat(restoreDir.resolve("photos/2024/img.jpg")).hasSameTextualContentAs(
+                srcDir.resolve("photos/2024/img.jpg"));
+        assertThat(restoreDir.resolve("photos/2024/previews")).doesNotExist();
+        assertThat(restoreDir.resolve("dir/@eaDir")).doesNotExist();
+    }
+}
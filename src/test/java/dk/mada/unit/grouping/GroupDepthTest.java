@@ -0,0 +1,78 @@
+package dk.mada.unit.grouping;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.impl.output.VersionedSets;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The root elements of a backup can be made from entries deeper in the source tree.
+ */
+class GroupDepthTest {
+    /** The backup limits, grouping root elements two levels down. */
+    private static final Limits LIMITS = Limits.of(1_000_000, 1_000_000).withGroupDepth(2);
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup source directory. */
+    private Path srcDir;
+    /** The backup target directory. */
+    private Path setDir;
+    /** The directory of the current backup set. */
+    private Path currentDir;
+
+    @BeforeEach
+    void prep() throws IOException {
+        srcDir = tempDir.resolve("src");
+        setDir = tempDir.resolve("set");
+        currentDir = setDir.resolve(VersionedSets.CURRENT_LINK);
+        TestDataPrepper.prepareTextInputTree(
+                srcDir, List.of("top.txt", "music/readme.txt", "music/A-D/abba.txt", "music/E-H/eagles.txt"));
+    }
+
+    /**
+     * Each second level directory gets its own crypt file, which is reused if unchanged. The backup restores the full
+     * tree.
+     */
+    @Test
+    void namedCryptsAreMadeAtGroupDepth() throws IOException {
+        MakeBackup.makeApiBackup(BackupOutputType.NAMED, LIMITS, srcDir, setDir);
+        assertThat(listCrypts()).containsExactly(
+                "music_A-D.crypt", "music_E-H.crypt", "music_readme.txt.crypt", "top.txt.crypt");
+        byte[] unchangedCrypt = Files.readAllBytes(currentDir.resolve("music_A-D.crypt"));
+        byte[] changedCrypt = Files.readAllBytes(currentDir.resolve("music_E-H.crypt"));
+
+        Files.writeString(srcDir.resolve("music/E-H/eagles.txt"), "changed");
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NAMED, LIMITS, srcDir, setDir);
+
+        assertThat(currentDir.resolve("music_A-D.crypt")).hasBinaryContent(unchangedCrypt);
+        assertThat(Files.readAllBytes(currentDir.resolve("music_E-H.crypt"))).isNotEqualTo(changedCrypt);
+
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+        Path restoreDir = tempDir.resolve("restored");
+        MakeRestore.assertRestoreSucceeds(script, "unpack", restoreDir.toString());
+        for (String name : List.of("top.txt", "music/readme.txt", "music/A-D/abba.txt", "music/E-H/eagles.txt")) {
+            assertThat(restoreDir.resolve(name)).hasSameTextualContentAs(srcDir.resolve(name));
+        }
+    }
+
+    private List<String> listCrypts() throws IOException {
+        try (Stream<Path> files = Files.list(currentDir)) {
+            return files.map(f -> f.getFileName().toString())
+                    .filter(n -> n.endsWith(".crypt"))
+                    .sorted()
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package dk.mada.unit.incremental;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupApi;
+import dk.mada.backup.api.BackupOptions;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.restore.RestoreScriptReader;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * An incremental backup only includes the files changed since its base set, and restores the full chain.
+ */
+class IncrementalTest {
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup source directory. */
+    private Path srcDir;
+
+    @BeforeEach
+    void prep() throws IOException {
+        srcDir = tempDir.resolve("src");
+        TestDataPrepper.prepareTextInputTree(srcDir, List.of("a.txt", "b.txt", "dir/c.txt", "dir/d.txt", "same/e.txt"));
+    }
+
+    /**
+     * Only the changed root elements are archived, and the changed directory only contains its changed files. The
+     * chain of sets restores the latest source tree, without the deleted files.
+     */
+    @Test
+    void incrementalChainIsRestored() throws IOException {
+        Path fullScript = MakeBackup.backupApi(BackupOutputType.NUMBERED, MakeBackup.API_LIMITS)
+                .makeBackup("test", srcDir, tempDir.resolve("full"));
+
+        Files.writeString(srcDir.resolve("b.txt"), "changed b");
+        Files.writeString(srcDir.resolve("dir/new.txt"), "new file");
+        Files.delete(srcDir.resolve("dir/d.txt"));
+        Path incrScript = incrementalApi(fullScript).makeBackup("test", srcDir, tempDir.resolve("incr1"));
+
+        String script = Files.readString(incrScript);
+        String archives = script.substring(script.indexOf("archives=("), script.indexOf("files=("));
+        assertThat(archives).contains("b.txt", "dir.tar").doesNotContain("a.txt", "same");
+        assertThat(new RestoreScriptReader().readRestoreScriptData(incrScript).filesV2()).hasSize(5);
+        assertThat(script).contains("base_script=\"../full/test.sh\"").contains("\"dir/d.txt\"");
+
+        Files.delete(srcDir.resolve("a.txt"));
+        Path incr2Script = incrementalApi(incrScript).makeBackup("test", srcDir, tempDir.resolve("incr2"));
+
+        MakeRestore.assertRestoreSucceeds(incr2Script, "verify");
+        Path restoreDir = tempDir.resolve("restored");
+        MakeRestore.assertRestoreSucceeds(incr2Script, "unpack", restoreDir.toString());
+        assertSameTree(srcDir, restoreDir);
+    }
+
+    /**
+     * A mirror copy of an incremental set refers to the base set relative to the mirror. The base set path is escaped
+     * in the restore scripts.
+     */
+    @Test
+    void mirroredIncrementalSetRestoresBase() throws IOException {
+        Path fullScript = MakeBackup.backupApi(BackupOutputType.NUMBERED, MakeBackup.API_LIMITS)
+                .makeBackup("test", srcDir, tempDir.resolve("full \"`set`\""));
+
+        Files.writeString(srcDir.resolve("b.txt"), "changed b");
+        Path mirrorDir = tempDir.resolve("mirrors/incr");
+        Path incrScript = MakeBackup.backupApi(
+                        BackupOutputType.NUMBERED,
+                        MakeBackup.API_LIMITS,
+                        BackupOptions.DEFAULTS.withBaseScript(fullScript).withMirrorDirs(List.of(mirrorDir)))
+                .makeBackup("test", srcDir, tempDir.resolve("incr"));
+
+        Path mirrorScript = mirrorDir.resolve(incrScript.getFileName());
+        assertThat(Files.readString(incrScript)).contains("base_script=\"../full \\\"\\`set\\`\\\"/test.sh\"");
+        assertThat(Files.readString(mirrorScript))
+                .contains("base_script=\"../../full \\\"\\`set\\`\\\"/test.sh\"");
+
+        MakeRestore.assertRestoreSucceeds(mirrorScript, "verify");
+        Path restoreDir = tempDir.resolve("restored");
+        MakeRestore.assertRestoreSucceeds(mirrorScript, "unpack", restoreDir.toString());
+        assertSameTree(srcDir, restoreDir);
+    }
+
+    private static BackupApi incrementalApi(Path baseScript) {
+        return MakeBackup.backupApi(
+                BackupOutputType.NUMBERED, MakeBackup.API_LIMITS, BackupOptions.DEFAULTS.withBaseScript(baseScript));
+    }
+
+    private static void assertSameTree(Path expectedDir, Path actualDir) throws IOException {
+        List<String> expected = TestDataPrepper.listTree(expectedDir);
+        assertThat(TestDataPrepper.listTree(actualDir)).containsExactlyElementsOf(expected);
+        for (String name : expected) {
+            assertThat(actualDir.resolve(name)).hasSameTextualContentAs(expectedDir.resolve(name));
+        }
+    }
+}
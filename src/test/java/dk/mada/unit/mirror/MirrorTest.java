@@ -0,0 +1,88 @@
+package dk.mada.unit.mirror;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOptions;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The backup output can be written to mirror directories in the same pass.
+ */
+class MirrorTest {
+    /** The max allowed root element size. */
+    private static final long MAX_ROOT_ELEMENT_SIZE = 4_000_000;
+    /** Encryption file split size. */
+    private static final long SPLIT_SIZE = 100_000L;
+    /** The backup limits. */
+    private static final Limits LIMITS = Limits.of(MAX_ROOT_ELEMENT_SIZE, SPLIT_SIZE);
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup input tree. */
+    private Path srcDir;
+    /** The backup set directory. */
+    private Path setDir;
+
+    @BeforeEach
+    void prepSource() throws IOException {
+        srcDir = TestDataPrepper.prepareRandomInputTree(tempDir.resolve("src"));
+        setDir = tempDir.resolve("set");
+    }
+
+    /**
+     * The mirrors get identical copies of the backup set, each of which can be verified.
+     */
+    @Test
+    void mirrorsGetIdenticalBackupSets() throws IOException {
+        Path mirrorA = tempDir.resolve("mirror-a");
+        Path mirrorB = tempDir.resolve("mirror-b");
+
+        Path script = MakeBackup.backupApi(
+                        BackupOutputType.NUMBERED,
+                        LIMITS,
+                        BackupOptions.DEFAULTS.withMirrorDirs(List.of(mirrorA, mirrorB)))
+                .makeBackup("test", srcDir, setDir);
+
+        List<String> files = TestDataPrepper.listNames(setDir);
+        assertThat(files).hasSizeGreaterThan(2);
+        for (Path mirror : List.of(mirrorA, mirrorB)) {
+            assertThat(TestDataPrepper.listNames(mirror)).isEqualTo(files);
+            for (String f : files) {
+                assertThat(mirror.resolve(f)).hasSameBinaryContentAs(setDir.resolve(f));
+            }
+            MakeRestore.assertRestoreSucceeds(mirror.resolve(script.getFileName()), "verify", "-s");
+        }
+        MakeRestore.assertRestoreSucceeds(script, "verify", "-s");
+    }
+
+    /**
+     * A failing mirror does not affect the backup or the other mirrors.
+     */
+    @Test
+    void failingMirrorIsDropped() throws IOException {
+        Path blocker = Files.createFile(tempDir.resolve("blocker"));
+        Path badMirror = blocker.resolve("mirror");
+        Path goodMirror = tempDir.resolve("mirror");
+
+        Path script = MakeBackup.backupApi(
+                        BackupOutputType.SEGMENTED,
+                        LIMITS,
+                        BackupOptions.DEFAULTS.withMirrorDirs(List.of(badMirror, goodMirror)))
+                .makeBackup("test", srcDir, setDir);
+
+        assertThat(Files.exists(badMirror)).isFalse();
+        assertThat(TestDataPrepper.listNames(goodMirror)).isEqualTo(TestDataPrepper.listNames(setDir));
+        MakeRestore.assertRestoreSucceeds(goodMirror.resolve(script.getFileName()), "verify", "-s");
+        MakeRestore.assertRestoreSucceeds(script, "verify", "-s");
+    }
+}
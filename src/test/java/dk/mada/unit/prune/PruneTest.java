@@ -0,0 +1,90 @@
+package dk.mada.unit.prune;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.impl.output.OldSetPruner;
+import dk.mada.backup.impl.output.OldSetPruner.OldSet;
+import dk.mada.backup.impl.output.OldSetPruner.PrunePlan;
+import dk.mada.backup.impl.output.OldSetPruner.Retention;
+import dk.mada.backup.impl.output.VersionedSets;
+import dk.mada.backup.restore.java.Restore;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Old sets are pruned by retention rules, with their space accounted by inode.
+ */
+class PruneTest {
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup target directory. */
+    private Path setDir;
+    /** The old-sets directory. */
+    private Path oldSetsDir;
+
+    @BeforeEach
+    void prep() throws IOException {
+        setDir = tempDir.resolve("set");
+        oldSetsDir = setDir.resolve(VersionedSets.OLD_SETS_DIR);
+        Path currentSet = setDir.resolve(".sets/3");
+        writeFile(currentSet.resolve("test.sh"), 5);
+        writeFile(currentSet.resolve("shared.crypt"), 1000);
+        Files.createSymbolicLink(setDir.resolve(VersionedSets.CURRENT_LINK), Path.of(".sets/3"));
+
+        Path newest = oldSetsDir.resolve("2026.10.19-1200");
+        writeFile(newest.resolve("a.crypt"), 100);
+        link(newest.resolve("shared.crypt"), currentSet.resolve("shared.crypt"));
+        writeFile(tempDir.resolve("outside.crypt"), 7);
+        link(newest.resolve("e.crypt"), tempDir.resolve("outside.crypt"));
+
+        writeFile(oldSetsDir.resolve("2026.10.18-1200/b.crypt"), 200);
+        writeFile(oldSetsDir.resolve("2026.10.18-0800/d.crypt"), 50);
+        writeFile(oldSetsDir.resolve("2026.10.18-0800/c.crypt"), 30);
+        link(oldSetsDir.resolve("2026.10.10-1200/c.crypt"), oldSetsDir.resolve("2026.10.18-0800/c.crypt"));
+        writeFile(oldSetsDir.resolve("manual/x.crypt"), 10);
+    }
+
+    /**
+     * Only files referenced by a single set are exclusive to it, and files shared only by pruned sets are reclaimed.
+     */
+    @Test
+    void exclusiveSpaceIsAccountedByInode() {
+        PrunePlan plan = new OldSetPruner(setDir).plan(new Retention(0, 2, 0, 0));
+
+        assertThat(plan.kept()).map(OldSet::name).containsExactly("manual", "2026.10.19-1200", "2026.10.18-1200");
+        assertThat(plan.pruned()).map(OldSet::name).containsExactly("2026.10.18-0800", "2026.10.10-1200");
+        assertThat(plan.kept()).map(OldSet::exclusiveBytes).containsExactly(10L, 100L, 200L);
+        assertThat(plan.kept()).map(OldSet::totalBytes).containsExactly(10L, 1107L, 200L);
+        assertThat(plan.pruned()).map(OldSet::exclusiveBytes).containsExactly(50L, 0L);
+        assertThat(plan.reclaimableBytes()).isEqualTo(80L);
+    }
+
+    /**
+     * The prune command deletes the pruned sets, leaving the current set and the files linked from it.
+     */
+    @Test
+    void pruneCommandDeletesPrunedSets() throws IOException {
+        Path script = setDir.resolve(VersionedSets.CURRENT_LINK).resolve("test.sh");
+
+        int res = Restore.mainReturn("prune", "-b", script.toString(), "--keep-last", "1");
+
+        assertThat(res).isZero();
+        assertThat(TestDataPrepper.listNames(oldSetsDir)).containsExactly("2026.10.19-1200", "manual");
+        assertThat(setDir.resolve(".sets/3/shared.crypt")).hasSize(1000);
+    }
+
+    private static void writeFile(Path file, int size) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[size]);
+    }
+
+    private static void link(Path link, Path existing) throws IOException {
+        Files.createDirectories(link.getParent());
+        Files.createLink(link, existing);
+    }
+}
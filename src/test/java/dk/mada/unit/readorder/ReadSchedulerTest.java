@@ -0,0 +1,201 @@
+package dk.mada.unit.readorder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import dk.mada.backup.ReadScheduler;
+import dk.mada.backup.SourceFile;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The read scheduler reads files ahead in physical order, but provides them in the order they are archived.
+ */
+class ReadSchedulerTest {
+    /** The window size used in the tests. */
+    private static final long WINDOW_SIZE = 100;
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+
+    /**
+     * Files spread over several windows, and files too large for a window, are provided with their content in the
+     * given order.
+     */
+    @Test
+    void contentIsProvidedInArchiveOrder() throws IOException {
+        List<SourceFile> files = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            // Created in reverse order, so the inode order differs from the archive order
+            Path file = tempDir.resolve(String.format("file-%02d.txt", 39 - i));
+            Files.writeString(file, "content of " + file.getFileName() + (i % 7 == 0 ? "x".repeat(200) : ""));
+        }
+        for (int i = 0; i < 40; i++) {
+            files.add(SourceFile.of(tempDir.resolve(String.format("file-%02d.txt", i))));
+        }
+
+        try (ReadScheduler reads = readingAll(files)) {
+            for (SourceFile f : files) {
+                try (InputStream content = reads.open(f)) {
+                    assertThat(content).hasBinaryContent(Files.readAllBytes(f.path()));
+                }
+            }
+        }
+    }
+
+    /**
+     * The files must be opened in the given order.
+     */
+    @Test
+    void filesMustBeOpenedInOrder() throws IOException {
+        Path a = Files.writeString(tempDir.resolve("a"), "a");
+        Path b = Files.writeString(tempDir.resolve("b"), "b");
+        List<SourceFile> files = List.of(SourceFile.of(a), SourceFile.of(b));
+
+        try (ReadScheduler reads = readingAll(files)) {
+            assertThatThrownBy(() -> reads.open(files.get(1))).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    /**
+     * The files of a window are read in inode order.
+     */
+    @Test
+    void filesAreReadInInodeOrder() throws IOException {
+        List<SourceFile> files = createFilesInReverseOrder(10);
+        List<Path> reads = Collections.synchronizedList(new ArrayList<>());
+
+        try (ReadScheduler scheduler =
+                new ReadScheduler(
+                files.iterator(), f -> true, Long.MAX_VALUE, ReadScheduler.DEFAULT_MAX_AHEAD, recordingReader(reads))) {
+            for (SourceFile f : files) {
+                scheduler.open(f).close();
+            }
+        }
+
+        List<Path> inodeOrder = files.stream()
+                .sorted(Comparator.comparingLong(f -> ReadScheduler.inodeOf(f.attributes()).orElseThrow()))
+                .map(SourceFile::path)
+                .toList();
+        assertThat(inodeOrder).isNotEqualTo(files.stream().map(SourceFile::path).toList());
+        assertThat(reads).isEqualTo(inodeOrder);
+    }
+
+    /**
+     * The files are pulled from the source as they are needed, and only the selected files are read. All files are
+     * provided in order.
+     */
+    @Test
+    void filesArePulledAsNeeded() throws IOException {
+        List<SourceFile> files = createFilesInReverseOrder(40);
+        AtomicInteger pulled = new AtomicInteger();
+        Iterator<SourceFile> source = files.stream().peek(f -> pulled.incrementAndGet()).iterator();
+        List<Path> reads = Collections.synchronizedList(new ArrayList<>());
+        Predicate<SourceFile> isRead = f -> !f.path().getFileName().toString().endsWith("3.txt");
+
+        List<SourceFile> provided = new ArrayList<>();
+        try (ReadScheduler scheduler = new ReadScheduler(
+                source, isRead, WINDOW_SIZE, ReadScheduler.DEFAULT_MAX_AHEAD, recordingReader(reads))) {
+            SourceFile first = scheduler.next();
+            provided.add(first);
+            scheduler.open(first).close();
+            assertThat(pulled).hasValueLessThan(files.size() / 2);
+
+            while (scheduler.hasNext()) {
+                SourceFile f = scheduler.next();
+                provided.add(f);
+                if (isRead.test(f)) {
+                    try (InputStream content = scheduler.open(f)) {
+                        assertThat(content).hasBinaryContent(Files.readAllBytes(f.path()));
+                    }
+                }
+            }
+        }
+
+        assertThat(provided).isEqualTo(files);
+        assertThat(reads)
+                .hasSize(36)
+                .noneMatch(p -> p.getFileName().toString().endsWith("3.txt"));
+    }
+
+    /**
+     * A long run of files not selected for reading is not pulled ahead past the limit while a window is filling. The
+     * window is read partially, and the later selected files are still provided with their content.
+     */
+    @Test
+    void pullingAheadIsLimited() throws IOException {
+        List<SourceFile> files = createFilesInReverseOrder(40);
+        AtomicInteger pulled = new AtomicInteger();
+        Iterator<SourceFile> source = files.stream().peek(f -> pulled.incrementAndGet()).iterator();
+        List<Path> reads = Collections.synchronizedList(new ArrayList<>());
+        Predicate<SourceFile> isRead = f -> f.equals(files.get(0)) || f.equals(files.get(1)) || f.equals(files.get(39));
+
+        try (ReadScheduler scheduler = new ReadScheduler(source, isRead, WINDOW_SIZE, 5, recordingReader(reads))) {
+            SourceFile first = scheduler.next();
+            scheduler.open(first).close();
+            assertThat(pulled).hasValueLessThanOrEqualTo(1 + 5);
+
+            while (scheduler.hasNext()) {
+                SourceFile f = scheduler.next();
+                if (isRead.test(f)) {
+                    try (InputStream content = scheduler.open(f)) {
+                        assertThat(content).hasBinaryContent(Files.readAllBytes(f.path()));
+                    }
+                }
+            }
+        }
+
+        assertThat(reads).containsExactlyInAnyOrder(files.get(0).path(), files.get(1).path(), files.get(39).path());
+    }
+
+    /**
+     * The inode number is found in the file key, without reading the file attributes again. If the format of the file
+     * key changes, this fails rather than silently falling back to reading in name order.
+     */
+    @Test
+    void inodeIsFoundInFileKey() throws IOException {
+        Path file = Files.writeString(tempDir.resolve("file"), "content");
+        BasicFileAttributes attributes = SourceFile.of(file).attributes();
+        assumeTrue(attributes.fileKey() != null, "file system without file keys");
+
+        assertThat(ReadScheduler.inodeOf(attributes)).isPresent();
+        if (Files.getFileStore(file).supportsFileAttributeView("unix")) {
+            assertThat(ReadScheduler.inodeOf(attributes)).hasValue((Long) Files.getAttribute(file, "unix:ino"));
+        }
+    }
+
+    private List<SourceFile> createFilesInReverseOrder(int count) throws IOException {
+        for (int i = count - 1; i >= 0; i--) {
+            Files.writeString(tempDir.resolve(String.format("file-%02d.txt", i)), "content of file " + i);
+        }
+        List<SourceFile> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            files.add(SourceFile.of(tempDir.resolve(String.format("file-%02d.txt", i))));
+        }
+        return files;
+    }
+
+    private static ReadScheduler readingAll(List<SourceFile> files) {
+        return new ReadScheduler(
+                files.iterator(), f -> true, WINDOW_SIZE, ReadScheduler.DEFAULT_MAX_AHEAD, Files::readAllBytes);
+    }
+
+    private static ReadScheduler.ContentReader recordingReader(List<Path> reads) {
+        return file -> {
+            reads.add(file);
+            return Files.readAllBytes(file);
+        };
+    }
+}
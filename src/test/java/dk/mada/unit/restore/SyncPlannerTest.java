@@ -0,0 +1,135 @@
+package dk.mada.unit.restore;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.restore.java.BackupSet.LocalBackupSet;
+import dk.mada.backup.restore.java.RemoteLister;
+import dk.mada.backup.restore.java.RemoteListing;
+import dk.mada.backup.restore.java.RemoteListing.RemoteFile;
+import dk.mada.backup.restore.java.SyncPlanner;
+import dk.mada.backup.restore.java.SyncPlanner.SyncPlan;
+import dk.mada.backup.types.Md5;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Only the backup set files that differ from the remote listing are planned for upload.
+ */
+class SyncPlannerTest {
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+
+    /**
+     * After a small change to a named backup set, only the changed crypt and the restore script are uploaded. Crypts
+     * reused from the previous set are present, and crypts of removed root elements are deleted.
+     */
+    @Test
+    void onlyChangedFilesAreUploaded() throws IOException {
+        Path srcDir = tempDir.resolve("src");
+        Path setDir = tempDir.resolve("set");
+        Path remoteDir = tempDir.resolve("remote");
+        TestDataPrepper.prepareTextInputTree(srcDir, List.of("a.txt", "b.txt", "c.txt"));
+
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+        copyFiles(script.getParent(), remoteDir);
+        assertThat(plan(script, remoteDir).isInSync()).isTrue();
+
+        Files.writeString(srcDir.resolve("a.txt"), "changed");
+        Files.delete(srcDir.resolve("c.txt"));
+        MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+
+        SyncPlan plan = plan(script, remoteDir);
+        assertThat(plan.uploads()).containsExactly("a.txt.crypt", "test.sh");
+        assertThat(plan.present()).containsExactly("b.txt.crypt");
+        assertThat(plan.deletes()).containsExactly("c.txt.crypt");
+    }
+
+    /**
+     * Listings with the file name first (like jotta-cli) and md5sum listings can be parsed.
+     */
+    @Test
+    void listingsCanBeParsed() {
+        RemoteListing listing = RemoteListing.parse(List.of(
+                "Name            Size  Checksum                          Modified",
+                "a.crypt         1234  0123456789abcdef0123456789ABCDEF  2026-10-19 14:00",
+                "folder/               -",
+                "fedcba9876543210fedcba9876543210 *b.crypt"));
+
+        assertThat(listing.files())
+                .containsOnlyKeys("a.crypt", "b.crypt")
+                .containsEntry("a.crypt", new RemoteFile(1234, Md5.ofHex("0123456789abcdef0123456789abcdef")))
+                .containsEntry(
+                        "b.crypt",
+                        new RemoteFile(RemoteFile.UNKNOWN_SIZE, Md5.ofHex("fedcba9876543210fedcba9876543210")));
+    }
+
+    /**
+     * File names may contain spaces, in both listing formats. The size is the column before the checksum.
+     */
+    @Test
+    void listingNamesMayContainSpaces() {
+        RemoteListing listing = RemoteListing.parse(List.of(
+                "my photos.crypt  1234  0123456789abcdef0123456789abcdef  2026-10-19 14:00",
+                "set 123.crypt 99 fedcba9876543210fedcba9876543210",
+                "no size.crypt 00112233445566778899aabbccddeeff",
+                "fedcba9876543210fedcba9876543210  name with  spaces.crypt"));
+
+        assertThat(listing.files())
+                .containsOnlyKeys("my photos.crypt", "set 123.crypt", "no size.crypt", "name with  spaces.crypt")
+                .containsEntry("my photos.crypt", new RemoteFile(1234, Md5.ofHex("0123456789abcdef0123456789abcdef")))
+                .containsEntry("set 123.crypt", new RemoteFile(99, Md5.ofHex("fedcba9876543210fedcba9876543210")))
+                .containsEntry(
+                        "no size.crypt",
+                        new RemoteFile(RemoteFile.UNKNOWN_SIZE, Md5.ofHex("00112233445566778899aabbccddeeff")))
+                .containsEntry(
+                        "name with  spaces.crypt",
+                        new RemoteFile(RemoteFile.UNKNOWN_SIZE, Md5.ofHex("fedcba9876543210fedcba9876543210")));
+    }
+
+    /**
+     * Remote files with spaces in their names are listed under their full name by a listing command (given as separate
+     * arguments), so a stray remote file is planned for deletion by its real name.
+     */
+    @Test
+    void remoteNamesWithSpacesAreMatchedInCommandListing() throws IOException {
+        Path srcDir = tempDir.resolve("src");
+        Path setDir = tempDir.resolve("set");
+        Path remoteDir = tempDir.resolve("remote dir");
+        TestDataPrepper.prepareTextInputTree(srcDir, List.of("a.txt", "b.txt"));
+
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+        copyFiles(script.getParent(), remoteDir);
+        Files.writeString(remoteDir.resolve("old  notes 1.crypt"), "stray");
+        RemoteListing remote = RemoteLister.fromCommand(
+                        List.of("sh", "-c", "cd \"$0\" && md5sum -- *", remoteDir.toString()))
+                .list();
+
+        SyncPlan plan = SyncPlanner.plan(LocalBackupSet.newFromRestoreScript(script), remote);
+        assertThat(plan.uploads()).isEmpty();
+        assertThat(plan.present()).containsExactly("a.txt.crypt", "b.txt.crypt", "test.sh");
+        assertThat(plan.deletes()).containsExactly("old  notes 1.crypt");
+    }
+
+    private static SyncPlan plan(Path script, Path remoteDir) throws IOException {
+        RemoteListing remote = RemoteLister.fromDirectory(remoteDir).list();
+        return SyncPlanner.plan(LocalBackupSet.newFromRestoreScript(script), remote);
+    }
+
+    private static void copyFiles(Path fromDir, Path toDir) throws IOException {
+        Files.createDirectories(toDir);
+        try (Stream<Path> files = Files.list(fromDir)) {
+            for (Path f : files.filter(Files::isRegularFile).toList()) {
+                Files.copy(f, toDir.resolve(f.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
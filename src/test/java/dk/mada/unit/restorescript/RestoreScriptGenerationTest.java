@@ -5,6 +5,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 import dk.mada.backup.BackupElement;
 import dk.mada.backup.ShellEscaper;
 import dk.mada.backup.restore.RestoreScriptWriter;
+import dk.mada.backup.restore.RestoreScriptWriter.SectionWriter;
 import dk.mada.backup.restore.VariableName;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -37,7 +38,8 @@ class RestoreScriptGenerationTest {
         List<BackupElement> tars = toBackupElements("fun.tar", "sun.tar");
         List<BackupElement> files = toBackupElements("fun/photo1.jpg", "sun/photo2.jpg");
 
-        RestoreScriptWriter sut = new RestoreScriptWriter(vars, crypts, tars, files);
+        RestoreScriptWriter sut =
+                new RestoreScriptWriter(vars, crypts, List.of(), tars, SectionWriter.of(files), List.of());
 
         Path script = dir.resolve("script.sh");
         sut.write(script);
@@ -64,7 +66,8 @@ class RestoreScriptGenerationTest {
         List<BackupElement> files = toBackupElements(
                 "Annie Lennox/Medusa/01. Annie Lennox - No More \"I Love You's\".opus",
                 "På slaget 12/Hjem til Århus/12 Li`e Midt I Mellen.ogg");
-        RestoreScriptWriter sut = new RestoreScriptWriter(Map.of(), List.of(), List.of(), files);
+        RestoreScriptWriter sut = new RestoreScriptWriter(
+                Map.of(), List.of(), List.of(), List.of(), SectionWriter.of(files), List.of());
 
         Path script = dir.resolve("script.sh");
         sut.write(script);
@@ -81,7 +84,8 @@ class RestoreScriptGenerationTest {
     void restoreScriptIsWrittenToRepository() {
 
         List<BackupElement> files = toBackupElements("not-relevant.txt");
-        RestoreScriptWriter sut = new RestoreScriptWriter(Map.of(), List.of(), List.of(), files);
+        RestoreScriptWriter sut = new RestoreScriptWriter(
+                Map.of(), List.of(), List.of(), List.of(), SectionWriter.of(files), List.of());
 
         String backupTargetPath = "script.sh";
         Path script = dir.resolve(backupTargetPath);
@@ -0,0 +1,167 @@
+package dk.mada.unit.resume;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatException;
+
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.api.CompressionMode;
+import dk.mada.backup.gpg.Compression;
+import dk.mada.backup.gpg.Encrypter;
+import dk.mada.backup.gpg.GpgEncrypterException;
+import dk.mada.backup.types.GpgId;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import dk.mada.fixture.TestCertificateInfo;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * An interrupted NAMED backup is resumed without encrypting the completed root elements again.
+ */
+class ResumeTest {
+    /** The root elements of the backup. */
+    private static final List<String> ROOT_ELEMENTS = List.of("a.txt", "b.txt", "c.txt", "d.txt", "e.txt");
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup source directory. */
+    private Path srcDir;
+    /** The backup target directory. */
+    private Path setDir;
+
+    @BeforeEach
+    void prep() throws IOException {
+        srcDir = tempDir.resolve("src");
+        setDir = tempDir.resolve("set");
+        TestDataPrepper.prepareTextInputTree(srcDir, ROOT_ELEMENTS);
+    }
+
+    /**
+     * The crypt files completed before the interruption are kept.
+     */
+    @Test
+    void interruptedBackupIsResumed() {
+        interruptAfter(2);
+
+        CountingEncrypter encrypter = new CountingEncrypter(Integer.MAX_VALUE);
+        Path script = MakeBackup.makeApiBackup(encrypter, BackupOutputType.NAMED, srcDir, setDir);
+
+        assertThat(encrypter.count).isEqualTo(3);
+        assertThat(setDir.resolve(".new-set")).doesNotExist();
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+    }
+
+    /**
+     * A crypt file that was damaged after the interruption, or whose root element changed, is encrypted again.
+     */
+    @Test
+    void damagedOrChangedCryptFilesAreEncryptedAgain() throws IOException {
+        interruptAfter(3);
+        Files.writeString(setDir.resolve(".new-set/a.txt.crypt"), "damaged");
+        Files.writeString(srcDir.resolve("b.txt"), "changed");
+
+        CountingEncrypter encrypter = new CountingEncrypter(Integer.MAX_VALUE);
+        Path script = MakeBackup.makeApiBackup(encrypter, BackupOutputType.NAMED, srcDir, setDir);
+
+        assertThat(encrypter.count).isEqualTo(4);
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+    }
+
+    /**
+     * A crypt file kept from the interrupted backup, whose root element was removed before the backup is resumed, is
+     * not included in the new backup set.
+     */
+    @Test
+    void cryptFilesOfRemovedRootElementsAreDeleted() throws IOException {
+        interruptAfter(2);
+        Files.delete(srcDir.resolve("a.txt"));
+
+        CountingEncrypter encrypter = new CountingEncrypter(Integer.MAX_VALUE);
+        Path script = MakeBackup.makeApiBackup(encrypter, BackupOutputType.NAMED, srcDir, setDir);
+
+        assertThat(encrypter.count).isEqualTo(3);
+        assertThat(script.getParent().resolve("a.txt.crypt")).doesNotExist();
+        assertThat(script.getParent().resolve("b.txt.crypt")).exists();
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+    }
+
+    /**
+     * A first backup in bounded memory mode keeps its manifest file in the working directory. So an interruption leaves
+     * only the working directory in the target directory, and the backup can be resumed.
+     */
+    @Test
+    void interruptedBoundedMemoryBackupIsResumed() {
+        Limits bounded = Limits.of(1_000_000, 1_000_000).withBoundedMemory(true);
+        CountingEncrypter crashing = new CountingEncrypter(3);
+        assertThatException().isThrownBy(() -> MakeBackup.makeApiBackup(
+                crashing, BackupOutputType.NAMED, bounded, CompressionMode.NONE, srcDir, setDir));
+
+        assertThat(crashing.targetFilesAtCrash).containsExactlyInAnyOrder(".new-set", ".new-set/.test.manifest");
+        assertThat(setDir.resolve(".new-set/.test.manifest")).doesNotExist();
+
+        CountingEncrypter encrypter = new CountingEncrypter(Integer.MAX_VALUE);
+        Path script = MakeBackup.makeApiBackup(
+                encrypter, BackupOutputType.NAMED, bounded, CompressionMode.NONE, srcDir, setDir);
+
+        assertThat(encrypter.count).isEqualTo(2);
+        assertThat(script.getParent().resolve(".test.manifest")).doesNotExist();
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+    }
+
+    private void interruptAfter(int encryptions) {
+        assertThatException().isThrownBy(() -> MakeBackup.makeApiBackup(
+                new CountingEncrypter(encryptions), BackupOutputType.NAMED, srcDir, setDir));
+        assertThat(setDir.resolve(".new-set/.resume-journal")).exists();
+    }
+
+    /**
+     * Encrypter counting the encryptions, and failing when exceeding a limit.
+     */
+    private final class CountingEncrypter implements Encrypter {
+        /** The max number of encryptions before failing. */
+        private final int limit;
+        /** The number of encryptions. */
+        private int count;
+        /** The files in the target directory (except the crypt files) when failing. */
+        private List<String> targetFilesAtCrash = List.of();
+
+        CountingEncrypter(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public GpgId recipientKeyId() {
+            return TestCertificateInfo.TEST_GPG_INFO.recipientKeyId();
+        }
+
+        @Override
+        public OutputStream encrypt(OutputStream out, Compression compression) throws GpgEncrypterException {
+            if (count == limit) {
+                targetFilesAtCrash = listNonCryptFiles();
+                throw new GpgEncrypterException("Simulated crash");
+            }
+            count++;
+            return TestCertificateInfo.TEST_GPG_INFO.encrypt(out, compression);
+        }
+
+        private List<String> listNonCryptFiles() {
+            try (Stream<Path> files = Files.walk(setDir)) {
+                return files.filter(f -> !f.equals(setDir))
+                        .map(f -> setDir.relativize(f).toString())
+                        .filter(n -> !n.endsWith(".crypt") && !n.contains(".resume-journal"))
+                        .toList();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package dk.mada.unit.segment;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Segmented backups split the output into independently encrypted segments.
+ */
+class SegmentTest {
+    /** The max allowed root element size. */
+    private static final long MAX_ROOT_ELEMENT_SIZE = 4_000_000;
+    /** The segment size. */
+    private static final long SEGMENT_SIZE = 100_000L;
+    /** Size of each of the input files. */
+    private static final int INPUT_SIZE = 40 * 1024;
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+
+    /**
+     * A root directory larger than the segment size is split over several segments, at file boundaries. Each segment
+     * verifies, and the directory restores.
+     */
+    @Test
+    void largeRootDirectoryIsSplitOverSegments() throws IOException {
+        Path srcDir = tempDir.resolve("src");
+        Path dir = Files.createDirectories(srcDir.resolve("dir"));
+        Random random = new Random(42);
+        for (int i = 0; i < 10; i++) {
+            byte[] data = new byte[INPUT_SIZE];
+            random.nextBytes(data);
+            Files.write(dir.resolve("file-" + i + ".bin"), data);
+        }
+
+        Path setDir = tempDir.resolve("set");
+        Path script = MakeBackup.makeApiBackup(
+                BackupOutputType.SEGMENTED, Limits.of(MAX_ROOT_ELEMENT_SIZE, SEGMENT_SIZE), srcDir, setDir);
+
+        try (Stream<Path> files = Files.list(setDir)) {
+            assertThat(files.filter(p -> p.toString().endsWith(".crypt"))).hasSizeGreaterThan(2);
+        }
+        MakeRestore.assertRestoreSucceeds(script, "verify", "-s");
+
+        Path restoreDir = tempDir.resolve("restored");
+        MakeRestore.assertRestoreSucceeds(script, "unpack", restoreDir.toString());
+        for (int i = 0; i < 10; i++) {
+            String name = "dir/file-" + i + ".bin";
+            assertThat(restoreDir.resolve(name)).hasSameBinaryContentAs(srcDir.resolve(name));
+        }
+    }
+}
@@ -4,6 +4,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 import dk.mada.backup.api.BackupApi;
 import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOptions;
 import dk.mada.backup.api.BackupOutputType;
 import dk.mada.fixture.TestCertificateInfo;
 import dk.mada.fixture.TestDataPrepper;
@@ -41,8 +42,9 @@ class SizeLimitTest {
 
     @BeforeEach
     void createBackupApi() {
-        Limits limits = new Limits(MAX_BACKUP_SIZE, MAX_ENCRYPT_FILE_SIZE);
-        api = new BackupApi(TestCertificateInfo.TEST_GPG_INFO, BackupOutputType.NUMBERED, limits);
+        Limits limits = Limits.of(MAX_BACKUP_SIZE, MAX_ENCRYPT_FILE_SIZE);
+        api = new BackupApi(
+                TestCertificateInfo.TEST_GPG_INFO, BackupOutputType.NUMBERED, limits, BackupOptions.DEFAULTS);
     }
 
     /**
@@ -5,6 +5,8 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import dk.mada.backup.api.BackupTargetExistsException;
 import dk.mada.backup.splitter.SplitterOutputStream;
+import dk.mada.backup.splitter.SplitterOutputStream.Placement;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
@@ -12,6 +14,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Random;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
@@ -50,8 +53,35 @@ class SplitterTest {
         assertThat(reassembledText).isEqualTo(text);
     }
 
+    /**
+     * Bulk writes crossing the split boundaries are sliced exactly at the boundaries.
+     */
+    @Test
+    void shouldSplitBulkWritesAtBoundary() throws IOException {
+        byte[] data = new byte[100_000];
+        new Random(42).nextBytes(data);
+        int chunkSize = 8192;
+        long sizeLimit = 30_001;
+
+        try (OutputStream os =
+                new SplitterOutputStream(targetDir, "basename", ".tar", sizeLimit, Placement.TARGET_DIR)) {
+            for (int off = 0; off < data.length; off += chunkSize) {
+                os.write(data, off, Math.min(chunkSize, data.length - off));
+            }
+        }
+
+        List<Path> files = getListOfGeneratedFiles();
+        assertThat(files).extracting(Files::size).containsExactly(30_001L, 30_001L, 30_001L, 9_997L);
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (Path f : files) {
+            reassembled.write(Files.readAllBytes(f));
+        }
+        assertThat(reassembled.toByteArray()).isEqualTo(data);
+    }
+
     private void writeSplitterOutput(String text, long sizeLimit) throws IOException {
-        try (OutputStream os = new SplitterOutputStream(targetDir, "basename", ".tar", sizeLimit)) {
+        try (OutputStream os =
+                new SplitterOutputStream(targetDir, "basename", ".tar", sizeLimit, Placement.TARGET_DIR)) {
             os.write(text.getBytes(StandardCharsets.UTF_8));
         }
     }
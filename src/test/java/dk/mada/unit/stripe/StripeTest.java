@@ -0,0 +1,90 @@
+package dk.mada.unit.stripe;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupArguments.Limits;
+import dk.mada.backup.api.BackupOptions;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.splitter.SplitterOutputStream.Placement;
+import dk.mada.backup.splitter.SplitterOutputStream;
+import dk.mada.backup.storage.StorageBackend;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.ToLongFunction;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Numbered output files can be striped over several directories.
+ */
+class StripeTest {
+    /** The max allowed root element size. */
+    private static final long MAX_ROOT_ELEMENT_SIZE = 4_000_000;
+    /** Encryption file split size. */
+    private static final long SPLIT_SIZE = 100_000L;
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup input tree. */
+    private Path srcDir;
+
+    @BeforeEach
+    void prepSource() throws IOException {
+        srcDir = TestDataPrepper.prepareRandomInputTree(tempDir.resolve("src"));
+    }
+
+    /**
+     * The files are placed round-robin, and the restore script finds them.
+     */
+    @Test
+    void stripedBackupCanBeRestored() throws IOException {
+        Path setDir = tempDir.resolve("disk1/set");
+        Path stripeA = tempDir.resolve("disk2/set");
+        Path stripeB = tempDir.resolve("disk3/set");
+
+        Path script = MakeBackup.backupApi(
+                        BackupOutputType.NUMBERED,
+                        Limits.of(MAX_ROOT_ELEMENT_SIZE, SPLIT_SIZE),
+                        BackupOptions.DEFAULTS.withStripeDirs(List.of(stripeA, stripeB)))
+                .makeBackup("test", srcDir, setDir);
+
+        assertThat(TestDataPrepper.listNames(setDir)).startsWith("test-01.crypt", "test-04.crypt");
+        assertThat(TestDataPrepper.listNames(stripeA)).startsWith("test-02.crypt", "test-05.crypt");
+        assertThat(TestDataPrepper.listNames(stripeB)).startsWith("test-03.crypt", "test-06.crypt");
+        assertThat(Files.readString(script)).contains(",../../disk2/set/test-02.crypt\"");
+
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+        MakeRestore.assertRestoreSucceeds(script, "verify", "-s");
+        MakeRestore.assertRestoreSucceeds(script, "unpack", tempDir.resolve("restored").toString());
+        assertThat(tempDir.resolve("restored/c/c.bin")).hasSameBinaryContentAs(srcDir.resolve("c/c.bin"));
+    }
+
+    /**
+     * Stripe directories without room for a full file are skipped.
+     */
+    @Test
+    void directoriesWithoutRoomAreSkipped() throws IOException {
+        Path setDir = Files.createDirectories(tempDir.resolve("disk1/set"));
+        Path fullStripe = Files.createDirectories(tempDir.resolve("disk2/set"));
+        Path stripe = Files.createDirectories(tempDir.resolve("disk3/set"));
+        ToLongFunction<Path> usableSpace = dir -> dir.equals(fullStripe) ? SPLIT_SIZE - 1 : Long.MAX_VALUE;
+
+        try (SplitterOutputStream sos = new SplitterOutputStream(
+                setDir,
+                "test",
+                ".crypt",
+                SPLIT_SIZE,
+                new Placement(List.of(fullStripe, stripe), StorageBackend.none(), usableSpace))) {
+            sos.write(new byte[(int) (SPLIT_SIZE * 4)]);
+        }
+
+        assertThat(TestDataPrepper.listNames(setDir)).containsExactly("test-01.crypt", "test-04.crypt");
+        assertThat(TestDataPrepper.listNames(fullStripe)).isEmpty();
+        assertThat(TestDataPrepper.listNames(stripe)).containsExactly("test-02.crypt", "test-03.crypt");
+    }
+}
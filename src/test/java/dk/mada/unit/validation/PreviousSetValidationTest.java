@@ -0,0 +1,82 @@
+package dk.mada.unit.validation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import dk.mada.backup.api.BackupException;
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.impl.output.VersionedSets;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The previous backup set is validated while a NAMED backup is made, and must be valid before it is replaced.
+ */
+class PreviousSetValidationTest {
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup source directory. */
+    private Path srcDir;
+    /** The backup target directory. */
+    private Path setDir;
+    /** The directory of the current backup set. */
+    private Path currentDir;
+
+    @BeforeEach
+    void prep() throws IOException {
+        srcDir = tempDir.resolve("src");
+        setDir = tempDir.resolve("set");
+        currentDir = setDir.resolve(VersionedSets.CURRENT_LINK);
+        TestDataPrepper.prepareTextInputTree(srcDir, List.of("a.txt", "b.txt", "c/c.txt"));
+    }
+
+    /**
+     * A valid previous set is retired to the old-sets folder and marked valid.
+     */
+    @Test
+    void validPreviousSetIsRetired() throws IOException {
+        MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+        String previousScript = Files.readString(currentDir.resolve("test.sh"));
+
+        Files.writeString(srcDir.resolve("a.txt"), "changed");
+        MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+
+        Path oldSetDir = findOldSetDir();
+        assertThat(oldSetDir.resolve("_valid_old_set")).exists();
+        assertThat(oldSetDir.resolve("test.sh")).hasContent(previousScript);
+    }
+
+    /**
+     * A broken crypt file in the previous set aborts the backup, even when the crypt file is not reused. The previous
+     * set is left in place.
+     */
+    @Test
+    void brokenPreviousSetAbortsBeforeReplacement() throws IOException {
+        MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+        String previousScript = Files.readString(currentDir.resolve("test.sh"));
+        Files.writeString(currentDir.resolve("a.txt.crypt"), "invalid data");
+
+        Files.writeString(srcDir.resolve("a.txt"), "changed");
+        assertThatExceptionOfType(BackupException.class)
+                .isThrownBy(() -> MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir))
+                .withMessageContaining("Validation of old backup failed");
+
+        assertThat(currentDir.resolve("test.sh")).hasContent(previousScript);
+        assertThat(currentDir.resolve("a.txt.crypt")).hasContent("invalid data");
+        assertThat(setDir.resolve(".old-sets")).doesNotExist();
+    }
+
+    private Path findOldSetDir() throws IOException {
+        try (Stream<Path> dirs = Files.list(setDir.resolve(".old-sets"))) {
+            return dirs.findFirst().orElseThrow();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package dk.mada.unit.versioning;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dk.mada.backup.api.BackupOutputType;
+import dk.mada.backup.impl.output.VersionedSets;
+import dk.mada.backup.restore.RestoreScriptReader;
+import dk.mada.backup.restore.RestoreScriptReader.RestoreScriptData;
+import dk.mada.backup.restore.java.BackupSet.LocalBackupSet;
+import dk.mada.fixture.MakeBackup;
+import dk.mada.fixture.MakeRestore;
+import dk.mada.fixture.TestCertificateInfo;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * NAMED backup sets are promoted by flipping a link, keeping the restore script location stable.
+ */
+class VersionedSetsTest {
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+    /** The backup source directory. */
+    private Path srcDir;
+    /** The backup target directory. */
+    private Path setDir;
+
+    @BeforeEach
+    void prep() throws IOException {
+        srcDir = tempDir.resolve("src");
+        setDir = tempDir.resolve("set");
+        TestDataPrepper.prepareTextInputTree(srcDir, List.of("a.txt", "b.txt"));
+    }
+
+    /**
+     * Each backup makes a new generation current, and retires the previous generation.
+     */
+    @Test
+    void newSetIsPromotedByLink() throws IOException {
+        Path firstScript = MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+        Files.writeString(srcDir.resolve("a.txt"), "changed");
+        Path secondScript = MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+
+        assertThat(secondScript).isEqualTo(firstScript);
+        assertThat(setDir.resolve(VersionedSets.CURRENT_LINK)).isSymbolicLink();
+        assertThat(Files.readSymbolicLink(setDir.resolve(VersionedSets.CURRENT_LINK)))
+                .isEqualTo(Path.of(".sets", "2"));
+        assertThat(TestDataPrepper.listNames(setDir.resolve(".sets"))).containsExactly("2");
+        assertThat(TestDataPrepper.listNames(setDir.resolve(VersionedSets.OLD_SETS_DIR))).hasSize(1);
+        assertThat(TestDataPrepper.listNames(setDir)).doesNotContain("a.txt.crypt", ".new-set");
+        MakeRestore.assertRestoreSucceeds(secondScript, "verify");
+    }
+
+    /**
+     * The restore script stays available at its location from before versioning, as a link to the current script. The
+     * backup set is found via the link, both by the Java readers and by the script itself. The script can be run from
+     * the target directory, and from elsewhere with a relative unpack directory.
+     */
+    @Test
+    void scriptIsLinkedFromTargetDirectory() throws IOException, InterruptedException {
+        MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+        Files.writeString(srcDir.resolve("a.txt"), "changed");
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+
+        Path scriptLink = setDir.resolve("test.sh");
+        assertThat(scriptLink).isSymbolicLink();
+        assertThat(Files.readSymbolicLink(scriptLink)).isEqualTo(Path.of(VersionedSets.CURRENT_LINK, "test.sh"));
+        assertThat(scriptLink).hasSameTextualContentAs(script);
+        Path currentSetDir = setDir.resolve(".sets/2").toRealPath();
+        RestoreScriptData data = new RestoreScriptReader().readRestoreScriptData(scriptLink);
+        assertThat(data.location()).isEqualTo(currentSetDir);
+        assertThat(data.rootFilesV2()).allSatisfy(rf -> assertThat(rf.crypt().file()).exists());
+        assertThat(LocalBackupSet.newFromRestoreScript(scriptLink).backupSetDir()).isEqualTo(currentSetDir);
+
+        assertRunSucceeds(setDir, "test.sh", "verify");
+        assertRunSucceeds(tempDir, "set/test.sh", "unpack", "restored");
+        assertThat(tempDir.resolve("restored/a.txt")).hasContent("changed");
+        assertThat(scriptLink).isSymbolicLink();
+    }
+
+    /**
+     * A set that was moved in place, but not made current, is made current by the next backup.
+     */
+    @Test
+    void interruptedPromotionIsCompleted() throws IOException {
+        MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+        Files.delete(setDir.resolve(VersionedSets.CURRENT_LINK));
+
+        Files.writeString(srcDir.resolve("a.txt"), "changed");
+        Path script = MakeBackup.makeApiBackup(BackupOutputType.NAMED, srcDir, setDir);
+
+        assertThat(TestDataPrepper.listNames(setDir.resolve(".sets"))).containsExactly("2");
+        assertThat(script.resolveSibling("b.txt.crypt")).exists();
+        MakeRestore.assertRestoreSucceeds(script, "verify");
+    }
+
+    private static void assertRunSucceeds(Path dir, String script, String... args)
+            throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>(List.of("/bin/bash", script));
+        cmd.addAll(List.of(args));
+        ProcessBuilder pb = new ProcessBuilder(cmd).directory(dir.toFile()).redirectErrorStream(true);
+        pb.environment().putAll(TestCertificateInfo.TEST_KEY_ENVIRONMENT_OVERRIDES);
+        Process p = pb.start();
+        String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertThat(p.waitFor()).as(output).isZero();
+    }
+}
@@ -0,0 +1,78 @@
+package dk.mada.unit.walker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import dk.mada.backup.SourceFile;
+import dk.mada.backup.SourceTreeWalker;
+import dk.mada.fixture.TestDataPrepper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The parallel tree walker provides the same order as sorting the relative paths of the full tree.
+ */
+class SourceTreeWalkerTest {
+    /** Temporary directory. */
+    private @TempDir Path tempDir;
+
+    /**
+     * Names sharing prefixes, names sorting around the path separator, and directories only differing by case are
+     * ordered as by a full sort.
+     */
+    @Test
+    void orderMatchesFullSort() throws IOException {
+        Path dir = tempDir.resolve("src");
+        TestDataPrepper.prepareTextInputTree(dir, List.of(
+                "a/b.txt",
+                "a-c.txt",
+                "a.txt",
+                "A b/x.txt",
+                "ab",
+                "Dir/x.txt",
+                "Dir/A/q.txt",
+                "dir/Y.txt",
+                "dir/a/z.txt",
+                "deep/1/2/3/4.txt",
+                "deep/1-2.txt"));
+        Files.createDirectories(dir.resolve("empty"));
+        Files.createSymbolicLink(dir.resolve("link"), dir.resolve("a"));
+
+        List<Path> expected;
+        try (Stream<Path> files = Files.walk(dir)) {
+            expected = files.sorted((a, b) -> dir.relativize(a)
+                            .toString()
+                            .compareToIgnoreCase(dir.relativize(b).toString()))
+                    .toList();
+        }
+
+        try (Stream<SourceFile> files = SourceTreeWalker.walk(SourceFile.of(dir))) {
+            assertThat(files.map(SourceFile::path).toList()).containsExactlyElementsOf(expected);
+        }
+    }
+
+    /**
+     * The entries are provided with their attributes; those of the target for symbolic links, which are not descended
+     * into.
+     */
+    @Test
+    void attributesAreProvided() throws IOException {
+        Path dir = tempDir.resolve("src");
+        Files.createDirectories(dir.resolve("sub"));
+        Files.writeString(dir.resolve("sub/file.txt"), "12345");
+        Files.createSymbolicLink(dir.resolve("file-link"), dir.resolve("sub/file.txt"));
+        Files.createSymbolicLink(dir.resolve("sub-link"), dir.resolve("sub"));
+
+        try (Stream<SourceFile> files = SourceTreeWalker.walk(SourceFile.of(dir))) {
+            assertThat(files.toList())
+                    .extracting(f -> dir.relativize(f.path()).toString(), SourceFile::isRegularFile, SourceFile::size)
+                    .filteredOn(t -> Boolean.TRUE.equals(t.toList().get(1)))
+                    .containsExactly(tuple("file-link", true, 5L), tuple("sub/file.txt", true, 5L));
+        }
+    }
+}